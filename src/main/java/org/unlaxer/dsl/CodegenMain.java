@@ -209,7 +209,7 @@ public class CodegenMain {
     private static void printUsage(PrintStream err) {
         err.println(
             "Usage: CodegenMain [--help] [--version] --grammar <file.ubnf> --output <dir>"
-                + " [--generators AST,Parser,Mapper,Evaluator,LSP,Launcher,DAP,DAPLauncher]"
+                + " [--generators AST,ASTCodec,ColumnarAST,Parser,Mapper,Evaluator,Optimizer,Compiler,BytecodeCompiler,LSP,Launcher,DAP,DAPLauncher]"
                 + " [--validate-parser-ir <parser-ir.json>]"
                 + " [--export-parser-ir <parser-ir.json>]"
                 + " [--validate-only]"
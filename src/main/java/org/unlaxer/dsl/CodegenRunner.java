@@ -17,8 +17,12 @@ import java.util.stream.Collectors;
 import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
 import org.unlaxer.dsl.bootstrap.UBNFAST.UBNFFile;
 import org.unlaxer.dsl.bootstrap.UBNFMapper;
+import org.unlaxer.dsl.codegen.ASTCodecGenerator;
 import org.unlaxer.dsl.codegen.ASTGenerator;
+import org.unlaxer.dsl.codegen.BytecodeCompilerGenerator;
 import org.unlaxer.dsl.codegen.CodeGenerator;
+import org.unlaxer.dsl.codegen.ColumnarASTGenerator;
+import org.unlaxer.dsl.codegen.CompilerGenerator;
 import org.unlaxer.dsl.codegen.DAPGenerator;
 import org.unlaxer.dsl.codegen.DAPLauncherGenerator;
 import org.unlaxer.dsl.codegen.EvaluatorGenerator;
@@ -26,6 +30,7 @@ import org.unlaxer.dsl.codegen.GrammarValidator;
 import org.unlaxer.dsl.codegen.LSPGenerator;
 import org.unlaxer.dsl.codegen.LSPLauncherGenerator;
 import org.unlaxer.dsl.codegen.MapperGenerator;
+import org.unlaxer.dsl.codegen.OptimizerGenerator;
 import org.unlaxer.dsl.codegen.ParserGenerator;
 
 /**
@@ -416,9 +421,14 @@ final class CodegenRunner {
     private static Map<String, CodeGenerator> generatorMap() {
         Map<String, CodeGenerator> generatorMap = new LinkedHashMap<>();
         generatorMap.put("AST", new ASTGenerator());
+        generatorMap.put("ASTCodec", new ASTCodecGenerator());
+        generatorMap.put("ColumnarAST", new ColumnarASTGenerator());
         generatorMap.put("Parser", new ParserGenerator());
         generatorMap.put("Mapper", new MapperGenerator());
         generatorMap.put("Evaluator", new EvaluatorGenerator());
+        generatorMap.put("Optimizer", new OptimizerGenerator());
+        generatorMap.put("Compiler", new CompilerGenerator());
+        generatorMap.put("BytecodeCompiler", new BytecodeCompilerGenerator());
         generatorMap.put("LSP", new LSPGenerator());
         generatorMap.put("Launcher", new LSPLauncherGenerator());
         generatorMap.put("DAP", new DAPGenerator());
@@ -1,6 +1,7 @@
 package org.unlaxer.dsl.bootstrap;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -104,11 +105,16 @@ public sealed interface UBNFAST permits
     /** @root */
     record RootAnnotation() implements Annotation {}
 
-    /** @mapping(ClassName, params=[a, b, c]) */
+    /** @mapping(ClassName, params=[a, b, c], types=[a:long]) */
     record MappingAnnotation(
         String className,
-        List<String> paramNames
-    ) implements Annotation {}
+        List<String> paramNames,
+        Map<String, String> paramTypes
+    ) implements Annotation {
+        public MappingAnnotation(String className, List<String> paramNames) {
+            this(className, paramNames, Map.of());
+        }
+    }
 
     /** @whitespace または @whitespace(style) */
     record WhitespaceAnnotation(Optional<String> style) implements Annotation {}
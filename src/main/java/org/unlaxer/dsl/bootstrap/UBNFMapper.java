@@ -1,7 +1,9 @@
 package org.unlaxer.dsl.bootstrap;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.unlaxer.Parsed;
@@ -251,7 +253,15 @@ public class UBNFMapper {
                 .map(t -> t.source.toString().trim())
                 .forEach(paramNames::add);
         }
-        return new MappingAnnotation(className, List.copyOf(paramNames));
+
+        Map<String, String> paramTypes = new LinkedHashMap<>();
+        for (Token typeHint : findDescendants(token, UBNFParsers.TypeHintParser.class)) {
+            List<Token> parts = findDescendants(typeHint, UBNFParsers.IdentifierParser.class);
+            if (parts.size() >= 2) {
+                paramTypes.put(parts.get(0).source.toString().trim(), parts.get(1).source.toString().trim());
+            }
+        }
+        return new MappingAnnotation(className, List.copyOf(paramNames), Map.copyOf(paramTypes));
     }
 
     static WhitespaceAnnotation toWhitespaceAnnotation(Token token) {
@@ -419,7 +419,70 @@ public class UBNFParsers {
     }
 
     /**
-     * MappingAnnotation: '@mapping' '(' CLASS_NAME [',' 'params' '=' '[' IDENTIFIER+ ']'] ')'
+     * TypeHint: IDENTIFIER ':' IDENTIFIER
+     */
+    public static class TypeHintParser extends UBNFLazyChain {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Parsers getLazyParsers() {
+            return new Parsers(
+                Parser.get(IdentifierParser.class),
+                Parser.get(ColonParser.class),
+                Parser.get(IdentifierParser.class)
+            );
+        }
+    }
+
+    /**
+     * TypeHintList: '[' TypeHint { ',' TypeHint } ']'
+     */
+    public static class TypeHintListParser extends UBNFLazyChain {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Parsers getLazyParsers() {
+            return new Parsers(
+                Parser.get(LeftBracketParser.class),
+                Parser.get(TypeHintParser.class),
+                new ZeroOrMore(
+                    new UBNFLazyChain() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        public Parsers getLazyParsers() {
+                            return new Parsers(
+                                Parser.get(CommaParser.class),
+                                Parser.get(TypeHintParser.class)
+                            );
+                        }
+                    }
+                ),
+                Parser.get(RightBracketParser.class)
+            );
+        }
+    }
+
+    /**
+     * MappingTypes: ',' 'types' '=' TypeHintList
+     */
+    public static class MappingTypesParser extends UBNFLazyChain {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Parsers getLazyParsers() {
+            return new Parsers(
+                Parser.get(CommaParser.class),
+                new WordParser("types"),
+                Parser.get(EqualParser.class),
+                Parser.get(TypeHintListParser.class)
+            );
+        }
+    }
+
+    /**
+     * MappingAnnotation: '@mapping' '(' CLASS_NAME [',' 'params' '=' '[' IDENTIFIER+ ']']
+     *                    [',' 'types' '=' '[' (IDENTIFIER ':' IDENTIFIER)+ ']'] ')'
      */
     public static class MappingAnnotationParser extends UBNFLazyChain {
         private static final long serialVersionUID = 1L;
@@ -433,6 +496,9 @@ public class UBNFParsers {
                 new org.unlaxer.parser.combinator.Optional(
                     Parser.get(MappingParamsParser.class)
                 ),
+                new org.unlaxer.parser.combinator.Optional(
+                    Parser.get(MappingTypesParser.class)
+                ),
                 Parser.get(RightParenthesisParser.class)
             );
         }
@@ -0,0 +1,668 @@
+package org.unlaxer.dsl.codegen;
+
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.MappingAnnotation;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RootAnnotation;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * GrammarDecl から XxxASTCodec.java（XxxAST の sealed record 用バイナリコーデック）を生成する。
+ *
+ * <p>ノード種別・スパン・長さは varint、文字列は先頭の文字列テーブルへの添字で表す。
+ * リフレクションや Java シリアライゼーションは使わず、record ごとに読み書きのコードを展開する。
+ * ヘッダにはフォーマット版数と record 構成から求めたスキーマハッシュを持ち、文法が変わった
+ * エンコード結果は読み込み時に拒否される。</p>
+ *
+ * <p>あわせて、ソース文字列の SHA-256 をキーにエンコード結果をディレクトリへ保存する
+ * {@code ParseCache} を生成する。</p>
+ */
+public class ASTCodecGenerator implements CodeGenerator {
+
+    static final int FORMAT_VERSION = 1;
+
+    private final ASTGenerator astSupport = new ASTGenerator();
+
+    @Override
+    public GeneratedSource generate(GrammarDecl grammar) {
+        String packageName = astSupport.getPackageName(grammar);
+        String grammarName = grammar.name();
+        String astClass = grammarName + "AST";
+        String className = grammarName + "ASTCodec";
+        String mapperClass = grammarName + "Mapper";
+
+        Map<String, RuleDecl> mappingRules = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            getMappingAnnotation(rule).ifPresent(m -> mappingRules.putIfAbsent(m.className(), rule));
+        }
+        Map<String, List<Field>> fieldsByClass = new LinkedHashMap<>();
+        StringBuilder schema = new StringBuilder(grammarName);
+        for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
+            List<Field> fields = new ArrayList<>();
+            for (String param : getMappingAnnotation(entry.getValue()).orElseThrow().paramNames()) {
+                fields.add(new Field(param, astSupport.inferType(grammar, entry.getValue(), param)));
+            }
+            fieldsByClass.put(entry.getKey(), fields);
+            schema.append(';').append(entry.getKey()).append('(');
+            fields.forEach(f -> schema.append(f.type()).append(' ').append(f.name()).append(','));
+            schema.append(')');
+        }
+
+        String rootClass = grammar.rules().stream()
+            .filter(r -> r.annotations().stream().anyMatch(a -> a instanceof RootAnnotation))
+            .findFirst()
+            .flatMap(this::getMappingAnnotation)
+            .map(m -> astClass + "." + m.className())
+            .orElse(astClass);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import java.io.IOException;\n");
+        sb.append("import java.nio.charset.StandardCharsets;\n");
+        sb.append("import java.nio.file.Files;\n");
+        sb.append("import java.nio.file.Path;\n");
+        sb.append("import java.nio.file.StandardCopyOption;\n");
+        sb.append("import java.security.MessageDigest;\n");
+        sb.append("import java.security.NoSuchAlgorithmException;\n");
+        sb.append("import java.util.ArrayList;\n");
+        sb.append("import java.util.Arrays;\n");
+        sb.append("import java.util.Collections;\n");
+        sb.append("import java.util.HashMap;\n");
+        sb.append("import java.util.HexFormat;\n");
+        sb.append("import java.util.IdentityHashMap;\n");
+        sb.append("import java.util.List;\n");
+        sb.append("import java.util.Map;\n");
+        sb.append("import java.util.Objects;\n");
+        sb.append("import java.util.Optional;\n");
+        sb.append("import java.util.function.Function;\n\n");
+
+        sb.append("/**\n");
+        sb.append(" * ").append(grammarName).append(" AST binary codec: varint-encoded kinds and spans with a string table.\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(className).append(" {\n\n");
+        sb.append("    private ").append(className).append("() {}\n\n");
+        sb.append("    private static final int MAGIC = 0x55424E46;\n");
+        sb.append("    public static final int FORMAT_VERSION = ").append(FORMAT_VERSION).append(";\n");
+        sb.append("    public static final long SCHEMA_HASH = ")
+          .append(String.format("0x%016XL", fnv1a64(schema.toString()))).append(";\n\n");
+
+        // 0 は null ノードに予約する
+        int kind = 1;
+        for (String mappedClass : mappingRules.keySet()) {
+            sb.append("    private static final int ").append(ColumnarASTGenerator.kindConstant(mappedClass))
+              .append(" = ").append(kind++).append(";\n");
+        }
+        sb.append("\n");
+        sb.append("    private static final int VALUE_NULL = 0;\n");
+        sb.append("    private static final int VALUE_STRING = 1;\n");
+        sb.append("    private static final int VALUE_NODE = 2;\n");
+        sb.append("    private static final int VALUE_LONG = 3;\n");
+        sb.append("    private static final int VALUE_INT = 4;\n");
+        sb.append("    private static final int VALUE_DOUBLE = 5;\n");
+        sb.append("    private static final int VALUE_BOOLEAN = 6;\n\n");
+
+        appendEntryPoints(sb, astClass, rootClass, mapperClass);
+        appendParseCache(sb, rootClass, mapperClass);
+        appendWriter(sb, astClass, fieldsByClass);
+        appendReader(sb, astClass, fieldsByClass);
+
+        sb.append("}\n");
+        return new GeneratedSource(packageName, className, sb.toString());
+    }
+
+    /** record コンポーネント 1 つ分（名前と XxxAST 上の Java 型） */
+    record Field(String name, String type) {}
+
+    // =========================================================================
+    // 生成: エントリポイント・キャッシュ
+    // =========================================================================
+
+    private void appendEntryPoints(StringBuilder sb, String astClass, String rootClass, String mapperClass) {
+        sb.append("    /**\n");
+        sb.append("     * Decoded AST together with the source spans that were recorded when it was encoded.\n");
+        sb.append("     */\n");
+        sb.append("    public record Decoded(").append(rootClass).append(" root, Map<Object, int[]> spans) {\n\n");
+        sb.append("        public Optional<int[]> sourceSpanOf(Object node) {\n");
+        sb.append("            int[] span = node == null ? null : spans.get(node);\n");
+        sb.append("            return span == null ? Optional.empty() : Optional.of(new int[]{span[0], span[1]});\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public static byte[] encode(").append(astClass).append(" root) {\n");
+        sb.append("        return encode(root, ").append(mapperClass).append("::sourceSpanOf);\n");
+        sb.append("    }\n\n");
+        sb.append("    public static byte[] encode(").append(astClass)
+          .append(" root, Function<Object, Optional<int[]>> spans) {\n");
+        sb.append("        Writer writer = new Writer(spans);\n");
+        sb.append("        writer.writeNode(root);\n");
+        sb.append("        return writer.toByteArray();\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public static Decoded decode(byte[] bytes) {\n");
+        sb.append("        Reader reader = new Reader(bytes);\n");
+        sb.append("        ").append(astClass).append(" root = reader.readNode();\n");
+        sb.append("        reader.expectEnd();\n");
+        if (rootClass.equals(astClass)) {
+            sb.append("        return new Decoded(root, reader.spans);\n");
+        } else {
+            sb.append("        if (root != null && !(root instanceof ").append(rootClass).append(")) {\n");
+            sb.append("            throw new IllegalArgumentException(\"Unexpected root node: \" + root.getClass().getSimpleName());\n");
+            sb.append("        }\n");
+            sb.append("        return new Decoded((").append(rootClass).append(") root, reader.spans);\n");
+        }
+        sb.append("    }\n\n");
+
+        sb.append("    public static String contentHash(String source) {\n");
+        sb.append("        try {\n");
+        sb.append("            MessageDigest digest = MessageDigest.getInstance(\"SHA-256\");\n");
+        sb.append("            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));\n");
+        sb.append("        } catch (NoSuchAlgorithmException e) {\n");
+        sb.append("            throw new IllegalStateException(\"SHA-256 is not available\", e);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendParseCache(StringBuilder sb, String rootClass, String mapperClass) {
+        sb.append("    /**\n");
+        sb.append("     * On-disk parse cache keyed by the SHA-256 of the source text.\n");
+        sb.append("     * Entries written for another grammar revision or left corrupt are re-parsed and replaced.\n");
+        sb.append("     */\n");
+        sb.append("    public static final class ParseCache {\n\n");
+        sb.append("        private final Path directory;\n\n");
+        sb.append("        public ParseCache(Path directory) {\n");
+        sb.append("            this.directory = Objects.requireNonNull(directory, \"directory\");\n");
+        sb.append("        }\n\n");
+        sb.append("        public Decoded parse(String source) throws IOException {\n");
+        sb.append("            Path entry = entryFor(source);\n");
+        sb.append("            if (Files.isRegularFile(entry)) {\n");
+        sb.append("                try {\n");
+        sb.append("                    return decode(Files.readAllBytes(entry));\n");
+        sb.append("                } catch (IllegalArgumentException staleEntry) {\n");
+        sb.append("                    // fall through and replace the entry\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            ").append(rootClass).append(" root = ").append(mapperClass).append(".parse(source);\n");
+        sb.append("            Writer writer = new Writer(").append(mapperClass).append("::sourceSpanOf);\n");
+        sb.append("            writer.writeNode(root);\n");
+        sb.append("            store(entry, writer.toByteArray());\n");
+        sb.append("            return new Decoded(root, writer.writtenSpans);\n");
+        sb.append("        }\n\n");
+        sb.append("        public Path entryFor(String source) {\n");
+        sb.append("            return directory.resolve(contentHash(source) + \".ast\");\n");
+        sb.append("        }\n\n");
+        sb.append("        private void store(Path entry, byte[] bytes) throws IOException {\n");
+        sb.append("            Files.createDirectories(directory);\n");
+        sb.append("            Path temp = Files.createTempFile(directory, entry.getFileName().toString(), \".tmp\");\n");
+        sb.append("            try {\n");
+        sb.append("                Files.write(temp, bytes);\n");
+        sb.append("                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);\n");
+        sb.append("            } finally {\n");
+        sb.append("                Files.deleteIfExists(temp);\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    // =========================================================================
+    // 生成: Writer
+    // =========================================================================
+
+    private void appendWriter(StringBuilder sb, String astClass, Map<String, List<Field>> fieldsByClass) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Writer\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    static final class Writer {\n");
+        sb.append("        private final Function<Object, Optional<int[]>> spans;\n");
+        sb.append("        private final HashMap<String, Integer> stringIds = new HashMap<>();\n");
+        sb.append("        private final List<String> strings = new ArrayList<>();\n");
+        sb.append("        final Map<Object, int[]> writtenSpans = new IdentityHashMap<>();\n");
+        sb.append("        private byte[] buffer = new byte[256];\n");
+        sb.append("        private int size;\n\n");
+        sb.append("        Writer(Function<Object, Optional<int[]>> spans) {\n");
+        sb.append("            this.spans = spans;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        byte[] toByteArray() {\n");
+        sb.append("            byte[] body = Arrays.copyOf(buffer, size);\n");
+        sb.append("            buffer = new byte[64 + body.length];\n");
+        sb.append("            size = 0;\n");
+        sb.append("            writeFixedInt(MAGIC);\n");
+        sb.append("            writeVarint(FORMAT_VERSION);\n");
+        sb.append("            writeFixedLong(SCHEMA_HASH);\n");
+        sb.append("            writeVarint(strings.size());\n");
+        sb.append("            for (String value : strings) {\n");
+        sb.append("                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);\n");
+        sb.append("                writeVarint(utf8.length);\n");
+        sb.append("                writeBytes(utf8, utf8.length);\n");
+        sb.append("            }\n");
+        sb.append("            writeBytes(body, body.length);\n");
+        sb.append("            return Arrays.copyOf(buffer, size);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void writeNode(").append(astClass).append(" node) {\n");
+        sb.append("            if (node == null) {\n");
+        sb.append("                writeVarint(0);\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            switch (node) {\n");
+        for (Map.Entry<String, List<Field>> entry : fieldsByClass.entrySet()) {
+            sb.append("                case ").append(astClass).append(".").append(entry.getKey()).append(" n -> {\n");
+            sb.append("                    writeVarint(").append(ColumnarASTGenerator.kindConstant(entry.getKey())).append(");\n");
+            sb.append("                    writeSpan(n);\n");
+            Counter counter = new Counter();
+            for (Field field : entry.getValue()) {
+                appendWrite(sb, astClass, field.type(), "n." + field.name() + "()", "                    ", counter);
+            }
+            sb.append("                }\n");
+        }
+        sb.append("                default -> throw new IllegalArgumentException(\"Unsupported node: \" + node.getClass().getName());\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void writeSpan(Object node) {\n");
+        sb.append("            Optional<int[]> span = spans.apply(node);\n");
+        sb.append("            if (span.isEmpty()) {\n");
+        sb.append("                writeVarint(0);\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            int start = span.get()[0];\n");
+        sb.append("            int end = span.get()[1];\n");
+        sb.append("            writeVarint(start + 1);\n");
+        sb.append("            writeVarint(end - start);\n");
+        sb.append("            writtenSpans.put(node, new int[]{start, end});\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void writeString(String value) {\n");
+        sb.append("            if (value == null) {\n");
+        sb.append("                writeVarint(0);\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            Integer id = stringIds.get(value);\n");
+        sb.append("            if (id == null) {\n");
+        sb.append("                id = strings.size();\n");
+        sb.append("                strings.add(value);\n");
+        sb.append("                stringIds.put(value, id);\n");
+        sb.append("            }\n");
+        sb.append("            writeVarint(id + 1);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void writeValue(Object value) {\n");
+        sb.append("            switch (value) {\n");
+        sb.append("                case null -> writeVarint(VALUE_NULL);\n");
+        sb.append("                case String s -> {\n");
+        sb.append("                    writeVarint(VALUE_STRING);\n");
+        sb.append("                    writeString(s);\n");
+        sb.append("                }\n");
+        sb.append("                case ").append(astClass).append(" n -> {\n");
+        sb.append("                    writeVarint(VALUE_NODE);\n");
+        sb.append("                    writeNode(n);\n");
+        sb.append("                }\n");
+        sb.append("                case Long l -> {\n");
+        sb.append("                    writeVarint(VALUE_LONG);\n");
+        sb.append("                    writeSignedVarlong(l);\n");
+        sb.append("                }\n");
+        sb.append("                case Integer i -> {\n");
+        sb.append("                    writeVarint(VALUE_INT);\n");
+        sb.append("                    writeSignedVarlong(i);\n");
+        sb.append("                }\n");
+        sb.append("                case Double d -> {\n");
+        sb.append("                    writeVarint(VALUE_DOUBLE);\n");
+        sb.append("                    writeFixedLong(Double.doubleToRawLongBits(d));\n");
+        sb.append("                }\n");
+        sb.append("                case Boolean b -> {\n");
+        sb.append("                    writeVarint(VALUE_BOOLEAN);\n");
+        sb.append("                    writeByte(b ? 1 : 0);\n");
+        sb.append("                }\n");
+        sb.append("                default -> throw new IllegalArgumentException(\"Unsupported value: \" + value.getClass().getName());\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void writeVarint(int value) {\n");
+        sb.append("            writeVarlong(value & 0xFFFFFFFFL);\n");
+        sb.append("        }\n\n");
+        sb.append("        void writeVarlong(long value) {\n");
+        sb.append("            ensure(10);\n");
+        sb.append("            while ((value & ~0x7FL) != 0) {\n");
+        sb.append("                buffer[size++] = (byte) ((value & 0x7F) | 0x80);\n");
+        sb.append("                value >>>= 7;\n");
+        sb.append("            }\n");
+        sb.append("            buffer[size++] = (byte) value;\n");
+        sb.append("        }\n\n");
+        sb.append("        void writeSignedVarlong(long value) {\n");
+        sb.append("            writeVarlong((value << 1) ^ (value >> 63));\n");
+        sb.append("        }\n\n");
+        sb.append("        void writeFixedInt(int value) {\n");
+        sb.append("            ensure(4);\n");
+        sb.append("            for (int shift = 24; shift >= 0; shift -= 8) {\n");
+        sb.append("                buffer[size++] = (byte) (value >>> shift);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        void writeFixedLong(long value) {\n");
+        sb.append("            ensure(8);\n");
+        sb.append("            for (int shift = 56; shift >= 0; shift -= 8) {\n");
+        sb.append("                buffer[size++] = (byte) (value >>> shift);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        void writeByte(int value) {\n");
+        sb.append("            ensure(1);\n");
+        sb.append("            buffer[size++] = (byte) value;\n");
+        sb.append("        }\n\n");
+        sb.append("        void writeBytes(byte[] bytes, int length) {\n");
+        sb.append("            ensure(length);\n");
+        sb.append("            System.arraycopy(bytes, 0, buffer, size, length);\n");
+        sb.append("            size += length;\n");
+        sb.append("        }\n\n");
+        sb.append("        private void ensure(int extra) {\n");
+        sb.append("            if (size + extra > buffer.length) {\n");
+        sb.append("                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * 型 {@code type} の値 {@code expr} を書き出す文を展開する。
+     * List は (件数 + 1)、Optional は 0=null / 1=empty / 2=present を先頭に書く（0 は null）。
+     */
+    private void appendWrite(StringBuilder sb, String astClass, String type, String expr, String indent, Counter counter) {
+        Optional<String> listElement = unwrap(type, "List<");
+        Optional<String> optionalElement = unwrap(type, "Optional<");
+        if (listElement.isPresent()) {
+            String list = "list" + counter.next();
+            String item = "item" + counter.next();
+            sb.append(indent).append(type).append(" ").append(list).append(" = ").append(expr).append(";\n");
+            sb.append(indent).append("writeVarint(").append(list).append(" == null ? 0 : ").append(list).append(".size() + 1);\n");
+            sb.append(indent).append("if (").append(list).append(" != null) {\n");
+            sb.append(indent).append("    for (").append(listElement.get()).append(" ").append(item).append(" : ")
+              .append(list).append(") {\n");
+            appendWrite(sb, astClass, listElement.get(), item, indent + "        ", counter);
+            sb.append(indent).append("    }\n");
+            sb.append(indent).append("}\n");
+            return;
+        }
+        if (optionalElement.isPresent()) {
+            String optional = "optional" + counter.next();
+            sb.append(indent).append(type).append(" ").append(optional).append(" = ").append(expr).append(";\n");
+            sb.append(indent).append("writeVarint(").append(optional).append(" == null ? 0 : ").append(optional)
+              .append(".isPresent() ? 2 : 1);\n");
+            sb.append(indent).append("if (").append(optional).append(" != null && ").append(optional).append(".isPresent()) {\n");
+            appendWrite(sb, astClass, optionalElement.get(), optional + ".get()", indent + "    ", counter);
+            sb.append(indent).append("}\n");
+            return;
+        }
+        String statement = switch (type) {
+            case "String" -> "writeString(" + expr + ");";
+            case "long", "int" -> "writeSignedVarlong(" + expr + ");";
+            case "double" -> "writeFixedLong(Double.doubleToRawLongBits(" + expr + "));";
+            case "boolean" -> "writeByte(" + expr + " ? 1 : 0);";
+            default -> isNodeType(type, astClass) ? "writeNode(" + expr + ");" : "writeValue(" + expr + ");";
+        };
+        sb.append(indent).append(statement).append("\n");
+    }
+
+    // =========================================================================
+    // 生成: Reader
+    // =========================================================================
+
+    private void appendReader(StringBuilder sb, String astClass, Map<String, List<Field>> fieldsByClass) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Reader\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    static final class Reader {\n");
+        sb.append("        private final byte[] bytes;\n");
+        sb.append("        private int position;\n");
+        sb.append("        private final String[] strings;\n");
+        sb.append("        final Map<Object, int[]> spans = new IdentityHashMap<>();\n\n");
+        sb.append("        Reader(byte[] bytes) {\n");
+        sb.append("            this.bytes = Objects.requireNonNull(bytes, \"bytes\");\n");
+        sb.append("            if (bytes.length < 4 || readFixedInt() != MAGIC) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Not an encoded AST\");\n");
+        sb.append("            }\n");
+        sb.append("            int version = readVarint();\n");
+        sb.append("            if (version != FORMAT_VERSION) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Unsupported AST format version: \" + version);\n");
+        sb.append("            }\n");
+        sb.append("            if (readFixedLong() != SCHEMA_HASH) {\n");
+        sb.append("                throw new IllegalArgumentException(\"AST schema mismatch\");\n");
+        sb.append("            }\n");
+        sb.append("            strings = new String[readLength()];\n");
+        sb.append("            for (int i = 0; i < strings.length; i++) {\n");
+        sb.append("                int length = readLength();\n");
+        sb.append("                strings[i] = new String(bytes, position, length, StandardCharsets.UTF_8);\n");
+        sb.append("                position += length;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void expectEnd() {\n");
+        sb.append("            if (position != bytes.length) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Trailing bytes after encoded AST: \" + (bytes.length - position));\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        ").append(astClass).append(" readNode() {\n");
+        sb.append("            int kind = readVarint();\n");
+        sb.append("            if (kind == 0) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            int start = readVarint() - 1;\n");
+        sb.append("            int end = start < 0 ? -1 : start + readVarint();\n");
+        sb.append("            ").append(astClass).append(" node = switch (kind) {\n");
+        for (Map.Entry<String, List<Field>> entry : fieldsByClass.entrySet()) {
+            sb.append("                case ").append(ColumnarASTGenerator.kindConstant(entry.getKey())).append(" -> read")
+              .append(entry.getKey()).append("();\n");
+        }
+        sb.append("                default -> throw new IllegalArgumentException(\"Unknown node kind: \" + kind);\n");
+        sb.append("            };\n");
+        sb.append("            if (start >= 0) {\n");
+        sb.append("                spans.put(node, new int[]{start, end});\n");
+        sb.append("            }\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+
+        for (Map.Entry<String, List<Field>> entry : fieldsByClass.entrySet()) {
+            String recordClass = astClass + "." + entry.getKey();
+            sb.append("\n");
+            sb.append("        private ").append(recordClass).append(" read").append(entry.getKey()).append("() {\n");
+            Counter counter = new Counter();
+            List<String> args = new ArrayList<>();
+            for (Field field : entry.getValue()) {
+                String var = field.name() + "Value";
+                appendRead(sb, astClass, field.type(), var, "            ", counter);
+                args.add(var);
+            }
+            sb.append("            return new ").append(recordClass).append("(").append(String.join(", ", args)).append(");\n");
+            sb.append("        }\n");
+        }
+        sb.append("\n");
+
+        sb.append("        private <T extends ").append(astClass).append("> T readNode(Class<T> type) {\n");
+        sb.append("            ").append(astClass).append(" node = readNode();\n");
+        sb.append("            if (node != null && !type.isInstance(node)) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Expected \" + type.getSimpleName() + \" but was \" + node.getClass().getSimpleName());\n");
+        sb.append("            }\n");
+        sb.append("            return type.cast(node);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        String readString() {\n");
+        sb.append("            int id = readVarint();\n");
+        sb.append("            if (id == 0) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            if (id > strings.length) {\n");
+        sb.append("                throw new IllegalArgumentException(\"String index out of range: \" + (id - 1));\n");
+        sb.append("            }\n");
+        sb.append("            return strings[id - 1];\n");
+        sb.append("        }\n\n");
+
+        sb.append("        Object readValue() {\n");
+        sb.append("            int tag = readVarint();\n");
+        sb.append("            return switch (tag) {\n");
+        sb.append("                case VALUE_NULL -> null;\n");
+        sb.append("                case VALUE_STRING -> readString();\n");
+        sb.append("                case VALUE_NODE -> readNode();\n");
+        sb.append("                case VALUE_LONG -> readSignedVarlong();\n");
+        sb.append("                case VALUE_INT -> (int) readSignedVarlong();\n");
+        sb.append("                case VALUE_DOUBLE -> Double.longBitsToDouble(readFixedLong());\n");
+        sb.append("                case VALUE_BOOLEAN -> readByte() != 0;\n");
+        sb.append("                default -> throw new IllegalArgumentException(\"Unknown value tag: \" + tag);\n");
+        sb.append("            };\n");
+        sb.append("        }\n\n");
+
+        sb.append("        int readLength() {\n");
+        sb.append("            int length = readVarint();\n");
+        sb.append("            if (length < 0 || length > bytes.length - position) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Truncated AST encoding\");\n");
+        sb.append("            }\n");
+        sb.append("            return length;\n");
+        sb.append("        }\n\n");
+        sb.append("        int readVarint() {\n");
+        sb.append("            long value = readVarlong();\n");
+        sb.append("            if ((value >>> 32) != 0) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Varint out of range\");\n");
+        sb.append("            }\n");
+        sb.append("            return (int) value;\n");
+        sb.append("        }\n\n");
+        sb.append("        long readVarlong() {\n");
+        sb.append("            long value = 0;\n");
+        sb.append("            for (int shift = 0; shift < 64; shift += 7) {\n");
+        sb.append("                int b = readByte();\n");
+        sb.append("                value |= (long) (b & 0x7F) << shift;\n");
+        sb.append("                if ((b & 0x80) == 0) {\n");
+        sb.append("                    return value;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            throw new IllegalArgumentException(\"Malformed varint\");\n");
+        sb.append("        }\n\n");
+        sb.append("        long readSignedVarlong() {\n");
+        sb.append("            long raw = readVarlong();\n");
+        sb.append("            return (raw >>> 1) ^ -(raw & 1);\n");
+        sb.append("        }\n\n");
+        sb.append("        int readFixedInt() {\n");
+        sb.append("            int value = 0;\n");
+        sb.append("            for (int i = 0; i < 4; i++) {\n");
+        sb.append("                value = (value << 8) | readByte();\n");
+        sb.append("            }\n");
+        sb.append("            return value;\n");
+        sb.append("        }\n\n");
+        sb.append("        long readFixedLong() {\n");
+        sb.append("            long value = 0;\n");
+        sb.append("            for (int i = 0; i < 8; i++) {\n");
+        sb.append("                value = (value << 8) | readByte();\n");
+        sb.append("            }\n");
+        sb.append("            return value;\n");
+        sb.append("        }\n\n");
+        sb.append("        int readByte() {\n");
+        sb.append("            if (position >= bytes.length) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Truncated AST encoding\");\n");
+        sb.append("            }\n");
+        sb.append("            return bytes[position++] & 0xFF;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * 型 {@code type} の値を読み出してローカル変数 {@code var} に格納する文を展開する。
+     */
+    private void appendRead(StringBuilder sb, String astClass, String type, String var, String indent, Counter counter) {
+        Optional<String> listElement = unwrap(type, "List<");
+        Optional<String> optionalElement = unwrap(type, "Optional<");
+        if (listElement.isPresent()) {
+            String count = "count" + counter.next();
+            String items = "items" + counter.next();
+            String index = "i" + counter.next();
+            String item = "item" + counter.next();
+            sb.append(indent).append(type).append(" ").append(var).append(" = null;\n");
+            sb.append(indent).append("int ").append(count).append(" = readVarint();\n");
+            sb.append(indent).append("if (").append(count).append(" > 0) {\n");
+            sb.append(indent).append("    List<").append(listElement.get()).append("> ").append(items)
+              .append(" = new ArrayList<>(Math.min(").append(count).append(" - 1, bytes.length - position));\n");
+            sb.append(indent).append("    for (int ").append(index).append(" = 1; ").append(index).append(" < ")
+              .append(count).append("; ").append(index).append("++) {\n");
+            appendRead(sb, astClass, listElement.get(), item, indent + "        ", counter);
+            sb.append(indent).append("        ").append(items).append(".add(").append(item).append(");\n");
+            sb.append(indent).append("    }\n");
+            sb.append(indent).append("    ").append(var).append(" = Collections.unmodifiableList(").append(items).append(");\n");
+            sb.append(indent).append("}\n");
+            return;
+        }
+        if (optionalElement.isPresent()) {
+            String state = "state" + counter.next();
+            String value = "value" + counter.next();
+            sb.append(indent).append(type).append(" ").append(var).append(" = null;\n");
+            sb.append(indent).append("int ").append(state).append(" = readVarint();\n");
+            sb.append(indent).append("if (").append(state).append(" == 1) {\n");
+            sb.append(indent).append("    ").append(var).append(" = Optional.empty();\n");
+            sb.append(indent).append("} else if (").append(state).append(" == 2) {\n");
+            appendRead(sb, astClass, optionalElement.get(), value, indent + "    ", counter);
+            sb.append(indent).append("    ").append(var).append(" = Optional.ofNullable(").append(value).append(");\n");
+            sb.append(indent).append("}\n");
+            return;
+        }
+        String expression = switch (type) {
+            case "String" -> "readString()";
+            case "long" -> "readSignedVarlong()";
+            case "int" -> "(int) readSignedVarlong()";
+            case "double" -> "Double.longBitsToDouble(readFixedLong())";
+            case "boolean" -> "readByte() != 0";
+            case "Object" -> "readValue()";
+            default -> {
+                if (type.equals(astClass)) {
+                    yield "readNode()";
+                }
+                if (isNodeType(type, astClass)) {
+                    yield "readNode(" + type + ".class)";
+                }
+                yield "(" + type + ") readValue()";
+            }
+        };
+        sb.append(indent).append(type).append(" ").append(var).append(" = ").append(expression).append(";\n");
+    }
+
+    // =========================================================================
+    // ユーティリティ
+    // =========================================================================
+
+    private static final class Counter {
+        private int next;
+
+        int next() {
+            return next++;
+        }
+    }
+
+    private static boolean isNodeType(String type, String astClass) {
+        return type.equals(astClass) || type.startsWith(astClass + ".");
+    }
+
+    private static Optional<String> unwrap(String type, String prefix) {
+        if (type.startsWith(prefix) && type.endsWith(">")) {
+            return Optional.of(type.substring(prefix.length(), type.length() - 1));
+        }
+        return Optional.empty();
+    }
+
+    /** 生成環境に依存しないスキーマハッシュ（FNV-1a 64bit） */
+    static long fnv1a64(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private Optional<MappingAnnotation> getMappingAnnotation(RuleDecl rule) {
+        return rule.annotations().stream()
+            .filter(a -> a instanceof MappingAnnotation)
+            .map(a -> (MappingAnnotation) a)
+            .findFirst();
+    }
+}
@@ -29,14 +29,29 @@ import java.util.stream.Collectors;
  *
  * <p>@mapping アノテーション付きのルールを sealed interface の permits として生成し、
  * 各ルールに対応する record を内部型として生成する。</p>
+ *
+ * <p>grammar 設定 {@code @lazyAst: true} の場合、List / Optional / 子ノード型のフィールドを持つ
+ * ノードは同じアクセサを持つ final class として生成され、各フィールドは初回アクセス時に
+ * {@code Lazy} 経由で一度だけ具現化される。</p>
  */
 public class ASTGenerator implements CodeGenerator {
 
+    /** {@code @mapping(..., types=[param:type])} で指定できるプリミティブ型と、そのボックス型 */
+    static final Map<String, String> PRIMITIVE_TYPE_HINTS = Map.of(
+        "long", "Long",
+        "int", "Integer",
+        "double", "Double",
+        "boolean", "Boolean"
+    );
+
     @Override
     public GeneratedSource generate(GrammarDecl grammar) {
         String packageName = getPackageName(grammar);
         String grammarName = grammar.name();
         String className = grammarName + "AST";
+        boolean lazyAst = GrammarSettings.isEnabled(grammar, "lazyAst");
+        boolean structuralHash = GrammarSettings.isEnabled(grammar, "structuralHash");
+        boolean hashCons = structuralHash && isHashConsEnabled(grammar);
 
         // @mapping アノテーション付きルールを収集（クラス名で重複排除、順序保持）
         Map<String, RuleDecl> mappingRules = new LinkedHashMap<>();
@@ -64,43 +79,449 @@ public class ASTGenerator implements CodeGenerator {
         sb.append("public sealed interface ").append(className).append(" permits\n")
           .append("    ").append(permitsClause).append(" {\n\n");
 
+        Map<String, List<String>> typesByNode = new LinkedHashMap<>();
         for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
             String recordName = entry.getKey();
             RuleDecl rule = entry.getValue();
             MappingAnnotation mapping = getMappingAnnotation(rule).get();
 
+            List<String> types = new ArrayList<>();
+            for (String param : mapping.paramNames()) {
+                types.add(inferType(grammar, rule, param));
+            }
+            typesByNode.put(recordName, types);
+            boolean hasLazyField = types.stream().anyMatch(t -> isLazyFieldType(t, className));
+            if (lazyAst && hasLazyField) {
+                appendLazyNodeClass(sb, className, recordName, mapping.paramNames(), types, structuralHash);
+                continue;
+            }
+            if (structuralHash) {
+                appendHashedNodeClass(sb, className, recordName, mapping.paramNames(), types);
+                continue;
+            }
+
             sb.append("    record ").append(recordName).append("(\n");
 
             List<String> fields = new ArrayList<>();
-            for (String param : mapping.paramNames()) {
-                String type = inferType(grammar, rule, param);
-                fields.add("        " + type + " " + param);
+            for (int i = 0; i < types.size(); i++) {
+                fields.add("        " + types.get(i) + " " + mapping.paramNames().get(i));
             }
 
             sb.append(String.join(",\n", fields)).append("\n");
             sb.append("    ) implements ").append(className).append(" {}\n\n");
         }
 
+        if (lazyAst) {
+            appendLazyHolder(sb);
+        }
+        if (hashCons) {
+            appendHashCons(sb, className, mappingRules, typesByNode);
+        }
+
         sb.append("}\n");
 
         return new GeneratedSource(packageName, className, sb.toString());
     }
 
+    // =========================================================================
+    // 遅延具現化（@lazyAst）
+    // =========================================================================
+
+    /**
+     * 遅延具現化の対象になるフィールド型か判定する。
+     * List / Optional / AST ノード型が対象で、String などの葉の値は即時に保持する。
+     */
+    static boolean isLazyFieldType(String type, String astClassName) {
+        return type.startsWith("List<")
+            || type.startsWith("Optional<")
+            || type.equals(astClassName)
+            || type.startsWith(astClassName + ".");
+    }
+
+    private void appendLazyNodeClass(StringBuilder sb, String astClass, String nodeName,
+            List<String> params, List<String> types, boolean structuralHash) {
+        sb.append("    final class ").append(nodeName).append(" implements ").append(astClass).append(" {\n");
+        for (int i = 0; i < params.size(); i++) {
+            sb.append("        private final ").append(fieldHolderType(types.get(i), astClass))
+              .append(" ").append(params.get(i)).append(";\n");
+        }
+        if (structuralHash) {
+            // 具現化を遅らせるため、ハッシュは初回の hashCode() で求めて保持する（String と同じ方式）
+            sb.append("        private int hash;\n");
+            sb.append("        private boolean hashIsZero;\n");
+        }
+        sb.append("\n");
+
+        // 即時値を受け取る public コンストラクタ（record の canonical constructor と同じシグネチャ）
+        sb.append("        public ").append(nodeName).append("(\n");
+        List<String> eagerParams = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            eagerParams.add("            " + types.get(i) + " " + params.get(i));
+        }
+        sb.append(String.join(",\n", eagerParams)).append("\n");
+        sb.append("        ) {\n");
+        for (int i = 0; i < params.size(); i++) {
+            String param = params.get(i);
+            sb.append("            this.").append(param).append(" = ");
+            if (isLazyFieldType(types.get(i), astClass)) {
+                sb.append("Lazy.value(").append(param).append(")");
+            } else {
+                sb.append(param);
+            }
+            sb.append(";\n");
+        }
+        sb.append("        }\n\n");
+
+        List<String> lazyParams = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            lazyParams.add(fieldHolderType(types.get(i), astClass) + " " + params.get(i));
+        }
+        sb.append("        private ").append(nodeName).append("(")
+          .append(String.join(", ", lazyParams)).append(", boolean lazy) {\n");
+        for (String param : params) {
+            sb.append("            this.").append(param).append(" = ").append(param).append(";\n");
+        }
+        sb.append("        }\n\n");
+
+        sb.append("        public static ").append(nodeName).append(" lazy(")
+          .append(String.join(", ", lazyParams)).append(") {\n");
+        sb.append("            return new ").append(nodeName).append("(")
+          .append(String.join(", ", params)).append(", true);\n");
+        sb.append("        }\n\n");
+
+        for (int i = 0; i < params.size(); i++) {
+            String param = params.get(i);
+            sb.append("        public ").append(types.get(i)).append(" ").append(param).append("() {\n");
+            sb.append("            return ").append(param)
+              .append(isLazyFieldType(types.get(i), astClass) ? ".get()" : "").append(";\n");
+            sb.append("        }\n\n");
+        }
+
+        // record と同じ等価性・文字列表現（アクセス時に具現化される）
+        sb.append("        @Override\n");
+        sb.append("        public boolean equals(Object o) {\n");
+        sb.append("            if (this == o) {\n");
+        sb.append("                return true;\n");
+        sb.append("            }\n");
+        sb.append("            if (!(o instanceof ").append(nodeName).append(" other)) {\n");
+        sb.append("                return false;\n");
+        sb.append("            }\n");
+        if (structuralHash) {
+            sb.append("            if (hashCode() != other.hashCode()) {\n");
+            sb.append("                return false;\n");
+            sb.append("            }\n");
+        }
+        sb.append("            return ");
+        List<String> comparisons = new ArrayList<>();
+        for (String param : params) {
+            comparisons.add("java.util.Objects.equals(" + param + "(), other." + param + "())");
+        }
+        sb.append(String.join("\n                && ", comparisons)).append(";\n");
+        sb.append("        }\n\n");
+
+        sb.append("        @Override\n");
+        sb.append("        public int hashCode() {\n");
+        if (structuralHash) {
+            sb.append("            int h = hash;\n");
+            sb.append("            if (h == 0 && !hashIsZero) {\n");
+            sb.append("                h = structuralHash(")
+              .append(params.stream().map(p -> p + "()").collect(Collectors.joining(", "))).append(");\n");
+            sb.append("                if (h == 0) {\n");
+            sb.append("                    hashIsZero = true;\n");
+            sb.append("                } else {\n");
+            sb.append("                    hash = h;\n");
+            sb.append("                }\n");
+            sb.append("            }\n");
+            sb.append("            return h;\n");
+        } else {
+            sb.append("            return java.util.Objects.hash(")
+              .append(params.stream().map(p -> p + "()").collect(Collectors.joining(", "))).append(");\n");
+        }
+        sb.append("        }\n\n");
+
+        if (structuralHash) {
+            appendStructuralHashFunction(sb, nodeName, params, types);
+        }
+        appendRecordStyleToString(sb, nodeName, params);
+        sb.append("    }\n\n");
+    }
+
+    // =========================================================================
+    // 構造ハッシュ（@structuralHash）
+    // =========================================================================
+
+    /**
+     * 構築時に構造ハッシュを求めて保持するノードクラスを生成する。
+     * 子ノードのハッシュも保持済みなので、計算はフィールド数（と List の要素数）に比例する。
+     * equals はハッシュ不一致で即座に false を返し、record と同じアクセサ・toString を持つ。
+     */
+    private void appendHashedNodeClass(StringBuilder sb, String astClass, String nodeName,
+            List<String> params, List<String> types) {
+        sb.append("    final class ").append(nodeName).append(" implements ").append(astClass).append(" {\n");
+        for (int i = 0; i < params.size(); i++) {
+            sb.append("        private final ").append(types.get(i)).append(" ").append(params.get(i)).append(";\n");
+        }
+        sb.append("        private final int structuralHash;\n\n");
+
+        sb.append("        public ").append(nodeName).append("(\n");
+        List<String> ctorParams = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            ctorParams.add("            " + types.get(i) + " " + params.get(i));
+        }
+        sb.append(String.join(",\n", ctorParams)).append("\n");
+        sb.append("        ) {\n");
+        for (String param : params) {
+            sb.append("            this.").append(param).append(" = ").append(param).append(";\n");
+        }
+        sb.append("            this.structuralHash = structuralHash(").append(String.join(", ", params)).append(");\n");
+        sb.append("        }\n\n");
+
+        for (int i = 0; i < params.size(); i++) {
+            sb.append("        public ").append(types.get(i)).append(" ").append(params.get(i)).append("() {\n");
+            sb.append("            return ").append(params.get(i)).append(";\n");
+            sb.append("        }\n\n");
+        }
+
+        sb.append("        @Override\n");
+        sb.append("        public boolean equals(Object o) {\n");
+        sb.append("            if (this == o) {\n");
+        sb.append("                return true;\n");
+        sb.append("            }\n");
+        sb.append("            if (!(o instanceof ").append(nodeName).append(" other) || structuralHash != other.structuralHash) {\n");
+        sb.append("                return false;\n");
+        sb.append("            }\n");
+        sb.append("            return ");
+        List<String> comparisons = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            String param = params.get(i);
+            comparisons.add(switch (types.get(i)) {
+                case "long", "int", "boolean" -> param + " == other." + param;
+                case "double" -> "Double.compare(" + param + ", other." + param + ") == 0";
+                default -> "java.util.Objects.equals(" + param + ", other." + param + ")";
+            });
+        }
+        sb.append(comparisons.isEmpty() ? "true" : String.join("\n                && ", comparisons)).append(";\n");
+        sb.append("        }\n\n");
+
+        sb.append("        @Override\n");
+        sb.append("        public int hashCode() {\n");
+        sb.append("            return structuralHash;\n");
+        sb.append("        }\n\n");
+
+        appendStructuralHashFunction(sb, nodeName, params, types);
+        appendRecordStyleToString(sb, nodeName, params);
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * ノード種別名を初期値にした 31 倍加算のハッシュ関数。子ノードは保持済みのハッシュを使う。
+     */
+    private void appendStructuralHashFunction(StringBuilder sb, String nodeName, List<String> params, List<String> types) {
+        List<String> hashParams = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            hashParams.add(types.get(i) + " " + params.get(i));
+        }
+        sb.append("        static int structuralHash(").append(String.join(", ", hashParams)).append(") {\n");
+        sb.append("            int h = ").append(nodeName.hashCode()).append(";\n");
+        for (int i = 0; i < params.size(); i++) {
+            String param = params.get(i);
+            String element = switch (types.get(i)) {
+                case "long" -> "Long.hashCode(" + param + ")";
+                case "int" -> "Integer.hashCode(" + param + ")";
+                case "double" -> "Double.hashCode(" + param + ")";
+                case "boolean" -> "Boolean.hashCode(" + param + ")";
+                default -> "java.util.Objects.hashCode(" + param + ")";
+            };
+            sb.append("            h = 31 * h + ").append(element).append(";\n");
+        }
+        sb.append("            return h;\n");
+        sb.append("        }\n\n");
+    }
+
+    /**
+     * 指定ノードを共有インスタンスへ正規化するハッシュコンシング表を生成する。
+     */
+    private void appendHashCons(StringBuilder sb, String astClass, Map<String, RuleDecl> mappingRules,
+            Map<String, List<String>> typesByNode) {
+        sb.append("    /**\n");
+        sb.append("     * Hash-consing factory: maps structurally equal subtrees to one shared instance.\n");
+        sb.append("     */\n");
+        sb.append("    final class HashCons {\n");
+        sb.append("        private final java.util.concurrent.ConcurrentHashMap<").append(astClass).append(", ")
+          .append(astClass).append("> table =\n");
+        sb.append("            new java.util.concurrent.ConcurrentHashMap<>();\n\n");
+
+        sb.append("        /** Returns the shared instance equal to {@code node}, registering it if absent. */\n");
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        public <T extends ").append(astClass).append("> T intern(T node) {\n");
+        sb.append("            if (node == null) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            ").append(astClass).append(" existing = table.putIfAbsent(node, node);\n");
+        sb.append("            return existing == null ? node : (T) existing;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Interns the subtree bottom-up; nodes whose children are already shared are kept as is. */\n");
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        public <T extends ").append(astClass).append("> T canonicalize(T node) {\n");
+        sb.append("            if (node == null) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            ").append(astClass).append(" canonical = switch (node) {\n");
+        for (Map.Entry<String, List<String>> entry : typesByNode.entrySet()) {
+            String nodeName = entry.getKey();
+            List<String> params = getMappingAnnotation(mappingRules.get(nodeName)).orElseThrow().paramNames();
+            List<String> types = entry.getValue();
+            sb.append("                case ").append(astClass).append(".").append(nodeName).append(" n -> {\n");
+            List<String> unchanged = new ArrayList<>();
+            List<String> args = new ArrayList<>();
+            for (int i = 0; i < params.size(); i++) {
+                String param = params.get(i);
+                if (PRIMITIVE_TYPE_HINTS.containsKey(types.get(i))) {
+                    args.add("n." + param + "()");
+                    continue;
+                }
+                sb.append("                    ").append(types.get(i)).append(" ").append(param)
+                  .append(" = canonicalizeValue(n.").append(param).append("());\n");
+                unchanged.add(param + " == n." + param + "()");
+                args.add(param);
+            }
+            sb.append("                    yield ");
+            if (!unchanged.isEmpty()) {
+                sb.append(String.join(" && ", unchanged)).append("\n                        ? n\n                        : ");
+            } else {
+                sb.append("n;\n");
+                sb.append("                }\n");
+                continue;
+            }
+            sb.append("new ").append(astClass).append(".").append(nodeName).append("(")
+              .append(String.join(", ", args)).append(");\n");
+            sb.append("                }\n");
+        }
+        sb.append("                default -> node;\n");
+        sb.append("            };\n");
+        sb.append("            return (T) intern(canonical);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public int size() {\n");
+        sb.append("            return table.size();\n");
+        sb.append("        }\n\n");
+        sb.append("        public void clear() {\n");
+        sb.append("            table.clear();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        private <V> V canonicalizeValue(V value) {\n");
+        sb.append("            if (value instanceof ").append(astClass).append(" node) {\n");
+        sb.append("                return (V) canonicalize(node);\n");
+        sb.append("            }\n");
+        sb.append("            if (value instanceof List<?> list) {\n");
+        sb.append("                List<Object> shared = null;\n");
+        sb.append("                for (int i = 0; i < list.size(); i++) {\n");
+        sb.append("                    Object element = list.get(i);\n");
+        sb.append("                    Object canonical = canonicalizeValue(element);\n");
+        sb.append("                    if (canonical != element && shared == null) {\n");
+        sb.append("                        shared = new java.util.ArrayList<>(list.subList(0, i));\n");
+        sb.append("                    }\n");
+        sb.append("                    if (shared != null) {\n");
+        sb.append("                        shared.add(canonical);\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                return shared == null ? value : (V) java.util.Collections.unmodifiableList(shared);\n");
+        sb.append("            }\n");
+        sb.append("            if (value instanceof Optional<?> optional && optional.isPresent()) {\n");
+        sb.append("                Object element = optional.get();\n");
+        sb.append("                Object canonical = canonicalizeValue(element);\n");
+        sb.append("                return canonical == element ? value : (V) Optional.of(canonical);\n");
+        sb.append("            }\n");
+        sb.append("            return value;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    private boolean isHashConsEnabled(GrammarDecl grammar) {
+        String value = GrammarSettings.blockEntry(grammar, "structuralHash", "hashCons").orElse("false");
+        return switch (value.toLowerCase()) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException(
+                "Invalid @structuralHash.hashCons: '" + value + "' (expected true or false)");
+        };
+    }
+
+    private void appendRecordStyleToString(StringBuilder sb, String nodeName, List<String> params) {
+        sb.append("        @Override\n");
+        sb.append("        public String toString() {\n");
+        sb.append("            return \"").append(nodeName).append("[\"");
+        for (int i = 0; i < params.size(); i++) {
+            String param = params.get(i);
+            sb.append("\n                + \"").append(i == 0 ? "" : ", ").append(param).append("=\" + ")
+              .append(param).append("()");
+        }
+        sb.append("\n                + \"]\";\n");
+        sb.append("        }\n");
+    }
+
+    private String fieldHolderType(String type, String astClass) {
+        return isLazyFieldType(type, astClass) ? "Lazy<" + type + ">" : type;
+    }
+
+    private void appendLazyHolder(StringBuilder sb) {
+        sb.append("    /**\n");
+        sb.append("     * Thread-safe one-time initializer for lazily materialized node fields.\n");
+        sb.append("     */\n");
+        sb.append("    final class Lazy<T> implements java.util.function.Supplier<T> {\n");
+        sb.append("        private volatile java.util.function.Supplier<? extends T> supplier;\n");
+        sb.append("        private T value;\n\n");
+        sb.append("        private Lazy(java.util.function.Supplier<? extends T> supplier, T value) {\n");
+        sb.append("            this.value = value;\n");
+        sb.append("            this.supplier = supplier;\n");
+        sb.append("        }\n\n");
+        sb.append("        public static <T> Lazy<T> of(java.util.function.Supplier<? extends T> supplier) {\n");
+        sb.append("            return new Lazy<>(java.util.Objects.requireNonNull(supplier), null);\n");
+        sb.append("        }\n\n");
+        sb.append("        public static <T> Lazy<T> value(T value) {\n");
+        sb.append("            return new Lazy<>(null, value);\n");
+        sb.append("        }\n\n");
+        sb.append("        public boolean isMaterialized() {\n");
+        sb.append("            return supplier == null;\n");
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public T get() {\n");
+        sb.append("            if (supplier == null) {\n");
+        sb.append("                return value;\n");
+        sb.append("            }\n");
+        sb.append("            synchronized (this) {\n");
+        sb.append("                java.util.function.Supplier<? extends T> pending = supplier;\n");
+        sb.append("                if (pending != null) {\n");
+        sb.append("                    value = pending.get();\n");
+        sb.append("                    supplier = null;\n");
+        sb.append("                }\n");
+        sb.append("                return value;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
     // =========================================================================
     // 型推論
     // =========================================================================
 
     /**
      * ルール内の指定フィールド名に対応する Java 型を推論する。
+     * types=[...] の型ヒントがあればトークン由来の String の代わりにプリミティブ型を使い、
+     * List / Optional の要素ではボックス型を使う。
      */
     String inferType(GrammarDecl grammar, RuleDecl rule, String fieldName) {
         List<CaptureResult> captures = findCapturedElements(rule.body(), fieldName);
         if (captures.isEmpty()) {
             return "Object";
         }
-        String innerType = mergeCapturedTypes(grammar, captures);
         boolean inOptional = captures.stream().anyMatch(CaptureResult::inOptional);
         boolean inRepeat = captures.stream().anyMatch(CaptureResult::inRepeat);
+        String innerType = typeHintFor(rule, fieldName)
+            .map(hint -> inRepeat || inOptional ? PRIMITIVE_TYPE_HINTS.get(hint) : hint)
+            .orElseGet(() -> mergeCapturedTypes(grammar, captures));
         if (inRepeat) {
             return "List<" + innerType + ">";
         }
@@ -232,6 +653,17 @@ public class ASTGenerator implements CodeGenerator {
             .findFirst();
     }
 
+    /**
+     * @mapping の types=[...] で指定されたサポート対象の型ヒントを返す。
+     */
+    static Optional<String> typeHintFor(RuleDecl rule, String fieldName) {
+        return rule.annotations().stream()
+            .filter(a -> a instanceof MappingAnnotation)
+            .map(a -> ((MappingAnnotation) a).paramTypes().get(fieldName))
+            .filter(hint -> hint != null && PRIMITIVE_TYPE_HINTS.containsKey(hint))
+            .findFirst();
+    }
+
     String getPackageName(GrammarDecl grammar) {
         return grammar.settings().stream()
             .filter(s -> "package".equals(s.key()))
@@ -0,0 +1,424 @@
+package org.unlaxer.dsl.codegen;
+
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
+
+/**
+ * GrammarDecl から XxxBytecodeCompiler.java（hidden class へのバイトコードコンパイラ）を生成する。
+ *
+ * <p>XxxCompiler が返すクロージャツリーの {@code Binary} 連鎖を 1 本の分岐なし
+ * {@code evaluate} メソッドへ平坦化し、{@code MethodHandles.Lookup#defineHiddenClassWithClassData}
+ * で定義する。演算子と葉のクロージャは hidden class の static final フィールドへ classData から
+ * 読み込むため、JIT は定数として扱いインライン化できる。</p>
+ *
+ * <p>外部ライブラリに依存しないよう、最小限のクラスファイル書き出し（定数プールと 3 メソッド）を
+ * 生成コード内に持つ。コンパイル結果は AST の equals/hashCode（{@code @structuralHash} なら O(1)）を
+ * キーにキャッシュし、コードサイズ超過や定義失敗時はクロージャツリーへフォールバックする。
+ * ただし LinkageError（VerifyError など）は書き出したクラスファイルの誤りなので再送出する。</p>
+ */
+public class BytecodeCompilerGenerator implements CodeGenerator {
+
+    @Override
+    public GeneratedSource generate(GrammarDecl grammar) {
+        String packageName = getPackageName(grammar);
+        String packagePath = packageName.replace('.', '/');
+        String grammarName = grammar.name();
+        String astClass = grammarName + "AST";
+        String compilerClass = grammarName + "Compiler";
+        String className = grammarName + "BytecodeCompiler";
+        String compiledClassName = grammarName + "CompiledExpression";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import java.io.ByteArrayOutputStream;\n");
+        sb.append("import java.io.DataOutputStream;\n");
+        sb.append("import java.io.IOException;\n");
+        sb.append("import java.lang.invoke.MethodHandles;\n");
+        sb.append("import java.lang.invoke.MethodType;\n");
+        sb.append("import java.util.ArrayList;\n");
+        sb.append("import java.util.HashMap;\n");
+        sb.append("import java.util.List;\n");
+        sb.append("import java.util.Map;\n");
+        sb.append("import java.util.Optional;\n");
+        sb.append("import java.util.concurrent.ConcurrentHashMap;\n");
+        sb.append("import java.util.concurrent.atomic.AtomicInteger;\n\n");
+        sb.append("/**\n");
+        sb.append(" * Compiles ").append(astClass).append(" trees to JVM bytecode in hidden classes.\n");
+        sb.append(" *\n");
+        sb.append(" * <p>The closure tree produced by {@link ").append(compilerClass)
+          .append("} is flattened so that every operator chain\n");
+        sb.append(" * becomes one straight-line {@code evaluate} method. Operators and leaf closures are held in static\n");
+        sb.append(" * final fields of the hidden class, which the JIT treats as constants and can inline through.</p>\n");
+        sb.append(" *\n");
+        sb.append(" * <p>Results are cached per AST using the node's {@code equals}/{@code hashCode} (constant time with\n");
+        sb.append(" * {@code @structuralHash}). Trees without operator chains, trees whose method would exceed\n");
+        sb.append(" * {@code maxCodeSize}, and class definition failures fall back to the closure tree. A {@link LinkageError}\n");
+        sb.append(" * such as {@link VerifyError} means the class writer produced a bad class file and is rethrown.</p>\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(className).append("<C, T> {\n\n");
+        sb.append("    /** HotSpot does not JIT-compile methods larger than this by default. */\n");
+        sb.append("    public static final int DEFAULT_MAX_CODE_SIZE = 8000;\n");
+        sb.append("    public static final int DEFAULT_MAX_CACHED = 4096;\n\n");
+        sb.append("    private static final String COMPILED_CLASS_NAME = \"").append(packagePath).append("/")
+          .append(compiledClassName).append("\";\n");
+        sb.append("    private static final String COMPILED_EXPRESSION = \"").append(packagePath).append("/")
+          .append(compilerClass).append("$CompiledExpression\";\n");
+        sb.append("    private static final String BINARY_OPERATOR = \"java/util/function/BinaryOperator\";\n\n");
+        sb.append("    private final ").append(compilerClass).append("<C, T> compiler;\n");
+        sb.append("    private final MethodHandles.Lookup lookup = MethodHandles.lookup();\n");
+        sb.append("    private final Map<").append(astClass).append(", ").append(compilerClass)
+          .append(".CompiledExpression<C, T>> cache = new ConcurrentHashMap<>();\n");
+        sb.append("    private final int maxCodeSize;\n");
+        sb.append("    private final int maxCached;\n");
+        sb.append("    private final AtomicInteger definedClasses = new AtomicInteger();\n");
+        sb.append("    private final AtomicInteger fallbacks = new AtomicInteger();\n");
+        sb.append("    private volatile Throwable lastFailure;\n\n");
+        sb.append("    public ").append(className).append("(").append(compilerClass).append("<C, T> compiler) {\n");
+        sb.append("        this(compiler, DEFAULT_MAX_CODE_SIZE, DEFAULT_MAX_CACHED);\n");
+        sb.append("    }\n\n");
+        sb.append("    public ").append(className).append("(").append(compilerClass)
+          .append("<C, T> compiler, int maxCodeSize, int maxCached) {\n");
+        sb.append("        this.compiler = compiler;\n");
+        sb.append("        this.maxCodeSize = Math.min(maxCodeSize, 65535);\n");
+        sb.append("        this.maxCached = maxCached;\n");
+        sb.append("    }\n\n");
+        sb.append("    public ").append(compilerClass).append(".CompiledExpression<C, T> compile(")
+          .append(astClass).append(" node) {\n");
+        sb.append("        ").append(compilerClass).append(".CompiledExpression<C, T> cached = cache.get(node);\n");
+        sb.append("        if (cached != null) {\n");
+        sb.append("            return cached;\n");
+        sb.append("        }\n");
+        sb.append("        ").append(compilerClass)
+          .append(".CompiledExpression<C, T> closure = compiler.compile(node);\n");
+        sb.append("        ").append(compilerClass)
+          .append(".CompiledExpression<C, T> compiled = closure instanceof ").append(compilerClass)
+          .append(".Binary<C, T>\n");
+        sb.append("            ? define(closure)\n");
+        sb.append("            : closure;\n");
+        sb.append("        if (cache.size() < maxCached) {\n");
+        sb.append("            ").append(compilerClass)
+          .append(".CompiledExpression<C, T> raced = cache.putIfAbsent(node, compiled);\n");
+        sb.append("            if (raced != null) {\n");
+        sb.append("                return raced;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        return compiled;\n");
+        sb.append("    }\n\n");
+        sb.append("    public int cachedCount() {\n");
+        sb.append("        return cache.size();\n");
+        sb.append("    }\n\n");
+        sb.append("    public int definedClassCount() {\n");
+        sb.append("        return definedClasses.get();\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Number of compilations that fell back to the closure tree. */\n");
+        sb.append("    public int fallbackCount() {\n");
+        sb.append("        return fallbacks.get();\n");
+        sb.append("    }\n\n");
+        sb.append("    /** The exception of the most recent failed class definition, if any. */\n");
+        sb.append("    public Optional<Throwable> lastFailure() {\n");
+        sb.append("        return Optional.ofNullable(lastFailure);\n");
+        sb.append("    }\n\n");
+        sb.append("    public void clearCache() {\n");
+        sb.append("        cache.clear();\n");
+        sb.append("    }\n\n");
+        sb.append("    @SuppressWarnings(\"unchecked\")\n");
+        sb.append("    private ").append(compilerClass).append(".CompiledExpression<C, T> define(")
+          .append(compilerClass).append(".CompiledExpression<C, T> closure) {\n");
+        sb.append("        try {\n");
+        sb.append("            ClassBuilder builder = new ClassBuilder(COMPILED_CLASS_NAME, maxCodeSize);\n");
+        sb.append("            byte[] bytes = builder.build(closure);\n");
+        sb.append("            if (bytes == null) {\n");
+        sb.append("                fallbacks.incrementAndGet();\n");
+        sb.append("                return closure;\n");
+        sb.append("            }\n");
+        sb.append("            Class<?> hidden = lookup.defineHiddenClassWithClassData(bytes, builder.constants.toArray(), true)\n");
+        sb.append("                .lookupClass();\n");
+        sb.append("            Object instance = lookup.findConstructor(hidden, MethodType.methodType(void.class)).invoke();\n");
+        sb.append("            definedClasses.incrementAndGet();\n");
+        sb.append("            return (").append(compilerClass).append(".CompiledExpression<C, T>) instance;\n");
+        // VerifyError / ClassFormatError などはクラスライターの不具合なので、フォールバックで隠さない
+        sb.append("        } catch (Error e) {\n");
+        sb.append("            throw e;\n");
+        sb.append("        } catch (Throwable e) {\n");
+        sb.append("            lastFailure = e;\n");
+        sb.append("            fallbacks.incrementAndGet();\n");
+        sb.append("            return closure;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        appendClassBuilder(sb, compilerClass);
+        appendConstantPool(sb);
+
+        sb.append("}\n");
+
+        return new GeneratedSource(packageName, className, sb.toString());
+    }
+
+    /**
+     * 分岐のない evaluate を書き出すクラスファイルビルダー。
+     * Binary は演算子・左・右の順に積んで invokeinterface、それ以外は葉として evaluate を呼ぶ。
+     */
+    private void appendClassBuilder(StringBuilder sb, String compilerClass) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Class file writer\n");
+        sb.append("    // =========================================================================\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Writes a class implementing CompiledExpression with a single straight-line {@code evaluate}.\n");
+        sb.append("     * The method has no branches, so no StackMapTable is needed.\n");
+        sb.append("     */\n");
+        sb.append("    private static final class ClassBuilder {\n\n");
+        sb.append("        private final String className;\n");
+        sb.append("        private final int maxCodeSize;\n");
+        sb.append("        private final ConstantPool pool = new ConstantPool();\n");
+        sb.append("        private final List<Object> constants = new ArrayList<>();\n");
+        sb.append("        private final List<String> fieldDescriptors = new ArrayList<>();\n");
+        sb.append("        private final Map<Object, Integer> fieldIndex = new java.util.IdentityHashMap<>();\n");
+        sb.append("        private final ByteArrayOutputStream code = new ByteArrayOutputStream();\n");
+        sb.append("        private int stack;\n");
+        sb.append("        private int maxStack;\n");
+        sb.append("        private boolean overflow;\n\n");
+        sb.append("        ClassBuilder(String className, int maxCodeSize) {\n");
+        sb.append("            this.className = className;\n");
+        sb.append("            this.maxCodeSize = maxCodeSize;\n");
+        sb.append("        }\n\n");
+        sb.append("        byte[] build(").append(compilerClass)
+          .append(".CompiledExpression<?, ?> root) throws IOException {\n");
+        sb.append("            emit(root);\n");
+        sb.append("            if (overflow) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            code.write(0xB0); // areturn\n");
+        sb.append("            byte[] evaluateCode = code.toByteArray();\n");
+        sb.append("            int evaluateMaxStack = maxStack;\n\n");
+        sb.append("            int thisClass = pool.classRef(className);\n");
+        sb.append("            int objectClass = pool.classRef(\"java/lang/Object\");\n");
+        sb.append("            int interfaceClass = pool.classRef(COMPILED_EXPRESSION);\n");
+        sb.append("            int codeName = pool.utf8(\"Code\");\n\n");
+        sb.append("            ByteArrayOutputStream out = new ByteArrayOutputStream();\n");
+        sb.append("            DataOutputStream data = new DataOutputStream(out);\n");
+        sb.append("            byte[] init = initCode();\n");
+        sb.append("            byte[] clinit = clinitCode();\n");
+        sb.append("            if (clinit.length > 65535 || pool.count + 2 * fieldDescriptors.size() + 5 > 65535) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            int[] fieldNames = new int[fieldDescriptors.size()];\n");
+        sb.append("            int[] fieldTypes = new int[fieldDescriptors.size()];\n");
+        sb.append("            for (int i = 0; i < fieldNames.length; i++) {\n");
+        sb.append("                fieldNames[i] = pool.utf8(\"c\" + i);\n");
+        sb.append("                fieldTypes[i] = pool.utf8(fieldDescriptors.get(i));\n");
+        sb.append("            }\n");
+        sb.append("            int initName = pool.utf8(\"<init>\");\n");
+        sb.append("            int clinitName = pool.utf8(\"<clinit>\");\n");
+        sb.append("            int voidDescriptor = pool.utf8(\"()V\");\n");
+        sb.append("            int evaluateName = pool.utf8(\"evaluate\");\n");
+        sb.append("            int evaluateDescriptor = pool.utf8(\"(Ljava/lang/Object;)Ljava/lang/Object;\");\n\n");
+        sb.append("            data.writeInt(0xCAFEBABE);\n");
+        sb.append("            data.writeShort(0);\n");
+        sb.append("            data.writeShort(61);\n");
+        sb.append("            pool.write(data);\n");
+        sb.append("            data.writeShort(0x0031); // public final super\n");
+        sb.append("            data.writeShort(thisClass);\n");
+        sb.append("            data.writeShort(objectClass);\n");
+        sb.append("            data.writeShort(1);\n");
+        sb.append("            data.writeShort(interfaceClass);\n");
+        sb.append("            data.writeShort(fieldNames.length);\n");
+        sb.append("            for (int i = 0; i < fieldNames.length; i++) {\n");
+        sb.append("                data.writeShort(0x001A); // private static final\n");
+        sb.append("                data.writeShort(fieldNames[i]);\n");
+        sb.append("                data.writeShort(fieldTypes[i]);\n");
+        sb.append("                data.writeShort(0);\n");
+        sb.append("            }\n");
+        sb.append("            data.writeShort(3);\n");
+        sb.append("            writeMethod(data, 0x0001, initName, voidDescriptor, codeName, 1, 1, init);\n");
+        sb.append("            writeMethod(data, 0x0008, clinitName, voidDescriptor, codeName, 3, 1, clinit);\n");
+        sb.append("            writeMethod(data, 0x0001, evaluateName, evaluateDescriptor, codeName, evaluateMaxStack, 2, evaluateCode);\n");
+        sb.append("            data.writeShort(0);\n");
+        sb.append("            return out.toByteArray();\n");
+        sb.append("        }\n\n");
+        sb.append("        private void emit(").append(compilerClass)
+          .append(".CompiledExpression<?, ?> expression) {\n");
+        sb.append("            if (overflow) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            if (code.size() > maxCodeSize) {\n");
+        sb.append("                overflow = true;\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            if (expression instanceof ").append(compilerClass).append(".Binary<?, ?> binary) {\n");
+        sb.append("                getStatic(binary.operator(), \"L\" + BINARY_OPERATOR + \";\");\n");
+        sb.append("                emit(binary.left());\n");
+        sb.append("                emit(binary.right());\n");
+        sb.append("                invokeInterface(BINARY_OPERATOR, \"apply\",\n");
+        sb.append("                    \"(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;\", 3);\n");
+        sb.append("                push(-2);\n");
+        sb.append("            } else {\n");
+        sb.append("                getStatic(expression, \"L\" + COMPILED_EXPRESSION + \";\");\n");
+        sb.append("                code.write(0x2B); // aload_1\n");
+        sb.append("                push(1);\n");
+        sb.append("                invokeInterface(COMPILED_EXPRESSION, \"evaluate\", \"(Ljava/lang/Object;)Ljava/lang/Object;\", 2);\n");
+        sb.append("                push(-1);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        private void getStatic(Object constant, String descriptor) {\n");
+        sb.append("            Integer index = fieldIndex.get(constant);\n");
+        sb.append("            if (index == null) {\n");
+        sb.append("                index = constants.size();\n");
+        sb.append("                constants.add(constant);\n");
+        sb.append("                fieldDescriptors.add(descriptor);\n");
+        sb.append("                fieldIndex.put(constant, index);\n");
+        sb.append("            }\n");
+        sb.append("            code.write(0xB2); // getstatic\n");
+        sb.append("            writeShort(code, pool.fieldRef(className, \"c\" + index, descriptor));\n");
+        sb.append("            push(1);\n");
+        sb.append("        }\n\n");
+        sb.append("        private void invokeInterface(String owner, String name, String descriptor, int argSlots) {\n");
+        sb.append("            code.write(0xB9); // invokeinterface\n");
+        sb.append("            writeShort(code, pool.interfaceMethodRef(owner, name, descriptor));\n");
+        sb.append("            code.write(argSlots);\n");
+        sb.append("            code.write(0);\n");
+        sb.append("        }\n\n");
+        sb.append("        private void push(int delta) {\n");
+        sb.append("            stack += delta;\n");
+        sb.append("            maxStack = Math.max(maxStack, stack);\n");
+        sb.append("        }\n\n");
+        sb.append("        private byte[] initCode() {\n");
+        sb.append("            ByteArrayOutputStream init = new ByteArrayOutputStream();\n");
+        sb.append("            init.write(0x2A); // aload_0\n");
+        sb.append("            init.write(0xB7); // invokespecial Object.<init>\n");
+        sb.append("            writeShort(init, pool.methodRef(\"java/lang/Object\", \"<init>\", \"()V\"));\n");
+        sb.append("            init.write(0xB1); // return\n");
+        sb.append("            return init.toByteArray();\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Loads every constant from the class data into its static final field. */\n");
+        sb.append("        private byte[] clinitCode() {\n");
+        sb.append("            ByteArrayOutputStream clinit = new ByteArrayOutputStream();\n");
+        sb.append("            clinit.write(0xB8); // invokestatic MethodHandles.lookup\n");
+        sb.append("            writeShort(clinit, pool.methodRef(\"java/lang/invoke/MethodHandles\", \"lookup\",\n");
+        sb.append("                \"()Ljava/lang/invoke/MethodHandles$Lookup;\"));\n");
+        sb.append("            clinit.write(0x13); // ldc_w \"_\"\n");
+        sb.append("            writeShort(clinit, pool.string(\"_\"));\n");
+        sb.append("            clinit.write(0x13); // ldc_w Object[].class\n");
+        sb.append("            writeShort(clinit, pool.classRef(\"[Ljava/lang/Object;\"));\n");
+        sb.append("            clinit.write(0xB8); // invokestatic MethodHandles.classData\n");
+        sb.append("            writeShort(clinit, pool.methodRef(\"java/lang/invoke/MethodHandles\", \"classData\",\n");
+        sb.append("                \"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;\"));\n");
+        sb.append("            clinit.write(0xC0); // checkcast Object[]\n");
+        sb.append("            writeShort(clinit, pool.classRef(\"[Ljava/lang/Object;\"));\n");
+        sb.append("            clinit.write(0x4B); // astore_0\n");
+        sb.append("            for (int i = 0; i < fieldDescriptors.size(); i++) {\n");
+        sb.append("                String descriptor = fieldDescriptors.get(i);\n");
+        sb.append("                clinit.write(0x2A); // aload_0\n");
+        sb.append("                clinit.write(0x11); // sipush\n");
+        sb.append("                writeShort(clinit, i);\n");
+        sb.append("                clinit.write(0x32); // aaload\n");
+        sb.append("                clinit.write(0xC0); // checkcast\n");
+        sb.append("                writeShort(clinit, pool.classRef(descriptor.substring(1, descriptor.length() - 1)));\n");
+        sb.append("                clinit.write(0xB3); // putstatic\n");
+        sb.append("                writeShort(clinit, pool.fieldRef(className, \"c\" + i, descriptor));\n");
+        sb.append("            }\n");
+        sb.append("            clinit.write(0xB1); // return\n");
+        sb.append("            return clinit.toByteArray();\n");
+        sb.append("        }\n\n");
+        sb.append("        private static void writeMethod(DataOutputStream data, int access, int name, int descriptor, int codeName,\n");
+        sb.append("                int maxStack, int maxLocals, byte[] body) throws IOException {\n");
+        sb.append("            data.writeShort(access);\n");
+        sb.append("            data.writeShort(name);\n");
+        sb.append("            data.writeShort(descriptor);\n");
+        sb.append("            data.writeShort(1);\n");
+        sb.append("            data.writeShort(codeName);\n");
+        sb.append("            data.writeInt(12 + body.length);\n");
+        sb.append("            data.writeShort(maxStack);\n");
+        sb.append("            data.writeShort(maxLocals);\n");
+        sb.append("            data.writeInt(body.length);\n");
+        sb.append("            data.write(body);\n");
+        sb.append("            data.writeShort(0); // exception table\n");
+        sb.append("            data.writeShort(0); // attributes\n");
+        sb.append("        }\n\n");
+        sb.append("        private static void writeShort(ByteArrayOutputStream out, int value) {\n");
+        sb.append("            out.write(value >>> 8);\n");
+        sb.append("            out.write(value);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendConstantPool(StringBuilder sb) {
+        sb.append("    private static final class ConstantPool {\n\n");
+        sb.append("        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();\n");
+        sb.append("        private final DataOutputStream data = new DataOutputStream(entries);\n");
+        sb.append("        private final Map<String, Integer> indices = new HashMap<>();\n");
+        sb.append("        private int count = 1;\n\n");
+        sb.append("        int utf8(String value) {\n");
+        sb.append("            return entry(\"U\" + value, () -> {\n");
+        sb.append("                data.writeByte(1);\n");
+        sb.append("                data.writeUTF(value);\n");
+        sb.append("            });\n");
+        sb.append("        }\n\n");
+        sb.append("        int string(String value) {\n");
+        sb.append("            int utf8 = utf8(value);\n");
+        sb.append("            return entry(\"S\" + value, () -> {\n");
+        sb.append("                data.writeByte(8);\n");
+        sb.append("                data.writeShort(utf8);\n");
+        sb.append("            });\n");
+        sb.append("        }\n\n");
+        sb.append("        int classRef(String internalName) {\n");
+        sb.append("            int name = utf8(internalName);\n");
+        sb.append("            return entry(\"C\" + internalName, () -> {\n");
+        sb.append("                data.writeByte(7);\n");
+        sb.append("                data.writeShort(name);\n");
+        sb.append("            });\n");
+        sb.append("        }\n\n");
+        sb.append("        int fieldRef(String owner, String name, String descriptor) {\n");
+        sb.append("            return memberRef(9, owner, name, descriptor);\n");
+        sb.append("        }\n\n");
+        sb.append("        int methodRef(String owner, String name, String descriptor) {\n");
+        sb.append("            return memberRef(10, owner, name, descriptor);\n");
+        sb.append("        }\n\n");
+        sb.append("        int interfaceMethodRef(String owner, String name, String descriptor) {\n");
+        sb.append("            return memberRef(11, owner, name, descriptor);\n");
+        sb.append("        }\n\n");
+        sb.append("        private int memberRef(int tag, String owner, String name, String descriptor) {\n");
+        sb.append("            int ownerClass = classRef(owner);\n");
+        sb.append("            int memberName = utf8(name);\n");
+        sb.append("            int memberType = utf8(descriptor);\n");
+        sb.append("            int nameAndType = entry(\"N\" + name + \":\" + descriptor, () -> {\n");
+        sb.append("                data.writeByte(12);\n");
+        sb.append("                data.writeShort(memberName);\n");
+        sb.append("                data.writeShort(memberType);\n");
+        sb.append("            });\n");
+        sb.append("            return entry(tag + owner + \".\" + name + \":\" + descriptor, () -> {\n");
+        sb.append("                data.writeByte(tag);\n");
+        sb.append("                data.writeShort(ownerClass);\n");
+        sb.append("                data.writeShort(nameAndType);\n");
+        sb.append("            });\n");
+        sb.append("        }\n\n");
+        sb.append("        private int entry(String key, Entry writer) {\n");
+        sb.append("            Integer existing = indices.get(key);\n");
+        sb.append("            if (existing != null) {\n");
+        sb.append("                return existing;\n");
+        sb.append("            }\n");
+        sb.append("            try {\n");
+        sb.append("                writer.write();\n");
+        sb.append("            } catch (IOException e) {\n");
+        sb.append("                throw new java.io.UncheckedIOException(e);\n");
+        sb.append("            }\n");
+        sb.append("            indices.put(key, count);\n");
+        sb.append("            return count++;\n");
+        sb.append("        }\n\n");
+        sb.append("        void write(DataOutputStream out) throws IOException {\n");
+        sb.append("            out.writeShort(count);\n");
+        sb.append("            out.write(entries.toByteArray());\n");
+        sb.append("        }\n\n");
+        sb.append("        private interface Entry {\n");
+        sb.append("            void write() throws IOException;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    private String getPackageName(GrammarDecl grammar) {
+        return grammar.settings().stream()
+            .filter(s -> "package".equals(s.key()))
+            .map(s -> s.value() instanceof StringSettingValue sv ? sv.value() : "")
+            .findFirst()
+            .orElse("generated");
+    }
+}
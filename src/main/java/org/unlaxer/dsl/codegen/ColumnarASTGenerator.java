@@ -0,0 +1,880 @@
+package org.unlaxer.dsl.codegen;
+
+import org.unlaxer.dsl.bootstrap.UBNFAST.AtomicElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.MappingAnnotation;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RootAnnotation;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleRefElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.TokenDecl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * GrammarDecl から XxxColumnarAST.java（struct-of-arrays 形式の AST）を生成する。
+ *
+ * <p>ノード種別・ソーススパン・フィールドスロットを {@code int[]} の列として保持し、
+ * List フィールドは共有 {@code int[]} 上の [件数, 要素...] の範囲、文字列はインターンされた
+ * プールの添字として格納する。各 @mapping クラスには {@code (ast, id)} だけを持つ
+ * フライウェイト record を生成し、XxxAST の record と同名のアクセサを提供する。</p>
+ *
+ * <p>マッピングは XxxMapper と同じキャプチャ解決を使い、トークン木から直接列へ書き込む
+ * （XxxAST の record は生成しない）。</p>
+ */
+public class ColumnarASTGenerator implements CodeGenerator {
+
+    private final MapperGenerator mapperSupport = new MapperGenerator();
+
+    @Override
+    public GeneratedSource generate(GrammarDecl grammar) {
+        String packageName = getPackageName(grammar);
+        String grammarName = grammar.name();
+        String astClass = grammarName + "AST";
+        String className = grammarName + "ColumnarAST";
+        String mapperClass = grammarName + "Mapper";
+        String parsersClass = grammarName + "Parsers";
+
+        Map<String, RuleDecl> mappingRules = new LinkedHashMap<>();
+        Map<String, String> mappedClassByRuleName = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            getMappingAnnotation(rule).ifPresent(m -> {
+                mappingRules.putIfAbsent(m.className(), rule);
+                mappedClassByRuleName.putIfAbsent(rule.name(), m.className());
+            });
+        }
+        Map<String, TokenDecl> tokenDeclByName = grammar.tokens().stream()
+            .collect(Collectors.toMap(TokenDecl::name, t -> t, (a, b) -> a, LinkedHashMap::new));
+        Map<String, RuleDecl> ruleByName = grammar.rules().stream()
+            .collect(Collectors.toMap(RuleDecl::name, r -> r, (a, b) -> a, LinkedHashMap::new));
+        boolean typedCaptures = mappingRules.values().stream()
+            .map(this::getMappingAnnotation)
+            .flatMap(Optional::stream)
+            .anyMatch(m -> !m.paramTypes().isEmpty());
+
+        Map<String, List<FieldPlan>> fieldsByClass = new LinkedHashMap<>();
+        for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
+            RuleDecl rule = entry.getValue();
+            List<FieldPlan> fields = new ArrayList<>();
+            for (String param : getMappingAnnotation(rule).orElseThrow().paramNames()) {
+                fields.add(planField(param, mapperSupport.inferType(grammar, rule, param), astClass));
+            }
+            fieldsByClass.put(entry.getKey(), fields);
+        }
+
+        boolean offHeap = GrammarSettings.isEnabled(grammar, "offHeapAst");
+        String arenaFactory = offHeap ? offHeapArenaFactory(grammar) : null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        if (offHeap) {
+            sb.append("import java.lang.foreign.Arena;\n");
+            sb.append("import java.lang.foreign.MemorySegment;\n");
+            sb.append("import java.lang.foreign.ValueLayout;\n");
+        }
+        sb.append("import java.util.AbstractList;\n");
+        sb.append("import java.util.Arrays;\n");
+        sb.append("import java.util.HashMap;\n");
+        sb.append("import java.util.List;\n");
+        sb.append("import java.util.Optional;\n\n");
+        sb.append("import org.unlaxer.Parsed;\n");
+        sb.append("import org.unlaxer.Token;\n");
+        sb.append("import org.unlaxer.context.ParseContext;\n");
+        sb.append("import org.unlaxer.parser.Parser;\n\n");
+
+        sb.append("/**\n");
+        sb.append(" * ").append(grammarName).append(" columnar AST: struct-of-arrays node storage with flyweight views.\n");
+        if (offHeap) {
+            sb.append(" * Columns live off-heap in an arena owned by this instance; close it to free them.\n");
+        }
+        sb.append(" */\n");
+        sb.append("public final class ").append(className);
+        if (offHeap) {
+            sb.append(" implements AutoCloseable");
+        }
+        sb.append(" {\n\n");
+
+        int kind = 0;
+        for (String mappedClass : mappingRules.keySet()) {
+            sb.append("    public static final int ").append(kindConstant(mappedClass)).append(" = ")
+              .append(kind++).append(";\n");
+        }
+        sb.append("\n");
+        sb.append("    public static final int NO_NODE = -1;\n\n");
+
+        String intColumn = offHeap ? "MemorySegment" : "int[]";
+        String longColumn = offHeap ? "MemorySegment" : "long[]";
+        if (offHeap) {
+            sb.append("    private final Arena arena;\n");
+        }
+        for (String column : List.of("kinds", "spanStarts", "spanEnds", "parents", "fieldOffsets", "fields", "lists")) {
+            sb.append("    private final ").append(intColumn).append(" ").append(column).append(";\n");
+        }
+        sb.append("    private final ").append(longColumn).append(" wideValues;\n");
+        sb.append("    private final String[] strings;\n");
+        sb.append("    private final int nodeCount;\n");
+        sb.append("    private final int rootId;\n\n");
+
+        sb.append("    private ").append(className).append("(Builder builder, int rootId) {\n");
+        sb.append("        this.nodeCount = builder.nodeCount;\n");
+        String copy = offHeap ? "intColumn" : "Arrays.copyOf";
+        if (offHeap) {
+            sb.append("        this.arena = ").append(arenaFactory).append(";\n");
+        }
+        sb.append("        this.kinds = ").append(copy).append("(builder.kinds, builder.nodeCount);\n");
+        sb.append("        this.spanStarts = ").append(copy).append("(builder.spanStarts, builder.nodeCount);\n");
+        sb.append("        this.spanEnds = ").append(copy).append("(builder.spanEnds, builder.nodeCount);\n");
+        sb.append("        this.parents = ").append(copy).append("(builder.parents, builder.nodeCount);\n");
+        sb.append("        this.fieldOffsets = ").append(copy).append("(builder.fieldOffsets, builder.nodeCount);\n");
+        sb.append("        this.fields = ").append(copy).append("(builder.fields, builder.fieldCount);\n");
+        sb.append("        this.lists = ").append(copy).append("(builder.lists, builder.listLength);\n");
+        sb.append("        this.wideValues = ").append(offHeap ? "longColumn" : "Arrays.copyOf")
+          .append("(builder.wideValues, builder.wideCount);\n");
+        sb.append("        this.strings = builder.strings.toArray(new String[0]);\n");
+        sb.append("        this.rootId = rootId;\n");
+        sb.append("    }\n\n");
+
+        if (offHeap) {
+            appendOffHeapColumns(sb);
+        }
+        appendEntryPoints(sb, grammar, className, mapperClass, parsersClass, mappingRules);
+        appendColumnAccessors(sb, mappingRules, fieldsByClass, offHeap);
+        appendViews(sb, className, mappingRules, fieldsByClass);
+        appendBuilder(sb, grammar, className, mapperClass, parsersClass, mappingRules, fieldsByClass,
+            mappedClassByRuleName, tokenDeclByName, ruleByName, typedCaptures);
+
+        sb.append("}\n");
+        return new GeneratedSource(packageName, className, sb.toString());
+    }
+
+    // =========================================================================
+    // フィールド配置
+    // =========================================================================
+
+    enum Container { SCALAR, OPTIONAL, LIST }
+
+    enum Column { NODE, STRING, INT, BOOLEAN, LONG, DOUBLE }
+
+    /**
+     * 1 フィールド分のスロット配置。nodeClass は特定の @mapping クラスを参照する場合のみ非 null。
+     */
+    record FieldPlan(String name, Container container, Column column, String nodeClass) {}
+
+    private FieldPlan planField(String name, String type, String astClass) {
+        Container container = Container.SCALAR;
+        String inner = type;
+        Optional<String> listElement = mapperSupport.unwrapListType(type);
+        Optional<String> optionalElement = mapperSupport.unwrapOptionalType(type);
+        if (listElement.isPresent()) {
+            container = Container.LIST;
+            inner = listElement.get();
+        } else if (optionalElement.isPresent()) {
+            container = Container.OPTIONAL;
+            inner = optionalElement.get();
+        }
+        if (inner.equals(astClass)) {
+            return new FieldPlan(name, container, Column.NODE, null);
+        }
+        if (inner.startsWith(astClass + ".")) {
+            return new FieldPlan(name, container, Column.NODE, inner.substring(astClass.length() + 1));
+        }
+        Column column = switch (inner) {
+            case "long", "Long" -> Column.LONG;
+            case "int", "Integer" -> Column.INT;
+            case "double", "Double" -> Column.DOUBLE;
+            case "boolean", "Boolean" -> Column.BOOLEAN;
+            // String / Object はトークン文字列として文字列プールに格納する
+            default -> Column.STRING;
+        };
+        return new FieldPlan(name, container, column, null);
+    }
+
+    // =========================================================================
+    // 生成: エントリポイント・列アクセサ
+    // =========================================================================
+
+    private void appendEntryPoints(StringBuilder sb, GrammarDecl grammar, String className, String mapperClass,
+            String parsersClass, Map<String, RuleDecl> mappingRules) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Entry Points\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    public static ").append(className).append(" parse(String source) {\n");
+        sb.append("        Parser rootParser = ").append(parsersClass).append(".getRootParser();\n");
+        sb.append("        ParseContext context = new ParseContext(").append(mapperClass)
+          .append(".createRootSourceCompat(source));\n");
+        sb.append("        Parsed parsed;\n");
+        sb.append("        try {\n");
+        sb.append("            parsed = rootParser.parse(context);\n");
+        sb.append("        } finally {\n");
+        sb.append("            context.close();\n");
+        sb.append("        }\n");
+        sb.append("        if (!parsed.isSucceeded()) {\n");
+        sb.append("            throw new IllegalArgumentException(\"Parse failed: \" + source);\n");
+        sb.append("        }\n");
+        sb.append("        int consumed = ").append(mapperClass).append(".consumedLengthCompat(parsed.getConsumed());\n");
+        sb.append("        if (consumed != source.length()) {\n");
+        sb.append("            throw new IllegalArgumentException(\"Parse failed at offset \" + consumed + \": \" + source);\n");
+        sb.append("        }\n");
+        sb.append("        return fromToken(parsed.getRootToken(true));\n");
+        sb.append("    }\n\n");
+
+        Optional<RuleDecl> rootRule = grammar.rules().stream()
+            .filter(r -> r.annotations().stream().anyMatch(a -> a instanceof RootAnnotation))
+            .filter(r -> getMappingAnnotation(r).isPresent())
+            .findFirst();
+
+        sb.append("    public static ").append(className).append(" fromToken(Token rootToken) {\n");
+        sb.append("        Builder builder = new Builder();\n");
+        if (rootRule.isPresent()) {
+            String rootParserClass = parsersClass + "." + rootRule.get().name() + "Parser.class";
+            sb.append("        Token mappingRoot = rootToken;\n");
+            sb.append("        if (mappingRoot.parser.getClass() != ").append(rootParserClass).append(") {\n");
+            sb.append("            mappingRoot = findFirstDescendant(mappingRoot, ").append(rootParserClass).append(");\n");
+            sb.append("        }\n");
+            sb.append("        if (mappingRoot == null) {\n");
+            sb.append("            throw new IllegalArgumentException(\"Root mapping token not found for ")
+              .append(rootRule.get().name()).append("\");\n");
+            sb.append("        }\n");
+            sb.append("        int rootId = builder.map")
+              .append(getMappingAnnotation(rootRule.get()).orElseThrow().className()).append("(mappingRoot);\n");
+        } else {
+            sb.append("        int rootId = builder.mapFirst(rootToken);\n");
+            sb.append("        if (rootId == NO_NODE) {\n");
+            sb.append("            throw new IllegalArgumentException(\"No mapped node found in parse tree\");\n");
+            sb.append("        }\n");
+        }
+        sb.append("        return new ").append(className).append("(builder, rootId);\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendColumnAccessors(StringBuilder sb, Map<String, RuleDecl> mappingRules,
+            Map<String, List<FieldPlan>> fieldsByClass, boolean offHeap) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Columns\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    public int nodeCount() {\n");
+        sb.append("        return nodeCount;\n");
+        sb.append("    }\n\n");
+        sb.append("    public int rootId() {\n");
+        sb.append("        return rootId;\n");
+        sb.append("    }\n\n");
+        sb.append("    public Node root() {\n");
+        sb.append("        return node(rootId);\n");
+        sb.append("    }\n\n");
+        sb.append("    public int kind(int id) {\n");
+        sb.append("        return ").append(intAt(offHeap, "kinds", "id")).append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    public int spanStart(int id) {\n");
+        sb.append("        return ").append(intAt(offHeap, "spanStarts", "id")).append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    public int spanEnd(int id) {\n");
+        sb.append("        return ").append(intAt(offHeap, "spanEnds", "id")).append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    public int parent(int id) {\n");
+        sb.append("        return ").append(intAt(offHeap, "parents", "id")).append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    public int stringCount() {\n");
+        sb.append("        return strings.length;\n");
+        sb.append("    }\n\n");
+        sb.append("    public String string(int stringId) {\n");
+        sb.append("        return stringId < 0 ? null : strings[stringId];\n");
+        sb.append("    }\n\n");
+        sb.append("    int field(int id, int index) {\n");
+        sb.append("        return ").append(intAt(offHeap, "fields", intAt(offHeap, "fieldOffsets", "id") + " + index"))
+          .append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    int listSize(int listOffset) {\n");
+        sb.append("        return ").append(intAt(offHeap, "lists", "listOffset")).append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    int listElement(int listOffset, int index) {\n");
+        sb.append("        if (index < 0 || index >= ").append(intAt(offHeap, "lists", "listOffset")).append(") {\n");
+        sb.append("            throw new IndexOutOfBoundsException(index);\n");
+        sb.append("        }\n");
+        sb.append("        return ").append(intAt(offHeap, "lists", "listOffset + 1 + index")).append(";\n");
+        sb.append("    }\n\n");
+        sb.append("    long wideValue(int wideId) {\n");
+        sb.append("        return ").append(offHeap
+            ? "wideValues.getAtIndex(ValueLayout.JAVA_LONG, wideId)"
+            : "wideValues[wideId]").append(";\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public Node node(int id) {\n");
+        sb.append("        if (id < 0) {\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("        int kind = kind(id);\n");
+        sb.append("        return switch (kind) {\n");
+        for (String mappedClass : mappingRules.keySet()) {
+            sb.append("            case ").append(kindConstant(mappedClass)).append(" -> new ")
+              .append(mappedClass).append("(this, id);\n");
+        }
+        sb.append("            default -> throw new IllegalStateException(\"Unknown node kind: \" + kind);\n");
+        sb.append("        };\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static int fieldCount(int kind) {\n");
+        sb.append("        return switch (kind) {\n");
+        for (Map.Entry<String, List<FieldPlan>> entry : fieldsByClass.entrySet()) {
+            sb.append("            case ").append(kindConstant(entry.getKey())).append(" -> ")
+              .append(entry.getValue().size()).append(";\n");
+        }
+        sb.append("            default -> 0;\n");
+        sb.append("        };\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * {@code @offHeapAst} 有効時の列確保と解放。列は Builder の配列から一括コピーし、
+     * 以後は arena を閉じるまで GC の走査対象にならない。
+     */
+    private void appendOffHeapColumns(StringBuilder sb) {
+        sb.append("    private MemorySegment intColumn(int[] values, int length) {\n");
+        sb.append("        MemorySegment segment = arena.allocate(ValueLayout.JAVA_INT.byteSize() * length,\n");
+        sb.append("            ValueLayout.JAVA_INT.byteAlignment());\n");
+        sb.append("        MemorySegment.copy(values, 0, segment, ValueLayout.JAVA_INT, 0, length);\n");
+        sb.append("        return segment;\n");
+        sb.append("    }\n\n");
+        sb.append("    private MemorySegment longColumn(long[] values, int length) {\n");
+        sb.append("        MemorySegment segment = arena.allocate(ValueLayout.JAVA_LONG.byteSize() * length,\n");
+        sb.append("            ValueLayout.JAVA_LONG.byteAlignment());\n");
+        sb.append("        MemorySegment.copy(values, 0, segment, ValueLayout.JAVA_LONG, 0, length);\n");
+        sb.append("        return segment;\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Off-heap bytes held by this AST (string pool excluded). */\n");
+        sb.append("    public long offHeapBytes() {\n");
+        sb.append("        return kinds.byteSize() + spanStarts.byteSize() + spanEnds.byteSize() + parents.byteSize()\n");
+        sb.append("            + fieldOffsets.byteSize() + fields.byteSize() + lists.byteSize() + wideValues.byteSize();\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Frees all columns at once; flyweight views must not be used afterwards. */\n");
+        sb.append("    @Override\n");
+        sb.append("    public void close() {\n");
+        sb.append("        arena.close();\n");
+        sb.append("    }\n\n");
+    }
+
+    private String offHeapArenaFactory(GrammarDecl grammar) {
+        String arena = GrammarSettings.blockEntry(grammar, "offHeapAst", "arena").orElse("shared");
+        return switch (arena.toLowerCase()) {
+            case "shared" -> "Arena.ofShared()";
+            case "confined" -> "Arena.ofConfined()";
+            default -> throw new IllegalArgumentException(
+                "Unsupported @offHeapAst arena: '" + arena + "' (expected shared or confined)");
+        };
+    }
+
+    private String intAt(boolean offHeap, String column, String index) {
+        return offHeap
+            ? column + ".getAtIndex(ValueLayout.JAVA_INT, " + index + ")"
+            : column + "[" + index + "]";
+    }
+
+    // =========================================================================
+    // 生成: フライウェイト
+    // =========================================================================
+
+    private void appendViews(StringBuilder sb, String className, Map<String, RuleDecl> mappingRules,
+            Map<String, List<FieldPlan>> fieldsByClass) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Flyweight Views\n");
+        sb.append("    // =========================================================================\n\n");
+
+        String permits = mappingRules.keySet().stream()
+            .map(name -> className + "." + name)
+            .collect(Collectors.joining(",\n        "));
+        sb.append("    public sealed interface Node permits\n");
+        sb.append("        ").append(permits).append(" {\n");
+        sb.append("        ").append(className).append(" ast();\n\n");
+        sb.append("        int id();\n\n");
+        sb.append("        default int kind() {\n");
+        sb.append("            return ast().kind(id());\n");
+        sb.append("        }\n\n");
+        sb.append("        default int spanStart() {\n");
+        sb.append("            return ast().spanStart(id());\n");
+        sb.append("        }\n\n");
+        sb.append("        default int spanEnd() {\n");
+        sb.append("            return ast().spanEnd(id());\n");
+        sb.append("        }\n\n");
+        sb.append("        default Node parent() {\n");
+        sb.append("            return ast().node(ast().parent(id()));\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        for (Map.Entry<String, List<FieldPlan>> entry : fieldsByClass.entrySet()) {
+            String view = entry.getKey();
+            sb.append("    public record ").append(view).append("(").append(className)
+              .append(" ast, int id) implements Node {\n");
+            List<FieldPlan> fields = entry.getValue();
+            for (int i = 0; i < fields.size(); i++) {
+                appendViewAccessors(sb, fields.get(i), i);
+            }
+            sb.append("    }\n\n");
+        }
+    }
+
+    private void appendViewAccessors(StringBuilder sb, FieldPlan field, int index) {
+        String elementType = viewElementType(field);
+        String slot = "ast.field(id, " + index + ")";
+        switch (field.container()) {
+            case SCALAR -> {
+                sb.append("\n");
+                sb.append("        public ").append(scalarType(field)).append(" ").append(field.name()).append("() {\n");
+                sb.append("            int value = ").append(slot).append(";\n");
+                sb.append("            return ").append(scalarDecode(field, "value")).append(";\n");
+                sb.append("        }\n");
+            }
+            case OPTIONAL -> {
+                sb.append("\n");
+                sb.append("        public Optional<").append(elementType).append("> ").append(field.name()).append("() {\n");
+                sb.append("            int value = ").append(slot).append(";\n");
+                sb.append("            return value < 0 ? Optional.empty() : Optional.of(")
+                  .append(elementDecode(field, "value")).append(");\n");
+                sb.append("        }\n");
+            }
+            case LIST -> {
+                sb.append("\n");
+                sb.append("        public int ").append(field.name()).append("Count() {\n");
+                sb.append("            return ast.listSize(").append(slot).append(");\n");
+                sb.append("        }\n\n");
+                sb.append("        public ").append(scalarType(field)).append(" ").append(field.name())
+                  .append("(int index) {\n");
+                sb.append("            int value = ast.listElement(").append(slot).append(", index);\n");
+                sb.append("            return ").append(indexedDecode(field, "value")).append(";\n");
+                sb.append("        }\n\n");
+                sb.append("        public List<").append(elementType).append("> ").append(field.name()).append("() {\n");
+                sb.append("            return new AbstractList<>() {\n");
+                sb.append("                @Override\n");
+                sb.append("                public ").append(elementType).append(" get(int index) {\n");
+                sb.append("                    return ").append(field.name()).append("(index);\n");
+                sb.append("                }\n\n");
+                sb.append("                @Override\n");
+                sb.append("                public int size() {\n");
+                sb.append("                    return ").append(field.name()).append("Count();\n");
+                sb.append("                }\n");
+                sb.append("            };\n");
+                sb.append("        }\n");
+            }
+        }
+    }
+
+    private String viewElementType(FieldPlan field) {
+        return switch (field.column()) {
+            case NODE -> field.nodeClass() == null ? "Node" : field.nodeClass();
+            case STRING -> "String";
+            case INT -> "Integer";
+            case BOOLEAN -> "Boolean";
+            case LONG -> "Long";
+            case DOUBLE -> "Double";
+        };
+    }
+
+    private String scalarType(FieldPlan field) {
+        return switch (field.column()) {
+            case INT -> "int";
+            case BOOLEAN -> "boolean";
+            case LONG -> "long";
+            case DOUBLE -> "double";
+            default -> viewElementType(field);
+        };
+    }
+
+    /** スカラースロット: プリミティブは wideValues の添字を持ち、未設定（-1）は既定値になる */
+    private String scalarDecode(FieldPlan field, String value) {
+        return switch (field.column()) {
+            case NODE -> nodeDecode(field, value);
+            case STRING -> value + " < 0 ? \"\" : ast.string(" + value + ")";
+            case INT -> value + " < 0 ? 0 : (int) ast.wideValue(" + value + ")";
+            case BOOLEAN -> value + " >= 0 && ast.wideValue(" + value + ") != 0";
+            case LONG -> value + " < 0 ? 0L : ast.wideValue(" + value + ")";
+            case DOUBLE -> value + " < 0 ? 0.0d : Double.longBitsToDouble(ast.wideValue(" + value + "))";
+        };
+    }
+
+    /** Optional スロット: 値は wideValues / プール / ノードの添字（-1 が empty） */
+    private String elementDecode(FieldPlan field, String value) {
+        return switch (field.column()) {
+            case NODE -> nodeDecode(field, value);
+            case STRING -> "ast.string(" + value + ")";
+            case INT -> "(int) ast.wideValue(" + value + ")";
+            case BOOLEAN -> "ast.wideValue(" + value + ") != 0";
+            case LONG -> "ast.wideValue(" + value + ")";
+            case DOUBLE -> "Double.longBitsToDouble(ast.wideValue(" + value + "))";
+        };
+    }
+
+    /** List 要素: 常に書き込まれるので INT / BOOLEAN は値を直接、それ以外は添字 */
+    private String indexedDecode(FieldPlan field, String value) {
+        return switch (field.column()) {
+            case INT -> value;
+            case BOOLEAN -> value + " != 0";
+            default -> elementDecode(field, value);
+        };
+    }
+
+    private String nodeDecode(FieldPlan field, String value) {
+        if (field.nodeClass() == null) {
+            return "ast.node(" + value + ")";
+        }
+        return value + " < 0 ? null : new " + field.nodeClass() + "(ast, " + value + ")";
+    }
+
+    // =========================================================================
+    // 生成: Builder（トークン木 -> 列）
+    // =========================================================================
+
+    private void appendBuilder(StringBuilder sb, GrammarDecl grammar, String className, String mapperClass,
+            String parsersClass, Map<String, RuleDecl> mappingRules, Map<String, List<FieldPlan>> fieldsByClass,
+            Map<String, String> mappedClassByRuleName, Map<String, TokenDecl> tokenDeclByName,
+            Map<String, RuleDecl> ruleByName, boolean typedCaptures) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Builder\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    static final class Builder {\n");
+        sb.append("        private int[] kinds = new int[64];\n");
+        sb.append("        private int[] spanStarts = new int[64];\n");
+        sb.append("        private int[] spanEnds = new int[64];\n");
+        sb.append("        private int[] parents = new int[64];\n");
+        sb.append("        private int[] fieldOffsets = new int[64];\n");
+        sb.append("        private int nodeCount;\n");
+        sb.append("        private int currentParent = NO_NODE;\n");
+        sb.append("        private int[] fields = new int[256];\n");
+        sb.append("        private int fieldCount;\n");
+        sb.append("        private int[] lists = new int[256];\n");
+        sb.append("        private int listLength;\n");
+        sb.append("        private long[] wideValues = new long[16];\n");
+        sb.append("        private int wideCount;\n");
+        sb.append("        private final List<String> strings = new java.util.ArrayList<>();\n");
+        sb.append("        private final HashMap<String, Integer> stringIds = new HashMap<>();\n\n");
+
+        sb.append("        int newNode(int kind, Token token) {\n");
+        sb.append("            if (nodeCount == kinds.length) {\n");
+        sb.append("                int capacity = kinds.length * 2;\n");
+        sb.append("                kinds = Arrays.copyOf(kinds, capacity);\n");
+        sb.append("                spanStarts = Arrays.copyOf(spanStarts, capacity);\n");
+        sb.append("                spanEnds = Arrays.copyOf(spanEnds, capacity);\n");
+        sb.append("                parents = Arrays.copyOf(parents, capacity);\n");
+        sb.append("                fieldOffsets = Arrays.copyOf(fieldOffsets, capacity);\n");
+        sb.append("            }\n");
+        sb.append("            int width = fieldCount(kind);\n");
+        sb.append("            if (fieldCount + width > fields.length) {\n");
+        sb.append("                fields = Arrays.copyOf(fields, Math.max(fields.length * 2, fieldCount + width));\n");
+        sb.append("            }\n");
+        sb.append("            int id = nodeCount++;\n");
+        sb.append("            int start = Math.max(0, tokenStartOffsetCompat(token));\n");
+        sb.append("            kinds[id] = kind;\n");
+        sb.append("            spanStarts[id] = start;\n");
+        sb.append("            spanEnds[id] = start + Math.max(0, consumedLengthCompat(token));\n");
+        sb.append("            parents[id] = currentParent;\n");
+        sb.append("            fieldOffsets[id] = fieldCount;\n");
+        sb.append("            Arrays.fill(fields, fieldCount, fieldCount + width, NO_NODE);\n");
+        sb.append("            fieldCount += width;\n");
+        sb.append("            return id;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        int enter(int id) {\n");
+        sb.append("            int enclosing = currentParent;\n");
+        sb.append("            currentParent = id;\n");
+        sb.append("            return enclosing;\n");
+        sb.append("        }\n\n");
+        sb.append("        void leave(int enclosing) {\n");
+        sb.append("            currentParent = enclosing;\n");
+        sb.append("        }\n\n");
+        sb.append("        void set(int id, int index, int value) {\n");
+        sb.append("            fields[fieldOffsets[id] + index] = value;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        int string(String value) {\n");
+        sb.append("            if (value == null) {\n");
+        sb.append("                return NO_NODE;\n");
+        sb.append("            }\n");
+        sb.append("            Integer existing = stringIds.get(value);\n");
+        sb.append("            if (existing != null) {\n");
+        sb.append("                return existing;\n");
+        sb.append("            }\n");
+        sb.append("            int id = strings.size();\n");
+        sb.append("            strings.add(value);\n");
+        sb.append("            stringIds.put(value, id);\n");
+        sb.append("            return id;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        int wide(long value) {\n");
+        sb.append("            if (wideCount == wideValues.length) {\n");
+        sb.append("                wideValues = Arrays.copyOf(wideValues, wideValues.length * 2);\n");
+        sb.append("            }\n");
+        sb.append("            wideValues[wideCount] = value;\n");
+        sb.append("            return wideCount++;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        int list(IntList items) {\n");
+        sb.append("            int required = listLength + 1 + items.size;\n");
+        sb.append("            if (required > lists.length) {\n");
+        sb.append("                lists = Arrays.copyOf(lists, Math.max(lists.length * 2, required));\n");
+        sb.append("            }\n");
+        sb.append("            int offset = listLength;\n");
+        sb.append("            lists[offset] = items.size;\n");
+        sb.append("            System.arraycopy(items.values, 0, lists, offset + 1, items.size);\n");
+        sb.append("            listLength = required;\n");
+        sb.append("            return offset;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        int mapFirst(Token token) {\n");
+        sb.append("            if (token == null) {\n");
+        sb.append("                return NO_NODE;\n");
+        sb.append("            }\n");
+        for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
+            sb.append("            if (token.parser.getClass() == ").append(parsersClass).append(".")
+              .append(entry.getValue().name()).append("Parser.class) {\n");
+            sb.append("                return map").append(entry.getKey()).append("(token);\n");
+            sb.append("            }\n");
+        }
+        sb.append("            for (Token child : token.filteredChildren) {\n");
+        sb.append("                int mapped = mapFirst(child);\n");
+        sb.append("                if (mapped != NO_NODE) {\n");
+        sb.append("                    return mapped;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return NO_NODE;\n");
+        sb.append("        }\n");
+
+        for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
+            String mappedClass = entry.getKey();
+            RuleDecl rule = entry.getValue();
+            MappingAnnotation mapping = getMappingAnnotation(rule).orElseThrow();
+            List<FieldPlan> fields = fieldsByClass.get(mappedClass);
+            sb.append("\n");
+            sb.append("        int map").append(mappedClass).append("(Token token) {\n");
+            boolean assoc = mapperSupport.isLeftAssocRule(rule, mapping) || mapperSupport.isRightAssocRule(rule, mapping);
+            Optional<MapperGenerator.AssocShape> shape = assoc
+                ? mapperSupport.findAssocShape(rule, "left", "op", "right")
+                : Optional.empty();
+            if (assoc && shape.isPresent()) {
+                appendAssocMapping(sb, grammar, mappedClass, rule, mapping, fields, shape.get(), parsersClass,
+                    mappedClassByRuleName, tokenDeclByName, ruleByName);
+            } else if (assoc) {
+                sb.append("            throw new IllegalArgumentException(\"Unsupported assoc mapping shape for rule: ")
+                  .append(rule.name()).append("\");\n");
+            } else {
+                sb.append("            int id = newNode(").append(kindConstant(mappedClass)).append(", token);\n");
+                sb.append("            int enclosing = enter(id);\n");
+                Map<String, Integer> occurrenceByParserClass = new LinkedHashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    appendFieldMapping(sb, grammar, rule, fields.get(i), i, parsersClass, occurrenceByParserClass,
+                        mappedClassByRuleName, tokenDeclByName, ruleByName);
+                }
+                sb.append("            leave(enclosing);\n");
+                sb.append("            return id;\n");
+            }
+            sb.append("        }\n");
+        }
+        sb.append("    }\n\n");
+
+        sb.append("    static final class IntList {\n");
+        sb.append("        private int[] values = new int[8];\n");
+        sb.append("        private int size;\n\n");
+        sb.append("        void add(int value) {\n");
+        sb.append("            if (size == values.length) {\n");
+        sb.append("                values = Arrays.copyOf(values, size * 2);\n");
+        sb.append("            }\n");
+        sb.append("            values[size++] = value;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        appendMapperDelegates(sb, mapperClass, typedCaptures);
+    }
+
+    private void appendFieldMapping(StringBuilder sb, GrammarDecl grammar, RuleDecl rule, FieldPlan field, int index,
+            String parsersClass, Map<String, Integer> occurrenceByParserClass,
+            Map<String, String> mappedClassByRuleName, Map<String, TokenDecl> tokenDeclByName,
+            Map<String, RuleDecl> ruleByName) {
+        String ruleParserClass = parsersClass + "." + rule.name() + "Parser.class";
+        List<AtomicElement> captured = mapperSupport.findCapturedElements(rule.body(), field.name());
+        if (captured.isEmpty()) {
+            return;
+        }
+        String safe = field.name().replaceAll("[^A-Za-z0-9_]", "_");
+        if (field.container() == Container.LIST) {
+            sb.append("            IntList items_").append(safe).append(" = new IntList();\n");
+        } else {
+            sb.append("            boolean assigned_").append(safe).append(" = false;\n");
+        }
+        for (int i = 0; i < captured.size(); i++) {
+            AtomicElement element = captured.get(i);
+            AtomicElement normalized = mapperSupport.normalizeCapturedElement(element).orElse(element);
+            String parserClass = mapperSupport.parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
+                .orElse(ruleParserClass);
+            String tokenVar = "paramToken_" + safe + "_" + i;
+            Optional<String> value = valueExpression(grammar, field, normalized, tokenVar,
+                mappedClassByRuleName, tokenDeclByName, ruleByName);
+            if (value.isEmpty()) {
+                continue;
+            }
+            if (field.container() == Container.LIST) {
+                sb.append("            for (Token ").append(tokenVar).append(" : findDescendants(token, ")
+                  .append(parserClass).append(")) {\n");
+                sb.append("                items_").append(safe).append(".add(").append(value.get()).append(");\n");
+                sb.append("            }\n");
+                continue;
+            }
+            int occurrence = occurrenceByParserClass.getOrDefault(parserClass, 0);
+            occurrenceByParserClass.put(parserClass, occurrence + 1);
+            sb.append("            if (!assigned_").append(safe).append(") {\n");
+            sb.append("                Token ").append(tokenVar).append(" = findDescendantByIndex(token, ")
+              .append(parserClass).append(", ").append(occurrence).append(");\n");
+            sb.append("                if (").append(tokenVar).append(" != null) {\n");
+            sb.append("                    set(id, ").append(index).append(", ").append(value.get()).append(");\n");
+            sb.append("                    assigned_").append(safe).append(" = true;\n");
+            sb.append("                }\n");
+            sb.append("            }\n");
+        }
+        if (field.container() == Container.LIST) {
+            sb.append("            set(id, ").append(index).append(", list(items_").append(safe).append("));\n");
+        }
+    }
+
+    private void appendAssocMapping(StringBuilder sb, GrammarDecl grammar, String mappedClass, RuleDecl rule,
+            MappingAnnotation mapping, List<FieldPlan> fields, MapperGenerator.AssocShape shape, String parsersClass,
+            Map<String, String> mappedClassByRuleName, Map<String, TokenDecl> tokenDeclByName,
+            Map<String, RuleDecl> ruleByName) {
+        String ruleParserClass = parsersClass + "." + rule.name() + "Parser.class";
+        String repeatParserClass = parsersClass + "." + rule.name() + "Repeat" + shape.repeatIndex() + "Parser.class";
+        String leftParserClass = mapperSupport.parserClassLiteral(shape.leftElement(), parsersClass, tokenDeclByName, ruleByName)
+            .orElse(ruleParserClass);
+        String opParserClass = mapperSupport.parserClassLiteral(shape.opElement(), parsersClass, tokenDeclByName, ruleByName)
+            .orElse("org.unlaxer.parser.elementary.WordParser.class");
+        String rightParserClass = mapperSupport.parserClassLiteral(shape.rightElement(), parsersClass, tokenDeclByName, ruleByName)
+            .orElse(ruleParserClass);
+        int leftIndex = mapping.paramNames().indexOf("left");
+        int opIndex = mapping.paramNames().indexOf("op");
+        int rightIndex = mapping.paramNames().indexOf("right");
+        FieldPlan left = fields.get(leftIndex);
+        FieldPlan right = fields.get(rightIndex);
+        String leftValue = valueExpression(grammar, left, shape.leftElement(), "leftToken",
+            mappedClassByRuleName, tokenDeclByName, ruleByName).orElse("NO_NODE");
+        String rightValue = valueExpression(grammar, right, shape.rightElement(), "rightToken",
+            mappedClassByRuleName, tokenDeclByName, ruleByName).orElse("NO_NODE");
+        String kind = kindConstant(mappedClass);
+
+        sb.append("            Token working = token;\n");
+        sb.append("            if (working.parser.getClass() != ").append(ruleParserClass).append(") {\n");
+        sb.append("                working = findFirstDescendant(working, ").append(ruleParserClass).append(");\n");
+        sb.append("            }\n");
+        sb.append("            Token leftToken = working == null ? null : findFirstDescendant(working, ")
+          .append(leftParserClass).append(");\n");
+        sb.append("            if (leftToken == null) {\n");
+        sb.append("                // 葉のみのノード: 先頭トークン文字列を op に保持する（XxxMapper と同じ扱い）\n");
+        sb.append("                Token leaf = working == null ? token : working;\n");
+        sb.append("                int id = newNode(").append(kind).append(", leaf);\n");
+        sb.append("                IntList ops = new IntList();\n");
+        sb.append("                String literal = stripQuotes(firstTokenText(leaf));\n");
+        sb.append("                ops.add(string(literal == null ? \"\" : literal));\n");
+        sb.append("                set(id, ").append(opIndex).append(", list(ops));\n");
+        sb.append("                set(id, ").append(rightIndex).append(", list(new IntList()));\n");
+        sb.append("                return id;\n");
+        sb.append("            }\n");
+        sb.append("            int id = newNode(").append(kind).append(", working);\n");
+        sb.append("            int enclosing = enter(id);\n");
+        sb.append("            set(id, ").append(leftIndex).append(", ").append(leftValue).append(");\n");
+        sb.append("            IntList ops = new IntList();\n");
+        sb.append("            IntList rights = new IntList();\n");
+        sb.append("            for (Token repeatToken : findDescendants(working, ").append(repeatParserClass).append(")) {\n");
+        sb.append("                Token opToken = findFirstDescendant(repeatToken, ").append(opParserClass).append(");\n");
+        sb.append("                String opValue = firstTokenText(opToken == null ? repeatToken : opToken);\n");
+        sb.append("                if (opValue != null && !opValue.isEmpty()) {\n");
+        sb.append("                    ops.add(string(stripQuotes(opValue)));\n");
+        sb.append("                }\n");
+        sb.append("                Token rightToken = findFirstDescendant(repeatToken, ").append(rightParserClass).append(");\n");
+        sb.append("                if (rightToken != null) {\n");
+        sb.append("                    rights.add(").append(rightValue).append(");\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            set(id, ").append(opIndex).append(", list(ops));\n");
+        sb.append("            set(id, ").append(rightIndex).append(", list(rights));\n");
+        sb.append("            leave(enclosing);\n");
+        sb.append("            return id;\n");
+    }
+
+    /**
+     * キャプチャ要素 1 つ分を列スロットの int 値に変換する式。互換でない要素は空を返す。
+     */
+    private Optional<String> valueExpression(GrammarDecl grammar, FieldPlan field, AtomicElement element,
+            String tokenVar, Map<String, String> mappedClassByRuleName, Map<String, TokenDecl> tokenDeclByName,
+            Map<String, RuleDecl> ruleByName) {
+        boolean wideSlot = field.container() != Container.LIST;
+        return switch (field.column()) {
+            case NODE -> {
+                if (!(element instanceof RuleRefElement ref) || !mappedClassByRuleName.containsKey(ref.name())) {
+                    yield Optional.empty();
+                }
+                String target = mappedClassByRuleName.get(ref.name());
+                if (field.nodeClass() != null && !field.nodeClass().equals(target)) {
+                    yield Optional.empty();
+                }
+                yield Optional.of("map" + target + "(" + tokenVar + ")");
+            }
+            case STRING -> Optional.of("string(" + mapperSupport.mapExpressionForTargetType(
+                "String", element, tokenVar, mappedClassByRuleName, tokenDeclByName, ruleByName) + ")");
+            case INT -> Optional.of(wideSlot
+                ? "wide(intValueOf(" + tokenVar + "))"
+                : "intValueOf(" + tokenVar + ")");
+            case BOOLEAN -> Optional.of(wideSlot
+                ? "wide(booleanValueOf(" + tokenVar + ") ? 1 : 0)"
+                : "(booleanValueOf(" + tokenVar + ") ? 1 : 0)");
+            case LONG -> Optional.of("wide(longValueOf(" + tokenVar + "))");
+            case DOUBLE -> Optional.of("wide(Double.doubleToRawLongBits(doubleValueOf(" + tokenVar + ")))");
+        };
+    }
+
+    private void appendMapperDelegates(StringBuilder sb, String mapperClass, boolean typedCaptures) {
+        sb.append("    // Token helpers are shared with ").append(mapperClass).append(" so both mappings resolve captures identically.\n\n");
+        appendDelegate(sb, mapperClass, "List<Token>", "findDescendants", "Token token, Class<? extends Parser> parserClass",
+            "token, parserClass");
+        appendDelegate(sb, mapperClass, "Token", "findFirstDescendant", "Token token, Class<? extends Parser> parserClass",
+            "token, parserClass");
+        appendDelegate(sb, mapperClass, "Token", "findDescendantByIndex",
+            "Token token, Class<? extends Parser> parserClass, int index", "token, parserClass, index");
+        appendDelegate(sb, mapperClass, "String", "firstTokenText", "Token token", "token");
+        appendDelegate(sb, mapperClass, "String", "identifierLikeText", "Token token", "token");
+        appendDelegate(sb, mapperClass, "String", "stripQuotes", "String quoted", "quoted");
+        appendDelegate(sb, mapperClass, "int", "tokenStartOffsetCompat", "Token token", "token");
+        appendDelegate(sb, mapperClass, "int", "consumedLengthCompat", "Token token", "token");
+        if (typedCaptures) {
+            appendDelegate(sb, mapperClass, "long", "longValueOf", "Token token", "token");
+            appendDelegate(sb, mapperClass, "int", "intValueOf", "Token token", "token");
+            appendDelegate(sb, mapperClass, "double", "doubleValueOf", "Token token", "token");
+            appendDelegate(sb, mapperClass, "boolean", "booleanValueOf", "Token token", "token");
+        }
+    }
+
+    private void appendDelegate(StringBuilder sb, String mapperClass, String returnType, String name,
+            String params, String args) {
+        sb.append("    private static ").append(returnType).append(" ").append(name).append("(").append(params)
+          .append(") {\n");
+        sb.append("        return ").append(mapperClass).append(".").append(name).append("(").append(args).append(");\n");
+        sb.append("    }\n\n");
+    }
+
+    // =========================================================================
+    // ユーティリティ
+    // =========================================================================
+
+    static String kindConstant(String className) {
+        return "KIND_" + className.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+    }
+
+    private Optional<MappingAnnotation> getMappingAnnotation(RuleDecl rule) {
+        return rule.annotations().stream()
+            .filter(a -> a instanceof MappingAnnotation)
+            .map(a -> (MappingAnnotation) a)
+            .findFirst();
+    }
+
+    private String getPackageName(GrammarDecl grammar) {
+        return new ASTGenerator().getPackageName(grammar);
+    }
+}
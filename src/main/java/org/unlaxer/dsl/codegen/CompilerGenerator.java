@@ -0,0 +1,237 @@
+package org.unlaxer.dsl.codegen;
+
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.MappingAnnotation;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * GrammarDecl から XxxCompiler.java（クロージャコンパイラ）を生成する。
+ *
+ * <p>XxxEvaluator が eval のたびに sealed switch で dispatch するのに対し、生成される
+ * abstract class は AST を一度だけ走査して {@code CompiledExpression} のツリーへ変換する。
+ * ノード種別の dispatch と演算子の解決はコンパイル時に済むため、評価時には AST を参照しない。</p>
+ *
+ * <p>{@code @leftAssoc} / {@code @rightAssoc} の left/op/right 形式のクラスには、
+ * {@code binaryOperator(op)} を一度だけ引いて畳み込む既定実装を生成する。</p>
+ */
+public class CompilerGenerator implements CodeGenerator {
+
+    private final MapperGenerator mapperSupport = new MapperGenerator();
+
+    enum Fold { LEFT, RIGHT }
+
+    @Override
+    public GeneratedSource generate(GrammarDecl grammar) {
+        String packageName = getPackageName(grammar);
+        String grammarName = grammar.name();
+        String astClass = grammarName + "AST";
+        String compilerClass = grammarName + "Compiler";
+
+        // @mapping クラス名ごとに、そのクラスへマップされるルールを収集（順序保持）
+        Map<String, List<RuleDecl>> rulesByClass = rulesByClass(grammar);
+        Map<String, Fold> folds = assocFolds(grammar, rulesByClass);
+        String compiled = "CompiledExpression<C, T>";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import java.util.ArrayList;\n");
+        sb.append("import java.util.List;\n");
+        sb.append("import java.util.Optional;\n");
+        sb.append("import java.util.function.BinaryOperator;\n\n");
+        sb.append("/**\n");
+        sb.append(" * Compiles ").append(astClass).append(" trees once into reusable closures.\n");
+        sb.append(" *\n");
+        sb.append(" * <p>Node dispatch and operator lookup happen in {@link #compile}; the returned\n");
+        sb.append(" * {@link CompiledExpression} evaluates against a context without touching the AST.</p>\n");
+        sb.append(" *\n");
+        sb.append(" * @param <C> evaluation context (inputs)\n");
+        sb.append(" * @param <T> result type\n");
+        sb.append(" */\n");
+        sb.append("public abstract class ").append(compilerClass).append("<C, T> {\n\n");
+
+        sb.append("    @FunctionalInterface\n");
+        sb.append("    public interface CompiledExpression<C, T> {\n");
+        sb.append("        T evaluate(C context);\n");
+        sb.append("    }\n\n");
+
+        // 演算子適用ノード（バイトコード backend などが被演算子を辿れるよう lambda ではなく record にする）
+        sb.append("    /** Operator application with a pre-resolved operator; other backends can inspect its operands. */\n");
+        sb.append("    public record Binary<C, T>(\n");
+        sb.append("        BinaryOperator<T> operator, ").append(compiled).append(" left, ")
+          .append(compiled).append(" right\n");
+        sb.append("    ) implements ").append(compiled).append(" {\n");
+        sb.append("        @Override\n");
+        sb.append("        public T evaluate(C context) {\n");
+        sb.append("            return operator.apply(left.evaluate(context), right.evaluate(context));\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        // compile（sealed switch dispatch はここで一度だけ行う）
+        sb.append("    public ").append(compiled).append(" compile(").append(astClass).append(" node) {\n");
+        if (rulesByClass.isEmpty()) {
+            sb.append("        throw new UnsupportedOperationException(\"No mapping classes for compilation\");\n");
+        } else {
+            sb.append("        return switch (node) {\n");
+            for (String name : rulesByClass.keySet()) {
+                sb.append("            case ").append(astClass).append(".").append(name)
+                  .append(" n -> compile").append(name).append("(n);\n");
+            }
+            sb.append("        };\n");
+        }
+        sb.append("    }\n\n");
+
+        sb.append("    public List<").append(compiled).append("> compileAll(List<? extends ")
+          .append(astClass).append("> nodes) {\n");
+        sb.append("        List<").append(compiled).append("> compiled = new ArrayList<>(nodes.size());\n");
+        sb.append("        for (").append(astClass).append(" node : nodes) {\n");
+        sb.append("            compiled.add(compile(node));\n");
+        sb.append("        }\n");
+        sb.append("        return List.copyOf(compiled);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public Optional<").append(compiled).append("> compileOptional(Optional<? extends ")
+          .append(astClass).append("> node) {\n");
+        sb.append("        return node.map(this::compile);\n");
+        sb.append("    }\n\n");
+
+        // クラスごとのコンパイルメソッド
+        for (String name : rulesByClass.keySet()) {
+            String nodeType = astClass + "." + name;
+            Fold fold = folds.get(name);
+            if (fold == null) {
+                sb.append("    protected abstract ").append(compiled).append(" compile").append(name)
+                  .append("(").append(nodeType).append(" node);\n\n");
+                continue;
+            }
+            sb.append("    protected ").append(compiled).append(" compile").append(name)
+              .append("(").append(nodeType).append(" node) {\n");
+            sb.append("        return ").append(fold == Fold.LEFT ? "foldLeft" : "foldRight")
+              .append("(compile(node.left()), node.op(), compileAll(node.right()));\n");
+            sb.append("    }\n\n");
+        }
+
+        if (!folds.isEmpty()) {
+            appendFoldSupport(sb, compiled);
+        }
+
+        sb.append("}\n");
+
+        return new GeneratedSource(packageName, compilerClass, sb.toString());
+    }
+
+    Map<String, List<RuleDecl>> rulesByClass(GrammarDecl grammar) {
+        Map<String, List<RuleDecl>> rulesByClass = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            getMappingAnnotation(rule).ifPresent(m ->
+                rulesByClass.computeIfAbsent(m.className(), k -> new ArrayList<>()).add(rule));
+        }
+        return rulesByClass;
+    }
+
+    Map<String, Fold> assocFolds(GrammarDecl grammar, Map<String, List<RuleDecl>> rulesByClass) {
+        Map<String, Fold> folds = new LinkedHashMap<>();
+        for (Map.Entry<String, List<RuleDecl>> entry : rulesByClass.entrySet()) {
+            assocFold(grammar, entry.getValue()).ifPresent(fold -> folds.put(entry.getKey(), fold));
+        }
+        return folds;
+    }
+
+    private void appendFoldSupport(StringBuilder sb, String compiled) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Operator chains\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    /** Resolves an operator once at compile time. */\n");
+        sb.append("    protected abstract BinaryOperator<T> binaryOperator(String op);\n\n");
+
+        sb.append("    /** {@code first op0 rest0 op1 rest1 ...} grouped from the left. */\n");
+        sb.append("    protected ").append(compiled).append(" foldLeft(").append(compiled)
+          .append(" first, List<String> ops, List<").append(compiled).append("> rest) {\n");
+        sb.append("        ").append(compiled).append(" result = first;\n");
+        sb.append("        for (int i = 0; i < ops.size(); i++) {\n");
+        sb.append("            result = apply(binaryOperator(ops.get(i)), result, rest.get(i));\n");
+        sb.append("        }\n");
+        sb.append("        return result;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** {@code first op0 rest0 op1 rest1 ...} grouped from the right. */\n");
+        sb.append("    protected ").append(compiled).append(" foldRight(").append(compiled)
+          .append(" first, List<String> ops, List<").append(compiled).append("> rest) {\n");
+        sb.append("        if (ops.isEmpty()) {\n");
+        sb.append("            return first;\n");
+        sb.append("        }\n");
+        sb.append("        int last = ops.size() - 1;\n");
+        sb.append("        ").append(compiled).append(" result = rest.get(last);\n");
+        sb.append("        for (int i = last; i > 0; i--) {\n");
+        sb.append("            result = apply(binaryOperator(ops.get(i)), rest.get(i - 1), result);\n");
+        sb.append("        }\n");
+        sb.append("        return apply(binaryOperator(ops.get(0)), first, result);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private static <C, T> ").append(compiled).append(" apply(\n");
+        sb.append("        BinaryOperator<T> operator, ").append(compiled).append(" left, ")
+          .append(compiled).append(" right\n");
+        sb.append("    ) {\n");
+        sb.append("        return new Binary<>(operator, left, right);\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * クラスへマップされるルールがすべて同じ向きの assoc 形式で、left が子ノード・op が
+     * {@code List<String>}・right が子ノードの List であれば畳み込み方向を返す。
+     */
+    private Optional<Fold> assocFold(GrammarDecl grammar, List<RuleDecl> rules) {
+        Fold fold = null;
+        for (RuleDecl rule : rules) {
+            MappingAnnotation mapping = getMappingAnnotation(rule).orElseThrow();
+            Fold ruleFold;
+            if (mapperSupport.isLeftAssocRule(rule, mapping)) {
+                ruleFold = Fold.LEFT;
+            } else if (mapperSupport.isRightAssocRule(rule, mapping)) {
+                ruleFold = Fold.RIGHT;
+            } else {
+                return Optional.empty();
+            }
+            if (fold != null && fold != ruleFold) {
+                return Optional.empty();
+            }
+            fold = ruleFold;
+        }
+        RuleDecl rule = rules.get(0);
+        String leftType = mapperSupport.inferType(grammar, rule, "left");
+        String opType = mapperSupport.inferType(grammar, rule, "op");
+        Optional<String> rightElement = mapperSupport.unwrapListType(mapperSupport.inferType(grammar, rule, "right"));
+        if (!isNodeType(leftType) || !"List<String>".equals(opType)
+            || rightElement.filter(this::isNodeType).isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(fold);
+    }
+
+    private boolean isNodeType(String type) {
+        return !type.equals("String") && !type.equals("Object") && !type.contains("<")
+            && mapperSupport.primitiveConverter(type).isEmpty();
+    }
+
+    private Optional<MappingAnnotation> getMappingAnnotation(RuleDecl rule) {
+        return rule.annotations().stream()
+            .filter(a -> a instanceof MappingAnnotation)
+            .map(a -> (MappingAnnotation) a)
+            .findFirst();
+    }
+
+    private String getPackageName(GrammarDecl grammar) {
+        return grammar.settings().stream()
+            .filter(s -> "package".equals(s.key()))
+            .map(s -> s.value() instanceof StringSettingValue sv ? sv.value() : "")
+            .findFirst()
+            .orElse("generated");
+    }
+}
@@ -5,19 +5,50 @@ import org.unlaxer.dsl.bootstrap.UBNFAST.MappingAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
 import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.SequencedSet;
+import java.util.Set;
 
 /**
  * GrammarDecl から XxxEvaluator.java を生成する。
  *
  * <p>Java 21 sealed switch で dispatch する abstract class を生成する。
  * DebugStrategy インターフェースと StepCounterStrategy / NOOP 実装を内包する。</p>
+ *
+ * <p>{@code @primitiveEvaluator} 指定時は、戻り値をプリミティブにした DoubleEvaluator /
+ * LongEvaluator / IntEvaluator と、識別子を配列スロットへ割り当てる SlotResolver も内包する。</p>
+ *
+ * <p>{@code @iterativeEvaluator} 指定時は、Java のスタックを使わず明示的なワークスタックで
+ * 後行順に評価する IterativeEvaluator も内包する。</p>
+ *
+ * <p>{@code @pure} を付けたルールのクラスは、構造的に等しい部分木と読み取る変数の値の組で
+ * 評価結果をキャッシュする（容量固定の CLOCK キャッシュ）。</p>
+ *
+ * <p>{@code @orderIndependent} を付けたルールがあれば、兄弟ノードの定義・参照から依存の段を求めて
+ * 独立な兄弟を並列に評価する evalSiblings も生成する。</p>
+ *
+ * <p>{@code @batchEvaluator} 指定時は、1 つの木を多数の行（変数の列）に対して列単位で評価する
+ * BatchEvaluator も内包する。</p>
+ *
+ * <p>{@code @incrementalEvaluator} 指定時は、ノードごとの結果と依存（評価した子ノード・読んだ変数）と
+ * 定義した変数を記録し、再パース後は変化した部分だけを再計算して版番号付きの Snapshot を公開する IncrementalEngine も内包する。</p>
  */
 public class EvaluatorGenerator implements CodeGenerator {
 
+    private static final List<String> PRIMITIVE_TYPES = List.of("double", "long", "int");
+
+    private final MapperGenerator mapperSupport = new MapperGenerator();
+
+    private enum ChildKind { SINGLE, LIST, OPTIONAL }
+
+    /** 子ノードを保持するフィールド。IterativeEvaluator の展開・結合に使う。 */
+    private record ChildField(String name, ChildKind kind) {}
+
     @Override
     public GeneratedSource generate(GrammarDecl grammar) {
         String packageName = getPackageName(grammar);
@@ -30,24 +61,26 @@ public class EvaluatorGenerator implements CodeGenerator {
         for (RuleDecl rule : grammar.rules()) {
             getMappingAnnotation(rule).ifPresent(m -> classNames.add(m.className()));
         }
+        // @primitiveEvaluator: true（または { types: 'double,long' }）でボクシングしない評価器を追加する
+        List<String> primitiveTypes = primitiveEvaluatorTypes(grammar);
+        // @pure ルールのクラスは評価結果をキャッシュする
+        SequencedSet<String> pureClasses = new LinkedHashSet<>();
+        for (RuleDecl rule : grammar.rules()) {
+            if (GrammarValidator.isPure(rule)) {
+                getMappingAnnotation(rule).ifPresent(m -> pureClasses.add(m.className()));
+            }
+        }
+        // @orderIndependent ルールがあれば兄弟ノードを並列評価する evalSiblings を追加する
+        boolean orderIndependent = grammar.rules().stream().anyMatch(GrammarValidator::isOrderIndependent);
+        // @incrementalEvaluator: true で依存を記録して差分だけ再計算する IncrementalEngine を追加する
+        boolean incremental = GrammarSettings.isEnabled(grammar, "incrementalEvaluator") && !classNames.isEmpty();
 
         StringBuilder sb = new StringBuilder();
         sb.append("package ").append(packageName).append(";\n\n");
         sb.append("public abstract class ").append(evalClass).append("<T> {\n\n");
 
-        // DebugStrategy フィールドとセッター
-        sb.append("    private DebugStrategy debugStrategy = DebugStrategy.NOOP;\n\n");
-        sb.append("    public void setDebugStrategy(DebugStrategy strategy) {\n");
-        sb.append("        this.debugStrategy = strategy;\n");
-        sb.append("    }\n\n");
-
-        // eval メソッド（public エントリーポイント）
-        sb.append("    public T eval(").append(astClass).append(" node) {\n");
-        sb.append("        debugStrategy.onEnter(node);\n");
-        sb.append("        T result = evalInternal(node);\n");
-        sb.append("        debugStrategy.onExit(node, result);\n");
-        sb.append("        return result;\n");
-        sb.append("    }\n\n");
+        // DebugStrategy フィールド・セッターと eval（public エントリーポイント）
+        appendEvalEntry(sb, "    ", astClass, "T", incremental);
 
         // evalInternal（sealed switch dispatch）
         if (classNames.isEmpty()) {
@@ -59,7 +92,7 @@ public class EvaluatorGenerator implements CodeGenerator {
             sb.append("    private T evalInternal(").append(astClass).append(" node) {\n");
             sb.append("        return switch (node) {\n");
             for (String name : classNames) {
-                String methodName = "eval" + name;
+                String methodName = pureClasses.contains(name) ? "evalPure" : "eval" + name;
                 sb.append("            case ").append(astClass).append(".").append(name)
                   .append(" n -> ").append(methodName).append("(n);\n");
             }
@@ -73,6 +106,19 @@ public class EvaluatorGenerator implements CodeGenerator {
                   .append(astClass).append(".").append(name).append(" node);\n");
             }
             sb.append("\n");
+
+            if (!pureClasses.isEmpty()) {
+                appendPureSupport(sb, grammar, astClass, pureClasses, incremental);
+            }
+            if (orderIndependent) {
+                appendSiblingSupport(sb, grammar, astClass);
+            }
+            if (!pureClasses.isEmpty() || orderIndependent) {
+                appendVariableCollector(sb, grammar, astClass);
+            }
+            if (incremental) {
+                appendVariableReads(sb, !pureClasses.isEmpty());
+            }
         }
 
         // DebugStrategy inner interface
@@ -108,11 +154,1465 @@ public class EvaluatorGenerator implements CodeGenerator {
           .append(" node, Object result) {}\n");
         sb.append("    }\n");
 
+        if (!classNames.isEmpty()) {
+            appendProfilingStrategies(sb, astClass, classNames);
+        }
+
+        if (!pureClasses.isEmpty()) {
+            appendPureCache(sb, astClass, GrammarSettings.isEnabled(grammar, "structuralHash"));
+        }
+
+        if (!primitiveTypes.isEmpty()) {
+            for (String type : primitiveTypes) {
+                appendPrimitiveEvaluator(sb, astClass, classNames, type);
+            }
+            appendSlotResolver(sb, grammar, astClass, primitiveTypes);
+        }
+
+        if (GrammarSettings.isEnabled(grammar, "iterativeEvaluator")) {
+            appendIterativeEvaluator(sb, grammar, astClass, classNames);
+        }
+
+        if (GrammarSettings.isEnabled(grammar, "batchEvaluator")) {
+            appendBatchEvaluator(sb, astClass, classNames);
+        }
+
+        if (incremental) {
+            appendIncrementalEngine(sb, astClass, evalClass);
+        }
+
         sb.append("}\n");
 
         return new GeneratedSource(packageName, evalClass, sb.toString());
     }
 
+    /**
+     * DebugStrategy フィールド・セッターと eval を出力する。
+     *
+     * <p>eval は計測なしの高速パスと、戦略が設定されたときだけ通る計測パスに分ける。
+     * NOOP の間はインターフェース呼び出し自体が発生しないため、他の評価器で実戦略が使われて
+     * onEnter/onExit の呼び出し点がメガモーフィックになっても影響を受けない。</p>
+     */
+    private void appendEvalEntry(StringBuilder sb, String indent, String astClass, String type) {
+        appendEvalEntry(sb, indent, astClass, type, false);
+    }
+
+    /**
+     * {@code incremental} のときは IncrementalEngine が接続されている間も計測パスを通し、
+     * エンジン経由で結果の再利用と依存の記録を行う。
+     */
+    private void appendEvalEntry(StringBuilder sb, String indent, String astClass, String type,
+            boolean incremental) {
+        sb.append(indent).append("private DebugStrategy debugStrategy = DebugStrategy.NOOP;\n");
+        sb.append(indent).append("private boolean instrumented;\n");
+        if (incremental) {
+            sb.append(indent).append("private IncrementalEngine<").append(type).append("> incremental;\n");
+        }
+        sb.append("\n");
+        sb.append(indent).append("public void setDebugStrategy(DebugStrategy strategy) {\n");
+        sb.append(indent).append("    this.debugStrategy = strategy;\n");
+        sb.append(indent).append("    this.instrumented = strategy != DebugStrategy.NOOP")
+          .append(incremental ? " || incremental != null" : "").append(";\n");
+        sb.append(indent).append("}\n\n");
+        sb.append(indent).append("public ").append(type).append(" eval(").append(astClass).append(" node) {\n");
+        sb.append(indent).append("    if (!instrumented) {\n");
+        sb.append(indent).append("        return evalInternal(node);\n");
+        sb.append(indent).append("    }\n");
+        sb.append(indent).append("    return evalInstrumented(node);\n");
+        sb.append(indent).append("}\n\n");
+        sb.append(indent).append("private ").append(type).append(" evalInstrumented(").append(astClass).append(" node) {\n");
+        if (incremental) {
+            sb.append(indent).append("    IncrementalEngine<").append(type).append("> engine = incremental;\n");
+            sb.append(indent).append("    if (engine != null) {\n");
+            sb.append(indent).append("        return engine.evalTracked(node);\n");
+            sb.append(indent).append("    }\n");
+            sb.append(indent).append("    return evalObserved(node);\n");
+            sb.append(indent).append("}\n\n");
+            sb.append(indent).append("private ").append(type).append(" evalObserved(").append(astClass).append(" node) {\n");
+        }
+        sb.append(indent).append("    DebugStrategy strategy = debugStrategy;\n");
+        sb.append(indent).append("    strategy.onEnter(node);\n");
+        sb.append(indent).append("    ").append(type).append(" result = evalInternal(node);\n");
+        sb.append(indent).append("    strategy.onExit(node, result);\n");
+        sb.append(indent).append("    return result;\n");
+        sb.append(indent).append("}\n\n");
+    }
+
+    /**
+     * フックが変数を読み書きするための readVariable / writeVariable を出力する。IncrementalEngine の接続中は
+     * 読んだ名前と値を評価中のノードの依存として、書いた名前と値をそのノードの定義として記録する。
+     */
+    private void appendVariableReads(StringBuilder sb, boolean pure) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Variable reads (@incrementalEvaluator)\n");
+        sb.append("    // =========================================================================\n\n");
+        if (!pure) {
+            // @pure があれば同じ抽象メソッドが既に出力されている
+            sb.append("    /**\n");
+            sb.append("     * Current value of variable {@code name}. A recorded result is reused only while every variable it\n");
+            sb.append("     * read still has an equal value.\n");
+            sb.append("     */\n");
+            sb.append("    protected abstract Object variableValue(String name);\n\n");
+        }
+        sb.append("    /**\n");
+        sb.append("     * Sets variable {@code name} to {@code value}. An attached {@link IncrementalEngine} also calls this to\n");
+        sb.append("     * replay the definitions of a reused subtree.\n");
+        sb.append("     */\n");
+        sb.append("    protected abstract void defineVariable(String name, Object value);\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Returns {@link #variableValue}; hooks should read variables through this method so an attached\n");
+        sb.append("     * {@link IncrementalEngine} records the read as a dependency of the node being evaluated.\n");
+        sb.append("     */\n");
+        sb.append("    protected final Object readVariable(String name) {\n");
+        sb.append("        Object value = variableValue(name);\n");
+        sb.append("        IncrementalEngine<T> engine = incremental;\n");
+        sb.append("        if (engine != null) {\n");
+        sb.append("            engine.recordRead(name, value);\n");
+        sb.append("        }\n");
+        sb.append("        return value;\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Calls {@link #defineVariable}; hooks must define variables through this method so an attached\n");
+        sb.append("     * {@link IncrementalEngine} can replay the definition when it reuses the node instead of running the hook.\n");
+        sb.append("     */\n");
+        sb.append("    protected final void writeVariable(String name, Object value) {\n");
+        sb.append("        defineVariable(name, value);\n");
+        sb.append("        IncrementalEngine<T> engine = incremental;\n");
+        sb.append("        if (engine != null) {\n");
+        sb.append("            engine.recordWrite(name, value);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * 再パースのたびに木全体を評価し直さないための IncrementalEngine を出力する。
+     *
+     * <p>ノードごとに結果・評価した子ノード・読んだ変数とその値を記録する。新しい木では構造的に等しい
+     * ノード（{@code equals}/{@code hashCode}）を記録から引き、読んだ変数の値がすべて等しければ部分木ごと
+     * 再利用する。変化した宣言と、その宣言が定める変数を読むノードだけが再計算される。結果は不変の
+     * Snapshot として版番号付きで公開し、LSP・DAP のスレッドからそのまま参照できる。</p>
+     */
+    private void appendIncrementalEngine(StringBuilder sb, String astClass, String evalClass) {
+        sb.append("\n");
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Incremental evaluation (@incrementalEvaluator)\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Result of one node: its value, the child nodes it evaluated, the variables it read with their values,\n");
+        sb.append("     * and the variables its subtree defined with their final values.\n");
+        sb.append("     */\n");
+        sb.append("    public record NodeResult<T>(\n");
+        sb.append("        T value, java.util.List<").append(astClass).append("> dependencies, java.util.Map<String, Object> variables,\n");
+        sb.append("        java.util.Map<String, Object> definitions\n");
+        sb.append("    ) {}\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Immutable outcome of one {@link IncrementalEngine#update}. Results are keyed by node {@code equals}, so\n");
+        sb.append("     * structurally equal subtrees share the result of their first evaluation in that version.\n");
+        sb.append("     */\n");
+        sb.append("    public record Snapshot<T>(\n");
+        sb.append("        long version, ").append(astClass).append(" root, T result,\n");
+        sb.append("        java.util.Map<").append(astClass).append(", NodeResult<T>> results, int recomputed, int reused\n");
+        sb.append("    ) {\n");
+        sb.append("        public java.util.Optional<T> valueOf(").append(astClass).append(" node) {\n");
+        sb.append("            NodeResult<T> result = results.get(node);\n");
+        sb.append("            return result == null ? java.util.Optional.empty() : java.util.Optional.ofNullable(result.value());\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Re-evaluates successive versions of a tree, recomputing only nodes whose subtree changed or that read\n");
+        sb.append("     * a variable whose value changed. Reused nodes skip their hooks, so hooks must depend only on the\n");
+        sb.append("     * subtree, child results, and variables read through {@link #readVariable}, and must define variables\n");
+        sb.append("     * only through {@link #writeVariable}: the definitions of a reused subtree are replayed in its place.\n");
+        sb.append("     *\n");
+        sb.append("     * <p>{@link #update} is synchronized and evaluates on the calling thread; the evaluator must not be used\n");
+        sb.append("     * elsewhere meanwhile. {@link #latest} can be read from any thread.</p>\n");
+        sb.append("     */\n");
+        sb.append("    public static final class IncrementalEngine<T> {\n\n");
+
+        sb.append("        private static final class Entry<T> {\n");
+        sb.append("            final ").append(astClass).append(" node;\n");
+        sb.append("            final NodeResult<T> result;\n");
+        sb.append("            final java.util.List<Entry<T>> dependencies;\n");
+        sb.append("            final String[] variables;\n");
+        sb.append("            final Object[] values;\n");
+        sb.append("            final String[] definedNames;\n");
+        sb.append("            final Object[] definedValues;\n");
+        sb.append("            long version;\n\n");
+        sb.append("            Entry(").append(astClass).append(" node, T value, Frame<T> frame, long version) {\n");
+        sb.append("                this.node = node;\n");
+        sb.append("                this.dependencies = java.util.List.copyOf(frame.dependencies);\n");
+        sb.append("                this.variables = frame.reads.keySet().toArray(new String[0]);\n");
+        sb.append("                this.values = frame.reads.values().toArray();\n");
+        sb.append("                this.definedNames = frame.writes.keySet().toArray(new String[0]);\n");
+        sb.append("                this.definedValues = frame.writes.values().toArray();\n");
+        sb.append("                java.util.List<").append(astClass).append("> nodes = new java.util.ArrayList<>(dependencies.size());\n");
+        sb.append("                for (Entry<T> dependency : dependencies) {\n");
+        sb.append("                    nodes.add(dependency.node);\n");
+        sb.append("                }\n");
+        sb.append("                this.result = new NodeResult<>(value, java.util.Collections.unmodifiableList(nodes),\n");
+        sb.append("                    java.util.Collections.unmodifiableMap(new java.util.LinkedHashMap<>(frame.reads)),\n");
+        sb.append("                    java.util.Collections.unmodifiableMap(new java.util.LinkedHashMap<>(frame.writes)));\n");
+        sb.append("                this.version = version;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /**\n");
+        sb.append("         * Dependencies collected while one node is being evaluated. A read of a name the subtree already\n");
+        sb.append("         * defined is internal and not recorded; a later write to a name replaces the earlier value.\n");
+        sb.append("         */\n");
+        sb.append("        private static final class Frame<T> {\n");
+        sb.append("            final java.util.ArrayList<Entry<T>> dependencies = new java.util.ArrayList<>();\n");
+        sb.append("            final java.util.LinkedHashMap<String, Object> reads = new java.util.LinkedHashMap<>();\n");
+        sb.append("            final java.util.LinkedHashMap<String, Object> writes = new java.util.LinkedHashMap<>();\n\n");
+        sb.append("            void read(String name, Object value) {\n");
+        sb.append("                if (!writes.containsKey(name)) {\n");
+        sb.append("                    reads.putIfAbsent(name, value);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private final ").append(evalClass).append("<T> evaluator;\n");
+        sb.append("        private final java.util.HashMap<").append(astClass).append(", Entry<T>> memo = new java.util.HashMap<>();\n");
+        sb.append("        private final java.util.ArrayDeque<Frame<T>> frames = new java.util.ArrayDeque<>();\n");
+        sb.append("        private java.util.HashMap<").append(astClass).append(", NodeResult<T>> published;\n");
+        sb.append("        private long version;\n");
+        sb.append("        private int recomputed;\n");
+        sb.append("        private int reused;\n");
+        sb.append("        private volatile Snapshot<T> latest;\n\n");
+
+        sb.append("        public IncrementalEngine(").append(evalClass).append("<T> evaluator) {\n");
+        sb.append("            this.evaluator = java.util.Objects.requireNonNull(evaluator);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Evaluates {@code root} as the next version. */\n");
+        sb.append("        public synchronized Snapshot<T> update(").append(astClass).append(" root) {\n");
+        sb.append("            return update(root, version + 1);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /**\n");
+        sb.append("         * Evaluates {@code root} as {@code version} (e.g. the editor's document version), reusing every\n");
+        sb.append("         * recorded result that is still valid, and publishes the snapshot.\n");
+        sb.append("         */\n");
+        sb.append("        public synchronized Snapshot<T> update(").append(astClass).append(" root, long version) {\n");
+        sb.append("            java.util.Objects.requireNonNull(root);\n");
+        sb.append("            if (version <= this.version) {\n");
+        sb.append("                throw new IllegalArgumentException(\"version must increase: \" + version + \" <= \" + this.version);\n");
+        sb.append("            }\n");
+        sb.append("            if (evaluator.incremental != null) {\n");
+        sb.append("                throw new IllegalStateException(\"evaluator is already attached to an engine\");\n");
+        sb.append("            }\n");
+        sb.append("            this.version = version;\n");
+        sb.append("            recomputed = 0;\n");
+        sb.append("            reused = 0;\n");
+        sb.append("            published = new java.util.HashMap<>();\n");
+        sb.append("            evaluator.incremental = this;\n");
+        sb.append("            evaluator.instrumented = true;\n");
+        sb.append("            T result;\n");
+        sb.append("            try {\n");
+        sb.append("                result = evaluator.eval(root);\n");
+        sb.append("            } finally {\n");
+        sb.append("                evaluator.incremental = null;\n");
+        sb.append("                evaluator.instrumented = evaluator.debugStrategy != DebugStrategy.NOOP;\n");
+        sb.append("                frames.clear();\n");
+        sb.append("            }\n");
+        sb.append("            // drop results that the new tree no longer reaches\n");
+        sb.append("            memo.values().removeIf(entry -> entry.version != version);\n");
+        sb.append("            Snapshot<T> snapshot = new Snapshot<>(version, root, result,\n");
+        sb.append("                java.util.Collections.unmodifiableMap(published), recomputed, reused);\n");
+        sb.append("            published = null;\n");
+        sb.append("            latest = snapshot;\n");
+        sb.append("            return snapshot;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Most recently published snapshot, or {@code null} before the first update. */\n");
+        sb.append("        public Snapshot<T> latest() {\n");
+        sb.append("            return latest;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Forgets every recorded result, so the next update recomputes the whole tree. */\n");
+        sb.append("        public synchronized void invalidateAll() {\n");
+        sb.append("            memo.clear();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public synchronized int recordedCount() {\n");
+        sb.append("            return memo.size();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        T evalTracked(").append(astClass).append(" node) {\n");
+        sb.append("            Entry<T> entry = memo.get(node);\n");
+        sb.append("            if (entry != null && stillValid(entry)) {\n");
+        sb.append("                reuse(entry);\n");
+        sb.append("                // the skipped hooks would have defined these\n");
+        sb.append("                for (int i = 0; i < entry.definedNames.length; i++) {\n");
+        sb.append("                    evaluator.defineVariable(entry.definedNames[i], entry.definedValues[i]);\n");
+        sb.append("                }\n");
+        sb.append("            } else {\n");
+        sb.append("                Frame<T> frame = new Frame<>();\n");
+        sb.append("                frames.push(frame);\n");
+        sb.append("                T value;\n");
+        sb.append("                try {\n");
+        sb.append("                    value = evaluator.evalObserved(node);\n");
+        sb.append("                } finally {\n");
+        sb.append("                    frames.pop();\n");
+        sb.append("                }\n");
+        sb.append("                entry = new Entry<>(node, value, frame, version);\n");
+        sb.append("                memo.put(node, entry);\n");
+        sb.append("                published.putIfAbsent(node, entry.result);\n");
+        sb.append("                recomputed++;\n");
+        sb.append("            }\n");
+        sb.append("            Frame<T> parent = frames.peek();\n");
+        sb.append("            if (parent != null) {\n");
+        sb.append("                parent.dependencies.add(entry);\n");
+        sb.append("                for (int i = 0; i < entry.variables.length; i++) {\n");
+        sb.append("                    parent.read(entry.variables[i], entry.values[i]);\n");
+        sb.append("                }\n");
+        sb.append("                for (int i = 0; i < entry.definedNames.length; i++) {\n");
+        sb.append("                    parent.writes.put(entry.definedNames[i], entry.definedValues[i]);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return entry.result.value();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        void recordRead(String name, Object value) {\n");
+        sb.append("            Frame<T> frame = frames.peek();\n");
+        sb.append("            if (frame != null) {\n");
+        sb.append("                frame.read(name, value);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        void recordWrite(String name, Object value) {\n");
+        sb.append("            Frame<T> frame = frames.peek();\n");
+        sb.append("            if (frame != null) {\n");
+        sb.append("                frame.writes.put(name, value);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private boolean stillValid(Entry<T> entry) {\n");
+        sb.append("            for (int i = 0; i < entry.variables.length; i++) {\n");
+        sb.append("                if (!java.util.Objects.equals(evaluator.variableValue(entry.variables[i]), entry.values[i])) {\n");
+        sb.append("                    return false;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return true;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Marks a reused entry and everything it depended on as live in this version and publishes them. */\n");
+        sb.append("        private void reuse(Entry<T> entry) {\n");
+        sb.append("            java.util.ArrayDeque<Entry<T>> pending = new java.util.ArrayDeque<>();\n");
+        sb.append("            pending.push(entry);\n");
+        sb.append("            while (!pending.isEmpty()) {\n");
+        sb.append("                Entry<T> next = pending.pop();\n");
+        sb.append("                if (next.version == version) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                next.version = version;\n");
+        sb.append("                published.putIfAbsent(next.node, next.result);\n");
+        sb.append("                reused++;\n");
+        sb.append("                for (Entry<T> dependency : next.dependencies) {\n");
+        sb.append("                    pending.push(dependency);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * 本番でも使える低オーバーヘッドの計測戦略（ノード種別ごとの呼び出し回数と、間引きした
+     * nanoTime のヒストグラム）。ノード種別は ClassValue で配列添字に変換し、Map を引かない。
+     */
+    private void appendProfilingStrategies(StringBuilder sb, String astClass, SequencedSet<String> classNames) {
+        sb.append("\n");
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Profiling strategies\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    /** Node types in {@link #nodeTypeIndex} order. */\n");
+        sb.append("    private static final java.util.List<Class<? extends ").append(astClass)
+          .append(">> NODE_TYPES = java.util.List.of(\n");
+        int index = 0;
+        for (String name : classNames) {
+            sb.append("        ").append(astClass).append(".").append(name).append(".class")
+              .append(++index < classNames.size() ? ",\n" : "\n");
+        }
+        sb.append("    );\n\n");
+
+        sb.append("    private static final ClassValue<Integer> NODE_TYPE_INDEX = new ClassValue<>() {\n");
+        sb.append("        @Override\n");
+        sb.append("        protected Integer computeValue(Class<?> type) {\n");
+        sb.append("            return NODE_TYPES.indexOf(type);\n");
+        sb.append("        }\n");
+        sb.append("    };\n\n");
+        sb.append("    static int nodeTypeIndex(").append(astClass).append(" node) {\n");
+        sb.append("        return NODE_TYPE_INDEX.get(node.getClass());\n");
+        sb.append("    }\n\n");
+
+        // NodeCountStrategy
+        sb.append("    /** Counts evaluations per node type. Not thread-safe; use one instance per evaluating thread. */\n");
+        sb.append("    public static class NodeCountStrategy implements DebugStrategy {\n");
+        sb.append("        private final long[] counts = new long[NODE_TYPES.size()];\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public void onEnter(").append(astClass).append(" node) {\n");
+        sb.append("            counts[nodeTypeIndex(node)]++;\n");
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public void onExit(").append(astClass).append(" node, Object result) {}\n\n");
+        sb.append("        public long count(Class<? extends ").append(astClass).append("> nodeType) {\n");
+        sb.append("            int index = NODE_TYPES.indexOf(nodeType);\n");
+        sb.append("            return index < 0 ? 0 : counts[index];\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Counts keyed by node type simple name, in declaration order. */\n");
+        sb.append("        public java.util.Map<String, Long> snapshot() {\n");
+        sb.append("            java.util.Map<String, Long> snapshot = new java.util.LinkedHashMap<>();\n");
+        sb.append("            for (int i = 0; i < counts.length; i++) {\n");
+        sb.append("                snapshot.put(NODE_TYPES.get(i).getSimpleName(), counts[i]);\n");
+        sb.append("            }\n");
+        sb.append("            return snapshot;\n");
+        sb.append("        }\n\n");
+        sb.append("        public void reset() {\n");
+        sb.append("            java.util.Arrays.fill(counts, 0);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        // SampledTimingStrategy
+        sb.append("    /**\n");
+        sb.append("     * Times every {@code sampleInterval}-th node evaluation into per-node-type histograms.\n");
+        sb.append("     * Bucket {@code b} counts durations in {@code [2^(b-1), 2^b)} nanoseconds; bucket 0 counts 0 ns.\n");
+        sb.append("     * Not thread-safe; use one instance per evaluating thread, and {@link #reset()} after an\n");
+        sb.append("     * evaluation that threw.\n");
+        sb.append("     */\n");
+        sb.append("    public static class SampledTimingStrategy implements DebugStrategy {\n");
+        sb.append("        public static final int BUCKETS = 64;\n");
+        sb.append("        private static final long NOT_SAMPLED = Long.MIN_VALUE;\n\n");
+        sb.append("        private final int sampleInterval;\n");
+        sb.append("        private final long[][] histograms = new long[NODE_TYPES.size()][BUCKETS];\n");
+        sb.append("        private long[] startTimes = new long[64];\n");
+        sb.append("        private int depth;\n");
+        sb.append("        private int untilSample;\n\n");
+        sb.append("        public SampledTimingStrategy(int sampleInterval) {\n");
+        sb.append("            if (sampleInterval < 1) {\n");
+        sb.append("                throw new IllegalArgumentException(\"sampleInterval must be positive: \" + sampleInterval);\n");
+        sb.append("            }\n");
+        sb.append("            this.sampleInterval = sampleInterval;\n");
+        sb.append("            this.untilSample = sampleInterval;\n");
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public void onEnter(").append(astClass).append(" node) {\n");
+        sb.append("            if (depth == startTimes.length) {\n");
+        sb.append("                startTimes = java.util.Arrays.copyOf(startTimes, depth * 2);\n");
+        sb.append("            }\n");
+        sb.append("            if (--untilSample == 0) {\n");
+        sb.append("                untilSample = sampleInterval;\n");
+        sb.append("                startTimes[depth++] = System.nanoTime();\n");
+        sb.append("            } else {\n");
+        sb.append("                startTimes[depth++] = NOT_SAMPLED;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public void onExit(").append(astClass).append(" node, Object result) {\n");
+        sb.append("            if (depth == 0) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            long start = startTimes[--depth];\n");
+        sb.append("            if (start != NOT_SAMPLED) {\n");
+        sb.append("                long elapsed = Math.max(0, System.nanoTime() - start);\n");
+        sb.append("                histograms[nodeTypeIndex(node)][64 - Long.numberOfLeadingZeros(elapsed)]++;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        public long[] histogram(Class<? extends ").append(astClass).append("> nodeType) {\n");
+        sb.append("            int index = NODE_TYPES.indexOf(nodeType);\n");
+        sb.append("            return index < 0 ? new long[BUCKETS] : histograms[index].clone();\n");
+        sb.append("        }\n\n");
+        sb.append("        public long sampleCount(Class<? extends ").append(astClass).append("> nodeType) {\n");
+        sb.append("            long total = 0;\n");
+        sb.append("            for (long count : histogram(nodeType)) {\n");
+        sb.append("                total += count;\n");
+        sb.append("            }\n");
+        sb.append("            return total;\n");
+        sb.append("        }\n\n");
+        sb.append("        public void reset() {\n");
+        sb.append("            for (long[] histogram : histograms) {\n");
+        sb.append("                java.util.Arrays.fill(histogram, 0);\n");
+        sb.append("            }\n");
+        sb.append("            depth = 0;\n");
+        sb.append("            untilSample = sampleInterval;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * {@code @pure} クラスの評価をキャッシュ経由にする。キーはノード（{@code @structuralHash} があれば構造的に等しいノード）で、部分木が読む
+     * 識別子（IdentifierParser 系キャプチャ）の現在値が記録時と一致する場合だけヒットとする。
+     */
+    private void appendPureSupport(StringBuilder sb, GrammarDecl grammar, String astClass,
+            SequencedSet<String> pureClasses, boolean incremental) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Memoization (@pure)\n");
+        sb.append("    // =========================================================================\n\n");
+        sb.append("    private PureCache<T> pureCache = new PureCache<>(PureCache.DEFAULT_CAPACITY);\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Current value of variable {@code name}. A cached result of a pure subtree is reused only while\n");
+        sb.append("     * every variable the subtree reads still has an equal value.\n");
+        sb.append("     */\n");
+        sb.append("    protected abstract Object variableValue(String name);\n\n");
+        sb.append("    public PureCache<T> pureCache() {\n");
+        sb.append("        return pureCache;\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Replaces the cache, e.g. to share one between evaluators used by the same thread. */\n");
+        sb.append("    public void setPureCache(PureCache<T> cache) {\n");
+        sb.append("        this.pureCache = java.util.Objects.requireNonNull(cache);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private T evalPure(").append(astClass).append(" node) {\n");
+        sb.append("        PureCache<T> cache = pureCache;\n");
+        sb.append("        String[] variables = cache.variables(node);\n");
+        sb.append("        if (variables == null) {\n");
+        sb.append("            variables = variablesOf(node);\n");
+        sb.append("        }\n");
+        sb.append("        Object[] values = new Object[variables.length];\n");
+        sb.append("        for (int i = 0; i < variables.length; i++) {\n");
+        if (incremental) {
+            // キャッシュがヒットするとフックが走らないため、ここで読んだ値を IncrementalEngine の依存として記録する
+            sb.append("            values[i] = readVariable(variables[i]);\n");
+        } else {
+            sb.append("            values[i] = variableValue(variables[i]);\n");
+        }
+        sb.append("        }\n");
+        sb.append("        PureCache.Entry<T> entry = cache.lookup(node, values);\n");
+        sb.append("        if (entry != null) {\n");
+        sb.append("            return entry.result;\n");
+        sb.append("        }\n");
+        sb.append("        T result = switch (node) {\n");
+        for (String name : pureClasses) {
+            sb.append("            case ").append(astClass).append(".").append(name)
+              .append(" n -> eval").append(name).append("(n);\n");
+        }
+        sb.append("            default -> throw new IllegalStateException(\"Not a pure node: \" + node);\n");
+        sb.append("        };\n");
+        sb.append("        cache.put(node, variables, values, result);\n");
+        sb.append("        return result;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Identifier names read anywhere in {@code node}'s subtree, in first-occurrence order. */\n");
+        sb.append("    static String[] variablesOf(").append(astClass).append(" node) {\n");
+        sb.append("        java.util.LinkedHashSet<String> names = new java.util.LinkedHashSet<>();\n");
+        sb.append("        collectVariables(node, names);\n");
+        sb.append("        return names.toArray(new String[0]);\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * 部分木の識別子キャプチャを集め、訪問したノード数を返す静的メソッドを出力する。
+     * {@code @pure} のキャッシュキーと {@code @orderIndependent} の依存解析で共用する。
+     */
+    private void appendVariableCollector(StringBuilder sb, GrammarDecl grammar, String astClass) {
+        sb.append("    /** Adds identifier names in {@code value}'s subtree to {@code names}; returns the number of nodes visited. */\n");
+        sb.append("    private static int collectVariables(Object value, java.util.Set<String> names) {\n");
+        sb.append("        return switch (value) {\n");
+        for (Map.Entry<String, RuleDecl> entry : mappingRules(grammar).entrySet()) {
+            List<String> lines = identifierVisitLines(grammar, entry.getValue(),
+                "names.add(%s);", "names.addAll(%s);", "count += collectVariables(%s, names);");
+            appendCountingCase(sb, astClass, entry.getKey(), lines);
+        }
+        sb.append("            case java.util.List<?> list -> {\n");
+        sb.append("                int count = 0;\n");
+        sb.append("                for (Object element : list) {\n");
+        sb.append("                    count += collectVariables(element, names);\n");
+        sb.append("                }\n");
+        sb.append("                yield count;\n");
+        sb.append("            }\n");
+        sb.append("            case java.util.Optional<?> optional -> optional.isPresent() ? collectVariables(optional.get(), names) : 0;\n");
+        sb.append("            case null, default -> 0;\n");
+        sb.append("        };\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendCountingCase(StringBuilder sb, String astClass, String className, List<String> lines) {
+        sb.append("            case ").append(astClass).append(".").append(className).append(" n -> ");
+        if (lines.isEmpty()) {
+            sb.append("1;\n");
+            return;
+        }
+        sb.append("{\n");
+        sb.append("                int count = 1;\n");
+        for (String line : lines) {
+            sb.append("                ").append(line).append("\n");
+        }
+        sb.append("                yield count;\n");
+        sb.append("            }\n");
+    }
+
+    /**
+     * {@code @orderIndependent} クラスの評価フックから呼ぶ evalSiblings と、そのクラスの List キャプチャごとに
+     * evalSiblings を呼ぶ {@code evalSiblingsOfXxx(node)}（Xxx はキャプチャ名）を出力する。兄弟ノードの定義・参照から
+     * 依存の段（wave）を求め、同じ段の兄弟を ForkJoinPool で並列に評価する。小さな段は逐次評価する。
+     */
+    private void appendSiblingSupport(StringBuilder sb, GrammarDecl grammar, String astClass) {
+        Set<String> siblingHelpers = new LinkedHashSet<>();
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Independent siblings (@orderIndependent)\n");
+        sb.append("    // =========================================================================\n\n");
+        sb.append("    public static final int DEFAULT_SIBLING_PARALLEL_THRESHOLD = 2048;\n\n");
+        sb.append("    private java.util.concurrent.ForkJoinPool siblingPool = java.util.concurrent.ForkJoinPool.commonPool();\n");
+        sb.append("    private int siblingParallelThreshold = DEFAULT_SIBLING_PARALLEL_THRESHOLD;\n\n");
+        sb.append("    /**\n");
+        sb.append("     * @param pool pool that runs independent siblings\n");
+        sb.append("     * @param parallelThreshold minimum number of nodes in a wave before it is evaluated in parallel\n");
+        sb.append("     */\n");
+        sb.append("    public void setSiblingParallelism(java.util.concurrent.ForkJoinPool pool, int parallelThreshold) {\n");
+        sb.append("        if (parallelThreshold < 1) {\n");
+        sb.append("            throw new IllegalArgumentException(\"parallelThreshold must be positive: \" + parallelThreshold);\n");
+        sb.append("        }\n");
+        sb.append("        this.siblingPool = java.util.Objects.requireNonNull(pool);\n");
+        sb.append("        this.siblingParallelThreshold = parallelThreshold;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Evaluates {@code siblings} and returns their results in order. A sibling waits only for earlier\n");
+        sb.append("     * siblings it conflicts with: one defines a name the other uses, or both define the same name\n");
+        sb.append("     * (see {@link #scanSibling}). Siblings in the same wave run concurrently once the wave has at least\n");
+        sb.append("     * the parallel threshold of nodes, so hooks reached from here must be thread-safe. Evaluation is\n");
+        sb.append("     * sequential while a debug strategy is set.\n");
+        sb.append("     */\n");
+        sb.append("    @SuppressWarnings(\"unchecked\")\n");
+        sb.append("    protected java.util.List<T> evalSiblings(java.util.List<? extends ").append(astClass).append("> siblings) {\n");
+        sb.append("        int size = siblings.size();\n");
+        sb.append("        Object[] results = new Object[size];\n");
+        sb.append("        if (size < 2 || instrumented) {\n");
+        sb.append("            for (int i = 0; i < size; i++) {\n");
+        sb.append("                results[i] = eval(siblings.get(i));\n");
+        sb.append("            }\n");
+        sb.append("            return (java.util.List<T>) java.util.Arrays.asList(results);\n");
+        sb.append("        }\n\n");
+        sb.append("        // wave of a sibling = 1 + latest wave of an earlier conflicting sibling\n");
+        sb.append("        int[] waveOf = new int[size];\n");
+        sb.append("        int[] weights = new int[size];\n");
+        sb.append("        int waveCount = 0;\n");
+        sb.append("        java.util.HashMap<String, Integer> lastDefinition = new java.util.HashMap<>();\n");
+        sb.append("        java.util.HashMap<String, Integer> lastUse = new java.util.HashMap<>();\n");
+        sb.append("        java.util.HashSet<String> defs = new java.util.HashSet<>();\n");
+        sb.append("        java.util.HashSet<String> uses = new java.util.HashSet<>();\n");
+        sb.append("        for (int i = 0; i < size; i++) {\n");
+        sb.append("            defs.clear();\n");
+        sb.append("            uses.clear();\n");
+        sb.append("            weights[i] = scanSibling(siblings.get(i), defs, uses);\n");
+        sb.append("            int wave = 0;\n");
+        sb.append("            for (String name : uses) {\n");
+        sb.append("                wave = Math.max(wave, lastDefinition.getOrDefault(name, -1) + 1);\n");
+        sb.append("            }\n");
+        sb.append("            for (String name : defs) {\n");
+        sb.append("                wave = Math.max(wave, lastDefinition.getOrDefault(name, -1) + 1);\n");
+        sb.append("                wave = Math.max(wave, lastUse.getOrDefault(name, -1) + 1);\n");
+        sb.append("            }\n");
+        sb.append("            for (String name : defs) {\n");
+        sb.append("                lastDefinition.merge(name, wave, Math::max);\n");
+        sb.append("            }\n");
+        sb.append("            for (String name : uses) {\n");
+        sb.append("                lastUse.merge(name, wave, Math::max);\n");
+        sb.append("            }\n");
+        sb.append("            waveOf[i] = wave;\n");
+        sb.append("            waveCount = Math.max(waveCount, wave + 1);\n");
+        sb.append("        }\n\n");
+        sb.append("        // group siblings by wave, keeping document order within a wave\n");
+        sb.append("        int[] waveStart = new int[waveCount + 1];\n");
+        sb.append("        for (int wave : waveOf) {\n");
+        sb.append("            waveStart[wave + 1]++;\n");
+        sb.append("        }\n");
+        sb.append("        for (int wave = 0; wave < waveCount; wave++) {\n");
+        sb.append("            waveStart[wave + 1] += waveStart[wave];\n");
+        sb.append("        }\n");
+        sb.append("        int[] next = waveStart.clone();\n");
+        sb.append("        int[] order = new int[size];\n");
+        sb.append("        for (int i = 0; i < size; i++) {\n");
+        sb.append("            order[next[waveOf[i]]++] = i;\n");
+        sb.append("        }\n\n");
+        sb.append("        for (int wave = 0; wave < waveCount; wave++) {\n");
+        sb.append("            int from = waveStart[wave];\n");
+        sb.append("            int to = waveStart[wave + 1];\n");
+        sb.append("            long weight = 0;\n");
+        sb.append("            for (int k = from; k < to; k++) {\n");
+        sb.append("                weight += weights[order[k]];\n");
+        sb.append("            }\n");
+        sb.append("            if (to - from < 2 || weight < siblingParallelThreshold) {\n");
+        sb.append("                for (int k = from; k < to; k++) {\n");
+        sb.append("                    results[order[k]] = eval(siblings.get(order[k]));\n");
+        sb.append("                }\n");
+        sb.append("                continue;\n");
+        sb.append("            }\n");
+        sb.append("            Runnable task = () -> java.util.stream.IntStream.range(from, to).parallel()\n");
+        sb.append("                .forEach(k -> results[order[k]] = eval(siblings.get(order[k])));\n");
+        sb.append("            if (siblingPool == java.util.concurrent.ForkJoinPool.commonPool()\n");
+        sb.append("                    || java.util.concurrent.ForkJoinTask.getPool() == siblingPool) {\n");
+        sb.append("                task.run();\n");
+        sb.append("            } else {\n");
+        sb.append("                siblingPool.submit(task).join();\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        return (java.util.List<T>) java.util.Arrays.asList(results);\n");
+        sb.append("    }\n\n");
+
+        for (RuleDecl rule : grammar.rules()) {
+            if (!GrammarValidator.isOrderIndependent(rule)) {
+                continue;
+            }
+            MappingAnnotation mapping = getMappingAnnotation(rule).orElseThrow();
+            for (String param : mapping.paramNames()) {
+                String methodName = "evalSiblingsOf" + Character.toUpperCase(param.charAt(0)) + param.substring(1);
+                String signature = methodName + "(" + astClass + "." + mapping.className() + " node)";
+                if (!mapperSupport.isNodeListType(mapperSupport.inferType(grammar, rule, param))
+                        || !siblingHelpers.add(signature)) {
+                    continue;
+                }
+                sb.append("    /** Evaluates {@code node.").append(param).append("()} with {@link #evalSiblings}; call it from {@code eval")
+                  .append(mapping.className()).append("}. */\n");
+                sb.append("    protected final java.util.List<T> ").append(signature).append(" {\n");
+                sb.append("        return evalSiblings(node.").append(param).append("());\n");
+                sb.append("    }\n\n");
+            }
+        }
+
+        sb.append("    /**\n");
+        sb.append("     * Collects the names {@code node} defines and uses and returns its size in nodes (the parallel\n");
+        sb.append("     * cutoff weight). By default identifier captures of the node itself are definitions and identifiers\n");
+        sb.append("     * anywhere below it are uses; override for other binding rules.\n");
+        sb.append("     */\n");
+        sb.append("    protected int scanSibling(").append(astClass)
+          .append(" node, java.util.Set<String> defs, java.util.Set<String> uses) {\n");
+        sb.append("        return switch (node) {\n");
+        sb.append("            case null -> 0;\n");
+        for (Map.Entry<String, RuleDecl> entry : mappingRules(grammar).entrySet()) {
+            List<String> lines = identifierVisitLines(grammar, entry.getValue(),
+                "defs.add(%s);", "defs.addAll(%s);", "count += collectVariables(%s, uses);");
+            appendCountingCase(sb, astClass, entry.getKey(), lines);
+        }
+        sb.append("        };\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * {@code @pure} 用の容量固定キャッシュ。置換は CLOCK（参照ビット付きの循環走査）で、
+     * ヒットのたびにリストを付け替える LRU より更新コストが小さい。
+     * キーは {@code @structuralHash} がある場合だけ構造的な等価性で、ない場合はノードの同一性とする
+     * （レコードの {@code equals}/{@code hashCode} は照合のたびに部分木全体を辿り、入れ子の {@code @pure} で二乗になるため）。
+     */
+    private void appendPureCache(StringBuilder sb, String astClass, boolean structuralHash) {
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Bounded cache of pure subtree results with CLOCK replacement. Entries are keyed by\n");
+        if (structuralHash) {
+            sb.append("     * the node's constant-time {@code equals}/{@code hashCode} (@structuralHash), so equal subtrees share one entry.\n");
+        } else {
+            sb.append("     * node identity: only the same node instance hits. Enable {@code @structuralHash} to share entries\n");
+            sb.append("     * between equal subtrees.\n");
+        }
+        sb.append("     * Methods are synchronized so parallel sibling evaluation can share one cache; entries are immutable,\n");
+        sb.append("     * so a hit always returns the result recorded with the values it was compared against.\n");
+        sb.append("     */\n");
+        sb.append("    public static final class PureCache<T> {\n\n");
+        sb.append("        public static final int DEFAULT_CAPACITY = 4096;\n\n");
+        sb.append("        /** Immutable snapshot of one result; a recomputed result replaces the entry. */\n");
+        sb.append("        static final class Entry<T> {\n");
+        sb.append("            final ").append(astClass).append(" node;\n");
+        sb.append("            final String[] variables;\n");
+        sb.append("            final Object[] values;\n");
+        sb.append("            final T result;\n");
+        sb.append("            final int slot;\n\n");
+        sb.append("            Entry(").append(astClass).append(" node, String[] variables, Object[] values, T result, int slot) {\n");
+        sb.append("                this.node = node;\n");
+        sb.append("                this.variables = variables;\n");
+        sb.append("                this.values = values;\n");
+        sb.append("                this.result = result;\n");
+        sb.append("                this.slot = slot;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        private final java.util.Map<").append(astClass).append(", Entry<T>> entries = new java.util.")
+          .append(structuralHash ? "HashMap" : "IdentityHashMap").append("<>();\n");
+        sb.append("        private final java.util.ArrayList<Entry<T>> clock;\n");
+        sb.append("        private final java.util.BitSet referenced = new java.util.BitSet();\n");
+        sb.append("        private final int capacity;\n");
+        sb.append("        private int hand;\n");
+        sb.append("        private long hits;\n");
+        sb.append("        private long misses;\n");
+        sb.append("        private long evictions;\n\n");
+        sb.append("        public PureCache(int capacity) {\n");
+        sb.append("            if (capacity < 1) {\n");
+        sb.append("                throw new IllegalArgumentException(\"capacity must be positive: \" + capacity);\n");
+        sb.append("            }\n");
+        sb.append("            this.capacity = capacity;\n");
+        sb.append("            this.clock = new java.util.ArrayList<>(Math.min(capacity, DEFAULT_CAPACITY));\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Variables read by {@code node}'s subtree, kept from an earlier entry; {@code null} if none is cached. */\n");
+        sb.append("        synchronized String[] variables(").append(astClass).append(" node) {\n");
+        sb.append("            Entry<T> entry = entries.get(node);\n");
+        sb.append("            return entry == null ? null : entry.variables;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** The entry for {@code node} if it was recorded with equal variable values, counting a hit or a miss. */\n");
+        sb.append("        synchronized Entry<T> lookup(").append(astClass).append(" node, Object[] values) {\n");
+        sb.append("            Entry<T> entry = entries.get(node);\n");
+        sb.append("            if (entry != null && java.util.Arrays.equals(values, entry.values)) {\n");
+        sb.append("                referenced.set(entry.slot);\n");
+        sb.append("                hits++;\n");
+        sb.append("                return entry;\n");
+        sb.append("            }\n");
+        sb.append("            misses++;\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n\n");
+        sb.append("        synchronized void put(").append(astClass).append(" node, String[] variables, Object[] values, T result) {\n");
+        sb.append("            Entry<T> existing = entries.get(node);\n");
+        sb.append("            if (existing != null) {\n");
+        sb.append("                Entry<T> replacement = new Entry<>(existing.node, existing.variables, values, result, existing.slot);\n");
+        sb.append("                clock.set(existing.slot, replacement);\n");
+        sb.append("                referenced.set(existing.slot);\n");
+        sb.append("                entries.put(existing.node, replacement);\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            Entry<T> entry;\n");
+        sb.append("            if (clock.size() < capacity) {\n");
+        sb.append("                entry = new Entry<>(node, variables, values, result, clock.size());\n");
+        sb.append("                clock.add(entry);\n");
+        sb.append("            } else {\n");
+        sb.append("                // second chance: skip (and clear) recently referenced entries\n");
+        sb.append("                while (referenced.get(hand)) {\n");
+        sb.append("                    referenced.clear(hand);\n");
+        sb.append("                    hand = (hand + 1) % capacity;\n");
+        sb.append("                }\n");
+        sb.append("                entries.remove(clock.get(hand).node);\n");
+        sb.append("                entry = new Entry<>(node, variables, values, result, hand);\n");
+        sb.append("                clock.set(hand, entry);\n");
+        sb.append("                hand = (hand + 1) % capacity;\n");
+        sb.append("                evictions++;\n");
+        sb.append("            }\n");
+        sb.append("            entries.put(node, entry);\n");
+        sb.append("        }\n\n");
+        sb.append("        public synchronized long hitCount() {\n");
+        sb.append("            return hits;\n");
+        sb.append("        }\n\n");
+        sb.append("        public synchronized long missCount() {\n");
+        sb.append("            return misses;\n");
+        sb.append("        }\n\n");
+        sb.append("        public synchronized long evictionCount() {\n");
+        sb.append("            return evictions;\n");
+        sb.append("        }\n\n");
+        sb.append("        public synchronized int size() {\n");
+        sb.append("            return entries.size();\n");
+        sb.append("        }\n\n");
+        sb.append("        public int capacity() {\n");
+        sb.append("            return capacity;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Drops all entries; counters are kept. */\n");
+        sb.append("        public synchronized void clear() {\n");
+        sb.append("            entries.clear();\n");
+        sb.append("            clock.clear();\n");
+        sb.append("            referenced.clear();\n");
+        sb.append("            hand = 0;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * 戻り値がプリミティブ型の評価器。DebugStrategy が NOOP の間は計測パスを通らないため、
+     * 評価中にボクシングが発生しない。変数はフックから {@code load}/{@code store} で読み書きし、
+     * SlotResolver が解決時に記録したノードごとのスロットで同じ型の配列フレームを直接添字参照する。
+     */
+    private void appendPrimitiveEvaluator(StringBuilder sb, String astClass, SequencedSet<String> classNames,
+            String type) {
+        String evaluatorName = Character.toUpperCase(type.charAt(0)) + type.substring(1) + "Evaluator";
+        sb.append("\n");
+        sb.append("    /** Evaluates to {@code ").append(type).append("} without boxing intermediate results. */\n");
+        sb.append("    public abstract static class ").append(evaluatorName).append(" {\n\n");
+        appendEvalEntry(sb, "        ", astClass, type);
+        appendFrameAccess(sb, astClass, type);
+        sb.append("        private ").append(type).append(" evalInternal(").append(astClass).append(" node) {\n");
+        if (classNames.isEmpty()) {
+            sb.append("            throw new UnsupportedOperationException(\"No mapping classes for evaluation\");\n");
+            sb.append("        }\n");
+        } else {
+            sb.append("            return switch (node) {\n");
+            for (String name : classNames) {
+                sb.append("                case ").append(astClass).append(".").append(name)
+                  .append(" n -> eval").append(name).append("(n);\n");
+            }
+            sb.append("            };\n");
+            sb.append("        }\n\n");
+            for (String name : classNames) {
+                sb.append("        protected abstract ").append(type).append(" eval").append(name).append("(")
+                  .append(astClass).append(".").append(name).append(" node);\n");
+            }
+        }
+        sb.append("    }\n");
+    }
+
+    private void appendFrameAccess(StringBuilder sb, String astClass, String type) {
+        sb.append("        private SlotResolver slots;\n");
+        sb.append("        private ").append(type).append("[] frame;\n\n");
+        sb.append("        /**\n");
+        sb.append("         * Evaluates {@code node} with variable values held in {@code frame}, indexed by the slots\n");
+        sb.append("         * {@code slots} resolved for the tree. Hooks access variables through {@link #load} and {@link #store}.\n");
+        sb.append("         */\n");
+        sb.append("        public ").append(type).append(" eval(").append(astClass).append(" node, SlotResolver slots, ")
+          .append(type).append("[] frame) {\n");
+        sb.append("            SlotResolver previousSlots = this.slots;\n");
+        sb.append("            ").append(type).append("[] previousFrame = this.frame;\n");
+        sb.append("            this.slots = slots;\n");
+        sb.append("            this.frame = frame;\n");
+        sb.append("            try {\n");
+        sb.append("                return eval(node);\n");
+        sb.append("            } finally {\n");
+        sb.append("                this.slots = previousSlots;\n");
+        sb.append("                this.frame = previousFrame;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Value of the variable captured by {@code node}. */\n");
+        sb.append("        protected final ").append(type).append(" load(").append(astClass).append(" node) {\n");
+        sb.append("            return frame[slots.slotOf(node)];\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Assigns {@code value} to the variable captured by {@code node}, such as a declaration. */\n");
+        sb.append("        protected final void store(").append(astClass).append(" node, ").append(type).append(" value) {\n");
+        sb.append("            frame[slots.slotOf(node)] = value;\n");
+        sb.append("        }\n\n");
+    }
+
+    /**
+     * 明示的なワークスタックで後行順に評価する評価器。深い木でも Java のスタックを消費しない。
+     *
+     * <p>子ノードを持たないクラスは通常の評価器と同じ {@code evalXxx(node)}、子ノードを持つクラスは
+     * 子の評価結果をフィールド順に受け取る {@code evalXxx(node, ...)} を拡張点にする。</p>
+     */
+    private void appendIterativeEvaluator(StringBuilder sb, GrammarDecl grammar, String astClass,
+            SequencedSet<String> classNames) {
+        Map<String, List<ChildField>> childFields = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            getMappingAnnotation(rule).ifPresent(m -> {
+                if (!childFields.containsKey(m.className())) {
+                    childFields.put(m.className(), childFields(grammar, rule, m));
+                }
+            });
+        }
+
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Evaluates bottom-up with explicit work and value stacks instead of Java recursion, so\n");
+        sb.append("     * tree depth is limited by heap rather than thread stack size. Children are evaluated in\n");
+        sb.append("     * field order before their parent's hook runs; the stacks grow on demand and are reused.\n");
+        sb.append("     */\n");
+        sb.append("    public abstract static class IterativeEvaluator<T> {\n\n");
+        sb.append("        private static final int INITIAL_CAPACITY = 64;\n\n");
+        sb.append("        private DebugStrategy debugStrategy = DebugStrategy.NOOP;\n");
+        sb.append("        private boolean instrumented;\n");
+        sb.append("        private Object[] work = new Object[INITIAL_CAPACITY];\n");
+        sb.append("        private boolean[] combining = new boolean[INITIAL_CAPACITY];\n");
+        sb.append("        private int workTop;\n");
+        sb.append("        private Object[] values = new Object[INITIAL_CAPACITY];\n");
+        sb.append("        private int valueTop;\n\n");
+
+        sb.append("        public void setDebugStrategy(DebugStrategy strategy) {\n");
+        sb.append("            this.debugStrategy = strategy;\n");
+        sb.append("            this.instrumented = strategy != DebugStrategy.NOOP;\n");
+        sb.append("        }\n\n");
+
+        // eval: 再入可能にするため、呼び出し時点のスタック位置より上だけを処理する
+        sb.append("        public T eval(").append(astClass).append(" root) {\n");
+        sb.append("            int workBase = workTop;\n");
+        sb.append("            int valueBase = valueTop;\n");
+        sb.append("            boolean completed = false;\n");
+        sb.append("            try {\n");
+        sb.append("                push(root, false);\n");
+        sb.append("                while (workTop > workBase) {\n");
+        sb.append("                    workTop--;\n");
+        sb.append("                    ").append(astClass).append(" node = (").append(astClass).append(") work[workTop];\n");
+        sb.append("                    work[workTop] = null;\n");
+        sb.append("                    if (combining[workTop]) {\n");
+        sb.append("                        combine(node);\n");
+        sb.append("                    } else {\n");
+        sb.append("                        expand(node);\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                T result = popValue();\n");
+        sb.append("                completed = true;\n");
+        sb.append("                return result;\n");
+        sb.append("            } finally {\n");
+        sb.append("                if (!completed) {\n");
+        sb.append("                    java.util.Arrays.fill(work, workBase, workTop, null);\n");
+        sb.append("                    java.util.Arrays.fill(values, valueBase, valueTop, null);\n");
+        sb.append("                    workTop = workBase;\n");
+        sb.append("                    valueTop = valueBase;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        // expand: 葉は即座に評価し、内部ノードは結合フレームと子を逆順に積む
+        sb.append("        private void expand(").append(astClass).append(" node) {\n");
+        sb.append("            if (instrumented && node != null) {\n");
+        sb.append("                debugStrategy.onEnter(node);\n");
+        sb.append("            }\n");
+        sb.append("            switch (node) {\n");
+        sb.append("                case null -> pushValue(null);\n");
+        for (String name : classNames) {
+            List<ChildField> fields = childFields.getOrDefault(name, List.of());
+            sb.append("                case ").append(astClass).append(".").append(name).append(" n -> ");
+            if (fields.isEmpty()) {
+                sb.append("exit(n, eval").append(name).append("(n));\n");
+                continue;
+            }
+            sb.append("{\n");
+            sb.append("                    push(n, true);\n");
+            for (ChildField field : fields.reversed()) {
+                String access = "n." + field.name() + "()";
+                switch (field.kind()) {
+                    case SINGLE -> sb.append("                    push(").append(access).append(", false);\n");
+                    case LIST -> sb.append("                    pushAll(").append(access).append(");\n");
+                    case OPTIONAL -> sb.append("                    ").append(access)
+                        .append(".ifPresent(child -> push(child, false));\n");
+                }
+            }
+            sb.append("                }\n");
+        }
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        // combine: 子の値をフィールドの逆順に取り出してフックへ渡す
+        sb.append("        private void combine(").append(astClass).append(" node) {\n");
+        sb.append("            switch (node) {\n");
+        for (String name : classNames) {
+            List<ChildField> fields = childFields.getOrDefault(name, List.of());
+            if (fields.isEmpty()) {
+                continue;
+            }
+            sb.append("                case ").append(astClass).append(".").append(name).append(" n -> {\n");
+            for (ChildField field : fields.reversed()) {
+                String access = "n." + field.name() + "()";
+                sb.append("                    ");
+                switch (field.kind()) {
+                    case SINGLE -> sb.append("T ").append(field.name()).append(" = popValue();\n");
+                    case LIST -> sb.append("java.util.List<T> ").append(field.name())
+                        .append(" = popValues(").append(access).append(".size());\n");
+                    case OPTIONAL -> sb.append("java.util.Optional<T> ").append(field.name())
+                        .append(" = ").append(access).append(".isPresent()\n")
+                        .append("                        ? java.util.Optional.ofNullable(popValue())\n")
+                        .append("                        : java.util.Optional.empty();\n");
+                }
+            }
+            sb.append("                    exit(n, eval").append(name).append("(n");
+            for (ChildField field : fields) {
+                sb.append(", ").append(field.name());
+            }
+            sb.append("));\n");
+            sb.append("                }\n");
+        }
+        sb.append("                default -> throw new IllegalStateException(\"No children to combine: \" + node);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void exit(").append(astClass).append(" node, T result) {\n");
+        sb.append("            if (instrumented) {\n");
+        sb.append("                debugStrategy.onExit(node, result);\n");
+        sb.append("            }\n");
+        sb.append("            pushValue(result);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void push(").append(astClass).append(" node, boolean combine) {\n");
+        sb.append("            if (workTop == work.length) {\n");
+        sb.append("                work = java.util.Arrays.copyOf(work, workTop * 2);\n");
+        sb.append("                combining = java.util.Arrays.copyOf(combining, workTop * 2);\n");
+        sb.append("            }\n");
+        sb.append("            work[workTop] = node;\n");
+        sb.append("            combining[workTop] = combine;\n");
+        sb.append("            workTop++;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void pushAll(java.util.List<? extends ").append(astClass).append("> nodes) {\n");
+        sb.append("            for (int i = nodes.size() - 1; i >= 0; i--) {\n");
+        sb.append("                push(nodes.get(i), false);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void pushValue(T value) {\n");
+        sb.append("            if (valueTop == values.length) {\n");
+        sb.append("                values = java.util.Arrays.copyOf(values, valueTop * 2);\n");
+        sb.append("            }\n");
+        sb.append("            values[valueTop++] = value;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        private T popValue() {\n");
+        sb.append("            T value = (T) values[--valueTop];\n");
+        sb.append("            values[valueTop] = null;\n");
+        sb.append("            return value;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        private java.util.List<T> popValues(int count) {\n");
+        sb.append("            int from = valueTop - count;\n");
+        sb.append("            Object[] popped = java.util.Arrays.copyOfRange(values, from, valueTop);\n");
+        sb.append("            java.util.Arrays.fill(values, from, valueTop, null);\n");
+        sb.append("            valueTop = from;\n");
+        sb.append("            return (java.util.List<T>) java.util.Arrays.asList(popped);\n");
+        sb.append("        }\n\n");
+
+        for (String name : classNames) {
+            List<ChildField> fields = childFields.getOrDefault(name, List.of());
+            sb.append("        protected abstract T eval").append(name).append("(")
+              .append(astClass).append(".").append(name).append(" node");
+            for (ChildField field : fields) {
+                sb.append(", ").append(switch (field.kind()) {
+                    case SINGLE -> "T ";
+                    case LIST -> "java.util.List<T> ";
+                    case OPTIONAL -> "java.util.Optional<T> ";
+                }).append(field.name());
+            }
+            sb.append(");\n");
+        }
+        sb.append("    }\n");
+    }
+
+    /**
+     * 1 つの木を多数の行に対して評価する列指向の評価器。木の走査は行ごとではなくチャンクごとに 1 回で、
+     * 各フックはチャンク内の全行分の値を {@code double[]} で返す。大きなバッチはチャンク単位で並列化する。
+     *
+     * <p>jdk.incubator.vector は実行時に --add-modules を要求するため使わず、要素ごとの演算は
+     * HotSpot の自動ベクトル化が効く単純なカウントループとして出力する。</p>
+     */
+    private void appendBatchEvaluator(StringBuilder sb, String astClass, SequencedSet<String> classNames) {
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Evaluates one tree against many rows of variables. Each {@code evalXxx} hook returns a column with\n");
+        sb.append("     * the node's value for every row of a chunk, so the tree is walked once per chunk instead of once\n");
+        sb.append("     * per row. Large batches are split into chunks evaluated in parallel, so hooks must not keep\n");
+        sb.append("     * per-evaluation state in fields. Returned columns belong to the caller and may be overwritten.\n");
+        sb.append("     */\n");
+        sb.append("    public abstract static class BatchEvaluator {\n\n");
+        sb.append("        public static final int DEFAULT_CHUNK_SIZE = 4096;\n");
+        sb.append("        public static final int DEFAULT_PARALLEL_THRESHOLD = 65536;\n\n");
+        sb.append("        private final int chunkSize;\n");
+        sb.append("        private final int parallelThreshold;\n\n");
+
+        sb.append("        protected BatchEvaluator() {\n");
+        sb.append("            this(DEFAULT_CHUNK_SIZE, DEFAULT_PARALLEL_THRESHOLD);\n");
+        sb.append("        }\n\n");
+        sb.append("        /**\n");
+        sb.append("         * @param chunkSize rows evaluated per tree walk\n");
+        sb.append("         * @param parallelThreshold batches with at least this many rows run chunks in parallel\n");
+        sb.append("         */\n");
+        sb.append("        protected BatchEvaluator(int chunkSize, int parallelThreshold) {\n");
+        sb.append("            if (chunkSize < 1 || parallelThreshold < 1) {\n");
+        sb.append("                throw new IllegalArgumentException(\n");
+        sb.append("                    \"chunkSize and parallelThreshold must be positive: \" + chunkSize + \", \" + parallelThreshold);\n");
+        sb.append("            }\n");
+        sb.append("            this.chunkSize = chunkSize;\n");
+        sb.append("            this.parallelThreshold = parallelThreshold;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Evaluates {@code root} for every row; all columns must have the same length. */\n");
+        sb.append("        public double[] evalBatch(").append(astClass)
+          .append(" root, java.util.Map<String, double[]> columns) {\n");
+        sb.append("            if (columns.isEmpty()) {\n");
+        sb.append("                throw new IllegalArgumentException(\"No columns to infer the row count from\");\n");
+        sb.append("            }\n");
+        sb.append("            return evalBatch(root, columns, columns.values().iterator().next().length);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public double[] evalBatch(").append(astClass)
+          .append(" root, java.util.Map<String, double[]> columns, int rowCount) {\n");
+        sb.append("            if (rowCount < 0) {\n");
+        sb.append("                throw new IllegalArgumentException(\"Negative row count: \" + rowCount);\n");
+        sb.append("            }\n");
+        sb.append("            for (java.util.Map.Entry<String, double[]> column : columns.entrySet()) {\n");
+        sb.append("                if (column.getValue().length != rowCount) {\n");
+        sb.append("                    throw new IllegalArgumentException(\"Column '\" + column.getKey() + \"' has \"\n");
+        sb.append("                        + column.getValue().length + \" rows (expected \" + rowCount + \")\");\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            double[] result = new double[rowCount];\n");
+        sb.append("            int chunks = (int) (((long) rowCount + chunkSize - 1) / chunkSize);\n");
+        sb.append("            java.util.stream.IntStream indexes = java.util.stream.IntStream.range(0, chunks);\n");
+        sb.append("            if (rowCount >= parallelThreshold) {\n");
+        sb.append("                indexes = indexes.parallel();\n");
+        sb.append("            }\n");
+        sb.append("            indexes.forEach(chunk -> {\n");
+        sb.append("                int from = chunk * chunkSize;\n");
+        sb.append("                int to = (int) Math.min(rowCount, (long) from + chunkSize);\n");
+        sb.append("                double[] values = eval(root, new Rows(columns, from, to));\n");
+        sb.append("                System.arraycopy(values, 0, result, from, to - from);\n");
+        sb.append("            });\n");
+        sb.append("            return result;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Column of {@code node}'s values for {@code rows}; hooks call this for child nodes. */\n");
+        sb.append("        public double[] eval(").append(astClass).append(" node, Rows rows) {\n");
+        if (classNames.isEmpty()) {
+            sb.append("            throw new UnsupportedOperationException(\"No mapping classes for evaluation\");\n");
+            sb.append("        }\n\n");
+        } else {
+            sb.append("            return switch (node) {\n");
+            for (String name : classNames) {
+                sb.append("                case ").append(astClass).append(".").append(name)
+                  .append(" n -> eval").append(name).append("(n, rows);\n");
+            }
+            sb.append("            };\n");
+            sb.append("        }\n\n");
+            for (String name : classNames) {
+                sb.append("        protected abstract double[] eval").append(name).append("(")
+                  .append(astClass).append(".").append(name).append(" node, Rows rows);\n");
+            }
+            sb.append("\n");
+        }
+
+        // 要素ごとの演算（結果は left に書き戻す）
+        sb.append("        // Element-wise helpers write into {@code left}; plain counted loops let the JIT vectorize them.\n\n");
+        String[][] ops = {{"add", "+="}, {"subtract", "-="}, {"multiply", "*="}, {"divide", "/="}};
+        for (String[] op : ops) {
+            sb.append("        protected static double[] ").append(op[0]).append("(double[] left, double[] right) {\n");
+            sb.append("            for (int i = 0; i < left.length; i++) {\n");
+            sb.append("                left[i] ").append(op[1]).append(" right[i];\n");
+            sb.append("            }\n");
+            sb.append("            return left;\n");
+            sb.append("        }\n\n");
+        }
+
+        sb.append("        /** A contiguous range of rows in the batch's columns. */\n");
+        sb.append("        public static final class Rows {\n\n");
+        sb.append("            private final java.util.Map<String, double[]> columns;\n");
+        sb.append("            private final int from;\n");
+        sb.append("            private final int to;\n\n");
+        sb.append("            Rows(java.util.Map<String, double[]> columns, int from, int to) {\n");
+        sb.append("                this.columns = columns;\n");
+        sb.append("                this.from = from;\n");
+        sb.append("                this.to = to;\n");
+        sb.append("            }\n\n");
+        sb.append("            /** Index of the first row in the whole batch. */\n");
+        sb.append("            public int from() {\n");
+        sb.append("                return from;\n");
+        sb.append("            }\n\n");
+        sb.append("            public int size() {\n");
+        sb.append("                return to - from;\n");
+        sb.append("            }\n\n");
+        sb.append("            /** Copy of variable {@code name} for these rows. */\n");
+        sb.append("            public double[] column(String name) {\n");
+        sb.append("                double[] column = columns.get(name);\n");
+        sb.append("                if (column == null) {\n");
+        sb.append("                    throw new IllegalArgumentException(\"Unknown column: \" + name);\n");
+        sb.append("                }\n");
+        sb.append("                return java.util.Arrays.copyOfRange(column, from, to);\n");
+        sb.append("            }\n\n");
+        sb.append("            public boolean hasColumn(String name) {\n");
+        sb.append("                return columns.containsKey(name);\n");
+        sb.append("            }\n\n");
+        sb.append("            /** Column filled with {@code value} for these rows. */\n");
+        sb.append("            public double[] constant(double value) {\n");
+        sb.append("                double[] column = new double[size()];\n");
+        sb.append("                if (value != 0) {\n");
+        sb.append("                    java.util.Arrays.fill(column, value);\n");
+        sb.append("                }\n");
+        sb.append("                return column;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    private List<ChildField> childFields(GrammarDecl grammar, RuleDecl rule, MappingAnnotation mapping) {
+        List<ChildField> fields = new ArrayList<>();
+        for (String param : mapping.paramNames()) {
+            String type = mapperSupport.inferType(grammar, rule, param);
+            Optional<String> listElement = mapperSupport.unwrapListType(type);
+            Optional<String> optionalElement = mapperSupport.unwrapOptionalType(type);
+            if (listElement.filter(this::isNodeType).isPresent()) {
+                fields.add(new ChildField(param, ChildKind.LIST));
+            } else if (optionalElement.filter(this::isNodeType).isPresent()) {
+                fields.add(new ChildField(param, ChildKind.OPTIONAL));
+            } else if (listElement.isEmpty() && optionalElement.isEmpty() && isNodeType(type)) {
+                fields.add(new ChildField(param, ChildKind.SINGLE));
+            }
+        }
+        return fields;
+    }
+
+    private boolean isNodeType(String type) {
+        return !type.equals("String") && !type.equals("Object") && !type.contains("<")
+            && mapperSupport.primitiveConverter(type).isEmpty();
+    }
+
+    /**
+     * 識別子キャプチャ（IdentifierParser 系トークン）の名前に密なスロット番号を振るリゾルバ。
+     * 変数値を {@code double[]} などのプリミティブ配列に置けるようにする。
+     */
+    private void appendSlotResolver(StringBuilder sb, GrammarDecl grammar, String astClass,
+            List<String> primitiveTypes) {
+        Map<String, RuleDecl> mappingRules = mappingRules(grammar);
+
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Assigns dense slot indexes to identifier names so variables can live in primitive arrays.\n");
+        sb.append("     * {@link #resolve} also records the slots of each node that captures identifiers, so evaluation\n");
+        sb.append("     * indexes frames with {@code slotOf(node)} through an identity lookup instead of hashing names.\n");
+        sb.append("     */\n");
+        sb.append("    public static final class SlotResolver {\n\n");
+        sb.append("        public static final int NO_SLOT = -1;\n\n");
+        sb.append("        private static final int[] NO_SLOTS = new int[0];\n\n");
+        sb.append("        private final java.util.HashMap<String, Integer> slots = new java.util.HashMap<>();\n");
+        sb.append("        private final java.util.ArrayList<String> names = new java.util.ArrayList<>();\n");
+        sb.append("        private final java.util.IdentityHashMap<Object, int[]> nodeSlots = new java.util.IdentityHashMap<>();\n\n");
+        sb.append("        public static SlotResolver of(").append(astClass).append(" root) {\n");
+        sb.append("            SlotResolver resolver = new SlotResolver();\n");
+        sb.append("            resolver.resolve(root);\n");
+        sb.append("            return resolver;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Assigns slots to every identifier in {@code root}, in first-occurrence order. */\n");
+        sb.append("        public void resolve(").append(astClass).append(" root) {\n");
+        sb.append("            visit(root);\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Slot for {@code name}, assigning the next one if it is new. */\n");
+        sb.append("        public int slotOf(String name) {\n");
+        sb.append("            Integer slot = slots.get(name);\n");
+        sb.append("            if (slot == null) {\n");
+        sb.append("                slot = names.size();\n");
+        sb.append("                names.add(name);\n");
+        sb.append("                slots.put(name, slot);\n");
+        sb.append("            }\n");
+        sb.append("            return slot;\n");
+        sb.append("        }\n\n");
+        sb.append("        /**\n");
+        sb.append("         * Slot of the first identifier captured by {@code node}, recorded by {@link #resolve};\n");
+        sb.append("         * {@link #NO_SLOT} if the node captures none or was not resolved.\n");
+        sb.append("         */\n");
+        sb.append("        public int slotOf(").append(astClass).append(" node) {\n");
+        sb.append("            int[] nodeSlot = nodeSlots.getOrDefault(node, NO_SLOTS);\n");
+        sb.append("            return nodeSlot.length == 0 ? NO_SLOT : nodeSlot[0];\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Slots of every identifier captured by {@code node}, in field and list order. */\n");
+        sb.append("        public int[] slotsOf(").append(astClass).append(" node) {\n");
+        sb.append("            return nodeSlots.getOrDefault(node, NO_SLOTS).clone();\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Slot for {@code name}, or {@link #NO_SLOT} if it was never resolved. */\n");
+        sb.append("        public int find(String name) {\n");
+        sb.append("            Integer slot = slots.get(name);\n");
+        sb.append("            return slot == null ? NO_SLOT : slot;\n");
+        sb.append("        }\n\n");
+        sb.append("        public String nameOf(int slot) {\n");
+        sb.append("            return names.get(slot);\n");
+        sb.append("        }\n\n");
+        sb.append("        public int size() {\n");
+        sb.append("            return names.size();\n");
+        sb.append("        }\n\n");
+        for (String type : primitiveTypes) {
+            String frameName = "new" + Character.toUpperCase(type.charAt(0)) + type.substring(1) + "Frame";
+            sb.append("        public ").append(type).append("[] ").append(frameName).append("() {\n");
+            sb.append("            return new ").append(type).append("[names.size()];\n");
+            sb.append("        }\n\n");
+        }
+        sb.append("        private void record(Object node, Object... captures) {\n");
+        sb.append("            int[] nodeSlot = new int[captures.length];\n");
+        sb.append("            int count = 0;\n");
+        sb.append("            for (Object capture : captures) {\n");
+        sb.append("                if (capture instanceof java.util.Collection<?> list) {\n");
+        sb.append("                    nodeSlot = java.util.Arrays.copyOf(nodeSlot, nodeSlot.length + list.size());\n");
+        sb.append("                    for (Object name : list) {\n");
+        sb.append("                        nodeSlot[count++] = slotOf((String) name);\n");
+        sb.append("                    }\n");
+        sb.append("                } else if (capture instanceof java.util.Optional<?> optional) {\n");
+        sb.append("                    if (optional.isPresent()) {\n");
+        sb.append("                        nodeSlot[count++] = slotOf((String) optional.get());\n");
+        sb.append("                    }\n");
+        sb.append("                } else if (capture != null) {\n");
+        sb.append("                    nodeSlot[count++] = slotOf((String) capture);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            nodeSlots.put(node, java.util.Arrays.copyOf(nodeSlot, count));\n");
+        sb.append("        }\n\n");
+        sb.append("        private void visit(Object value) {\n");
+        sb.append("            switch (value) {\n");
+        for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
+            List<String> captures = identifierVisitLines(grammar, entry.getValue(), "%s", "%s", null);
+            List<String> lines = new ArrayList<>();
+            if (!captures.isEmpty()) {
+                lines.add("record(n, " + String.join(", ", captures) + ");");
+            }
+            lines.addAll(identifierVisitLines(grammar, entry.getValue(), null, null, "visit(%s);"));
+            appendVisitCase(sb, astClass, entry.getKey(), lines);
+        }
+        sb.append("                case java.util.List<?> list -> list.forEach(this::visit);\n");
+        sb.append("                case java.util.Optional<?> optional -> optional.ifPresent(this::visit);\n");
+        sb.append("                case null, default -> {}\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * 子ノードを再帰的に辿りながら識別子キャプチャを処理する switch の各 case 本体を返す。
+     * 書式の {@code %s} にはフィールドのアクセサ式（{@code n.name()}）が入る。書式が {@code null} の種類の
+     * フィールドは出力しない。
+     */
+    private List<String> identifierVisitLines(GrammarDecl grammar, RuleDecl rule,
+            String identifierFormat, String identifierListFormat, String childFormat) {
+        List<String> lines = new ArrayList<>();
+        for (String param : getMappingAnnotation(rule).orElseThrow().paramNames()) {
+            String type = mapperSupport.inferType(grammar, rule, param);
+            String element = mapperSupport.unwrapListType(type)
+                .or(() -> mapperSupport.unwrapOptionalType(type))
+                .orElse(type);
+            String access = "n." + param + "()";
+            if (element.equals("String")) {
+                String format = type.equals("String") ? identifierFormat : identifierListFormat;
+                if (format == null || !mapperSupport.isIdentifierCapture(grammar, rule, param)) {
+                    continue;
+                }
+                lines.add(format.formatted(access));
+            } else if (childFormat != null && mapperSupport.primitiveConverter(element).isEmpty()) {
+                lines.add(childFormat.formatted(access));
+            }
+        }
+        return lines;
+    }
+
+    private void appendVisitCase(StringBuilder sb, String astClass, String className, List<String> lines) {
+        sb.append("                case ").append(astClass).append(".").append(className).append(" n -> {");
+        if (lines.isEmpty()) {
+            sb.append("}\n");
+            return;
+        }
+        sb.append("\n");
+        for (String line : lines) {
+            sb.append("                    ").append(line).append("\n");
+        }
+        sb.append("                }\n");
+    }
+
+    private Map<String, RuleDecl> mappingRules(GrammarDecl grammar) {
+        Map<String, RuleDecl> mappingRules = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            getMappingAnnotation(rule).ifPresent(m -> mappingRules.putIfAbsent(m.className(), rule));
+        }
+        return mappingRules;
+    }
+
+    /**
+     * {@code @primitiveEvaluator} で生成するプリミティブ型。{@code true} なら double / long / int のすべて。
+     */
+    private List<String> primitiveEvaluatorTypes(GrammarDecl grammar) {
+        if (!GrammarSettings.isEnabled(grammar, "primitiveEvaluator")) {
+            return List.of();
+        }
+        String value = GrammarSettings.blockEntry(grammar, "primitiveEvaluator", "types")
+            .or(() -> GrammarSettings.stringValue(grammar, "primitiveEvaluator"))
+            .orElse("true");
+        if (value.equalsIgnoreCase("true")) {
+            return PRIMITIVE_TYPES;
+        }
+        List<String> types = new ArrayList<>();
+        for (String raw : value.split(",")) {
+            String type = raw.trim().toLowerCase();
+            if (!PRIMITIVE_TYPES.contains(type)) {
+                throw new IllegalArgumentException(
+                    "Unsupported @primitiveEvaluator type: '" + raw.trim() + "' (expected double, long or int)");
+            }
+            if (!types.contains(type)) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
     private Optional<MappingAnnotation> getMappingAnnotation(RuleDecl rule) {
         return rule.annotations().stream()
             .filter(a -> a instanceof MappingAnnotation)
@@ -0,0 +1,74 @@
+package org.unlaxer.dsl.codegen;
+
+import org.unlaxer.dsl.bootstrap.UBNFAST.BlockSettingValue;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.KeyValuePair;
+import org.unlaxer.dsl.bootstrap.UBNFAST.SettingValue;
+import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
+
+import java.util.Optional;
+
+/**
+ * grammar のグローバル設定（{@code @key: value}）からジェネレーターオプションを読み出す。
+ *
+ * <p>オプションは {@code @key: true} のような単一値、または
+ * {@code @key: { name: 'value' }} のようなブロック値で指定する。
+ * ブロック値で指定された場合はそれ自体で有効扱いになる。</p>
+ */
+final class GrammarSettings {
+
+    private GrammarSettings() {}
+
+    static Optional<SettingValue> find(GrammarDecl grammar, String key) {
+        return grammar.settings().stream()
+            .filter(s -> key.equals(s.key()))
+            .map(s -> s.value())
+            .findFirst();
+    }
+
+    /**
+     * 設定が存在し、かつ {@code false} / {@code none} / {@code off} 以外であれば有効とみなす。
+     */
+    static boolean isEnabled(GrammarDecl grammar, String key) {
+        return find(grammar, key)
+            .map(v -> switch (v) {
+                case BlockSettingValue b -> true;
+                case StringSettingValue s -> !isDisabledLiteral(s.value());
+            })
+            .orElse(false);
+    }
+
+    static Optional<String> stringValue(GrammarDecl grammar, String key) {
+        return find(grammar, key)
+            .filter(v -> v instanceof StringSettingValue)
+            .map(v -> ((StringSettingValue) v).value().trim());
+    }
+
+    static Optional<String> blockEntry(GrammarDecl grammar, String key, String entryKey) {
+        return find(grammar, key)
+            .filter(v -> v instanceof BlockSettingValue)
+            .flatMap(v -> ((BlockSettingValue) v).entries().stream()
+                .filter(kv -> entryKey.equals(kv.key()))
+                .map(KeyValuePair::value)
+                .map(String::trim)
+                .findFirst());
+    }
+
+    static int intBlockEntry(GrammarDecl grammar, String key, String entryKey, int defaultValue) {
+        Optional<String> raw = blockEntry(grammar, key, entryKey);
+        if (raw.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(raw.get());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "Invalid integer for @" + key + "." + entryKey + ": '" + raw.get() + "'", e);
+        }
+    }
+
+    private static boolean isDisabledLiteral(String value) {
+        String normalized = value.trim().toLowerCase();
+        return normalized.equals("false") || normalized.equals("none") || normalized.equals("off");
+    }
+}
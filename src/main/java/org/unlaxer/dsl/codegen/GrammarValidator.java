@@ -20,6 +20,7 @@ import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
 import org.unlaxer.dsl.bootstrap.UBNFAST.RuleRefElement;
 import org.unlaxer.dsl.bootstrap.UBNFAST.ScopeTreeAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.SequenceBody;
+import org.unlaxer.dsl.bootstrap.UBNFAST.SimpleAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
 import org.unlaxer.dsl.bootstrap.UBNFAST.WhitespaceAnnotation;
 
@@ -65,7 +66,7 @@ public final class GrammarValidator {
             if (code.startsWith("E-PRECEDENCE-")) {
                 return "PRECEDENCE";
             }
-            if (code.startsWith("E-ANNOTATION-")) {
+            if (code.startsWith("E-ANNOTATION-") || code.startsWith("W-ANNOTATION-")) {
                 return "ANNOTATION";
             }
             return "GENERAL";
@@ -113,6 +114,7 @@ public final class GrammarValidator {
 
             if (mapping != null) {
                 validateMapping(rule, mapping, errors);
+                validateMappingTypeHints(rule, mapping, hasLeftAssoc || hasRightAssoc, errors);
             }
             if (hasLeftAssoc || hasRightAssoc) {
                 validateAssoc(rule, mapping, hasLeftAssoc, hasRightAssoc, errors);
@@ -122,6 +124,9 @@ public final class GrammarValidator {
         }
         validatePrecedenceTopology(grammar, errors);
         validateAssociativityConsistency(grammar, errors);
+        validatePureAnnotations(grammar, errors);
+        validateIncrementalEvaluator(grammar, errors);
+        validateReparseBoundaries(grammar, errors);
 
         return List.copyOf(errors);
     }
@@ -177,6 +182,40 @@ public final class GrammarValidator {
         }
     }
 
+    private static void validateMappingTypeHints(
+        RuleDecl rule,
+        MappingAnnotation mapping,
+        boolean hasAssoc,
+        List<ValidationIssue> errors
+    ) {
+        if (mapping.paramTypes().isEmpty()) {
+            return;
+        }
+        if (hasAssoc) {
+            addRuleError(errors, rule.name(),
+                "rule " + rule.name() + " @mapping(" + mapping.className()
+                    + ") declares types for an associativity rule",
+                "Remove types=[...] from @leftAssoc/@rightAssoc rules; operands are mapped as AST nodes.",
+                "E-MAPPING-TYPE-HINT-ASSOC");
+        }
+        for (Map.Entry<String, String> entry : mapping.paramTypes().entrySet()) {
+            if (!mapping.paramNames().contains(entry.getKey())) {
+                addRuleError(errors, rule.name(),
+                    "rule " + rule.name() + " @mapping(" + mapping.className()
+                        + ") declares a type for unknown param '" + entry.getKey() + "'",
+                    "Add '" + entry.getKey() + "' to @mapping params or remove its type hint.",
+                    "E-MAPPING-TYPE-HINT-UNKNOWN-PARAM");
+            }
+            if (!ASTGenerator.PRIMITIVE_TYPE_HINTS.containsKey(entry.getValue())) {
+                addRuleError(errors, rule.name(),
+                    "rule " + rule.name() + " @mapping(" + mapping.className()
+                        + ") param '" + entry.getKey() + "' has unsupported type: " + entry.getValue(),
+                    "Use one of: boolean, double, int, long.",
+                    "E-MAPPING-TYPE-HINT-UNSUPPORTED");
+            }
+        }
+    }
+
     private static void validateAssoc(
         RuleDecl rule,
         MappingAnnotation mapping,
@@ -425,6 +464,117 @@ public final class GrammarValidator {
         }
     }
 
+    /**
+     * {@code @pure} は評価結果をキャッシュするマッピングクラスの宣言なので、{@code @mapping} を伴い、
+     * 同じクラスへマップされるルールすべてで揃っている必要がある。{@code @orderIndependent} も
+     * マッピングクラスの宣言なので {@code @mapping} を要求し、評価を並べ替える兄弟ノードの List キャプチャも要求する。
+     *
+     * <p>{@code @pure} のキャッシュは {@code @structuralHash} がないとノードの同一性をキーにするため、
+     * 等しい別インスタンスの部分木は結果を共有しない。その場合は警告する。</p>
+     */
+    private static void validatePureAnnotations(GrammarDecl grammar, List<ValidationIssue> errors) {
+        Map<String, Boolean> pureByClass = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            boolean pure = isPure(rule);
+            MappingAnnotation mapping = rule.annotations().stream()
+                .filter(a -> a instanceof MappingAnnotation)
+                .map(a -> (MappingAnnotation) a)
+                .findFirst()
+                .orElse(null);
+            if (mapping == null) {
+                if (pure) {
+                    addRuleError(errors, rule.name(),
+                        "rule " + rule.name() + " uses @pure without @mapping",
+                        "Add @mapping(...) to this rule or remove @pure.",
+                        "E-ANNOTATION-PURE-WITHOUT-MAPPING");
+                }
+                if (isOrderIndependent(rule)) {
+                    addRuleError(errors, rule.name(),
+                        "rule " + rule.name() + " uses @orderIndependent without @mapping",
+                        "Add @mapping(...) to this rule or remove @orderIndependent.",
+                        "E-ANNOTATION-ORDER-INDEPENDENT-WITHOUT-MAPPING");
+                }
+                continue;
+            }
+            if (isOrderIndependent(rule) && !hasSiblingList(grammar, rule, mapping)) {
+                addRuleError(errors, rule.name(),
+                    "rule " + rule.name() + " uses @orderIndependent but " + mapping.className()
+                        + " has no list of child nodes",
+                    "Capture repeated child rules, e.g. '{ Item } @items', or remove @orderIndependent.",
+                    "E-ANNOTATION-ORDER-INDEPENDENT-WITHOUT-SIBLINGS");
+            }
+            Boolean existing = pureByClass.putIfAbsent(mapping.className(), pure);
+            if (existing != null && existing != pure) {
+                addRuleError(errors, rule.name(),
+                    "class " + mapping.className() + " is mapped by both @pure and non-@pure rules",
+                    "Add @pure to every rule mapped to " + mapping.className() + " or to none.",
+                    "E-ANNOTATION-PURE-INCONSISTENT");
+            }
+        }
+        if (pureByClass.containsValue(true) && !GrammarSettings.isEnabled(grammar, "structuralHash")) {
+            addError(errors,
+                "grammar " + grammar.name() + " uses @pure without @structuralHash; the cache is keyed by node identity"
+                    + " and equal subtrees do not share results",
+                "Add '@structuralHash: true' so equal subtrees share cache entries in constant time.",
+                "W-ANNOTATION-PURE-WITHOUT-STRUCTURAL-HASH");
+        }
+    }
+
+    /**
+     * {@code @incrementalEvaluator} は版をまたいでノードの {@code equals}/{@code hashCode} で結果を照合するため、
+     * {@code @structuralHash} がないと照合のたびに部分木全体を辿る。その場合は警告する。
+     */
+    private static void validateIncrementalEvaluator(GrammarDecl grammar, List<ValidationIssue> errors) {
+        if (GrammarSettings.isEnabled(grammar, "incrementalEvaluator")
+                && !GrammarSettings.isEnabled(grammar, "structuralHash")) {
+            addError(errors,
+                "grammar " + grammar.name() + " uses @incrementalEvaluator without @structuralHash; matching nodes"
+                    + " across versions hashes and compares whole subtrees",
+                "Add '@structuralHash: true' so recorded results are matched in constant time.",
+                "W-GENERAL-INCREMENTAL-WITHOUT-STRUCTURAL-HASH");
+        }
+    }
+
+    /**
+     * {@code @reparseBoundary} のルールは単独で再パースされるので、前方の文脈に依存する
+     * {@code @backref} / {@code @scopeTree} とは併用できない。
+     */
+    private static void validateReparseBoundaries(GrammarDecl grammar, List<ValidationIssue> errors) {
+        for (RuleDecl rule : grammar.rules()) {
+            boolean contextual = rule.annotations().stream()
+                .anyMatch(a -> a instanceof BackrefAnnotation || a instanceof ScopeTreeAnnotation);
+            if (isReparseBoundary(rule) && contextual) {
+                addRuleError(errors, rule.name(),
+                    "rule " + rule.name() + " uses @reparseBoundary with @backref or @scopeTree",
+                    "Remove @reparseBoundary; this rule depends on text before it.",
+                    "E-ANNOTATION-REPARSE-BOUNDARY-CONTEXT");
+            }
+        }
+    }
+
+    private static boolean hasSiblingList(GrammarDecl grammar, RuleDecl rule, MappingAnnotation mapping) {
+        MapperGenerator mapperSupport = new MapperGenerator();
+        return mapping.paramNames().stream()
+            .anyMatch(param -> mapperSupport.isNodeListType(mapperSupport.inferType(grammar, rule, param)));
+    }
+
+    static boolean isPure(RuleDecl rule) {
+        return hasSimpleAnnotation(rule, "pure");
+    }
+
+    static boolean isOrderIndependent(RuleDecl rule) {
+        return hasSimpleAnnotation(rule, "orderIndependent");
+    }
+
+    static boolean isReparseBoundary(RuleDecl rule) {
+        return hasSimpleAnnotation(rule, "reparseBoundary");
+    }
+
+    private static boolean hasSimpleAnnotation(RuleDecl rule, String name) {
+        return rule.annotations().stream()
+            .anyMatch(a -> a instanceof SimpleAnnotation simple && name.equals(simple.name()));
+    }
+
     private static void addRuleError(
         List<ValidationIssue> errors,
         String rule,
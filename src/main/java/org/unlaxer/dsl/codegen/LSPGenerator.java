@@ -2,27 +2,72 @@ package org.unlaxer.dsl.codegen;
 
 import org.unlaxer.dsl.bootstrap.UBNFAST.AnnotatedElement;
 import org.unlaxer.dsl.bootstrap.UBNFAST.AtomicElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.BackrefAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.ChoiceBody;
 import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
 import org.unlaxer.dsl.bootstrap.UBNFAST.GroupElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.MappingAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.OptionalElement;
 import org.unlaxer.dsl.bootstrap.UBNFAST.RepeatElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RootAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.RuleBody;
 import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleRefElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.ScopeTreeAnnotation;
 import org.unlaxer.dsl.bootstrap.UBNFAST.SequenceBody;
 import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
 import org.unlaxer.dsl.bootstrap.UBNFAST.TerminalElement;
+import org.unlaxer.dsl.bootstrap.UBNFAST.TokenDecl;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * GrammarDecl から {Name}LanguageServer.java を生成する。
+ *
+ * <p>文書は差分同期（{@code TextDocumentSyncKind.Incremental}）で受け取り、テキストの塊を要素とする
+ * 永続 treap（DocumentText）に範囲編集として適用する。各ノードが部分木の文字数と改行数を持つため、
+ * 編集とオフセット・行位置の相互変換はいずれも O(log n) で済む。</p>
+ *
+ * <p>パースはメッセージスレッドではなく仮想スレッドの executor で行う。文書ごとに debounce し、新しい版が
+ * 届いたら古い版のパースを取り消す。結果はその版がまだ最新である場合だけ保存・publish する。</p>
+ *
+ * <p>semantic token は差分パーサーの構文木から作る。終端記号は keyword / operator、token 宣言は
+ * パーサークラス名から number / string / comment / variable に分類し、{@code @mapping} の {@code name}
+ * キャプチャが直接参照する token には declaration 修飾子を付ける。木を一度たどって LSP の相対形式の
+ * {@code int[]} へ直接書き出し、文書の版ごとに resultId 付きでキャッシュして {@code full/delta} に応える。</p>
+ *
+ * <p>補完は文法表から作る。生成コードは文法を系列と選択の表に平たくして持ち、カーソル直前の語の手前で
+ * 受理されうる終端記号（構文が途中で崩れていれば最も遠くまで進んだ位置のもの）を返す。繰り返し要素の 1 項目
+ * （文）が終わった位置の認識状態をキャッシュし、次の要求はカーソル手前で最も近いその位置から読み直す。</p>
+ *
+ * <p>{@code @workspaceIndex} を指定すると、同じ宣言位置を定義、{@code @backref} ルールと定義可能な token の
+ * その他の出現を参照、{@code @scopeTree} ルールをスコープとしてワークスペース全体のシンボル索引を作り、
+ * 定義ジャンプ・参照検索・ワークスペースシンボルに使う。索引は起動時に並列で構築し、ディスクへ永続化する。</p>
  */
 public class LSPGenerator implements CodeGenerator {
 
+    private static final int SYMBOL_SCOPE = 1;
+    private static final int SYMBOL_REFERENCE = 2;
+    private static final int SYMBOL_DEFINABLE = 4;
+
+    private static final int EXPECT_TERMINAL = 0;
+    private static final int EXPECT_TOKEN = 1;
+    private static final int EXPECT_CALL = 2;
+    private static final int EXPECT_OPTIONAL = 3;
+    private static final int EXPECT_REPEAT = 4;
+
+    private final ParserGenerator parserSupport = new ParserGenerator();
+
+    /** semantic token の legend。生成コードの {@code TOKEN_*} 定数はこの順の添字になる。 */
+    static final List<String> SEMANTIC_TOKEN_TYPES =
+        List.of("keyword", "operator", "number", "string", "comment", "variable");
+
     @Override
     public GeneratedSource generate(GrammarDecl grammar) {
         String packageName = getPackageName(grammar);
@@ -30,13 +75,22 @@ public class LSPGenerator implements CodeGenerator {
         String serverClass = grammarName + "LanguageServer";
         String parsersClass = grammarName + "Parsers";
 
-        List<String> keywords = collectKeywords(grammar);
+        boolean workspaceIndex = GrammarSettings.isEnabled(grammar, "workspaceIndex");
 
         StringBuilder sb = new StringBuilder();
         sb.append("package ").append(packageName).append(";\n\n");
 
         sb.append("import java.util.*;\n");
         sb.append("import java.util.concurrent.CompletableFuture;\n");
+        sb.append("import java.util.concurrent.ConcurrentHashMap;\n");
+        sb.append("import java.util.concurrent.ConcurrentSkipListMap;\n");
+        sb.append("import java.util.concurrent.ExecutorService;\n");
+        sb.append("import java.util.concurrent.Executors;\n");
+        sb.append("import java.util.concurrent.Future;\n");
+        sb.append("import java.util.concurrent.atomic.AtomicLong;\n");
+        if (workspaceIndex) {
+            appendSymbolIndexImports(sb);
+        }
         sb.append("import org.eclipse.lsp4j.*;\n");
         sb.append("import org.eclipse.lsp4j.jsonrpc.messages.Either;\n");
         sb.append("import org.eclipse.lsp4j.services.*;\n");
@@ -49,16 +103,30 @@ public class LSPGenerator implements CodeGenerator {
         sb.append("public class ").append(serverClass)
           .append(" implements LanguageServer, LanguageClientAware {\n\n");
 
-        // KEYWORDS field
-        sb.append("    private static final List<String> KEYWORDS = List.of(");
-        for (int i = 0; i < keywords.size(); i++) {
-            if (i > 0) sb.append(", ");
-            sb.append("\"").append(keywords.get(i)).append("\"");
+        appendCompletionGrammar(sb, grammar, parsersClass);
+        appendSemanticTokenClassification(sb, grammar, parsersClass);
+        if (workspaceIndex) {
+            appendSymbolIndexClassification(sb, grammar);
         }
-        sb.append(");\n\n");
 
-        sb.append("    private LanguageClient client;\n");
-        sb.append("    private final Map<String, DocumentState> documents = new HashMap<>();\n\n");
+        sb.append("    /** Delay between the last edit of a document and its background parse. */\n");
+        sb.append("    public static final long DEFAULT_PARSE_DEBOUNCE_MILLIS = 150;\n\n");
+        sb.append("    private volatile LanguageClient client;\n");
+        sb.append("    private final Map<String, DocumentState> documents = new ConcurrentHashMap<>();\n");
+        sb.append("    private final Map<String, Future<?>> pendingParses = new ConcurrentHashMap<>();\n");
+        sb.append("    private final Map<String, ").append(parsersClass)
+          .append(".IncrementalParser> parsers = new ConcurrentHashMap<>();\n");
+        sb.append("    private final ExecutorService parseExecutor = Executors.newVirtualThreadPerTaskExecutor();\n");
+        sb.append("    private volatile long parseDebounceMillis = DEFAULT_PARSE_DEBOUNCE_MILLIS;\n");
+        sb.append("    private final Map<String, SemanticTokensData> semanticTokens = new ConcurrentHashMap<>();\n");
+        sb.append("    private final AtomicLong semanticTokensResultIds = new AtomicLong();\n");
+        sb.append("    private final Map<String, CompletionCheckpoints> completionCheckpoints = new ConcurrentHashMap<>();\n");
+        if (workspaceIndex) {
+            sb.append("    private final SymbolIndex symbolIndex = new SymbolIndex();\n");
+            sb.append("    private volatile List<Path> workspaceRoots = List.of();\n");
+            sb.append("    private volatile Path symbolIndexFile;\n");
+        }
+        sb.append("\n");
 
         // Constructor
         sb.append("    public ").append(serverClass).append("() {}\n\n");
@@ -67,23 +135,49 @@ public class LSPGenerator implements CodeGenerator {
         sb.append("    @Override\n");
         sb.append("    public CompletableFuture<InitializeResult> initialize(InitializeParams params) {\n");
         sb.append("        ServerCapabilities capabilities = new ServerCapabilities();\n");
-        sb.append("        capabilities.setTextDocumentSync(TextDocumentSyncKind.Full);\n");
+        sb.append("        capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);\n");
         sb.append("        CompletionOptions completionOptions = new CompletionOptions();\n");
         sb.append("        completionOptions.setResolveProvider(false);\n");
         sb.append("        capabilities.setCompletionProvider(completionOptions);\n");
         sb.append("        capabilities.setHoverProvider(true);\n");
         sb.append("        SemanticTokensWithRegistrationOptions semanticTokensOptions =\n");
         sb.append("            new SemanticTokensWithRegistrationOptions();\n");
-        sb.append("        semanticTokensOptions.setFull(true);\n");
+        sb.append("        semanticTokensOptions.setFull(new SemanticTokensServerFull(true));\n");
         sb.append("        semanticTokensOptions.setLegend(new SemanticTokensLegend(\n");
-        sb.append("            List.of(\"valid\", \"invalid\"), List.of()));\n");
+        sb.append("            SEMANTIC_TOKEN_LEGEND, SEMANTIC_MODIFIER_LEGEND));\n");
         sb.append("        capabilities.setSemanticTokensProvider(semanticTokensOptions);\n");
+        if (workspaceIndex) {
+            sb.append("        capabilities.setDefinitionProvider(true);\n");
+            sb.append("        capabilities.setReferencesProvider(true);\n");
+            sb.append("        capabilities.setWorkspaceSymbolProvider(true);\n");
+            sb.append("        List<Path> roots = new ArrayList<>();\n");
+            sb.append("        if (params.getWorkspaceFolders() != null) {\n");
+            sb.append("            for (WorkspaceFolder folder : params.getWorkspaceFolders()) {\n");
+            sb.append("                Optional.ofNullable(toPath(folder.getUri())).ifPresent(roots::add);\n");
+            sb.append("            }\n");
+            sb.append("        } else {\n");
+            sb.append("            Optional.ofNullable(toPath(params.getRootUri())).ifPresent(roots::add);\n");
+            sb.append("        }\n");
+            sb.append("        workspaceRoots = List.copyOf(roots);\n");
+        }
         sb.append("        return CompletableFuture.completedFuture(new InitializeResult(capabilities));\n");
         sb.append("    }\n\n");
 
+        if (workspaceIndex) {
+            // initialized()（起動時の索引構築はクライアントの初期化完了後に始める）
+            sb.append("    @Override\n");
+            sb.append("    public void initialized(InitializedParams params) {\n");
+            sb.append("        parseExecutor.submit(this::indexWorkspace);\n");
+            sb.append("    }\n\n");
+        }
+
         // shutdown()
         sb.append("    @Override\n");
         sb.append("    public CompletableFuture<Object> shutdown() {\n");
+        sb.append("        parseExecutor.shutdownNow();\n");
+        if (workspaceIndex) {
+            sb.append("        saveSymbolIndex();\n");
+        }
         sb.append("        return CompletableFuture.completedFuture(null);\n");
         sb.append("    }\n\n");
 
@@ -110,90 +204,159 @@ public class LSPGenerator implements CodeGenerator {
         // getWorkspaceService()
         sb.append("    @Override\n");
         sb.append("    public WorkspaceService getWorkspaceService() {\n");
-        sb.append("        return new ").append(serverClass).append("WorkspaceService();\n");
+        sb.append("        return new ").append(serverClass).append("WorkspaceService(")
+          .append(workspaceIndex ? "this" : "").append(");\n");
         sb.append("    }\n\n");
 
         // parseDocument()
         sb.append("    public ParseResult parseDocument(String uri, String content) {\n");
-        sb.append("        Parser parser = ").append(parsersClass).append(".getRootParser();\n");
-        sb.append("        ParseContext context = new ParseContext(createRootSourceCompat(content));\n");
-        sb.append("        Parsed result = parser.parse(context);\n");
-        sb.append("        int consumedLength = 0;\n");
-        sb.append("        if (result.isSucceeded()) {\n");
-        sb.append("            consumedLength = result.getConsumed().source.sourceAsString().length();\n");
-        sb.append("        }\n");
-        sb.append("        context.close();\n");
-        sb.append("        ParseResult parseResult = new ParseResult(\n");
-        sb.append("            result.isSucceeded(), consumedLength, content.length());\n");
-        sb.append("        documents.put(uri, new DocumentState(uri, content, parseResult));\n");
-        sb.append("        if (client != null) {\n");
-        sb.append("            publishDiagnostics(uri, content, parseResult);\n");
-        sb.append("        }\n");
-        sb.append("        return parseResult;\n");
+        sb.append("        return parseDocument(uri, DocumentText.of(content));\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Parses {@code text} now on the calling thread as the next version of {@code uri} and publishes it. */\n");
+        sb.append("    public ParseResult parseDocument(String uri, DocumentText text) {\n");
+        sb.append("        cancelPendingParse(uri);\n");
+        sb.append("        DocumentState previous = documents.get(uri);\n");
+        sb.append("        int version = previous == null ? 0 : previous.version() + 1;\n");
+        sb.append("        ParseResult parseResult = parse(uri, text.text());\n");
+        sb.append("        documents.put(uri, new DocumentState(uri, version, text, parseResult, version));\n");
+        if (workspaceIndex) {
+            sb.append("        indexDocument(uri, text, parseResult);\n");
+        }
+        sb.append("        LanguageClient current = client;\n");
+        sb.append("        if (current != null) {\n");
+        sb.append("            publishDiagnostics(current, uri, version, text, parseResult);\n");
+        sb.append("        }\n");
+        sb.append("        return parseResult;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Stores {@code version} of {@code uri} and parses it on the parse executor after {@code delayMillis}.\n");
+        sb.append("     * A pending parse of an older version is cancelled, and a result is kept and published only if its\n");
+        sb.append("     * version is still the latest. Until then the state keeps the previous parse result.\n");
+        sb.append("     */\n");
+        sb.append("    public void updateDocument(String uri, int version, DocumentText text, long delayMillis) {\n");
+        sb.append("        documents.compute(uri, (key, old) -> new DocumentState(uri, version, text,\n");
+        sb.append("            old == null ? null : old.parseResult(), old == null ? -1 : old.parsedVersion()));\n");
+        sb.append("        Future<?> task = parseExecutor.submit(() -> {\n");
+        sb.append("            try {\n");
+        sb.append("                if (delayMillis > 0) {\n");
+        sb.append("                    Thread.sleep(delayMillis);\n");
+        sb.append("                }\n");
+        sb.append("            } catch (InterruptedException e) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            if (!isCurrent(uri, version)) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            ParseResult parseResult = parse(uri, text.text());\n");
+        sb.append("            if (Thread.currentThread().isInterrupted()) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            DocumentState stored = documents.computeIfPresent(uri, (key, state) -> state.version() == version\n");
+        sb.append("                ? new DocumentState(uri, version, state.text(), parseResult, version)\n");
+        sb.append("                : state);\n");
+        sb.append("            if (stored == null || stored.parseResult() != parseResult) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        if (workspaceIndex) {
+            sb.append("            indexDocument(uri, text, parseResult);\n");
+        }
+        sb.append("            LanguageClient current = client;\n");
+        sb.append("            if (current != null) {\n");
+        sb.append("                publishDiagnostics(current, uri, version, text, parseResult);\n");
+        sb.append("            }\n");
+        sb.append("        });\n");
+        sb.append("        Future<?> previous = pendingParses.put(uri, task);\n");
+        sb.append("        if (previous != null) {\n");
+        sb.append("            previous.cancel(true);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public void setParseDebounceMillis(long millis) {\n");
+        sb.append("        if (millis < 0) {\n");
+        sb.append("            throw new IllegalArgumentException(\"debounce must not be negative: \" + millis);\n");
+        sb.append("        }\n");
+        sb.append("        this.parseDebounceMillis = millis;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public DocumentState documentState(String uri) {\n");
+        sb.append("        return documents.get(uri);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private boolean isCurrent(String uri, int version) {\n");
+        sb.append("        DocumentState state = documents.get(uri);\n");
+        sb.append("        return state != null && state.version() == version;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private void cancelPendingParse(String uri) {\n");
+        sb.append("        Future<?> pending = pendingParses.remove(uri);\n");
+        sb.append("        if (pending != null) {\n");
+        sb.append("            pending.cancel(true);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private ParseResult parse(String uri, String content) {\n");
+        sb.append("        ").append(parsersClass).append(".IncrementalParser parser = parsers.computeIfAbsent(\n");
+        sb.append("            uri, key -> new ").append(parsersClass).append(".IncrementalParser(")
+          .append(parsersClass).append(".getRootParser()));\n");
+        sb.append("        ").append(parsersClass).append(".IncrementalParser.Result result = parser.parse(content);\n");
+        sb.append("        return new ParseResult(result.succeeded(), result.consumedLength(), result.textLength(), result.root());\n");
         sb.append("    }\n\n");
 
-        sb.append("    private static StringSource createRootSourceCompat(String source) {\n");
-        sb.append("        try {\n");
-        sb.append("            java.lang.reflect.Method m = StringSource.class.getMethod(\"createRootSource\", String.class);\n");
-        sb.append("            Object v = m.invoke(null, source);\n");
-        sb.append("            if (v instanceof StringSource s) {\n");
-        sb.append("                return s;\n");
-        sb.append("            }\n");
-        sb.append("        } catch (Throwable ignored) {}\n");
-        sb.append("        try {\n");
-        sb.append("            for (java.lang.reflect.Constructor<?> c : StringSource.class.getDeclaredConstructors()) {\n");
-        sb.append("                Class<?>[] types = c.getParameterTypes();\n");
-        sb.append("                if (types.length == 0 || types[0] != String.class) {\n");
-        sb.append("                    continue;\n");
-        sb.append("                }\n");
-        sb.append("                Object[] args = new Object[types.length];\n");
-        sb.append("                args[0] = source;\n");
-        sb.append("                c.setAccessible(true);\n");
-        sb.append("                Object v = c.newInstance(args);\n");
-        sb.append("                if (v instanceof StringSource s) {\n");
-        sb.append("                    return s;\n");
-        sb.append("                }\n");
-        sb.append("            }\n");
-        sb.append("        } catch (Throwable ignored) {}\n");
-        sb.append("        throw new IllegalStateException(\"No compatible StringSource initializer found\");\n");
-        sb.append("    }\n\n");
+        appendCompletionMethods(sb);
+        appendSemanticTokensMethods(sb, workspaceIndex);
+        if (workspaceIndex) {
+            appendSymbolIndexMethods(sb, parsersClass, grammarName);
+        }
 
         // publishDiagnostics()
-        sb.append("    private void publishDiagnostics(String uri, String content, ParseResult result) {\n");
+        sb.append("    private void publishDiagnostics(LanguageClient client, String uri, int version, DocumentText text,\n");
+        sb.append("            ParseResult result) {\n");
         sb.append("        List<Diagnostic> diagnostics = new ArrayList<>();\n");
         sb.append("        if (result.consumedLength() < result.totalLength()) {\n");
         sb.append("            int errorStart = result.consumedLength();\n");
-        sb.append("            Position startPos = offsetToPosition(content, errorStart);\n");
-        sb.append("            Position endPos = offsetToPosition(content, result.totalLength());\n");
+        sb.append("            Position startPos = text.positionAt(errorStart);\n");
+        sb.append("            Position endPos = text.positionAt(result.totalLength());\n");
         sb.append("            Diagnostic diagnostic = new Diagnostic();\n");
         sb.append("            diagnostic.setRange(new Range(startPos, endPos));\n");
         sb.append("            diagnostic.setSeverity(DiagnosticSeverity.Error);\n");
         sb.append("            diagnostic.setMessage(\"Parse error at offset \" + errorStart);\n");
         sb.append("            diagnostics.add(diagnostic);\n");
         sb.append("        }\n");
-        sb.append("        client.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics));\n");
+        sb.append("        client.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics, version));\n");
         sb.append("    }\n\n");
 
-        // offsetToPosition()
-        sb.append("    private Position offsetToPosition(String content, int offset) {\n");
-        sb.append("        int line = 0;\n");
-        sb.append("        int column = 0;\n");
-        sb.append("        for (int i = 0; i < offset && i < content.length(); i++) {\n");
-        sb.append("            if (content.charAt(i) == '\\n') {\n");
-        sb.append("                line++;\n");
-        sb.append("                column = 0;\n");
-        sb.append("            } else {\n");
-        sb.append("                column++;\n");
-        sb.append("            }\n");
-        sb.append("        }\n");
-        sb.append("        return new Position(line, column);\n");
-        sb.append("    }\n\n");
+        // DocumentText（差分編集を O(log n) で適用する文書モデル）
+        appendDocumentText(sb);
 
         // DocumentState record
-        sb.append("    public record DocumentState(String uri, String content, ParseResult parseResult) {}\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Latest known version of a document. {@code parseResult} belongs to {@code parsedVersion}, which lags\n");
+        sb.append("     * behind {@code version} while a background parse is pending; it is {@code null} before the first parse.\n");
+        sb.append("     */\n");
+        sb.append("    public record DocumentState(\n");
+        sb.append("        String uri, int version, DocumentText text, ParseResult parseResult, int parsedVersion\n");
+        sb.append("    ) {\n");
+        sb.append("        public String content() {\n");
+        sb.append("            return text.text();\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
 
         // ParseResult record
-        sb.append("    public record ParseResult(boolean succeeded, int consumedLength, int totalLength) {}\n\n");
+        sb.append("    /** {@code root} is the syntax tree, or {@code null} when the text does not parse. */\n");
+        sb.append("    public record ParseResult(\n");
+        sb.append("        boolean succeeded, int consumedLength, int totalLength, ").append(parsersClass)
+          .append(".IncrementalParser.SyntaxNode root\n");
+        sb.append("    ) {}\n\n");
+
+        // 補完の認識器と文境界のキャッシュ
+        appendCompletionSupport(sb, parsersClass);
+
+        // semantic token のエンコードとキャッシュ
+        appendSemanticTokensSupport(sb, parsersClass);
+        if (workspaceIndex) {
+            appendSymbolIndex(sb, parsersClass);
+        }
 
         // TextDocumentService inner class
         sb.append("    static class ").append(serverClass).append("TextDocumentService implements TextDocumentService {\n\n");
@@ -204,21 +367,49 @@ public class LSPGenerator implements CodeGenerator {
 
         sb.append("        @Override\n");
         sb.append("        public void didOpen(DidOpenTextDocumentParams params) {\n");
-        sb.append("            server.parseDocument(\n");
-        sb.append("                params.getTextDocument().getUri(),\n");
-        sb.append("                params.getTextDocument().getText());\n");
+        sb.append("            TextDocumentItem document = params.getTextDocument();\n");
+        sb.append("            server.completionCheckpoints.remove(document.getUri());\n");
+        if (workspaceIndex) {
+            sb.append("            server.symbolIndex.open(normalizeUri(document.getUri()));\n");
+        }
+        sb.append("            DocumentText text = DocumentText.of(document.getText());\n");
+        sb.append("            server.updateDocument(document.getUri(), document.getVersion(), text, 0);\n");
+        sb.append("            server.parseExecutor.submit(() -> server.warmCompletionCheckpoints(document.getUri(), text));\n");
         sb.append("        }\n\n");
 
         sb.append("        @Override\n");
         sb.append("        public void didChange(DidChangeTextDocumentParams params) {\n");
-        sb.append("            server.parseDocument(\n");
-        sb.append("                params.getTextDocument().getUri(),\n");
-        sb.append("                params.getContentChanges().get(0).getText());\n");
+        sb.append("            String uri = params.getTextDocument().getUri();\n");
+        sb.append("            DocumentState state = server.documents.get(uri);\n");
+        sb.append("            DocumentText previous = state == null ? DocumentText.of(\"\") : state.text();\n");
+        sb.append("            DocumentText text = previous;\n");
+        sb.append("            int changedFrom = Integer.MAX_VALUE;\n");
+        sb.append("            for (TextDocumentContentChangeEvent change : params.getContentChanges()) {\n");
+        sb.append("                Range range = change.getRange();\n");
+        sb.append("                changedFrom = Math.min(changedFrom, range == null ? 0 : text.offsetAt(range.getStart()));\n");
+        sb.append("                text = range == null\n");
+        sb.append("                    ? DocumentText.of(change.getText())\n");
+        sb.append("                    : text.replace(text.offsetAt(range.getStart()), text.offsetAt(range.getEnd()), change.getText());\n");
+        sb.append("            }\n");
+        sb.append("            server.carryCompletionCheckpoints(uri, previous, text, changedFrom);\n");
+        sb.append("            Integer version = params.getTextDocument().getVersion();\n");
+        sb.append("            server.updateDocument(uri, version != null ? version : state == null ? 0 : state.version() + 1,\n");
+        sb.append("                text, server.parseDebounceMillis);\n");
         sb.append("        }\n\n");
 
         sb.append("        @Override\n");
         sb.append("        public void didClose(DidCloseTextDocumentParams params) {\n");
-        sb.append("            server.documents.remove(params.getTextDocument().getUri());\n");
+        sb.append("            String uri = params.getTextDocument().getUri();\n");
+        sb.append("            server.documents.remove(uri);\n");
+        sb.append("            server.cancelPendingParse(uri);\n");
+        sb.append("            server.parsers.remove(uri);\n");
+        sb.append("            server.semanticTokens.remove(uri);\n");
+        sb.append("            server.completionCheckpoints.remove(uri);\n");
+        if (workspaceIndex) {
+            // 保存されなかった編集は捨てられるので、閉じた文書はディスクの内容で索引し直す
+            sb.append("            server.symbolIndex.close(normalizeUri(uri));\n");
+            sb.append("            server.parseExecutor.submit(() -> server.reindexFromDisk(uri));\n");
+        }
         sb.append("        }\n\n");
 
         sb.append("        @Override\n");
@@ -228,13 +419,10 @@ public class LSPGenerator implements CodeGenerator {
         sb.append("        @Override\n");
         sb.append("        public CompletableFuture<Either<List<CompletionItem>, CompletionList>> completion(\n");
         sb.append("                CompletionParams params) {\n");
-        sb.append("            List<CompletionItem> items = new ArrayList<>();\n");
-        sb.append("            for (String kw : KEYWORDS) {\n");
-        sb.append("                CompletionItem item = new CompletionItem(kw);\n");
-        sb.append("                item.setKind(CompletionItemKind.Keyword);\n");
-        sb.append("                items.add(item);\n");
-        sb.append("            }\n");
-        sb.append("            return CompletableFuture.completedFuture(Either.forLeft(items));\n");
+        sb.append("            String uri = params.getTextDocument().getUri();\n");
+        sb.append("            Position position = params.getPosition();\n");
+        sb.append("            return CompletableFuture.supplyAsync(\n");
+        sb.append("                () -> Either.forLeft(server.completionItems(uri, position)), server.parseExecutor);\n");
         sb.append("        }\n\n");
 
         // hover()
@@ -242,7 +430,7 @@ public class LSPGenerator implements CodeGenerator {
         sb.append("        public CompletableFuture<Hover> hover(HoverParams params) {\n");
         sb.append("            String uri = params.getTextDocument().getUri();\n");
         sb.append("            DocumentState state = server.documents.get(uri);\n");
-        sb.append("            if (state == null) {\n");
+        sb.append("            if (state == null || state.parseResult() == null) {\n");
         sb.append("                return CompletableFuture.completedFuture(null);\n");
         sb.append("            }\n");
         sb.append("            String text;\n");
@@ -262,20 +450,42 @@ public class LSPGenerator implements CodeGenerator {
         sb.append("        @Override\n");
         sb.append("        public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {\n");
         sb.append("            String uri = params.getTextDocument().getUri();\n");
-        sb.append("            DocumentState state = server.documents.get(uri);\n");
-        sb.append("            if (state == null) {\n");
-        sb.append("                return CompletableFuture.completedFuture(new SemanticTokens(Collections.emptyList()));\n");
-        sb.append("            }\n");
-        sb.append("            return CompletableFuture.completedFuture(new SemanticTokens(Collections.emptyList()));\n");
+        sb.append("            return CompletableFuture.supplyAsync(() -> {\n");
+        sb.append("                SemanticTokensData tokens = server.semanticTokens(uri);\n");
+        sb.append("                return tokens == null ? new SemanticTokens(Collections.emptyList()) : tokens.toSemanticTokens();\n");
+        sb.append("            }, server.parseExecutor);\n");
+        sb.append("        }\n\n");
+
+        // semanticTokensFullDelta()
+        sb.append("        @Override\n");
+        sb.append("        public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(\n");
+        sb.append("                SemanticTokensDeltaParams params) {\n");
+        sb.append("            String uri = params.getTextDocument().getUri();\n");
+        sb.append("            String previousResultId = params.getPreviousResultId();\n");
+        sb.append("            return CompletableFuture.supplyAsync(\n");
+        sb.append("                () -> server.semanticTokensDelta(uri, previousResultId), server.parseExecutor);\n");
         sb.append("        }\n");
+        if (workspaceIndex) {
+            appendSymbolIndexRequests(sb);
+        }
         sb.append("    }\n\n");
 
         // WorkspaceService inner class
         sb.append("    static class ").append(serverClass).append("WorkspaceService implements WorkspaceService {\n\n");
+        if (workspaceIndex) {
+            sb.append("        private final ").append(serverClass).append(" server;\n\n");
+            sb.append("        ").append(serverClass).append("WorkspaceService(").append(serverClass).append(" server) {\n");
+            sb.append("            this.server = server;\n");
+            sb.append("        }\n\n");
+        }
         sb.append("        @Override\n");
         sb.append("        public void didChangeConfiguration(org.eclipse.lsp4j.DidChangeConfigurationParams params) {}\n\n");
-        sb.append("        @Override\n");
-        sb.append("        public void didChangeWatchedFiles(org.eclipse.lsp4j.DidChangeWatchedFilesParams params) {}\n");
+        if (workspaceIndex) {
+            appendWorkspaceSymbolRequests(sb);
+        } else {
+            sb.append("        @Override\n");
+            sb.append("        public void didChangeWatchedFiles(org.eclipse.lsp4j.DidChangeWatchedFilesParams params) {}\n");
+        }
         sb.append("    }\n");
 
         sb.append("}\n");
@@ -283,52 +493,1863 @@ public class LSPGenerator implements CodeGenerator {
         return new GeneratedSource(packageName, serverClass, sb.toString());
     }
 
-    private List<String> collectKeywords(GrammarDecl grammar) {
-        Set<String> kw = new LinkedHashSet<>();
-        kw.add("grammar");
-        kw.add("token");
-        kw.add("@root");
-        kw.add("@mapping");
-        kw.add("@whitespace");
-        kw.add("@interleave");
-        kw.add("@backref");
-        kw.add("@scopeTree");
-        kw.add("@leftAssoc");
-        kw.add("@rightAssoc");
-        kw.add("@precedence");
-        kw.add("params");
-        kw.add("level");
-        kw.add("profile");
-        kw.add("name");
-        kw.add("mode");
-        for (RuleDecl rule : grammar.rules()) {
-            collectFromBody(rule.body(), kw);
+    /**
+     * 文書テキストを表す永続 treap を出力する。葉ではなく各ノードがテキストの塊（最大 MAX_CHUNK 文字）を持ち、
+     * 部分木の文字数・改行数を集約する。塊の内側で収まる編集（通常の打鍵）は経路複製だけで済ませ、
+     * それ以外は split/merge で置き換える。旧版は変更されないので、別スレッドの読み手はそのまま使える。
+     */
+    private void appendDocumentText(StringBuilder sb) {
+        sb.append("    /**\n");
+        sb.append("     * Immutable document text. Chunks of at most {@link #MAX_CHUNK} chars are kept in a treap whose nodes\n");
+        sb.append("     * also store subtree length and newline count, so {@link #replace}, {@link #offsetAt} and\n");
+        sb.append("     * {@link #positionAt} take O(log n). Edits return a new version and leave this one intact.\n");
+        sb.append("     */\n");
+        sb.append("    public static final class DocumentText {\n\n");
+        sb.append("        static final int MAX_CHUNK = 1024;\n\n");
+
+        sb.append("        private static final class Node {\n");
+        sb.append("            final String chunk;\n");
+        sb.append("            final int priority;\n");
+        sb.append("            final Node left;\n");
+        sb.append("            final Node right;\n");
+        sb.append("            final int length;\n");
+        sb.append("            final int chunkNewlines;\n");
+        sb.append("            final int newlines;\n\n");
+        sb.append("            Node(String chunk, int priority, Node left, Node right) {\n");
+        sb.append("                this.chunk = chunk;\n");
+        sb.append("                this.priority = priority;\n");
+        sb.append("                this.left = left;\n");
+        sb.append("                this.right = right;\n");
+        sb.append("                this.chunkNewlines = countNewlines(chunk, chunk.length());\n");
+        sb.append("                this.length = length(left) + chunk.length() + length(right);\n");
+        sb.append("                this.newlines = newlines(left) + chunkNewlines + newlines(right);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static final DocumentText EMPTY = new DocumentText(null);\n\n");
+        sb.append("        private final Node root;\n");
+        sb.append("        private String text;\n\n");
+        sb.append("        private DocumentText(Node root) {\n");
+        sb.append("            this.root = root;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public static DocumentText of(String text) {\n");
+        sb.append("            return text.isEmpty() ? EMPTY : new DocumentText(chunks(text));\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public int length() {\n");
+        sb.append("            return length(root);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public int lineCount() {\n");
+        sb.append("            return newlines(root) + 1;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Whole text; built once per version. */\n");
+        sb.append("        public String text() {\n");
+        sb.append("            String result = text;\n");
+        sb.append("            if (result == null) {\n");
+        sb.append("                StringBuilder out = new StringBuilder(length());\n");
+        sb.append("                appendTo(root, out);\n");
+        sb.append("                result = out.toString();\n");
+        sb.append("                text = result;\n");
+        sb.append("            }\n");
+        sb.append("            return result;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        @Override\n");
+        sb.append("        public String toString() {\n");
+        sb.append("            return text();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Chars {@code [start, end)}; only the chunks overlapping the range are visited. */\n");
+        sb.append("        public String substring(int start, int end) {\n");
+        sb.append("            if (start < 0 || end < start || end > length()) {\n");
+        sb.append("                throw new IndexOutOfBoundsException(\"range [\" + start + \", \" + end + \") of \" + length());\n");
+        sb.append("            }\n");
+        sb.append("            if (text != null) {\n");
+        sb.append("                return text.substring(start, end);\n");
+        sb.append("            }\n");
+        sb.append("            StringBuilder out = new StringBuilder(end - start);\n");
+        sb.append("            appendRange(root, start, end, out);\n");
+        sb.append("            return out.toString();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Replaces chars {@code [start, end)} with {@code replacement}. */\n");
+        sb.append("        public DocumentText replace(int start, int end, String replacement) {\n");
+        sb.append("            if (start < 0 || end < start || end > length()) {\n");
+        sb.append("                throw new IndexOutOfBoundsException(\"range [\" + start + \", \" + end + \") of \" + length());\n");
+        sb.append("            }\n");
+        sb.append("            if (start == end && replacement.isEmpty()) {\n");
+        sb.append("                return this;\n");
+        sb.append("            }\n");
+        sb.append("            Node edited = replaceWithinChunk(root, start, end, replacement);\n");
+        sb.append("            if (edited == null) {\n");
+        sb.append("                Node[] head = split(root, start);\n");
+        sb.append("                Node[] tail = split(head[1], end - start);\n");
+        sb.append("                edited = merge(merge(head[0], chunks(replacement)), tail[1]);\n");
+        sb.append("            }\n");
+        sb.append("            return edited == null ? EMPTY : new DocumentText(edited);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Offset of {@code position}; a character past the end of its line is clamped to the line end. */\n");
+        sb.append("        public int offsetAt(Position position) {\n");
+        sb.append("            int line = position.getLine();\n");
+        sb.append("            if (line < 0) {\n");
+        sb.append("                return 0;\n");
+        sb.append("            }\n");
+        sb.append("            if (line >= lineCount()) {\n");
+        sb.append("                return length();\n");
+        sb.append("            }\n");
+        sb.append("            int start = lineStart(line);\n");
+        sb.append("            int end = line + 1 < lineCount() ? lineStart(line + 1) - 1 : length();\n");
+        sb.append("            return start + Math.max(0, Math.min(position.getCharacter(), end - start));\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public Position positionAt(int offset) {\n");
+        sb.append("            int clamped = Math.max(0, Math.min(offset, length()));\n");
+        sb.append("            int line = newlinesBefore(clamped);\n");
+        sb.append("            return new Position(line, clamped - lineStart(line));\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Offset of the first char of {@code line} (0-based, {@code line < lineCount()}). */\n");
+        sb.append("        public int lineStart(int line) {\n");
+        sb.append("            int remaining = line;\n");
+        sb.append("            int base = 0;\n");
+        sb.append("            Node node = root;\n");
+        sb.append("            while (node != null && remaining > 0) {\n");
+        sb.append("                if (remaining <= newlines(node.left)) {\n");
+        sb.append("                    node = node.left;\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                remaining -= newlines(node.left);\n");
+        sb.append("                base += length(node.left);\n");
+        sb.append("                if (remaining <= node.chunkNewlines) {\n");
+        sb.append("                    int index = -1;\n");
+        sb.append("                    for (int i = 0; i < remaining; i++) {\n");
+        sb.append("                        index = node.chunk.indexOf('\\n', index + 1);\n");
+        sb.append("                    }\n");
+        sb.append("                    return base + index + 1;\n");
+        sb.append("                }\n");
+        sb.append("                remaining -= node.chunkNewlines;\n");
+        sb.append("                base += node.chunk.length();\n");
+        sb.append("                node = node.right;\n");
+        sb.append("            }\n");
+        sb.append("            return remaining > 0 ? length() : base;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private int newlinesBefore(int offset) {\n");
+        sb.append("            int count = 0;\n");
+        sb.append("            int remaining = offset;\n");
+        sb.append("            Node node = root;\n");
+        sb.append("            while (node != null) {\n");
+        sb.append("                int leftLength = length(node.left);\n");
+        sb.append("                if (remaining <= leftLength) {\n");
+        sb.append("                    node = node.left;\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                count += newlines(node.left);\n");
+        sb.append("                remaining -= leftLength;\n");
+        sb.append("                if (remaining <= node.chunk.length()) {\n");
+        sb.append("                    return count + countNewlines(node.chunk, remaining);\n");
+        sb.append("                }\n");
+        sb.append("                count += node.chunkNewlines;\n");
+        sb.append("                remaining -= node.chunk.length();\n");
+        sb.append("                node = node.right;\n");
+        sb.append("            }\n");
+        sb.append("            return count;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Edits one chunk in place (path copy) when the range lies inside it and the result still fits. */\n");
+        sb.append("        private static Node replaceWithinChunk(Node node, int start, int end, String replacement) {\n");
+        sb.append("            if (node == null) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            int leftLength = length(node.left);\n");
+        sb.append("            int chunkEnd = leftLength + node.chunk.length();\n");
+        sb.append("            if (end <= leftLength && node.left != null) {\n");
+        sb.append("                Node left = replaceWithinChunk(node.left, start, end, replacement);\n");
+        sb.append("                return left == null ? null : new Node(node.chunk, node.priority, left, node.right);\n");
+        sb.append("            }\n");
+        sb.append("            if (start >= chunkEnd && node.right != null) {\n");
+        sb.append("                Node right = replaceWithinChunk(node.right, start - chunkEnd, end - chunkEnd, replacement);\n");
+        sb.append("                return right == null ? null : new Node(node.chunk, node.priority, node.left, right);\n");
+        sb.append("            }\n");
+        sb.append("            if (start < leftLength || end > chunkEnd) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            int newLength = node.chunk.length() - (end - start) + replacement.length();\n");
+        sb.append("            if (newLength == 0 || newLength > MAX_CHUNK) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            String chunk = node.chunk.substring(0, start - leftLength) + replacement\n");
+        sb.append("                + node.chunk.substring(end - leftLength);\n");
+        sb.append("            return new Node(chunk, node.priority, node.left, node.right);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Splits into chars {@code [0, offset)} and the rest. */\n");
+        sb.append("        private static Node[] split(Node node, int offset) {\n");
+        sb.append("            if (node == null) {\n");
+        sb.append("                return new Node[2];\n");
+        sb.append("            }\n");
+        sb.append("            int leftLength = length(node.left);\n");
+        sb.append("            int chunkEnd = leftLength + node.chunk.length();\n");
+        sb.append("            if (offset <= leftLength) {\n");
+        sb.append("                Node[] parts = split(node.left, offset);\n");
+        sb.append("                return new Node[] {parts[0], join(node, parts[1], node.right)};\n");
+        sb.append("            }\n");
+        sb.append("            if (offset >= chunkEnd) {\n");
+        sb.append("                Node[] parts = split(node.right, offset - chunkEnd);\n");
+        sb.append("                return new Node[] {join(node, node.left, parts[0]), parts[1]};\n");
+        sb.append("            }\n");
+        sb.append("            int cut = offset - leftLength;\n");
+        sb.append("            return new Node[] {\n");
+        sb.append("                new Node(node.chunk.substring(0, cut), node.priority, node.left, null),\n");
+        sb.append("                new Node(node.chunk.substring(cut), node.priority, null, node.right)\n");
+        sb.append("            };\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static Node merge(Node left, Node right) {\n");
+        sb.append("            if (left == null) {\n");
+        sb.append("                return right;\n");
+        sb.append("            }\n");
+        sb.append("            if (right == null) {\n");
+        sb.append("                return left;\n");
+        sb.append("            }\n");
+        sb.append("            if (left.priority >= right.priority) {\n");
+        sb.append("                return new Node(left.chunk, left.priority, left.left, merge(left.right, right));\n");
+        sb.append("            }\n");
+        sb.append("            return new Node(right.chunk, right.priority, merge(left, right.left), right.right);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static Node join(Node node, Node left, Node right) {\n");
+        sb.append("            return left == node.left && right == node.right ? node : new Node(node.chunk, node.priority, left, right);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static Node chunks(String text) {\n");
+        sb.append("            Node result = null;\n");
+        sb.append("            java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();\n");
+        sb.append("            int from = 0;\n");
+        sb.append("            while (from < text.length()) {\n");
+        sb.append("                int to = Math.min(text.length(), from + MAX_CHUNK);\n");
+        sb.append("                if (to < text.length() && Character.isHighSurrogate(text.charAt(to - 1))) {\n");
+        sb.append("                    to--;\n");
+        sb.append("                }\n");
+        sb.append("                result = merge(result, new Node(text.substring(from, to), random.nextInt(), null, null));\n");
+        sb.append("                from = to;\n");
+        sb.append("            }\n");
+        sb.append("            return result;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static void appendTo(Node node, StringBuilder out) {\n");
+        sb.append("            while (node != null) {\n");
+        sb.append("                appendTo(node.left, out);\n");
+        sb.append("                out.append(node.chunk);\n");
+        sb.append("                node = node.right;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static void appendRange(Node node, int start, int end, StringBuilder out) {\n");
+        sb.append("            while (node != null && start < end) {\n");
+        sb.append("                int leftLength = length(node.left);\n");
+        sb.append("                int chunkEnd = leftLength + node.chunk.length();\n");
+        sb.append("                if (start < leftLength) {\n");
+        sb.append("                    appendRange(node.left, start, Math.min(end, leftLength), out);\n");
+        sb.append("                }\n");
+        sb.append("                if (start < chunkEnd && end > leftLength) {\n");
+        sb.append("                    out.append(node.chunk, Math.max(start - leftLength, 0), Math.min(end, chunkEnd) - leftLength);\n");
+        sb.append("                }\n");
+        sb.append("                start = Math.max(start - chunkEnd, 0);\n");
+        sb.append("                end -= chunkEnd;\n");
+        sb.append("                node = node.right;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static int countNewlines(String chunk, int end) {\n");
+        sb.append("            int count = 0;\n");
+        sb.append("            for (int i = 0; i < end; i++) {\n");
+        sb.append("                if (chunk.charAt(i) == '\\n') {\n");
+        sb.append("                    count++;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return count;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static int length(Node node) {\n");
+        sb.append("            return node == null ? 0 : node.length;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static int newlines(Node node) {\n");
+        sb.append("            return node == null ? 0 : node.newlines;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * legend の添字定数と、パーサークラスから token 種別・declaration 対象を引く ClassValue を出力する。
+     * 構文木のノードはパーサークラスしか持たないため、分類は単純名で行い、クラスごとに一度だけ計算する。
+     */
+    private void appendSemanticTokenClassification(StringBuilder sb, GrammarDecl grammar, String parsersClass) {
+        for (int i = 0; i < SEMANTIC_TOKEN_TYPES.size(); i++) {
+            sb.append("    static final int ").append(tokenTypeConstant(SEMANTIC_TOKEN_TYPES.get(i)))
+              .append(" = ").append(i).append(";\n");
+        }
+        sb.append("    static final int MODIFIER_DECLARATION = 1;\n");
+        sb.append("    private static final int NO_TOKEN = -1;\n");
+        sb.append("    private static final int TERMINAL_TOKEN = -2;\n");
+        sb.append("    private static final List<String> SEMANTIC_TOKEN_LEGEND = List.of(");
+        for (int i = 0; i < SEMANTIC_TOKEN_TYPES.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("\"").append(SEMANTIC_TOKEN_TYPES.get(i)).append("\"");
+        }
+        sb.append(");\n");
+        sb.append("    private static final List<String> SEMANTIC_MODIFIER_LEGEND = List.of(\"declaration\");\n\n");
+
+        sb.append("    /** Token type of a parser class: terminals, then token declarations of the grammar. */\n");
+        sb.append("    private static final ClassValue<Integer> SEMANTIC_TOKEN_TYPES = new ClassValue<>() {\n");
+        sb.append("        @Override\n");
+        sb.append("        protected Integer computeValue(Class<?> parser) {\n");
+        sb.append("            return switch (parser.getSimpleName()) {\n");
+        sb.append("                case \"WordParser\" -> TERMINAL_TOKEN;\n");
+        Set<String> classified = new LinkedHashSet<>(List.of("WordParser"));
+        for (TokenDecl token : grammar.tokens()) {
+            String parserName = simpleName(token.parserClass());
+            if (classified.add(parserName)) {
+                sb.append("                case \"").append(parserName).append("\" -> ")
+                  .append(tokenTypeConstant(semanticTokenType(parserName))).append(";\n");
+            }
+        }
+        sb.append("                default -> NO_TOKEN;\n");
+        sb.append("            };\n");
+        sb.append("        }\n");
+        sb.append("    };\n\n");
+
+        Map<String, String> declared = declaredTokens(grammar);
+        sb.append("    /** Token parser that a rule parser declares by its {@code @mapping} {@code name} capture, or {@code \"\"}. */\n");
+        sb.append("    private static final ClassValue<String> DECLARED_TOKENS = new ClassValue<>() {\n");
+        sb.append("        @Override\n");
+        sb.append("        protected String computeValue(Class<?> parser) {\n");
+        if (declared.isEmpty()) {
+            sb.append("            return \"\";\n");
+        } else {
+            sb.append("            return switch (parser.getSimpleName()) {\n");
+            for (Map.Entry<String, String> entry : declared.entrySet()) {
+                sb.append("                case \"").append(entry.getKey()).append("\" -> \"")
+                  .append(entry.getValue()).append("\";\n");
+            }
+            sb.append("                default -> \"\";\n");
+            sb.append("            };\n");
+        }
+        sb.append("        }\n");
+        sb.append("    };\n\n");
+    }
+
+    /** 補完候補と期待集合を求めるサーバーのメソッド群を出力する。 */
+    private void appendCompletionMethods(StringBuilder sb) {
+        sb.append("    /**\n");
+        sb.append("     * Terminals and tokens the grammar accepts at {@code offset} of {@code uri}. The recognizer resumes from the\n");
+        sb.append("     * nearest statement boundary cached before {@code offset}, so only the text after it is read again.\n");
+        sb.append("     */\n");
+        sb.append("    public ExpectedSet expectedAt(String uri, int offset) {\n");
+        sb.append("        DocumentState state = documents.get(uri);\n");
+        sb.append("        return state == null ? new ExpectedSet(0, List.of(), List.of()) : expectedAt(uri, state.text(), offset);\n");
+        sb.append("    }\n\n");
+        sb.append("    private ExpectedSet expectedAt(String uri, DocumentText text, int offset) {\n");
+        sb.append("        int end = Math.max(0, Math.min(offset, text.length()));\n");
+        sb.append("        CompletionCheckpoints checkpoints = completionCheckpoints.compute(uri, (key, cached) ->\n");
+        sb.append("            cached != null && cached.text() == text ? cached : new CompletionCheckpoints(text, new ConcurrentSkipListMap<>()));\n");
+        sb.append("        Map.Entry<Integer, List<CompletionFrame>> resume = checkpoints.frames().floorEntry(end);\n");
+        sb.append("        int start = resume == null ? 0 : resume.getKey();\n");
+        sb.append("        List<CompletionFrame> frames = resume == null ? List.of(CompletionFrame.ENTRY) : resume.getValue();\n");
+        sb.append("        return new CompletionRecognizer(text.substring(start, end), start, checkpoints.frames()).run(frames);\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Completion items for {@code position}: the expected terminals that extend the word before it. When the word\n");
+        sb.append("     * follows operator characters (such as {@code @} in {@code @na}), terminals that extend both are offered too.\n");
+        sb.append("     */\n");
+        sb.append("    public List<CompletionItem> completionItems(String uri, Position position) {\n");
+        sb.append("        DocumentState state = documents.get(uri);\n");
+        sb.append("        if (state == null) {\n");
+        sb.append("            return List.of();\n");
+        sb.append("        }\n");
+        sb.append("        DocumentText text = state.text();\n");
+        sb.append("        int end = text.offsetAt(position);\n");
+        sb.append("        int base = Math.max(0, end - MAX_COMPLETION_PREFIX);\n");
+        sb.append("        String before = text.substring(base, end);\n");
+        sb.append("        int word = before.length();\n");
+        sb.append("        while (word > 0 && Character.isJavaIdentifierPart(before.charAt(word - 1))) {\n");
+        sb.append("            word--;\n");
+        sb.append("        }\n");
+        sb.append("        int symbols = word;\n");
+        sb.append("        while (symbols > 0 && !Character.isJavaIdentifierPart(before.charAt(symbols - 1))\n");
+        sb.append("                && !Character.isWhitespace(before.charAt(symbols - 1))) {\n");
+        sb.append("            symbols--;\n");
+        sb.append("        }\n");
+        sb.append("        Map<String, CompletionItem> items = new LinkedHashMap<>();\n");
+        sb.append("        addCompletionItems(items, uri, text, base + word, before.substring(word), position);\n");
+        sb.append("        if (symbols < word) {\n");
+        sb.append("            addCompletionItems(items, uri, text, base + symbols, before.substring(symbols), position);\n");
+        sb.append("        }\n");
+        sb.append("        return List.copyOf(items.values());\n");
+        sb.append("    }\n\n");
+        sb.append("    private void addCompletionItems(Map<String, CompletionItem> items, String uri, DocumentText text, int start,\n");
+        sb.append("            String prefix, Position end) {\n");
+        sb.append("        Range range = new Range(text.positionAt(start), end);\n");
+        sb.append("        for (String terminal : expectedAt(uri, text, start).terminals()) {\n");
+        sb.append("            if (!terminal.startsWith(prefix) || terminal.equals(prefix) && !prefix.isEmpty()\n");
+        sb.append("                    && !Character.isJavaIdentifierPart(prefix.charAt(0))) {\n");
+        sb.append("                continue;\n");
+        sb.append("            }\n");
+        sb.append("            CompletionItem item = new CompletionItem(terminal);\n");
+        sb.append("            item.setKind(Character.isJavaIdentifierStart(terminal.charAt(0))\n");
+        sb.append("                ? CompletionItemKind.Keyword : CompletionItemKind.Operator);\n");
+        sb.append("            item.setTextEdit(Either.forLeft(new TextEdit(range, terminal)));\n");
+        sb.append("            items.putIfAbsent(terminal, item);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Records the completion checkpoints of a newly opened {@code text} on the parse executor, so that the first\n");
+        sb.append("     * request does not read the document from the start. They are kept only if the text is still current.\n");
+        sb.append("     */\n");
+        sb.append("    private void warmCompletionCheckpoints(String uri, DocumentText text) {\n");
+        sb.append("        NavigableMap<Integer, List<CompletionFrame>> frames = new ConcurrentSkipListMap<>();\n");
+        sb.append("        new CompletionRecognizer(text.text(), 0, frames).run(List.of(CompletionFrame.ENTRY));\n");
+        sb.append("        completionCheckpoints.compute(uri, (key, cached) -> {\n");
+        sb.append("            DocumentState state = documents.get(uri);\n");
+        sb.append("            if (state == null || state.text() != text) {\n");
+        sb.append("                return cached;\n");
+        sb.append("            }\n");
+        sb.append("            return cached == null || cached.text() == text ? new CompletionCheckpoints(text, frames) : cached;\n");
+        sb.append("        });\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Keeps the completion checkpoints before {@code changedFrom} when {@code previous} is edited into {@code edited}. */\n");
+        sb.append("    private void carryCompletionCheckpoints(String uri, DocumentText previous, DocumentText edited, int changedFrom) {\n");
+        sb.append("        completionCheckpoints.computeIfPresent(uri, (key, checkpoints) ->\n");
+        sb.append("            checkpoints.text() == previous ? checkpoints.edited(edited, changedFrom) : null);\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * 期待集合の認識器を出力する。文法の全選択肢を継続スタックの集合として並行にたどり、到達位置ごとにまとめて
+     * 位置の昇順に進める。ただ一つの位置に揃ったところで繰り返し要素の 1 項目が終わっていれば、その状態を
+     * チェックポイントとして残す。
+     */
+    private void appendCompletionSupport(StringBuilder sb, String parsersClass) {
+        sb.append("    /** Recognizer stack: resume sequence {@code sequence} at element {@code index}, then return to {@code next}. */\n");
+        sb.append("    record CompletionFrame(int sequence, int index, int depth, CompletionFrame next) {\n");
+        sb.append("        static final CompletionFrame ENTRY = new CompletionFrame(0, 0, 0, null);\n\n");
+        sb.append("        CompletionFrame advance() {\n");
+        sb.append("            return new CompletionFrame(sequence, index + 1, depth, next);\n");
+        sb.append("        }\n\n");
+        sb.append("        CompletionFrame enter(int child) {\n");
+        sb.append("            return new CompletionFrame(child, 0, depth + 1, this);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        sb.append("     * What the grammar accepts at {@code offset}: terminals and {@code token} names, in grammar order. When the text\n");
+        sb.append("     * before the requested offset does not parse, {@code offset} is the farthest point any alternative reached.\n");
+        sb.append("     */\n");
+        sb.append("    public record ExpectedSet(int offset, List<String> terminals, List<String> tokens) {}\n\n");
+        sb.append("    /** Recognizer states at statement boundaries of {@code text}, keyed by offset. */\n");
+        sb.append("    record CompletionCheckpoints(DocumentText text, NavigableMap<Integer, List<CompletionFrame>> frames) {\n");
+        sb.append("        CompletionCheckpoints edited(DocumentText editedText, int changedFrom) {\n");
+        sb.append("            frames.tailMap(changedFrom, true).clear();\n");
+        sb.append("            return new CompletionCheckpoints(editedText, frames);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Follows all alternatives of the grammar over a text segment at once. Each live alternative is a stack of\n");
+        sb.append("     * {@link CompletionFrame}s; stacks are grouped by the offset they reached and advanced in offset order, so the\n");
+        sb.append("     * last group holds what is expected at the end of the segment, or at the farthest failure. Ordered choice and\n");
+        sb.append("     * greedy repetition are not modelled, so the result is the union over alternatives. Tokens and delimiters are\n");
+        sb.append("     * matched with the generated parsers.\n");
+        sb.append("     *\n");
+        sb.append("     * <p>When a single group is left right after a repeat item (a statement) ends, its stacks describe everything\n");
+        sb.append("     * that can follow, and they are stored as a checkpoint for later requests, at most one per\n");
+        sb.append("     * {@link #CHECKPOINT_SPACING} chars.</p>\n");
+        sb.append("     */\n");
+        sb.append("    static final class CompletionRecognizer {\n\n");
+        sb.append("        private static final int MAX_DEPTH = 256;\n");
+        sb.append("        /** Bound on the stacks expanded at one offset, against grammars whose alternatives multiply. */\n");
+        sb.append("        private static final int MAX_STEPS = 100_000;\n");
+        sb.append("        /** Chars handed to a token parser per probe; a match that fills the window is retried in a wider one. */\n");
+        sb.append("        private static final int MATCH_WINDOW = 256;\n");
+        sb.append("        private static final int CHECKPOINT_SPACING = 64;\n\n");
+        sb.append("        private final String text;\n");
+        sb.append("        private final int base;\n");
+        sb.append("        private final NavigableMap<Integer, List<CompletionFrame>> checkpoints;\n");
+        sb.append("        private final Map<Long, Integer> matches = new HashMap<>();\n");
+        sb.append("        private int sourceStart = -1;\n");
+        sb.append("        private int sourceEnd = -1;\n");
+        sb.append("        private StringSource source;\n\n");
+        sb.append("        CompletionRecognizer(String text, int base, NavigableMap<Integer, List<CompletionFrame>> checkpoints) {\n");
+        sb.append("            this.text = text;\n");
+        sb.append("            this.base = base;\n");
+        sb.append("            this.checkpoints = checkpoints;\n");
+        sb.append("        }\n\n");
+        sb.append("        ExpectedSet run(List<CompletionFrame> start) {\n");
+        sb.append("            TreeMap<Integer, Set<CompletionFrame>> pending = new TreeMap<>();\n");
+        sb.append("            pending.put(skipDelimiters(0), new LinkedHashSet<>(start));\n");
+        sb.append("            int farthest = 0;\n");
+        sb.append("            int lastCheckpoint = 0;\n");
+        sb.append("            List<CompletionFrame> expected = List.of();\n");
+        sb.append("            while (!pending.isEmpty()) {\n");
+        sb.append("                Map.Entry<Integer, Set<CompletionFrame>> group = pending.pollFirstEntry();\n");
+        sb.append("                int position = group.getKey();\n");
+        sb.append("                boolean single = pending.isEmpty();\n");
+        sb.append("                List<CompletionFrame> scans = new ArrayList<>();\n");
+        sb.append("                boolean boundary = close(group.getValue(), scans);\n");
+        sb.append("                farthest = position;\n");
+        sb.append("                expected = scans;\n");
+        sb.append("                if (position == text.length()) {\n");
+        sb.append("                    break;\n");
+        sb.append("                }\n");
+        sb.append("                if (boundary && single && position - lastCheckpoint >= CHECKPOINT_SPACING) {\n");
+        sb.append("                    checkpoints.put(base + position, List.copyOf(group.getValue()));\n");
+        sb.append("                    lastCheckpoint = position;\n");
+        sb.append("                }\n");
+        sb.append("                for (CompletionFrame frame : scans) {\n");
+        sb.append("                    int length = match(COMPLETION_SEQUENCES[frame.sequence()][frame.index()], position);\n");
+        sb.append("                    if (length > 0) {\n");
+        sb.append("                        pending.computeIfAbsent(skipDelimiters(position + length), key -> new LinkedHashSet<>())\n");
+        sb.append("                            .add(frame.advance());\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return expectedSet(base + farthest, expected);\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Expands stacks until each waits on a terminal or token; returns whether a repeat item ended. */\n");
+        sb.append("        private boolean close(Collection<CompletionFrame> frames, List<CompletionFrame> scans) {\n");
+        sb.append("            Set<CompletionFrame> visited = new HashSet<>();\n");
+        sb.append("            Deque<CompletionFrame> work = new ArrayDeque<>(frames);\n");
+        sb.append("            boolean boundary = false;\n");
+        sb.append("            int steps = 0;\n");
+        sb.append("            while (!work.isEmpty() && steps++ < MAX_STEPS) {\n");
+        sb.append("                CompletionFrame frame = work.pop();\n");
+        sb.append("                if (!visited.add(frame)) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                int[] sequence = COMPLETION_SEQUENCES[frame.sequence()];\n");
+        sb.append("                if (frame.index() == sequence.length) {\n");
+        sb.append("                    CompletionFrame parent = frame.next();\n");
+        sb.append("                    if (parent != null) {\n");
+        sb.append("                        int[] resumed = COMPLETION_SEQUENCES[parent.sequence()];\n");
+        sb.append("                        boundary |= parent.index() < resumed.length && (resumed[parent.index()] & 7) == EXPECT_REPEAT;\n");
+        sb.append("                        work.push(parent);\n");
+        sb.append("                    }\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                int element = sequence[frame.index()];\n");
+        sb.append("                int choice = element >>> 3;\n");
+        sb.append("                switch (element & 7) {\n");
+        sb.append("                    case EXPECT_TERMINAL, EXPECT_TOKEN -> scans.add(frame);\n");
+        sb.append("                    case EXPECT_CALL -> enter(choice, frame.advance(), work);\n");
+        sb.append("                    case EXPECT_OPTIONAL -> {\n");
+        sb.append("                        work.push(frame.advance());\n");
+        sb.append("                        enter(choice, frame.advance(), work);\n");
+        sb.append("                    }\n");
+        sb.append("                    default -> {\n");
+        sb.append("                        work.push(frame.advance());\n");
+        sb.append("                        enter(choice, frame, work);\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return boundary;\n");
+        sb.append("        }\n\n");
+        sb.append("        private static void enter(int choice, CompletionFrame returnTo, Deque<CompletionFrame> work) {\n");
+        sb.append("            if (returnTo.depth() < MAX_DEPTH) {\n");
+        sb.append("                for (int sequence : COMPLETION_CHOICES[choice]) {\n");
+        sb.append("                    work.push(returnTo.enter(sequence));\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Length of the terminal or token {@code element} at {@code position}, or -1. */\n");
+        sb.append("        private int match(int element, int position) {\n");
+        sb.append("            int argument = element >>> 3;\n");
+        sb.append("            if ((element & 7) == EXPECT_TERMINAL) {\n");
+        sb.append("                String terminal = COMPLETION_TERMINALS[argument];\n");
+        sb.append("                return text.startsWith(terminal, position) ? terminal.length() : -1;\n");
+        sb.append("            }\n");
+        sb.append("            return parse(argument, COMPLETION_TOKENS.get(argument), position);\n");
+        sb.append("        }\n\n");
+        sb.append("        private int skipDelimiters(int position) {\n");
+        sb.append("            return COMPLETION_DELIMITER == null ? position\n");
+        sb.append("                : position + Math.max(0, parse(-1, COMPLETION_DELIMITER, position));\n");
+        sb.append("        }\n\n");
+        sb.append("        private int parse(int key, Class<? extends Parser> parserClass, int position) {\n");
+        sb.append("            if (position >= text.length()) {\n");
+        sb.append("                return -1;\n");
+        sb.append("            }\n");
+        sb.append("            return matches.computeIfAbsent(((long) key << 32) | position, k -> {\n");
+        sb.append("                // A probe reads a bounded window, so its cost does not grow with the rest of the document.\n");
+        sb.append("                for (int window = MATCH_WINDOW; ; window *= 2) {\n");
+        sb.append("                    int end = (int) Math.min(text.length(), (long) position + window);\n");
+        sb.append("                    int consumed = match(parserClass, position, end);\n");
+        sb.append("                    if (consumed < end - position || end == text.length()) {\n");
+        sb.append("                        return consumed;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            });\n");
+        sb.append("        }\n\n");
+        sb.append("        private int match(Class<? extends Parser> parserClass, int start, int end) {\n");
+        sb.append("            // Every probe at one offset (the delimiter and each candidate token) shares the window.\n");
+        sb.append("            if (sourceStart != start || sourceEnd != end) {\n");
+        sb.append("                source = createRootSourceCompat(text.substring(start, end));\n");
+        sb.append("                sourceStart = start;\n");
+        sb.append("                sourceEnd = end;\n");
+        sb.append("            }\n");
+        sb.append("            ParseContext context = new ParseContext(source);\n");
+        sb.append("            try {\n");
+        sb.append("                Parsed parsed = Parser.get(parserClass).parse(context);\n");
+        sb.append("                return parsed.isSucceeded() ? parsed.getConsumed().source.sourceAsString().length() : -1;\n");
+        sb.append("            } finally {\n");
+        sb.append("                context.close();\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        private static StringSource createRootSourceCompat(String source) {\n");
+        sb.append("            try {\n");
+        sb.append("                java.lang.reflect.Method m = StringSource.class.getMethod(\"createRootSource\", String.class);\n");
+        sb.append("                Object v = m.invoke(null, source);\n");
+        sb.append("                if (v instanceof StringSource s) {\n");
+        sb.append("                    return s;\n");
+        sb.append("                }\n");
+        sb.append("            } catch (Throwable ignored) {}\n");
+        sb.append("            try {\n");
+        sb.append("                for (java.lang.reflect.Constructor<?> c : StringSource.class.getDeclaredConstructors()) {\n");
+        sb.append("                    Class<?>[] types = c.getParameterTypes();\n");
+        sb.append("                    if (types.length == 0 || types[0] != String.class) {\n");
+        sb.append("                        continue;\n");
+        sb.append("                    }\n");
+        sb.append("                    Object[] args = new Object[types.length];\n");
+        sb.append("                    args[0] = source;\n");
+        sb.append("                    c.setAccessible(true);\n");
+        sb.append("                    Object v = c.newInstance(args);\n");
+        sb.append("                    if (v instanceof StringSource s) {\n");
+        sb.append("                        return s;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            } catch (Throwable ignored) {}\n");
+        sb.append("            throw new IllegalStateException(\"No compatible StringSource initializer found\");\n");
+        sb.append("        }\n\n");
+        sb.append("        private static ExpectedSet expectedSet(int offset, List<CompletionFrame> scans) {\n");
+        sb.append("            BitSet terminals = new BitSet();\n");
+        sb.append("            BitSet tokens = new BitSet();\n");
+        sb.append("            for (CompletionFrame frame : scans) {\n");
+        sb.append("                int element = COMPLETION_SEQUENCES[frame.sequence()][frame.index()];\n");
+        sb.append("                ((element & 7) == EXPECT_TERMINAL ? terminals : tokens).set(element >>> 3);\n");
+        sb.append("            }\n");
+        sb.append("            return new ExpectedSet(offset,\n");
+        sb.append("                terminals.stream().mapToObj(i -> COMPLETION_TERMINALS[i]).toList(),\n");
+        sb.append("                tokens.stream().mapToObj(i -> COMPLETION_TOKEN_NAMES[i]).toList());\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendSemanticTokensMethods(StringBuilder sb, boolean workspaceIndex) {
+        sb.append("    /**\n");
+        sb.append("     * Semantic tokens of the latest version of {@code uri}, or {@code null} for an unknown document. A version\n");
+        sb.append("     * whose background parse is still pending is parsed now. While the text does not parse, the tokens of the\n");
+        sb.append("     * last version that did are kept.\n");
+        sb.append("     */\n");
+        sb.append("    public SemanticTokensData semanticTokens(String uri) {\n");
+        sb.append("        DocumentState state = documents.get(uri);\n");
+        sb.append("        if (state == null) {\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("        SemanticTokensData cached = semanticTokens.get(uri);\n");
+        sb.append("        if (cached != null && cached.version() == state.version()) {\n");
+        sb.append("            return cached;\n");
+        sb.append("        }\n");
+        sb.append("        ParseResult parseResult = state.parsedVersion() == state.version()\n");
+        sb.append("            ? state.parseResult()\n");
+        sb.append("            : parseNow(uri, state);\n");
+        sb.append("        if (parseResult.root() == null && cached != null) {\n");
+        sb.append("            return cached;\n");
+        sb.append("        }\n");
+        sb.append("        int[] data = parseResult.root() == null\n");
+        sb.append("            ? new int[0]\n");
+        sb.append("            : new SemanticTokensEncoder(state.content()).encode(parseResult.root());\n");
+        sb.append("        SemanticTokensData tokens = new SemanticTokensData(\n");
+        sb.append("            state.version(), Long.toString(semanticTokensResultIds.incrementAndGet()), data);\n");
+        sb.append("        return semanticTokens.merge(uri, tokens, (old, computed) -> old.version() > computed.version() ? old : computed);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Tokens of {@code uri} as one edit against {@code previousResultId}, or in full when that result is no\n");
+        sb.append("     * longer cached.\n");
+        sb.append("     */\n");
+        sb.append("    public Either<SemanticTokens, SemanticTokensDelta> semanticTokensDelta(String uri, String previousResultId) {\n");
+        sb.append("        SemanticTokensData previous = semanticTokens.get(uri);\n");
+        sb.append("        SemanticTokensData current = semanticTokens(uri);\n");
+        sb.append("        if (current == null) {\n");
+        sb.append("            return Either.forLeft(new SemanticTokens(Collections.emptyList()));\n");
+        sb.append("        }\n");
+        sb.append("        if (previous == null || !previous.resultId().equals(previousResultId)) {\n");
+        sb.append("            return Either.forLeft(current.toSemanticTokens());\n");
+        sb.append("        }\n");
+        sb.append("        return Either.forRight(current.deltaFrom(previous));\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Parses the pending version of {@code state} on the calling thread; the scheduled parse still publishes it. */\n");
+        sb.append("    private ParseResult parseNow(String uri, DocumentState state) {\n");
+        sb.append("        ParseResult parseResult = parse(uri, state.content());\n");
+        sb.append("        ").append(workspaceIndex ? "DocumentState stored = " : "")
+          .append("documents.computeIfPresent(uri, (key, current) ->\n");
+        sb.append("            current.version() == state.version() && current.parsedVersion() != state.version()\n");
+        sb.append("                ? new DocumentState(uri, current.version(), current.text(), parseResult, current.version())\n");
+        sb.append("                : current);\n");
+        if (workspaceIndex) {
+            sb.append("        if (stored != null && stored.parseResult() == parseResult) {\n");
+            sb.append("            indexDocument(uri, state.text(), parseResult);\n");
+            sb.append("        }\n");
+        }
+        sb.append("        return parseResult;\n");
+        sb.append("    }\n\n");
+    }
+
+    /**
+     * 構文木を一度たどり、LSP の相対形式（deltaLine, deltaStart, length, type, modifiers）の {@code int[]} へ
+     * 直接書き出すエンコーダと、版ごとのキャッシュ record を出力する。行位置はテキストを前から一度だけ走査して求める。
+     */
+    private void appendSemanticTokensSupport(StringBuilder sb, String parsersClass) {
+        String syntaxNode = parsersClass + ".IncrementalParser.SyntaxNode";
+
+        sb.append("    /**\n");
+        sb.append("     * Semantic tokens of one document version in the LSP relative encoding. {@code data} is never modified\n");
+        sb.append("     * after construction.\n");
+        sb.append("     */\n");
+        sb.append("    public record SemanticTokensData(int version, String resultId, int[] data) {\n\n");
+        sb.append("        public SemanticTokens toSemanticTokens() {\n");
+        sb.append("            return new SemanticTokens(resultId, new IntSlice(data, 0, data.length));\n");
+        sb.append("        }\n\n");
+        sb.append("        /** A single edit replacing what lies between the common prefix and suffix with {@code previous}. */\n");
+        sb.append("        public SemanticTokensDelta deltaFrom(SemanticTokensData previous) {\n");
+        sb.append("            int[] old = previous.data();\n");
+        sb.append("            int limit = Math.min(old.length, data.length);\n");
+        sb.append("            int prefix = 0;\n");
+        sb.append("            while (prefix < limit && old[prefix] == data[prefix]) {\n");
+        sb.append("                prefix++;\n");
+        sb.append("            }\n");
+        sb.append("            int suffix = 0;\n");
+        sb.append("            while (suffix < limit - prefix && old[old.length - 1 - suffix] == data[data.length - 1 - suffix]) {\n");
+        sb.append("                suffix++;\n");
+        sb.append("            }\n");
+        sb.append("            if (prefix == old.length && prefix == data.length) {\n");
+        sb.append("                return new SemanticTokensDelta(List.of(), resultId);\n");
+        sb.append("            }\n");
+        sb.append("            SemanticTokensEdit edit = new SemanticTokensEdit(prefix, old.length - prefix - suffix,\n");
+        sb.append("                new IntSlice(data, prefix, data.length - suffix));\n");
+        sb.append("            return new SemanticTokensDelta(List.of(edit), resultId);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Read-only {@code List<Integer>} view of {@code data[from, to)}, boxed only while serialized. */\n");
+        sb.append("    static final class IntSlice extends AbstractList<Integer> implements RandomAccess {\n");
+        sb.append("        private final int[] data;\n");
+        sb.append("        private final int from;\n");
+        sb.append("        private final int to;\n\n");
+        sb.append("        IntSlice(int[] data, int from, int to) {\n");
+        sb.append("            this.data = data;\n");
+        sb.append("            this.from = from;\n");
+        sb.append("            this.to = to;\n");
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public Integer get(int index) {\n");
+        sb.append("            Objects.checkIndex(index, to - from);\n");
+        sb.append("            return data[from + index];\n");
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        public int size() {\n");
+        sb.append("            return to - from;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Walks a syntax tree once and writes each token as five ints (deltaLine, deltaStart, length, type,\n");
+        sb.append("     * modifiers). Line starts come from a single forward scan of the text, and tokens spanning lines are\n");
+        sb.append("     * split per line.\n");
+        sb.append("     */\n");
+        sb.append("    static final class SemanticTokensEncoder {\n");
+        sb.append("        private final String text;\n");
+        sb.append("        private int[] data = new int[64];\n");
+        sb.append("        private int size;\n");
+        sb.append("        private int scanned;\n");
+        sb.append("        private int line;\n");
+        sb.append("        private int lineStart;\n");
+        sb.append("        private int previousLine;\n");
+        sb.append("        private int previousCharacter;\n\n");
+        sb.append("        SemanticTokensEncoder(String text) {\n");
+        sb.append("            this.text = text;\n");
+        sb.append("        }\n\n");
+        sb.append("        int[] encode(").append(syntaxNode).append(" root) {\n");
+        sb.append("            visit(root, root.offset(), \"\");\n");
+        sb.append("            return Arrays.copyOf(data, size);\n");
+        sb.append("        }\n\n");
+        sb.append("        private void visit(").append(syntaxNode).append(" node, int start, String declared) {\n");
+        sb.append("            if (node.length() == 0) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            int type = SEMANTIC_TOKEN_TYPES.get(node.parser());\n");
+        sb.append("            if (type == TERMINAL_TOKEN) {\n");
+        sb.append("                type = Character.isLetter(text.charAt(start)) ? TOKEN_KEYWORD : TOKEN_OPERATOR;\n");
+        sb.append("            }\n");
+        sb.append("            if (type != NO_TOKEN) {\n");
+        sb.append("                int modifiers = declared.equals(node.parser().getSimpleName()) ? MODIFIER_DECLARATION : 0;\n");
+        sb.append("                add(start, start + node.length(), type, modifiers);\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            String childDeclared = DECLARED_TOKENS.get(node.parser());\n");
+        sb.append("            for (").append(syntaxNode).append(" child : node.children()) {\n");
+        sb.append("                visit(child, start + child.offset(), childDeclared);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        private void add(int start, int end, int type, int modifiers) {\n");
+        sb.append("            int from = start;\n");
+        sb.append("            for (int i = start; i < end; i++) {\n");
+        sb.append("                if (text.charAt(i) == '\\n') {\n");
+        sb.append("                    push(from, i, type, modifiers);\n");
+        sb.append("                    from = i + 1;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            push(from, end, type, modifiers);\n");
+        sb.append("        }\n\n");
+        sb.append("        private void push(int start, int end, int type, int modifiers) {\n");
+        sb.append("            if (end <= start) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            for (; scanned < start; scanned++) {\n");
+        sb.append("                if (text.charAt(scanned) == '\\n') {\n");
+        sb.append("                    line++;\n");
+        sb.append("                    lineStart = scanned + 1;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            int character = start - lineStart;\n");
+        sb.append("            if (size + 5 > data.length) {\n");
+        sb.append("                data = Arrays.copyOf(data, data.length * 2);\n");
+        sb.append("            }\n");
+        sb.append("            data[size++] = line - previousLine;\n");
+        sb.append("            data[size++] = line == previousLine ? character - previousCharacter : character;\n");
+        sb.append("            data[size++] = end - start;\n");
+        sb.append("            data[size++] = type;\n");
+        sb.append("            data[size++] = modifiers;\n");
+        sb.append("            previousLine = line;\n");
+        sb.append("            previousCharacter = character;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendSymbolIndexImports(StringBuilder sb) {
+        for (String name : List.of(
+                "java.io.BufferedInputStream", "java.io.BufferedOutputStream", "java.io.DataInputStream",
+                "java.io.DataOutputStream", "java.io.IOException", "java.io.UncheckedIOException", "java.net.URI",
+                "java.nio.charset.StandardCharsets", "java.nio.file.AtomicMoveNotSupportedException",
+                "java.nio.file.FileSystemNotFoundException", "java.nio.file.FileVisitResult", "java.nio.file.Files",
+                "java.nio.file.NoSuchFileException", "java.nio.file.Path", "java.nio.file.SimpleFileVisitor",
+                "java.nio.file.StandardCopyOption", "java.nio.file.attribute.BasicFileAttributes",
+                "java.util.zip.GZIPInputStream", "java.util.zip.GZIPOutputStream")) {
+            sb.append("import ").append(name).append(";\n");
+        }
+    }
+
+    /**
+     * 索引対象の拡張子、索引ファイルの fingerprint、パーサークラスごとのシンボル上の役割（{@code @scopeTree} の
+     * スコープ・{@code @backref} の参照・定義可能な token）を引く ClassValue を出力する。
+     */
+    private void appendSymbolIndexClassification(StringBuilder sb, GrammarDecl grammar) {
+        List<String> extensions = indexedExtensions(grammar);
+        Map<String, Integer> roles = symbolRoles(grammar);
+        String fingerprint = grammar.name() + ":"
+            + Integer.toHexString((roles.toString() + declaredTokens(grammar)).hashCode());
+
+        sb.append("    static final int SYMBOL_SCOPE = ").append(SYMBOL_SCOPE).append(";\n");
+        sb.append("    static final int SYMBOL_REFERENCE = ").append(SYMBOL_REFERENCE).append(";\n");
+        sb.append("    static final int SYMBOL_DEFINABLE = ").append(SYMBOL_DEFINABLE).append(";\n");
+        sb.append("    private static final int WORKSPACE_SYMBOL_LIMIT = 1000;\n\n");
+        sb.append("    /** Extensions of the workspace files that {@link #indexWorkspace} reads. */\n");
+        sb.append("    public static final List<String> INDEXED_EXTENSIONS = List.of(");
+        for (int i = 0; i < extensions.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("\"").append(extensions.get(i)).append("\"");
+        }
+        sb.append(");\n\n");
+        sb.append("    /** Identifies the grammar's symbol rules, so an index persisted for other rules is ignored. */\n");
+        sb.append("    static final String SYMBOL_INDEX_FINGERPRINT = \"").append(fingerprint).append("\";\n\n");
+
+        sb.append("    /** Symbol roles of a parser class: {@code @scopeTree} scope, {@code @backref} use, or definable token. */\n");
+        sb.append("    private static final ClassValue<Integer> SYMBOL_ROLES = new ClassValue<>() {\n");
+        sb.append("        @Override\n");
+        sb.append("        protected Integer computeValue(Class<?> parser) {\n");
+        if (roles.isEmpty()) {
+            sb.append("            return 0;\n");
+        } else {
+            sb.append("            return switch (parser.getSimpleName()) {\n");
+            for (Map.Entry<String, Integer> entry : roles.entrySet()) {
+                sb.append("                case \"").append(entry.getKey()).append("\" -> ")
+                  .append(roleExpression(entry.getValue())).append(";\n");
+            }
+            sb.append("                default -> 0;\n");
+            sb.append("            };\n");
+        }
+        sb.append("        }\n");
+        sb.append("    };\n\n");
+    }
+
+    private void appendSymbolIndexMethods(StringBuilder sb, String parsersClass, String grammarName) {
+        sb.append("    /**\n");
+        sb.append("     * Indexes every file with an {@link #INDEXED_EXTENSIONS} extension under the workspace folders, in parallel.\n");
+        sb.append("     * A persisted entry is reused without parsing when its file still has the same size and modification time.\n");
+        sb.append("     * Open documents are indexed from their live text instead. The index is saved afterwards.\n");
+        sb.append("     */\n");
+        sb.append("    public void indexWorkspace() {\n");
+        sb.append("        Path indexFile = symbolIndexFile();\n");
+        sb.append("        Map<String, SymbolIndex.FileSymbols> persisted = indexFile == null\n");
+        sb.append("            ? Map.of()\n");
+        sb.append("            : SymbolIndex.load(indexFile, SYMBOL_INDEX_FINGERPRINT);\n");
+        sb.append("        List<Path> paths = new ArrayList<>();\n");
+        sb.append("        for (Path root : workspaceRoots) {\n");
+        sb.append("            collectIndexedFiles(root, paths);\n");
+        sb.append("        }\n");
+        sb.append("        paths.parallelStream().forEach(path -> indexFromDisk(path, persisted.get(path.toUri().toString())));\n");
+        sb.append("        saveSymbolIndex();\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Writes the index to {@link #symbolIndexFile()}; a failed write only costs a full reindex at the next start. */\n");
+        sb.append("    public void saveSymbolIndex() {\n");
+        sb.append("        Path file = symbolIndexFile();\n");
+        sb.append("        if (file == null) {\n");
+        sb.append("            return;\n");
+        sb.append("        }\n");
+        sb.append("        try {\n");
+        sb.append("            symbolIndex.save(file, SYMBOL_INDEX_FINGERPRINT);\n");
+        sb.append("        } catch (IOException | UncheckedIOException e) {\n");
+        sb.append("            LanguageClient current = client;\n");
+        sb.append("            if (current != null) {\n");
+        sb.append("                current.logMessage(new MessageParams(MessageType.Warning, \"Cannot save symbol index: \" + e));\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    public SymbolIndex symbolIndex() {\n");
+        sb.append("        return symbolIndex;\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        sb.append("     * Persisted index file. Unless set, it is a per-workspace file under {@code ~/.cache/unlaxer-lsp/").append(grammarName).append("};\n");
+        sb.append("     * {@code null} while there is no workspace folder.\n");
+        sb.append("     */\n");
+        sb.append("    public Path symbolIndexFile() {\n");
+        sb.append("        Path file = symbolIndexFile;\n");
+        sb.append("        if (file == null && !workspaceRoots.isEmpty()) {\n");
+        sb.append("            String key = UUID.nameUUIDFromBytes(workspaceRoots.toString().getBytes(StandardCharsets.UTF_8)).toString();\n");
+        sb.append("            file = Path.of(System.getProperty(\"user.home\"), \".cache\", \"unlaxer-lsp\", \"").append(grammarName).append("\", key + \".idx\");\n");
+        sb.append("        }\n");
+        sb.append("        return file;\n");
+        sb.append("    }\n\n");
+        sb.append("    public void setSymbolIndexFile(Path file) {\n");
+        sb.append("        this.symbolIndexFile = file;\n");
+        sb.append("    }\n\n");
+        sb.append("    public void setWorkspaceRoots(List<Path> roots) {\n");
+        sb.append("        this.workspaceRoots = List.copyOf(roots);\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Indexes {@code path} from disk, reusing {@code cached} if the file is unchanged; a deleted file is dropped. */\n");
+        sb.append("    private void indexFromDisk(Path path, SymbolIndex.FileSymbols cached) {\n");
+        sb.append("        String uri = path.toUri().toString();\n");
+        sb.append("        if (symbolIndex.isLive(uri)) {\n");
+        sb.append("            return;\n");
+        sb.append("        }\n");
+        sb.append("        try {\n");
+        sb.append("            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);\n");
+        sb.append("            long lastModified = attributes.lastModifiedTime().toMillis();\n");
+        sb.append("            long size = attributes.size();\n");
+        sb.append("            SymbolIndex.FileSymbols symbols = cached != null && cached.lastModified() == lastModified && cached.size() == size\n");
+        sb.append("                ? cached\n");
+        sb.append("                : extractSymbols(uri, lastModified, size, Files.readString(path));\n");
+        sb.append("            // the document may have been opened while the file was read\n");
+        sb.append("            symbolIndex.put(symbols, true);\n");
+        sb.append("        } catch (NoSuchFileException e) {\n");
+        sb.append("            symbolIndex.remove(uri, true);\n");
+        sb.append("        } catch (IOException | UncheckedIOException e) {\n");
+        sb.append("            // unreadable or not UTF-8: keep whatever the index had\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    private void reindexFromDisk(String uri) {\n");
+        sb.append("        Path path = toPath(uri);\n");
+        sb.append("        if (path != null && isIndexed(path)) {\n");
+        sb.append("            indexFromDisk(path, null);\n");
+        sb.append("        } else if (path != null) {\n");
+        sb.append("            symbolIndex.remove(path.toUri().toString(), true);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Indexes the live text of an open document; a version that does not parse keeps the previous entry. */\n");
+        sb.append("    private void indexDocument(String uri, DocumentText text, ParseResult parseResult) {\n");
+        sb.append("        if (parseResult.root() != null) {\n");
+        sb.append("            symbolIndex.put(SymbolIndex.extract(normalizeUri(uri), -1, -1, text.text(), parseResult.root()));\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    /** Offset of {@code position} in open document {@code uri} once its latest version is indexed, or -1. */\n");
+        sb.append("    private int symbolOffset(String uri, Position position) {\n");
+        sb.append("        DocumentState state = documents.get(uri);\n");
+        sb.append("        if (state == null) {\n");
+        sb.append("            return -1;\n");
+        sb.append("        }\n");
+        sb.append("        if (state.parsedVersion() != state.version()) {\n");
+        sb.append("            parseNow(uri, state);\n");
+        sb.append("        }\n");
+        sb.append("        return state.text().offsetAt(position);\n");
+        sb.append("    }\n\n");
+        sb.append("    private static SymbolIndex.FileSymbols extractSymbols(String uri, long lastModified, long size, String text) {\n");
+        sb.append("        ").append(parsersClass).append(".IncrementalParser parser = new ").append(parsersClass).append(".IncrementalParser(").append(parsersClass).append(".getRootParser());\n");
+        sb.append("        return SymbolIndex.extract(uri, lastModified, size, text, parser.parseFully(text).root());\n");
+        sb.append("    }\n\n");
+        sb.append("    private static void collectIndexedFiles(Path root, List<Path> out) {\n");
+        sb.append("        try {\n");
+        sb.append("            Files.walkFileTree(root, new SimpleFileVisitor<>() {\n");
+        sb.append("                @Override\n");
+        sb.append("                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {\n");
+        sb.append("                    boolean hidden = !dir.equals(root) && dir.getFileName().toString().startsWith(\".\");\n");
+        sb.append("                    return hidden ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;\n");
+        sb.append("                }\n\n");
+        sb.append("                @Override\n");
+        sb.append("                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {\n");
+        sb.append("                    if (attributes.isRegularFile() && isIndexed(file)) {\n");
+        sb.append("                        out.add(file);\n");
+        sb.append("                    }\n");
+        sb.append("                    return FileVisitResult.CONTINUE;\n");
+        sb.append("                }\n\n");
+        sb.append("                @Override\n");
+        sb.append("                public FileVisitResult visitFileFailed(Path file, IOException e) {\n");
+        sb.append("                    return FileVisitResult.CONTINUE;\n");
+        sb.append("                }\n");
+        sb.append("            });\n");
+        sb.append("        } catch (IOException e) {\n");
+        sb.append("            // an unreadable workspace folder contributes no files\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+        sb.append("    static boolean isIndexed(Path file) {\n");
+        sb.append("        Path name = file.getFileName();\n");
+        sb.append("        String fileName = name == null ? \"\" : name.toString();\n");
+        sb.append("        int dot = fileName.lastIndexOf('.');\n");
+        sb.append("        return dot >= 0 && INDEXED_EXTENSIONS.contains(fileName.substring(dot + 1));\n");
+        sb.append("    }\n\n");
+        sb.append("    /** {@code file:} URIs in the form {@link Path#toUri()} produces, so client and disk URIs of a file agree. */\n");
+        sb.append("    static String normalizeUri(String uri) {\n");
+        sb.append("        Path path = toPath(uri);\n");
+        sb.append("        return path == null ? uri : path.toUri().toString();\n");
+        sb.append("    }\n\n");
+        sb.append("    private static Path toPath(String uri) {\n");
+        sb.append("        if (uri == null || !uri.startsWith(\"file:\")) {\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("        try {\n");
+        sb.append("            return Path.of(URI.create(uri));\n");
+        sb.append("        } catch (IllegalArgumentException | FileSystemNotFoundException e) {\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+    }
+
+    /**
+     * 文書ごとの定義・参照の出現を int 配列に詰めて持ち、シンボル名 → ファイルの転置索引で引く索引クラスを出力する。
+     * ファイル単位で差し替えられ、gzip した独自バイナリ形式で保存・復元する。
+     */
+    private void appendSymbolIndex(StringBuilder sb, String parsersClass) {
+        sb.append("    /**\n");
+        sb.append("     * Workspace symbol index. Each file contributes its define/use occurrences in packed form, and\n");
+        sb.append("     * {@code filesByName} is the inverted index from a symbol name to the files that mention it, so replacing\n");
+        sb.append("     * the entry of one file only touches that file's names.\n");
+        sb.append("     */\n");
+        sb.append("    public static final class SymbolIndex {\n\n");
+        sb.append("        private static final int INDEX_MAGIC = 0x55534958;\n\n");
+        sb.append("        private final Map<String, FileSymbols> files = new ConcurrentHashMap<>();\n");
+        sb.append("        private final Map<String, Set<String>> filesByName = new ConcurrentHashMap<>();\n");
+        sb.append("        private final Set<String> live = ConcurrentHashMap.newKeySet();\n\n");
+        sb.append("        public FileSymbols file(String uri) {\n");
+        sb.append("            return files.get(uri);\n");
+        sb.append("        }\n\n");
+        sb.append("        public int size() {\n");
+        sb.append("            return files.size();\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Marks {@code uri} as open, so only its live text replaces its entry until {@link #close}. */\n");
+        sb.append("        public synchronized void open(String uri) {\n");
+        sb.append("            live.add(uri);\n");
+        sb.append("        }\n\n");
+        sb.append("        public synchronized void close(String uri) {\n");
+        sb.append("            live.remove(uri);\n");
+        sb.append("        }\n\n");
+        sb.append("        public boolean isLive(String uri) {\n");
+        sb.append("            return live.contains(uri);\n");
+        sb.append("        }\n\n");
+        sb.append("        public void put(FileSymbols symbols) {\n");
+        sb.append("            put(symbols, false);\n");
+        sb.append("        }\n\n");
+        sb.append("        /**\n");
+        sb.append("         * Replaces the entry of {@code symbols.uri()}. With {@code onlyIfNotLive}, an open document is left alone;\n");
+        sb.append("         * the check and the update are one atomic step. Returns whether the entry was replaced.\n");
+        sb.append("         */\n");
+        sb.append("        public synchronized boolean put(FileSymbols symbols, boolean onlyIfNotLive) {\n");
+        sb.append("            if (onlyIfNotLive && live.contains(symbols.uri())) {\n");
+        sb.append("                return false;\n");
+        sb.append("            }\n");
+        sb.append("            FileSymbols old = files.put(symbols.uri(), symbols);\n");
+        sb.append("            if (old != null) {\n");
+        sb.append("                for (String name : old.names) {\n");
+        sb.append("                    if (symbols.nameIndex(name) < 0) {\n");
+        sb.append("                        unlink(name, old.uri());\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            for (String name : symbols.names) {\n");
+        sb.append("                filesByName.computeIfAbsent(name, key -> ConcurrentHashMap.newKeySet()).add(symbols.uri());\n");
+        sb.append("            }\n");
+        sb.append("            return true;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Drops the entry of {@code uri}; with {@code onlyIfNotLive}, an open document is kept. */\n");
+        sb.append("        public synchronized boolean remove(String uri, boolean onlyIfNotLive) {\n");
+        sb.append("            if (onlyIfNotLive && live.contains(uri)) {\n");
+        sb.append("                return false;\n");
+        sb.append("            }\n");
+        sb.append("            FileSymbols old = files.remove(uri);\n");
+        sb.append("            if (old != null) {\n");
+        sb.append("                for (String name : old.names) {\n");
+        sb.append("                    unlink(name, uri);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return old != null;\n");
+        sb.append("        }\n\n");
+        sb.append("        private void unlink(String name, String uri) {\n");
+        sb.append("            filesByName.computeIfPresent(name, (key, uris) -> {\n");
+        sb.append("                uris.remove(uri);\n");
+        sb.append("                return uris.isEmpty() ? null : uris;\n");
+        sb.append("            });\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Definitions the occurrence at {@code offset} of {@code uri} resolves to. */\n");
+        sb.append("        public List<Location> definitions(String uri, int offset) {\n");
+        sb.append("            FileSymbols file = files.get(uri);\n");
+        sb.append("            int occurrence = file == null ? -1 : file.occurrenceAt(offset);\n");
+        sb.append("            if (occurrence < 0) {\n");
+        sb.append("                return List.of();\n");
+        sb.append("            }\n");
+        sb.append("            if (file.isDefinition(occurrence)) {\n");
+        sb.append("                return List.of(file.location(occurrence));\n");
+        sb.append("            }\n");
+        sb.append("            int local = file.localDefinition(file.nameOf(occurrence), file.start(occurrence));\n");
+        sb.append("            if (local >= 0) {\n");
+        sb.append("                return List.of(file.location(local));\n");
+        sb.append("            }\n");
+        sb.append("            List<Location> out = new ArrayList<>();\n");
+        sb.append("            forEachGlobal(file.name(occurrence), (symbols, o) -> {\n");
+        sb.append("                if (symbols.isDefinition(o)) {\n");
+        sb.append("                    out.add(symbols.location(o));\n");
+        sb.append("                }\n");
+        sb.append("            });\n");
+        sb.append("            return out;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Occurrences that resolve to the same definition as the occurrence at {@code offset} of {@code uri}. */\n");
+        sb.append("        public List<Location> references(String uri, int offset, boolean includeDeclaration) {\n");
+        sb.append("            FileSymbols file = files.get(uri);\n");
+        sb.append("            int occurrence = file == null ? -1 : file.occurrenceAt(offset);\n");
+        sb.append("            if (occurrence < 0) {\n");
+        sb.append("                return List.of();\n");
+        sb.append("            }\n");
+        sb.append("            int name = file.nameOf(occurrence);\n");
+        sb.append("            int target = file.isDefinition(occurrence) ? occurrence : file.localDefinition(name, file.start(occurrence));\n");
+        sb.append("            List<Location> out = new ArrayList<>();\n");
+        sb.append("            if (target >= 0 && file.scopeStart(target) >= 0) {\n");
+        sb.append("                for (int o = file.nameStart[name]; o < file.nameStart[name + 1]; o++) {\n");
+        sb.append("                    boolean match = file.isDefinition(o)\n");
+        sb.append("                        ? o == target && includeDeclaration\n");
+        sb.append("                        : file.localDefinition(name, file.start(o)) == target;\n");
+        sb.append("                    if (match) {\n");
+        sb.append("                        out.add(file.location(o));\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                return out;\n");
+        sb.append("            }\n");
+        sb.append("            forEachGlobal(file.names[name], (symbols, o) -> {\n");
+        sb.append("                if (includeDeclaration || !symbols.isDefinition(o)) {\n");
+        sb.append("                    out.add(symbols.location(o));\n");
+        sb.append("                }\n");
+        sb.append("            });\n");
+        sb.append("            return out;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** File-level definitions whose name contains {@code query}, ignoring case. */\n");
+        sb.append("        public List<WorkspaceSymbol> workspaceSymbols(String query, int limit) {\n");
+        sb.append("            String needle = query == null ? \"\" : query.toLowerCase(Locale.ROOT);\n");
+        sb.append("            List<WorkspaceSymbol> out = new ArrayList<>();\n");
+        sb.append("            for (String name : filesByName.keySet()) {\n");
+        sb.append("                if (out.size() >= limit) {\n");
+        sb.append("                    break;\n");
+        sb.append("                }\n");
+        sb.append("                if (!name.toLowerCase(Locale.ROOT).contains(needle)) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                forEachGlobal(name, (symbols, o) -> {\n");
+        sb.append("                    if (symbols.isDefinition(o) && out.size() < limit) {\n");
+        sb.append("                        out.add(new WorkspaceSymbol(name, SymbolKind.Variable, Either.forLeft(symbols.location(o))));\n");
+        sb.append("                    }\n");
+        sb.append("                });\n");
+        sb.append("            }\n");
+        sb.append("            return out;\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Visits file-level definitions of {@code name} and the uses that no {@code @scopeTree} definition shadows. */\n");
+        sb.append("        private void forEachGlobal(String name, java.util.function.ObjIntConsumer<FileSymbols> action) {\n");
+        sb.append("            for (String uri : filesByName.getOrDefault(name, Set.of())) {\n");
+        sb.append("                FileSymbols symbols = files.get(uri);\n");
+        sb.append("                int index = symbols == null ? -1 : symbols.nameIndex(name);\n");
+        sb.append("                if (index < 0) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                for (int o = symbols.nameStart[index]; o < symbols.nameStart[index + 1]; o++) {\n");
+        sb.append("                    boolean global = symbols.isDefinition(o)\n");
+        sb.append("                        ? symbols.scopeStart(o) < 0\n");
+        sb.append("                        : symbols.localDefinition(index, symbols.start(o)) < 0;\n");
+        sb.append("                    if (global) {\n");
+        sb.append("                        action.accept(symbols, o);\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Define/use occurrences of a parsed file; a file that does not parse ({@code root == null}) has none. */\n");
+        sb.append("        static FileSymbols extract(String uri, long lastModified, long size, String text,\n");
+        sb.append("                ").append(parsersClass).append(".IncrementalParser.SyntaxNode root) {\n");
+        sb.append("            Extractor extractor = new Extractor(text);\n");
+        sb.append("            if (root != null) {\n");
+        sb.append("                extractor.visit(root, root.offset(), \"\", -1, -1);\n");
+        sb.append("            }\n");
+        sb.append("            return extractor.build(uri, lastModified, size);\n");
+        sb.append("        }\n\n");
+        sb.append("        /**\n");
+        sb.append("         * Writes every entry to {@code file} through a temporary file, so a crash leaves the previous index.\n");
+        sb.append("         * The format is gzip-compressed: magic, fingerprint, entry count, then per entry the URI, modification\n");
+        sb.append("         * time, size, line starts, names and packed occurrences.\n");
+        sb.append("         */\n");
+        sb.append("        public void save(Path file, String fingerprint) throws IOException {\n");
+        sb.append("            Path parent = file.toAbsolutePath().getParent();\n");
+        sb.append("            Files.createDirectories(parent);\n");
+        sb.append("            Path temp = Files.createTempFile(parent, file.getFileName().toString(), \".tmp\");\n");
+        sb.append("            try {\n");
+        sb.append("                try (DataOutputStream out = new DataOutputStream(\n");
+        sb.append("                        new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {\n");
+        sb.append("                    out.writeInt(INDEX_MAGIC);\n");
+        sb.append("                    out.writeUTF(fingerprint);\n");
+        sb.append("                    List<FileSymbols> snapshot = new ArrayList<>(files.values());\n");
+        sb.append("                    out.writeInt(snapshot.size());\n");
+        sb.append("                    for (FileSymbols symbols : snapshot) {\n");
+        sb.append("                        symbols.write(out);\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                try {\n");
+        sb.append("                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);\n");
+        sb.append("                } catch (AtomicMoveNotSupportedException e) {\n");
+        sb.append("                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);\n");
+        sb.append("                }\n");
+        sb.append("            } finally {\n");
+        sb.append("                Files.deleteIfExists(temp);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Entries saved by {@link #save}; empty when the file is missing, damaged or written for another grammar. */\n");
+        sb.append("        public static Map<String, FileSymbols> load(Path file, String fingerprint) {\n");
+        sb.append("            if (!Files.isRegularFile(file)) {\n");
+        sb.append("                return Map.of();\n");
+        sb.append("            }\n");
+        sb.append("            try (DataInputStream in = new DataInputStream(\n");
+        sb.append("                    new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {\n");
+        sb.append("                if (in.readInt() != INDEX_MAGIC || !in.readUTF().equals(fingerprint)) {\n");
+        sb.append("                    return Map.of();\n");
+        sb.append("                }\n");
+        sb.append("                int count = in.readInt();\n");
+        sb.append("                Map<String, FileSymbols> entries = new HashMap<>();\n");
+        sb.append("                for (int i = 0; i < count; i++) {\n");
+        sb.append("                    FileSymbols symbols = FileSymbols.read(in);\n");
+        sb.append("                    entries.put(symbols.uri(), symbols);\n");
+        sb.append("                }\n");
+        sb.append("                return entries;\n");
+        sb.append("            } catch (IOException | RuntimeException e) {\n");
+        sb.append("                return Map.of();\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        /**\n");
+        sb.append("         * Symbols of one file. {@code occurrences} packs {@link #STRIDE} ints per occurrence (name index, kind,\n");
+        sb.append("         * start, end, scope start, scope end), grouped by name and ordered by offset within a name. A scope start\n");
+        sb.append("         * of -1 is file level, which is visible workspace-wide; otherwise the span of the {@code @scopeTree} node.\n");
+        sb.append("         */\n");
+        sb.append("        public static final class FileSymbols {\n");
+        sb.append("            static final int STRIDE = 6;\n");
+        sb.append("            static final int DEFINITION = 1;\n\n");
+        sb.append("            private final String uri;\n");
+        sb.append("            private final long lastModified;\n");
+        sb.append("            private final long size;\n");
+        sb.append("            private final int[] lineStarts;\n");
+        sb.append("            private final String[] names;\n");
+        sb.append("            private final int[] occurrences;\n");
+        sb.append("            private final int[] nameStart;\n");
+        sb.append("            private final int[] byOffset;\n\n");
+        sb.append("            FileSymbols(String uri, long lastModified, long size, int[] lineStarts, String[] names, int[] occurrences) {\n");
+        sb.append("                this.uri = uri;\n");
+        sb.append("                this.lastModified = lastModified;\n");
+        sb.append("                this.size = size;\n");
+        sb.append("                this.lineStarts = lineStarts;\n");
+        sb.append("                this.names = names;\n");
+        sb.append("                this.occurrences = occurrences;\n");
+        sb.append("                int count = count();\n");
+        sb.append("                this.nameStart = new int[names.length + 1];\n");
+        sb.append("                for (int o = 0; o < count; o++) {\n");
+        sb.append("                    nameStart[nameOf(o) + 1]++;\n");
+        sb.append("                }\n");
+        sb.append("                for (int i = 0; i < names.length; i++) {\n");
+        sb.append("                    nameStart[i + 1] += nameStart[i];\n");
+        sb.append("                }\n");
+        sb.append("                long[] keys = new long[count];\n");
+        sb.append("                for (int o = 0; o < count; o++) {\n");
+        sb.append("                    keys[o] = (long) start(o) << 32 | o;\n");
+        sb.append("                }\n");
+        sb.append("                Arrays.sort(keys);\n");
+        sb.append("                this.byOffset = new int[count];\n");
+        sb.append("                for (int i = 0; i < count; i++) {\n");
+        sb.append("                    byOffset[i] = (int) keys[i];\n");
+        sb.append("                }\n");
+        sb.append("            }\n\n");
+        sb.append("            public String uri() {\n");
+        sb.append("                return uri;\n");
+        sb.append("            }\n\n");
+        sb.append("            /** Modification time of the indexed file, or -1 for the live text of an open document. */\n");
+        sb.append("            public long lastModified() {\n");
+        sb.append("                return lastModified;\n");
+        sb.append("            }\n\n");
+        sb.append("            public long size() {\n");
+        sb.append("                return size;\n");
+        sb.append("            }\n\n");
+        sb.append("            public int count() {\n");
+        sb.append("                return occurrences.length / STRIDE;\n");
+        sb.append("            }\n\n");
+        sb.append("            public String name(int occurrence) {\n");
+        sb.append("                return names[nameOf(occurrence)];\n");
+        sb.append("            }\n\n");
+        sb.append("            public boolean isDefinition(int occurrence) {\n");
+        sb.append("                return occurrences[occurrence * STRIDE + 1] == DEFINITION;\n");
+        sb.append("            }\n\n");
+        sb.append("            public int start(int occurrence) {\n");
+        sb.append("                return occurrences[occurrence * STRIDE + 2];\n");
+        sb.append("            }\n\n");
+        sb.append("            public int end(int occurrence) {\n");
+        sb.append("                return occurrences[occurrence * STRIDE + 3];\n");
+        sb.append("            }\n\n");
+        sb.append("            int scopeStart(int occurrence) {\n");
+        sb.append("                return occurrences[occurrence * STRIDE + 4];\n");
+        sb.append("            }\n\n");
+        sb.append("            int scopeEnd(int occurrence) {\n");
+        sb.append("                return occurrences[occurrence * STRIDE + 5];\n");
+        sb.append("            }\n\n");
+        sb.append("            int nameOf(int occurrence) {\n");
+        sb.append("                return occurrences[occurrence * STRIDE];\n");
+        sb.append("            }\n\n");
+        sb.append("            int nameIndex(String name) {\n");
+        sb.append("                return Arrays.binarySearch(names, name);\n");
+        sb.append("            }\n\n");
+        sb.append("            /** Occurrence that covers {@code offset} or ends right at it, or -1. */\n");
+        sb.append("            public int occurrenceAt(int offset) {\n");
+        sb.append("                int low = 0;\n");
+        sb.append("                int high = byOffset.length - 1;\n");
+        sb.append("                int found = -1;\n");
+        sb.append("                while (low <= high) {\n");
+        sb.append("                    int mid = (low + high) >>> 1;\n");
+        sb.append("                    if (start(byOffset[mid]) <= offset) {\n");
+        sb.append("                        found = mid;\n");
+        sb.append("                        low = mid + 1;\n");
+        sb.append("                    } else {\n");
+        sb.append("                        high = mid - 1;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                return found >= 0 && offset <= end(byOffset[found]) ? byOffset[found] : -1;\n");
+        sb.append("            }\n\n");
+        sb.append("            /** Innermost {@code @scopeTree} definition of name {@code name} whose scope contains {@code offset}, or -1. */\n");
+        sb.append("            int localDefinition(int name, int offset) {\n");
+        sb.append("                int best = -1;\n");
+        sb.append("                for (int o = nameStart[name]; o < nameStart[name + 1]; o++) {\n");
+        sb.append("                    int scopeStart = scopeStart(o);\n");
+        sb.append("                    if (isDefinition(o) && scopeStart >= 0 && scopeStart <= offset && offset < scopeEnd(o)\n");
+        sb.append("                            && (best < 0 || scopeStart > scopeStart(best))) {\n");
+        sb.append("                        best = o;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                return best;\n");
+        sb.append("            }\n\n");
+        sb.append("            public Location location(int occurrence) {\n");
+        sb.append("                return new Location(uri, new Range(position(start(occurrence)), position(end(occurrence))));\n");
+        sb.append("            }\n\n");
+        sb.append("            Position position(int offset) {\n");
+        sb.append("                int index = Arrays.binarySearch(lineStarts, offset);\n");
+        sb.append("                int line = index >= 0 ? index : -index - 2;\n");
+        sb.append("                return new Position(line, offset - lineStarts[line]);\n");
+        sb.append("            }\n\n");
+        sb.append("            void write(DataOutputStream out) throws IOException {\n");
+        sb.append("                out.writeUTF(uri);\n");
+        sb.append("                out.writeLong(lastModified);\n");
+        sb.append("                out.writeLong(size);\n");
+        sb.append("                writeInts(out, lineStarts);\n");
+        sb.append("                out.writeInt(names.length);\n");
+        sb.append("                for (String name : names) {\n");
+        sb.append("                    out.writeUTF(name);\n");
+        sb.append("                }\n");
+        sb.append("                writeInts(out, occurrences);\n");
+        sb.append("            }\n\n");
+        sb.append("            static FileSymbols read(DataInputStream in) throws IOException {\n");
+        sb.append("                String uri = in.readUTF();\n");
+        sb.append("                long lastModified = in.readLong();\n");
+        sb.append("                long size = in.readLong();\n");
+        sb.append("                int[] lineStarts = readInts(in);\n");
+        sb.append("                String[] names = new String[in.readInt()];\n");
+        sb.append("                for (int i = 0; i < names.length; i++) {\n");
+        sb.append("                    names[i] = in.readUTF();\n");
+        sb.append("                }\n");
+        sb.append("                return new FileSymbols(uri, lastModified, size, lineStarts, names, readInts(in));\n");
+        sb.append("            }\n\n");
+        sb.append("            private static void writeInts(DataOutputStream out, int[] values) throws IOException {\n");
+        sb.append("                out.writeInt(values.length);\n");
+        sb.append("                for (int value : values) {\n");
+        sb.append("                    out.writeInt(value);\n");
+        sb.append("                }\n");
+        sb.append("            }\n\n");
+        sb.append("            private static int[] readInts(DataInputStream in) throws IOException {\n");
+        sb.append("                int length = in.readInt();\n");
+        sb.append("                if (length < 0) {\n");
+        sb.append("                    throw new IOException(\"negative array length \" + length);\n");
+        sb.append("                }\n");
+        sb.append("                int[] values = new int[length];\n");
+        sb.append("                for (int i = 0; i < length; i++) {\n");
+        sb.append("                    values[i] = in.readInt();\n");
+        sb.append("                }\n");
+        sb.append("                return values;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        /** Collects occurrences in document order, then groups them by name with a counting sort. */\n");
+        sb.append("        private static final class Extractor {\n");
+        sb.append("            private final String text;\n");
+        sb.append("            private final Map<String, Integer> ids = new HashMap<>();\n");
+        sb.append("            private final List<String> names = new ArrayList<>();\n");
+        sb.append("            private int[] raw = new int[8 * FileSymbols.STRIDE];\n");
+        sb.append("            private int length;\n\n");
+        sb.append("            Extractor(String text) {\n");
+        sb.append("                this.text = text;\n");
+        sb.append("            }\n\n");
+        sb.append("            void visit(").append(parsersClass).append(".IncrementalParser.SyntaxNode node, int start, String declared,\n");
+        sb.append("                    int scopeStart, int scopeEnd) {\n");
+        sb.append("                if (node.length() == 0) {\n");
+        sb.append("                    return;\n");
+        sb.append("                }\n");
+        sb.append("                int roles = SYMBOL_ROLES.get(node.parser());\n");
+        sb.append("                if ((roles & SYMBOL_REFERENCE) != 0) {\n");
+        sb.append("                    add(start, start + node.length(), false, scopeStart, scopeEnd);\n");
+        sb.append("                    return;\n");
+        sb.append("                }\n");
+        sb.append("                if ((roles & SYMBOL_DEFINABLE) != 0) {\n");
+        sb.append("                    boolean definition = declared.equals(node.parser().getSimpleName());\n");
+        sb.append("                    add(start, start + node.length(), definition, scopeStart, scopeEnd);\n");
+        sb.append("                    return;\n");
+        sb.append("                }\n");
+        sb.append("                String childDeclared = DECLARED_TOKENS.get(node.parser());\n");
+        sb.append("                boolean scope = (roles & SYMBOL_SCOPE) != 0;\n");
+        sb.append("                for (").append(parsersClass).append(".IncrementalParser.SyntaxNode child : node.children()) {\n");
+        sb.append("                    // a name declared by the scope node itself belongs to the enclosing scope\n");
+        sb.append("                    boolean inner = scope && !childDeclared.equals(child.parser().getSimpleName());\n");
+        sb.append("                    visit(child, start + child.offset(), childDeclared,\n");
+        sb.append("                        inner ? start : scopeStart, inner ? start + node.length() : scopeEnd);\n");
+        sb.append("                }\n");
+        sb.append("            }\n\n");
+        sb.append("            private void add(int start, int end, boolean definition, int scopeStart, int scopeEnd) {\n");
+        sb.append("                while (start < end && Character.isWhitespace(text.charAt(start))) {\n");
+        sb.append("                    start++;\n");
+        sb.append("                }\n");
+        sb.append("                while (end > start && Character.isWhitespace(text.charAt(end - 1))) {\n");
+        sb.append("                    end--;\n");
+        sb.append("                }\n");
+        sb.append("                if (start == end) {\n");
+        sb.append("                    return;\n");
+        sb.append("                }\n");
+        sb.append("                String name = text.substring(start, end);\n");
+        sb.append("                Integer id = ids.get(name);\n");
+        sb.append("                if (id == null) {\n");
+        sb.append("                    id = names.size();\n");
+        sb.append("                    ids.put(name, id);\n");
+        sb.append("                    names.add(name);\n");
+        sb.append("                }\n");
+        sb.append("                if (length + FileSymbols.STRIDE > raw.length) {\n");
+        sb.append("                    raw = Arrays.copyOf(raw, raw.length * 2);\n");
+        sb.append("                }\n");
+        sb.append("                raw[length++] = id;\n");
+        sb.append("                raw[length++] = definition ? FileSymbols.DEFINITION : 0;\n");
+        sb.append("                raw[length++] = start;\n");
+        sb.append("                raw[length++] = end;\n");
+        sb.append("                raw[length++] = scopeStart;\n");
+        sb.append("                raw[length++] = scopeEnd;\n");
+        sb.append("            }\n\n");
+        sb.append("            FileSymbols build(String uri, long lastModified, long size) {\n");
+        sb.append("                String[] sorted = names.toArray(new String[0]);\n");
+        sb.append("                Arrays.sort(sorted);\n");
+        sb.append("                int[] rank = new int[sorted.length];\n");
+        sb.append("                for (int i = 0; i < sorted.length; i++) {\n");
+        sb.append("                    rank[ids.get(sorted[i])] = i;\n");
+        sb.append("                }\n");
+        sb.append("                int stride = FileSymbols.STRIDE;\n");
+        sb.append("                int count = length / stride;\n");
+        sb.append("                int[] slot = new int[sorted.length + 1];\n");
+        sb.append("                for (int o = 0; o < count; o++) {\n");
+        sb.append("                    slot[rank[raw[o * stride]] + 1]++;\n");
+        sb.append("                }\n");
+        sb.append("                for (int i = 0; i < sorted.length; i++) {\n");
+        sb.append("                    slot[i + 1] += slot[i];\n");
+        sb.append("                }\n");
+        sb.append("                int[] occurrences = new int[length];\n");
+        sb.append("                for (int o = 0; o < count; o++) {\n");
+        sb.append("                    int name = rank[raw[o * stride]];\n");
+        sb.append("                    int target = slot[name]++ * stride;\n");
+        sb.append("                    System.arraycopy(raw, o * stride, occurrences, target, stride);\n");
+        sb.append("                    occurrences[target] = name;\n");
+        sb.append("                }\n");
+        sb.append("                return new FileSymbols(uri, lastModified, size, lineStarts(), sorted, occurrences);\n");
+        sb.append("            }\n\n");
+        sb.append("            private int[] lineStarts() {\n");
+        sb.append("                int lines = 1;\n");
+        sb.append("                for (int i = 0; i < text.length(); i++) {\n");
+        sb.append("                    if (text.charAt(i) == '\\n') {\n");
+        sb.append("                        lines++;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                int[] starts = new int[lines];\n");
+        sb.append("                int line = 1;\n");
+        sb.append("                for (int i = 0; i < text.length(); i++) {\n");
+        sb.append("                    if (text.charAt(i) == '\\n') {\n");
+        sb.append("                        starts[line++] = i + 1;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                return starts;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+    }
+
+    private void appendSymbolIndexRequests(StringBuilder sb) {
+        sb.append("\n");
+        // definition()
+        sb.append("        @Override\n");
+        sb.append("        public CompletableFuture<Either<List<? extends Location>, List<? extends LocationLink>>> definition(\n");
+        sb.append("                DefinitionParams params) {\n");
+        sb.append("            String uri = params.getTextDocument().getUri();\n");
+        sb.append("            Position position = params.getPosition();\n");
+        sb.append("            return CompletableFuture.supplyAsync(() -> {\n");
+        sb.append("                int offset = server.symbolOffset(uri, position);\n");
+        sb.append("                List<Location> definitions = server.symbolIndex.definitions(normalizeUri(uri), offset);\n");
+        sb.append("                return Either.<List<? extends Location>, List<? extends LocationLink>>forLeft(definitions);\n");
+        sb.append("            }, server.parseExecutor);\n");
+        sb.append("        }\n\n");
+
+        // references()
+        sb.append("        @Override\n");
+        sb.append("        public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {\n");
+        sb.append("            String uri = params.getTextDocument().getUri();\n");
+        sb.append("            Position position = params.getPosition();\n");
+        sb.append("            boolean includeDeclaration = params.getContext() == null || params.getContext().isIncludeDeclaration();\n");
+        sb.append("            return CompletableFuture.<List<? extends Location>>supplyAsync(() -> {\n");
+        sb.append("                int offset = server.symbolOffset(uri, position);\n");
+        sb.append("                return server.symbolIndex.references(normalizeUri(uri), offset, includeDeclaration);\n");
+        sb.append("            }, server.parseExecutor);\n");
+        sb.append("        }\n");
+    }
+
+    private void appendWorkspaceSymbolRequests(StringBuilder sb) {
+        sb.append("        @Override\n");
+        sb.append("        public void didChangeWatchedFiles(org.eclipse.lsp4j.DidChangeWatchedFilesParams params) {\n");
+        sb.append("            for (FileEvent event : params.getChanges()) {\n");
+        sb.append("                String uri = event.getUri();\n");
+        sb.append("                if (event.getType() == FileChangeType.Deleted) {\n");
+        sb.append("                    server.symbolIndex.remove(normalizeUri(uri), true);\n");
+        sb.append("                } else {\n");
+        sb.append("                    server.parseExecutor.submit(() -> server.reindexFromDisk(uri));\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        // symbol()
+        sb.append("        @Override\n");
+        sb.append("        public CompletableFuture<Either<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>> symbol(\n");
+        sb.append("                WorkspaceSymbolParams params) {\n");
+        sb.append("            List<WorkspaceSymbol> symbols = server.symbolIndex.workspaceSymbols(params.getQuery(), WORKSPACE_SYMBOL_LIMIT);\n");
+        sb.append("            return CompletableFuture.completedFuture(\n");
+        sb.append("                Either.<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>forRight(symbols));\n");
+        sb.append("        }\n");
+    }
+
+    /** {@code @workspaceIndex} の {@code extensions}（カンマ区切り）。未指定なら grammar 名の小文字。 */
+    List<String> indexedExtensions(GrammarDecl grammar) {
+        List<String> extensions = new ArrayList<>();
+        GrammarSettings.blockEntry(grammar, "workspaceIndex", "extensions").ifPresent(value -> {
+            for (String extension : value.split(",")) {
+                String trimmed = extension.trim();
+                if (trimmed.startsWith(".")) {
+                    trimmed = trimmed.substring(1);
+                }
+                if (!trimmed.isEmpty()) {
+                    extensions.add(trimmed);
+                }
+            }
+        });
+        if (extensions.isEmpty()) {
+            extensions.add(grammar.name().toLowerCase(Locale.ROOT));
+        }
+        return extensions;
+    }
+
+    /**
+     * パーサーの単純名 → シンボル上の役割のビット集合。{@code @scopeTree} ルールはスコープ、{@code @backref}
+     * ルールは参照、{@link #declaredTokens} が宣言位置に持つ token は定義可能（宣言位置以外では参照）とする。
+     */
+    Map<String, Integer> symbolRoles(GrammarDecl grammar) {
+        Map<String, Integer> roles = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            for (var annotation : rule.annotations()) {
+                if (annotation instanceof ScopeTreeAnnotation) {
+                    roles.merge(rule.name() + "Parser", SYMBOL_SCOPE, (a, b) -> a | b);
+                } else if (annotation instanceof BackrefAnnotation) {
+                    roles.merge(rule.name() + "Parser", SYMBOL_REFERENCE, (a, b) -> a | b);
+                }
+            }
+        }
+        for (String token : declaredTokens(grammar).values()) {
+            roles.merge(token, SYMBOL_DEFINABLE, (a, b) -> a | b);
+        }
+        return roles;
+    }
+
+    private String roleExpression(int roles) {
+        List<String> names = new ArrayList<>();
+        if ((roles & SYMBOL_SCOPE) != 0) names.add("SYMBOL_SCOPE");
+        if ((roles & SYMBOL_REFERENCE) != 0) names.add("SYMBOL_REFERENCE");
+        if ((roles & SYMBOL_DEFINABLE) != 0) names.add("SYMBOL_DEFINABLE");
+        return String.join(" | ", names);
+    }
+
+    /** token 宣言のパーサークラス名から legend の種別を推定する。該当しなければ variable とする。 */
+    String semanticTokenType(String parserName) {
+        String name = parserName.toLowerCase(Locale.ROOT);
+        if (name.contains("comment")) {
+            return "comment";
+        }
+        if (name.contains("number") || name.contains("digit") || name.contains("integer") || name.contains("float")) {
+            return "number";
+        }
+        if (name.contains("string") || name.contains("quoted") || name.contains("char")) {
+            return "string";
+        }
+        return "variable";
+    }
+
+    /**
+     * {@code @mapping} の {@code name} キャプチャ（または {@code @backref(name=X)} が指す {@code X} キャプチャ）が、
+     * 単一シーケンスのルール本体で token を直接参照している場合にルールのパーサー名 → token のパーサー名を返す。
+     * 構文木ではその token がルールノードの直下に現れる。
+     */
+    Map<String, String> declaredTokens(GrammarDecl grammar) {
+        Map<String, String> tokenParsers = new LinkedHashMap<>();
+        for (TokenDecl token : grammar.tokens()) {
+            tokenParsers.put(token.name(), simpleName(token.parserClass()));
+        }
+        Set<String> captures = new LinkedHashSet<>(List.of("name"));
+        for (RuleDecl rule : grammar.rules()) {
+            for (var annotation : rule.annotations()) {
+                if (annotation instanceof BackrefAnnotation backref) {
+                    captures.add(backref.name());
+                }
+            }
+        }
+        Map<String, String> declared = new LinkedHashMap<>();
+        for (RuleDecl rule : grammar.rules()) {
+            boolean mapped = rule.annotations().stream().anyMatch(a -> a instanceof MappingAnnotation);
+            SequenceBody sequence = getSingleSequenceFrom(rule.body());
+            if (!mapped || sequence == null) {
+                continue;
+            }
+            for (AnnotatedElement element : sequence.elements()) {
+                if (element.captureName().filter(captures::contains).isPresent()
+                    && element.element() instanceof RuleRefElement ref
+                    && tokenParsers.containsKey(ref.name())) {
+                    declared.put(rule.name() + "Parser", tokenParsers.get(ref.name()));
+                }
+            }
+        }
+        return declared;
+    }
+
+    private SequenceBody getSingleSequenceFrom(RuleBody body) {
+        return switch (body) {
+            case SequenceBody seq -> seq;
+            case ChoiceBody choice when choice.alternatives().size() == 1 -> choice.alternatives().get(0);
+            default -> null;
+        };
+    }
+
+    private String tokenTypeConstant(String type) {
+        return "TOKEN_" + type.toUpperCase(Locale.ROOT);
+    }
+
+    private String simpleName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * 補完用の文法表を出力する。系列 0 がルートルールを呼び、以降はルール本体・グループ・省略可能・繰り返しの
+     * 各選択肢を構成する系列。要素は {@code 種別 | 引数 << 3} に詰め、引数は終端記号・token・選択肢の添字。
+     */
+    private void appendCompletionGrammar(StringBuilder sb, GrammarDecl grammar, String parsersClass) {
+        CompletionGrammar table = new CompletionGrammar(grammar);
+
+        sb.append("    // Completion grammar. Elements are packed as kind | argument << 3; the argument indexes\n");
+        sb.append("    // COMPLETION_TERMINALS, COMPLETION_TOKENS or COMPLETION_CHOICES. Sequence 0 calls the root rule.\n");
+        sb.append("    private static final int EXPECT_TERMINAL = ").append(EXPECT_TERMINAL).append(";\n");
+        sb.append("    private static final int EXPECT_TOKEN = ").append(EXPECT_TOKEN).append(";\n");
+        sb.append("    private static final int EXPECT_CALL = ").append(EXPECT_CALL).append(";\n");
+        sb.append("    private static final int EXPECT_OPTIONAL = ").append(EXPECT_OPTIONAL).append(";\n");
+        sb.append("    private static final int EXPECT_REPEAT = ").append(EXPECT_REPEAT).append(";\n");
+        sb.append("    private static final int MAX_COMPLETION_PREFIX = 256;\n");
+        sb.append("    private static final String[] COMPLETION_TERMINALS = {");
+        appendStringList(sb, table.terminals.keySet());
+        sb.append("};\n");
+        sb.append("    private static final String[] COMPLETION_TOKEN_NAMES = {");
+        appendStringList(sb, table.tokens.keySet());
+        sb.append("};\n");
+        sb.append("    private static final List<Class<? extends Parser>> COMPLETION_TOKENS = List.of(");
+        int index = 0;
+        for (TokenDecl token : table.tokenDecls) {
+            sb.append(index++ > 0 ? ",\n        " : "\n        ")
+              .append(parserSupport.qualifiedTokenParserClass(token.parserClass())).append(".class");
         }
-        return new ArrayList<>(kw);
+        sb.append(");\n");
+        sb.append("    private static final Class<? extends Parser> COMPLETION_DELIMITER = ");
+        if (parserSupport.hasDelimitedChain(grammar)) {
+            sb.append(parsersClass).append(".").append(grammar.name()).append("SpaceDelimitor.class;\n");
+        } else {
+            sb.append("null;\n");
+        }
+        appendIntTable(sb, "COMPLETION_SEQUENCES", table.sequences, table.sequenceOwners);
+        appendIntTable(sb, "COMPLETION_CHOICES", table.choices, table.choiceOwners);
+        sb.append("\n");
     }
 
-    private void collectFromBody(RuleBody body, Set<String> acc) {
-        switch (body) {
-            case ChoiceBody cb -> {
-                for (var alt : cb.alternatives()) collectFromBody(alt, acc);
-            }
-            case SequenceBody sb -> {
-                for (AnnotatedElement ae : sb.elements()) collectFromElement(ae.element(), acc);
+    private void appendStringList(StringBuilder sb, Iterable<String> values) {
+        int i = 0;
+        for (String value : values) {
+            if (i++ > 0) sb.append(", ");
+            sb.append("\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+        }
+    }
+
+    private void appendIntTable(StringBuilder sb, String name, List<int[]> rows, List<String> owners) {
+        sb.append("    private static final int[][] ").append(name).append(" = {\n");
+        for (int i = 0; i < rows.size(); i++) {
+            sb.append("        {");
+            int[] row = rows.get(i);
+            for (int k = 0; k < row.length; k++) {
+                if (k > 0) sb.append(", ");
+                sb.append(row[k]);
             }
+            sb.append("}, // ").append(i).append(": ").append(owners.get(i)).append("\n");
         }
+        sb.append("    };\n");
     }
 
-    private void collectFromElement(AtomicElement element, Set<String> acc) {
-        switch (element) {
-            case TerminalElement t -> acc.add(stripQuotes(t.value()));
-            case GroupElement g -> collectFromBody(g.body(), acc);
-            case OptionalElement o -> collectFromBody(o.body(), acc);
-            case RepeatElement r -> collectFromBody(r.body(), acc);
-            default -> {}
+    /**
+     * 補完用に平たくした文法。ルール i の本体は選択肢 i で、グループ・省略可能・繰り返しの本体はその後に追加する。
+     * token と同名の参照は token、どちらでもない参照は空の選択肢として扱う。
+     */
+    private static final class CompletionGrammar {
+        final Map<String, Integer> terminals = new LinkedHashMap<>();
+        final Map<String, Integer> tokens = new LinkedHashMap<>();
+        final List<TokenDecl> tokenDecls = new ArrayList<>();
+        final Map<String, Integer> rules = new LinkedHashMap<>();
+        final List<int[]> sequences = new ArrayList<>();
+        final List<String> sequenceOwners = new ArrayList<>();
+        final List<int[]> choices = new ArrayList<>();
+        final List<String> choiceOwners = new ArrayList<>();
+        private int emptyChoice = -1;
+
+        CompletionGrammar(GrammarDecl grammar) {
+            for (TokenDecl token : grammar.tokens()) {
+                if (tokens.putIfAbsent(token.name(), tokens.size()) == null) {
+                    tokenDecls.add(token);
+                }
+            }
+            for (RuleDecl rule : grammar.rules()) {
+                if (rules.putIfAbsent(rule.name(), choices.size()) == null) {
+                    choices.add(null);
+                    choiceOwners.add(rule.name());
+                }
+            }
+            String root = grammar.rules().stream()
+                .filter(r -> r.annotations().stream().anyMatch(a -> a instanceof RootAnnotation))
+                .map(RuleDecl::name)
+                .findFirst()
+                .orElse(grammar.rules().isEmpty() ? null : grammar.rules().get(0).name());
+            sequences.add(root == null ? new int[0] : new int[] {EXPECT_CALL | rules.get(root) << 3});
+            sequenceOwners.add("entry");
+            for (RuleDecl rule : grammar.rules()) {
+                int choice = rules.get(rule.name());
+                if (choices.get(choice) == null) {
+                    choices.set(choice, alternatives(rule.body(), rule.name()));
+                }
+            }
+        }
+
+        private int[] alternatives(RuleBody body, String owner) {
+            List<SequenceBody> alternatives = switch (body) {
+                case ChoiceBody choice -> choice.alternatives();
+                case SequenceBody sequence -> List.of(sequence);
+            };
+            int[] result = new int[alternatives.size()];
+            for (int i = 0; i < result.length; i++) {
+                List<AnnotatedElement> elements = alternatives.get(i).elements();
+                int[] sequence = new int[elements.size()];
+                for (int k = 0; k < sequence.length; k++) {
+                    sequence[k] = element(elements.get(k).element(), owner);
+                }
+                result[i] = sequences.size();
+                sequences.add(sequence);
+                sequenceOwners.add(owner);
+            }
+            return result;
+        }
+
+        private int element(AtomicElement element, String owner) {
+            return switch (element) {
+                case TerminalElement t -> EXPECT_TERMINAL | terminal(stripQuotes(t.value())) << 3;
+                case RuleRefElement r when tokens.containsKey(r.name()) -> EXPECT_TOKEN | tokens.get(r.name()) << 3;
+                case RuleRefElement r -> EXPECT_CALL | (rules.containsKey(r.name()) ? rules.get(r.name()) : emptyChoice()) << 3;
+                case GroupElement g -> EXPECT_CALL | nested(g.body(), owner) << 3;
+                case OptionalElement o -> EXPECT_OPTIONAL | nested(o.body(), owner) << 3;
+                case RepeatElement r -> EXPECT_REPEAT | nested(r.body(), owner) << 3;
+            };
+        }
+
+        private int terminal(String value) {
+            return terminals.computeIfAbsent(value, key -> terminals.size());
+        }
+
+        private int nested(RuleBody body, String owner) {
+            int choice = choices.size();
+            choices.add(null);
+            choiceOwners.add(owner);
+            choices.set(choice, alternatives(body, owner));
+            return choice;
+        }
+
+        private int emptyChoice() {
+            if (emptyChoice < 0) {
+                emptyChoice = choices.size();
+                choices.add(new int[0]);
+                choiceOwners.add("undefined");
+            }
+            return emptyChoice;
         }
     }
 
-    private String stripQuotes(String value) {
+    private static String stripQuotes(String value) {
         if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
             return value.substring(1, value.length() - 1);
         }
@@ -33,6 +33,9 @@ import java.util.stream.Collectors;
  */
 public class MapperGenerator implements CodeGenerator {
 
+    /** {@code @parallelMapping} で threshold 未指定時に使うリスト要素数のしきい値 */
+    static final int DEFAULT_PARALLEL_MAPPING_THRESHOLD = 4096;
+
     @Override
     public GeneratedSource generate(GrammarDecl grammar) {
         String packageName = getPackageName(grammar);
@@ -44,6 +47,23 @@ public class MapperGenerator implements CodeGenerator {
         Map<String, TokenDecl> tokenDeclByName = grammar.tokens().stream()
             .collect(Collectors.toMap(TokenDecl::name, t -> t, (a, b) -> a, LinkedHashMap::new));
 
+        // @parallelMapping: { threshold: 'N' } で大きな List キャプチャを ForkJoin で並列マッピングする
+        boolean parallelMapping = GrammarSettings.isEnabled(grammar, "parallelMapping");
+        int parallelMappingThreshold = GrammarSettings.intBlockEntry(
+            grammar, "parallelMapping", "threshold", DEFAULT_PARALLEL_MAPPING_THRESHOLD);
+        // @lazyAst: true で List / Optional / 子ノードのフィールドを初回アクセス時にマッピングする
+        boolean lazyAst = GrammarSettings.isEnabled(grammar, "lazyAst");
+        // @mapping(..., types=[value:long]) があればプリミティブ変換ヘルパーを生成する
+        boolean typedCaptures = grammar.rules().stream()
+            .map(this::getMappingAnnotation)
+            .flatMap(Optional::stream)
+            .anyMatch(m -> !m.paramTypes().isEmpty());
+        // @internSymbols: true（parse 単位）または { scope: 'shared' }（parse 間で弱参照共有）
+        boolean internSymbols = GrammarSettings.isEnabled(grammar, "internSymbols");
+        boolean sharedSymbols = internSymbols && isSharedSymbolScope(grammar);
+        // @nodeIndex: true で parse ごとに親 id・深さ・スパンの索引（NodeIndex）を構築する
+        boolean nodeIndex = GrammarSettings.isEnabled(grammar, "nodeIndex");
+
         Map<String, RuleDecl> ruleByName = grammar.rules().stream()
             .collect(Collectors.toMap(RuleDecl::name, r -> r, (a, b) -> a, LinkedHashMap::new));
 
@@ -77,8 +97,32 @@ public class MapperGenerator implements CodeGenerator {
         sb.append(" */\n");
         sb.append("public class ").append(mapperClass).append(" {\n\n");
         sb.append("    private ").append(mapperClass).append("() {}\n\n");
-        sb.append("    private static final java.util.IdentityHashMap<Object, int[]> NODE_SOURCE_SPANS =\n");
-        sb.append("        new java.util.IdentityHashMap<>();\n\n");
+        if (lazyAst) {
+            // 遅延フィールドは任意のスレッドで具現化されるため、スパン登録を同期化する
+            sb.append("    private static final java.util.Map<Object, int[]> NODE_SOURCE_SPANS =\n");
+            sb.append("        java.util.Collections.synchronizedMap(new java.util.IdentityHashMap<>());\n\n");
+        } else {
+            sb.append("    private static final java.util.IdentityHashMap<Object, int[]> NODE_SOURCE_SPANS =\n");
+            sb.append("        new java.util.IdentityHashMap<>();\n\n");
+        }
+        if (internSymbols) {
+            // parse() の間だけ束縛する表（終了時に外すので、スレッドが最後の parse のシンボルを抱え続けない）
+            sb.append("    private static final ThreadLocal<SymbolTable> SYMBOLS = new ThreadLocal<>();\n\n");
+            sb.append("    private static volatile int lastInternedSymbolCount;\n\n");
+        }
+        if (sharedSymbols) {
+            sb.append("    private static final java.util.WeakHashMap<String, java.lang.ref.WeakReference<String>> SHARED_SYMBOLS =\n");
+            sb.append("        new java.util.WeakHashMap<>();\n\n");
+        }
+        if (parallelMapping) {
+            sb.append("    private static final ThreadLocal<java.util.IdentityHashMap<Object, int[]>> SPAN_SINK =\n");
+            sb.append("        new ThreadLocal<>();\n\n");
+            sb.append("    private static volatile int parallelMappingThreshold = ")
+              .append(Math.max(1, parallelMappingThreshold)).append(";\n\n");
+        }
+        if (nodeIndex) {
+            sb.append("    private static volatile NodeIndex lastNodeIndex;\n\n");
+        }
 
         String rootClassName = rootRule.flatMap(this::getMappingAnnotation)
             .map(m -> astClass + "." + m.className())
@@ -91,7 +135,25 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        return parse(source, null);\n");
         sb.append("    }\n\n");
         sb.append("    public static ").append(rootClassName).append(" parse(String source, String preferredAstSimpleName) {\n");
+        if (internSymbols) {
+            // 表は parse ごとに一つで、終了時に呼び出し元の束縛（通常はなし）へ戻す
+            sb.append("        SymbolTable previousSymbols = SYMBOLS.get();\n");
+            sb.append("        SymbolTable symbols = new SymbolTable();\n");
+            sb.append("        SYMBOLS.set(symbols);\n");
+            sb.append("        try {\n");
+            sb.append("            return parseInterned(source, preferredAstSimpleName);\n");
+            sb.append("        } finally {\n");
+            sb.append("            lastInternedSymbolCount = symbols.size();\n");
+            sb.append("            restoreSymbols(previousSymbols);\n");
+            sb.append("        }\n");
+            sb.append("    }\n\n");
+            sb.append("    private static ").append(rootClassName)
+              .append(" parseInterned(String source, String preferredAstSimpleName) {\n");
+        }
         sb.append("        NODE_SOURCE_SPANS.clear();\n");
+        if (nodeIndex) {
+            sb.append("        lastNodeIndex = null;\n");
+        }
         sb.append("        Parser rootParser = ").append(parsersClass).append(".getRootParser();\n");
         sb.append("        ParseContext context = new ParseContext(createRootSourceCompat(source));\n");
         sb.append("        Parsed parsed;\n");
@@ -120,13 +182,23 @@ public class MapperGenerator implements CodeGenerator {
             sb.append("        if (mappingRoot == null) {\n");
             sb.append("            throw new IllegalArgumentException(\"Root mapping token not found for ").append(rr.name()).append("\");\n");
             sb.append("        }\n");
-            sb.append("        return to").append(rootMappingClass).append("(mappingRoot);\n");
+            if (nodeIndex) {
+                sb.append("        ").append(rootClassName).append(" mapped = to").append(rootMappingClass)
+                  .append("(mappingRoot);\n");
+                sb.append("        lastNodeIndex = NodeIndex.build(mapped);\n");
+                sb.append("        return mapped;\n");
+            } else {
+                sb.append("        return to").append(rootMappingClass).append("(mappingRoot);\n");
+            }
         } else {
             sb.append("        Token bestMappedToken = findBestMappedToken(rootToken, preferredAstSimpleName);\n");
             sb.append("        ").append(astClass).append(" mapped = mapToken(bestMappedToken);\n");
             sb.append("        if (mapped == null) {\n");
             sb.append("            throw new IllegalArgumentException(\"No mapped node found in parse tree\");\n");
             sb.append("        }\n");
+            if (nodeIndex) {
+                sb.append("        lastNodeIndex = NodeIndex.build(mapped);\n");
+            }
             sb.append("        return (").append(rootClassName).append(") mapped;\n");
         }
         sb.append("    }\n\n");
@@ -211,6 +283,7 @@ public class MapperGenerator implements CodeGenerator {
             MappingAnnotation mapping = getMappingAnnotation(rule).orElseThrow();
             boolean leftAssoc = isLeftAssocRule(rule, mapping);
             boolean rightAssoc = isRightAssocRule(rule, mapping);
+            boolean lazyNode = lazyAst && hasLazyFields(grammar, rule, mapping, astClass);
 
             sb.append("    static ").append(astClass).append(".").append(className)
               .append(" to").append(className).append("(Token token) {\n");
@@ -275,6 +348,12 @@ public class MapperGenerator implements CodeGenerator {
                         sb.append("            throw new IllegalArgumentException(\"Left operand not found for rule ").append(rule.name()).append("\");\n");
                     }
                     sb.append("        }\n");
+                    if (lazyNode) {
+                        appendLazyAssocFields(sb, astClass, className, leftType, opType, rightType, leftMapper,
+                            rightMapper, repeatParserClass, opParserClass, rightParserClass, internSymbols);
+                        sb.append("    }\n\n");
+                        continue;
+                    }
                     sb.append("        ").append(leftType).append(" left = ").append(leftMapper).append(";\n");
                     sb.append("        List<").append(opType).append("> op = new ArrayList<>();\n");
                     sb.append("        List<").append(rightType).append("> right = new ArrayList<>();\n");
@@ -299,120 +378,34 @@ public class MapperGenerator implements CodeGenerator {
                 Map<String, Integer> scalarCaptureIndexByParserClass = new LinkedHashMap<>();
                 for (String param : mapping.paramNames()) {
                     String type = inferType(grammar, rule, param);
-                    List<AtomicElement> capturedElements = findCapturedElements(rule.body(), param);
-                    if (capturedElements.isEmpty()) {
-                        sb.append("        ").append(type).append(" ").append(param)
-                            .append(" = ").append(defaultValueForType(type)).append(";\n");
-                        continue;
-                    }
-
-                    Optional<String> listElementType = unwrapListType(type);
-                    if (listElementType.isPresent()) {
-                        sb.append("        List<").append(listElementType.get()).append("> ").append(param)
-                            .append(" = new ArrayList<>();\n");
-                        for (int i = 0; i < capturedElements.size(); i++) {
-                            AtomicElement element = capturedElements.get(i);
-                            AtomicElement normalized = normalizeCapturedElement(element).orElse(element);
-                            String parserClass = parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
-                                .orElse(ruleParserClass);
-                            String tokenVarName = "paramToken_" + safeName(param) + "_" + i;
-                            String candidateType = inferTypeFromElement(grammar, normalized);
-                            if (!isTypeCompatible(listElementType.get(), candidateType) && !"String".equals(listElementType.get())) {
-                                continue;
-                            }
-                            String mapExpression = mapExpressionForTargetType(
-                                listElementType.get(),
-                                normalized,
-                                tokenVarName,
-                                mappedClassByRuleName,
-                                tokenDeclByName,
-                                ruleByName);
-                            sb.append("        for (Token ").append(tokenVarName)
-                                .append(" : findDescendants(token, ").append(parserClass).append(")) {\n");
-                            sb.append("            ").append(param).append(".add(").append(mapExpression).append(");\n");
-                            sb.append("        }\n");
-                        }
-                        continue;
-                    }
-
-                    Optional<String> optionalElementType = unwrapOptionalType(type);
-                    if (optionalElementType.isPresent()) {
-                        sb.append("        Optional<").append(optionalElementType.get()).append("> ").append(param)
-                            .append(" = Optional.empty();\n");
-                        sb.append("        boolean found_").append(safeName(param)).append(" = false;\n");
-                        for (int i = 0; i < capturedElements.size(); i++) {
-                            AtomicElement element = capturedElements.get(i);
-                            AtomicElement normalized = normalizeCapturedElement(element).orElse(element);
-                            String parserClass = parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
-                                .orElse(ruleParserClass);
-                            int parserOccurrenceIndex =
-                                scalarCaptureIndexByParserClass.getOrDefault(parserClass, 0);
-                            scalarCaptureIndexByParserClass.put(parserClass, parserOccurrenceIndex + 1);
-                            String tokenVarName = "paramToken_" + safeName(param) + "_" + i;
-                            String candidateType = inferTypeFromElement(grammar, normalized);
-                            if (!isTypeCompatible(optionalElementType.get(), candidateType) && !"String".equals(optionalElementType.get())) {
-                                continue;
-                            }
-                            String mapExpression = mapExpressionForTargetType(
-                                optionalElementType.get(),
-                                normalized,
-                                tokenVarName,
-                                mappedClassByRuleName,
-                                tokenDeclByName,
-                                ruleByName);
-                            sb.append("        if (!found_").append(safeName(param)).append(") {\n");
-                            sb.append("            Token ").append(tokenVarName)
-                                .append(" = findDescendantByIndex(token, ").append(parserClass).append(", ")
-                                .append(parserOccurrenceIndex).append(");\n");
-                            sb.append("            if (").append(tokenVarName).append(" != null) {\n");
-                            sb.append("                ").append(param).append(" = Optional.ofNullable(").append(mapExpression).append(");\n");
-                            sb.append("                found_").append(safeName(param)).append(" = true;\n");
-                            sb.append("            }\n");
-                            sb.append("        }\n");
-                        }
+                    if (!lazyNode || !ASTGenerator.isLazyFieldType(type, astClass)) {
+                        appendParamMapping(sb, grammar, rule, param, parsersClass, ruleParserClass,
+                            scalarCaptureIndexByParserClass, mappedClassByRuleName, tokenDeclByName, ruleByName,
+                            parallelMapping);
                         continue;
                     }
-
-                    sb.append("        ").append(type).append(" ").append(param)
-                        .append(" = ").append(defaultValueForType(type)).append(";\n");
-                    sb.append("        boolean assigned_").append(safeName(param)).append(" = false;\n");
-                    for (int i = 0; i < capturedElements.size(); i++) {
-                        AtomicElement element = capturedElements.get(i);
-                        AtomicElement normalized = normalizeCapturedElement(element).orElse(element);
-                        String parserClass = parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
-                            .orElse(ruleParserClass);
-                        int parserOccurrenceIndex =
-                            scalarCaptureIndexByParserClass.getOrDefault(parserClass, 0);
-                        scalarCaptureIndexByParserClass.put(parserClass, parserOccurrenceIndex + 1);
-                        String tokenVarName = "paramToken_" + safeName(param) + "_" + i;
-                        String candidateType = inferTypeFromElement(grammar, normalized);
-                        if (!isTypeCompatible(type, candidateType) && !"String".equals(type)) {
-                            continue;
-                        }
-                        String mapExpression = mapExpressionForTargetType(
-                            type,
-                            normalized,
-                            tokenVarName,
-                            mappedClassByRuleName,
-                            tokenDeclByName,
-                            ruleByName);
-                        sb.append("        if (!assigned_").append(safeName(param)).append(") {\n");
-                        sb.append("            Token ").append(tokenVarName)
-                            .append(" = findDescendantByIndex(token, ").append(parserClass).append(", ")
-                            .append(parserOccurrenceIndex).append(");\n");
-                        sb.append("            if (").append(tokenVarName).append(" != null) {\n");
-                            sb.append("                ").append(param).append(" = ").append(mapExpression).append(";\n");
-                        sb.append("                assigned_").append(safeName(param)).append(" = true;\n");
-                        sb.append("            }\n");
-                        sb.append("        }\n");
-                    }
+                    // 初回アクセス時にトークンからマッピングする（Lazy が一度だけ評価することを保証する）
+                    StringBuilder deferred = new StringBuilder();
+                    appendParamMapping(deferred, grammar, rule, param, parsersClass, ruleParserClass,
+                        scalarCaptureIndexByParserClass, mappedClassByRuleName, tokenDeclByName, ruleByName,
+                        parallelMapping);
+                    sb.append("        ").append(astClass).append(".Lazy<").append(type).append("> lazy_")
+                        .append(safeName(param)).append(" = ").append(lazyOf(astClass, internSymbols)).append("() -> {\n");
+                    deferred.toString().lines().forEach(line ->
+                        sb.append(line.isEmpty() ? "" : "    ").append(line).append("\n"));
+                    sb.append("            return ").append(param).append(";\n");
+                    sb.append("        }").append(internSymbols ? ")" : "").append(");\n");
                 }
-                sb.append("        ").append(astClass).append(".").append(className).append(" mapped = new ")
-                    .append(astClass).append(".").append(className).append("(\n");
+                sb.append("        ").append(astClass).append(".").append(className).append(" mapped = ")
+                    .append(lazyNode ? "" : "new ").append(astClass).append(".").append(className)
+                    .append(lazyNode ? ".lazy(\n" : "(\n");
                 for (int i = 0; i < mapping.paramNames().size(); i++) {
                     String param = mapping.paramNames().get(i);
                     String suffix = i < mapping.paramNames().size() - 1 ? "," : "";
-                    sb.append("            ").append(param).append(suffix)
+                    String argument = lazyNode && ASTGenerator.isLazyFieldType(inferType(grammar, rule, param), astClass)
+                        ? "lazy_" + safeName(param)
+                        : param;
+                    sb.append("            ").append(argument).append(suffix)
                         .append(" // ").append(param).append("\n");
                 }
                 sb.append("        );\n");
@@ -477,9 +470,10 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        if (token == null) {\n");
         sb.append("            return null;\n");
         sb.append("        }\n");
+        String stripExpression = internSymbols ? "internStripped(raw)" : "raw.strip()";
         sb.append("        String raw = tokenTextCompat(token);\n");
         sb.append("        if (raw != null && !raw.isBlank()) {\n");
-        sb.append("            return raw.strip();\n");
+        sb.append("            return ").append(stripExpression).append(";\n");
         sb.append("        }\n");
         sb.append("        for (Token child : token.filteredChildren) {\n");
         sb.append("            String found = firstTokenText(child);\n");
@@ -487,7 +481,7 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("                return found;\n");
         sb.append("            }\n");
         sb.append("        }\n");
-        sb.append("        return raw == null ? null : raw.strip();\n");
+        sb.append("        return raw == null ? null : ").append(stripExpression).append(";\n");
         sb.append("    }\n\n");
 
         sb.append("    static String tokenTextCompat(Token token) {\n");
@@ -561,7 +555,11 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        int start = Math.max(0, tokenStartOffsetCompat(token));\n");
         sb.append("        int length = Math.max(0, consumedLengthCompat(token));\n");
         sb.append("        int end = start + length;\n");
-        sb.append("        NODE_SOURCE_SPANS.put(node, new int[]{start, end});\n");
+        if (parallelMapping) {
+            sb.append("        currentSpanSink().put(node, new int[]{start, end});\n");
+        } else {
+            sb.append("        NODE_SOURCE_SPANS.put(node, new int[]{start, end});\n");
+        }
         sb.append("        return node;\n");
         sb.append("    }\n\n");
 
@@ -576,6 +574,16 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        return Optional.of(new int[]{span[0], span[1]});\n");
         sb.append("    }\n\n");
 
+        // マッピング後に AST を書き換えるパス（Optimizer など）が、作り直したノードへ元のスパンを引き継ぐ
+        sb.append("    /** Records {@code [start, end)} as the source span of a node built after mapping. */\n");
+        sb.append("    public static <T> T registerSourceSpan(T node, int start, int end) {\n");
+        sb.append("        if (node != null) {\n");
+        sb.append("            ").append(parallelMapping ? "currentSpanSink()" : "NODE_SOURCE_SPANS")
+          .append(".put(node, new int[]{start, end});\n");
+        sb.append("        }\n");
+        sb.append("        return node;\n");
+        sb.append("    }\n\n");
+
         sb.append("    static StringSource createRootSourceCompat(String source) {\n");
         sb.append("        try {\n");
         sb.append("            java.lang.reflect.Method m = StringSource.class.getMethod(\"createRootSource\", String.class);\n");
@@ -609,7 +617,11 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        if (quoted.length() >= 2\n");
         sb.append("            && '\\'' == quoted.charAt(0)\n");
         sb.append("            && '\\'' == quoted.charAt(quoted.length() - 1)) {\n");
-        sb.append("            return quoted.substring(1, quoted.length() - 1);\n");
+        if (internSymbols) {
+            sb.append("            return intern(quoted, 1, quoted.length() - 1);\n");
+        } else {
+            sb.append("            return quoted.substring(1, quoted.length() - 1);\n");
+        }
         sb.append("        }\n");
         sb.append("        return quoted;\n");
         sb.append("    }\n");
@@ -636,7 +648,8 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        if (raw == null) {\n");
         sb.append("            return null;\n");
         sb.append("        }\n");
-        sb.append("        String text = raw.strip();\n");
+        // 先頭の空白は識別子開始までの走査で読み飛ばされるため、intern 時は strip() のコピーを作らない
+        sb.append("        String text = ").append(internSymbols ? "raw" : "raw.strip()").append(";\n");
         sb.append("        int start = -1;\n");
         sb.append("        int end = -1;\n");
         sb.append("        for (int i = 0; i < text.length(); i++) {\n");
@@ -657,15 +670,873 @@ public class MapperGenerator implements CodeGenerator {
         sb.append("        if (start < 0 || end <= start) {\n");
         sb.append("            return null;\n");
         sb.append("        }\n");
-        sb.append("        return text.substring(start, end);\n");
+        sb.append("        return ").append(internSymbols ? "intern(text, start, end)" : "text.substring(start, end)")
+          .append(";\n");
         sb.append("    }\n");
 
+        if (typedCaptures) {
+            appendPrimitiveConverters(sb);
+        }
+
+        if (internSymbols) {
+            appendSymbolTable(sb, sharedSymbols, parallelMapping || lazyAst, lazyAst);
+        }
+
+        if (parallelMapping) {
+            appendParallelMappingSupport(sb, internSymbols);
+        }
+
+        if (nodeIndex) {
+            appendNodeIndex(sb, grammar, astClass, mappingRules);
+        }
+
         sb.append("}\n");
 
         return new GeneratedSource(packageName, mapperClass, sb.toString());
     }
 
-    private boolean isLeftAssocRule(RuleDecl rule, MappingAnnotation mapping) {
+    /**
+     * 遅延フィールドを作る式の開き部分。{@code @internSymbols} 併用時は、後で別スレッドから具現化されても
+     * 生成元の parse の表へ intern するよう withParseSymbols で包む（閉じ括弧は呼び出し側で一つ足す）。
+     */
+    private static String lazyOf(String astClass, boolean internSymbols) {
+        return astClass + ".Lazy.of(" + (internSymbols ? "withParseSymbols(" : "");
+    }
+
+    private boolean hasLazyFields(GrammarDecl grammar, RuleDecl rule, MappingAnnotation mapping, String astClass) {
+        // ASTGenerator と同じ型推論で判定し、生成される AST 側のクラス形状と一致させる
+        ASTGenerator astGenerator = new ASTGenerator();
+        return mapping.paramNames().stream()
+            .anyMatch(p -> ASTGenerator.isLazyFieldType(astGenerator.inferType(grammar, rule, p), astClass));
+    }
+
+    /**
+     * {@code @lazyAst} 有効時の結合規則ルール用コード。left / op / right をそれぞれ
+     * 独立した Lazy とし、繰り返し部分の走査は初回アクセスまで行わない。
+     */
+    private void appendLazyAssocFields(
+            StringBuilder sb,
+            String astClass,
+            String className,
+            String leftType,
+            String opType,
+            String rightType,
+            String leftMapper,
+            String rightMapper,
+            String repeatParserClass,
+            String opParserClass,
+            String rightParserClass,
+            boolean internSymbols) {
+        String lazyOf = lazyOf(astClass, internSymbols);
+        String lazyEnd = internSymbols ? "})" : "}";
+        sb.append("        Token mappingToken = working;\n");
+        String leftArgument = "left";
+        if (ASTGenerator.isLazyFieldType(leftType, astClass)) {
+            sb.append("        ").append(astClass).append(".Lazy<").append(leftType).append("> lazy_left = ")
+              .append(lazyOf).append("() -> ").append(leftMapper).append(internSymbols ? "));\n" : ");\n");
+            leftArgument = "lazy_left";
+        } else {
+            sb.append("        ").append(leftType).append(" left = ").append(leftMapper).append(";\n");
+        }
+        sb.append("        ").append(astClass).append(".Lazy<List<").append(opType).append(">> lazy_op = ")
+          .append(lazyOf).append("() -> {\n");
+        sb.append("            List<").append(opType).append("> op = new ArrayList<>();\n");
+        sb.append("            for (Token repeatToken : findDescendants(mappingToken, ").append(repeatParserClass).append(")) {\n");
+        sb.append("                Token opToken = findFirstDescendant(repeatToken, ").append(opParserClass).append(");\n");
+        sb.append("                String opValue = firstTokenText(opToken == null ? repeatToken : opToken);\n");
+        sb.append("                if (opValue != null && !opValue.isEmpty()) {\n");
+        sb.append("                    op.add(stripQuotes(opValue));\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return op;\n");
+        sb.append("        ").append(lazyEnd).append(");\n");
+        sb.append("        ").append(astClass).append(".Lazy<List<").append(rightType).append(">> lazy_right = ")
+          .append(lazyOf).append("() -> {\n");
+        sb.append("            List<").append(rightType).append("> right = new ArrayList<>();\n");
+        sb.append("            for (Token repeatToken : findDescendants(mappingToken, ").append(repeatParserClass).append(")) {\n");
+        sb.append("                Token rightToken = findFirstDescendant(repeatToken, ").append(rightParserClass).append(");\n");
+        sb.append("                if (rightToken != null) {\n");
+        sb.append("                    right.add(").append(rightMapper).append(");\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return right;\n");
+        sb.append("        ").append(lazyEnd).append(");\n");
+        sb.append("        return registerNodeSourceSpan(").append(astClass).append(".").append(className)
+          .append(".lazy(").append(leftArgument).append(", lazy_op, lazy_right), mappingToken);\n");
+    }
+
+    private void appendParamMapping(
+            StringBuilder sb,
+            GrammarDecl grammar,
+            RuleDecl rule,
+            String param,
+            String parsersClass,
+            String ruleParserClass,
+            Map<String, Integer> scalarCaptureIndexByParserClass,
+            Map<String, String> mappedClassByRuleName,
+            Map<String, TokenDecl> tokenDeclByName,
+            Map<String, RuleDecl> ruleByName,
+            boolean parallelMapping) {
+        String type = inferType(grammar, rule, param);
+        List<AtomicElement> capturedElements = findCapturedElements(rule.body(), param);
+        if (capturedElements.isEmpty()) {
+            sb.append("        ").append(type).append(" ").append(param)
+                .append(" = ").append(defaultValueForType(type)).append(";\n");
+            return;
+        }
+
+        Optional<String> listElementType = unwrapListType(type);
+        if (listElementType.isPresent()) {
+            sb.append("        List<").append(listElementType.get()).append("> ").append(param)
+                .append(" = new ArrayList<>();\n");
+            for (int i = 0; i < capturedElements.size(); i++) {
+                AtomicElement element = capturedElements.get(i);
+                AtomicElement normalized = normalizeCapturedElement(element).orElse(element);
+                String parserClass = parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
+                    .orElse(ruleParserClass);
+                String tokenVarName = "paramToken_" + safeName(param) + "_" + i;
+                String candidateType = inferTypeFromElement(grammar, normalized);
+                if (!isTypeCompatible(listElementType.get(), candidateType) && !"String".equals(listElementType.get())) {
+                    continue;
+                }
+                String mapExpression = mapExpressionForTargetType(
+                    listElementType.get(),
+                    normalized,
+                    tokenVarName,
+                    mappedClassByRuleName,
+                    tokenDeclByName,
+                    ruleByName);
+                if (parallelMapping
+                    && mapsToMappedClass(listElementType.get(), normalized, mappedClassByRuleName)) {
+                    // 独立したマップ済み要素のみ並列化対象（順序は mapAllInOrder が保持する）
+                    sb.append("        mapAllInOrder(").append(param)
+                        .append(", findDescendants(token, ").append(parserClass).append("), ")
+                        .append(tokenVarName).append(" -> ").append(mapExpression).append(");\n");
+                    continue;
+                }
+                sb.append("        for (Token ").append(tokenVarName)
+                    .append(" : findDescendants(token, ").append(parserClass).append(")) {\n");
+                sb.append("            ").append(param).append(".add(").append(mapExpression).append(");\n");
+                sb.append("        }\n");
+            }
+            return;
+        }
+
+        Optional<String> optionalElementType = unwrapOptionalType(type);
+        if (optionalElementType.isPresent()) {
+            sb.append("        Optional<").append(optionalElementType.get()).append("> ").append(param)
+                .append(" = Optional.empty();\n");
+            sb.append("        boolean found_").append(safeName(param)).append(" = false;\n");
+            for (int i = 0; i < capturedElements.size(); i++) {
+                AtomicElement element = capturedElements.get(i);
+                AtomicElement normalized = normalizeCapturedElement(element).orElse(element);
+                String parserClass = parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
+                    .orElse(ruleParserClass);
+                int parserOccurrenceIndex =
+                    scalarCaptureIndexByParserClass.getOrDefault(parserClass, 0);
+                scalarCaptureIndexByParserClass.put(parserClass, parserOccurrenceIndex + 1);
+                String tokenVarName = "paramToken_" + safeName(param) + "_" + i;
+                String candidateType = inferTypeFromElement(grammar, normalized);
+                if (!isTypeCompatible(optionalElementType.get(), candidateType) && !"String".equals(optionalElementType.get())) {
+                    continue;
+                }
+                String mapExpression = mapExpressionForTargetType(
+                    optionalElementType.get(),
+                    normalized,
+                    tokenVarName,
+                    mappedClassByRuleName,
+                    tokenDeclByName,
+                    ruleByName);
+                sb.append("        if (!found_").append(safeName(param)).append(") {\n");
+                sb.append("            Token ").append(tokenVarName)
+                    .append(" = findDescendantByIndex(token, ").append(parserClass).append(", ")
+                    .append(parserOccurrenceIndex).append(");\n");
+                sb.append("            if (").append(tokenVarName).append(" != null) {\n");
+                sb.append("                ").append(param).append(" = Optional.ofNullable(").append(mapExpression).append(");\n");
+                sb.append("                found_").append(safeName(param)).append(" = true;\n");
+                sb.append("            }\n");
+                sb.append("        }\n");
+            }
+            return;
+        }
+
+        sb.append("        ").append(type).append(" ").append(param)
+            .append(" = ").append(defaultValueForType(type)).append(";\n");
+        sb.append("        boolean assigned_").append(safeName(param)).append(" = false;\n");
+        for (int i = 0; i < capturedElements.size(); i++) {
+            AtomicElement element = capturedElements.get(i);
+            AtomicElement normalized = normalizeCapturedElement(element).orElse(element);
+            String parserClass = parserClassLiteral(normalized, parsersClass, tokenDeclByName, ruleByName)
+                .orElse(ruleParserClass);
+            int parserOccurrenceIndex =
+                scalarCaptureIndexByParserClass.getOrDefault(parserClass, 0);
+            scalarCaptureIndexByParserClass.put(parserClass, parserOccurrenceIndex + 1);
+            String tokenVarName = "paramToken_" + safeName(param) + "_" + i;
+            String candidateType = inferTypeFromElement(grammar, normalized);
+            if (!isTypeCompatible(type, candidateType) && !"String".equals(type)) {
+                continue;
+            }
+            String mapExpression = mapExpressionForTargetType(
+                type,
+                normalized,
+                tokenVarName,
+                mappedClassByRuleName,
+                tokenDeclByName,
+                ruleByName);
+            sb.append("        if (!assigned_").append(safeName(param)).append(") {\n");
+            sb.append("            Token ").append(tokenVarName)
+                .append(" = findDescendantByIndex(token, ").append(parserClass).append(", ")
+                .append(parserOccurrenceIndex).append(");\n");
+            sb.append("            if (").append(tokenVarName).append(" != null) {\n");
+                sb.append("                ").append(param).append(" = ").append(mapExpression).append(";\n");
+            sb.append("                assigned_").append(safeName(param)).append(" = true;\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+        }
+    }
+
+    /**
+     * 型ヒント付きキャプチャ用の変換ヘルパー。トークン文字列の前後の空白は添字で読み飛ばし、
+     * long / int は {@code parseLong(CharSequence, int, int, int)} で部分文字列を作らずに変換する。
+     */
+    private void appendPrimitiveConverters(StringBuilder sb) {
+        sb.append("\n");
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Primitive Captures\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    private static final double[] EXACT_POWERS_OF_TEN = {\n");
+        sb.append("        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,\n");
+        sb.append("        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22\n");
+        sb.append("    };\n\n");
+
+        sb.append("    static String rawTokenText(Token token) {\n");
+        sb.append("        if (token == null) {\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n");
+        sb.append("        String raw = tokenTextCompat(token);\n");
+        sb.append("        if (raw != null && !raw.isBlank()) {\n");
+        sb.append("            return raw;\n");
+        sb.append("        }\n");
+        sb.append("        for (Token child : token.filteredChildren) {\n");
+        sb.append("            String found = rawTokenText(child);\n");
+        sb.append("            if (found != null && !found.isBlank()) {\n");
+        sb.append("                return found;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        return raw;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static String requireTokenText(Token token, String type) {\n");
+        sb.append("        String raw = rawTokenText(token);\n");
+        sb.append("        if (raw == null || raw.isBlank()) {\n");
+        sb.append("            throw new IllegalArgumentException(\"Missing \" + type + \" token text\");\n");
+        sb.append("        }\n");
+        sb.append("        return raw;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static int textStart(String raw) {\n");
+        sb.append("        int start = 0;\n");
+        sb.append("        while (start < raw.length() && Character.isWhitespace(raw.charAt(start))) {\n");
+        sb.append("            start++;\n");
+        sb.append("        }\n");
+        sb.append("        return start;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static int textEnd(String raw) {\n");
+        sb.append("        int end = raw.length();\n");
+        sb.append("        while (end > 0 && Character.isWhitespace(raw.charAt(end - 1))) {\n");
+        sb.append("            end--;\n");
+        sb.append("        }\n");
+        sb.append("        return end;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static long longValueOf(Token token) {\n");
+        sb.append("        String raw = requireTokenText(token, \"long\");\n");
+        sb.append("        return Long.parseLong(raw, textStart(raw), textEnd(raw), 10);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static int intValueOf(Token token) {\n");
+        sb.append("        String raw = requireTokenText(token, \"int\");\n");
+        sb.append("        return Integer.parseInt(raw, textStart(raw), textEnd(raw), 10);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static boolean booleanValueOf(Token token) {\n");
+        sb.append("        String raw = requireTokenText(token, \"boolean\");\n");
+        sb.append("        int start = textStart(raw);\n");
+        sb.append("        int length = textEnd(raw) - start;\n");
+        sb.append("        if (length == 4 && raw.regionMatches(true, start, \"true\", 0, 4)) {\n");
+        sb.append("            return true;\n");
+        sb.append("        }\n");
+        sb.append("        if (length == 5 && raw.regionMatches(true, start, \"false\", 0, 5)) {\n");
+        sb.append("            return false;\n");
+        sb.append("        }\n");
+        sb.append("        throw new IllegalArgumentException(\"Not a boolean literal: \" + raw.strip());\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static double doubleValueOf(Token token) {\n");
+        sb.append("        String raw = requireTokenText(token, \"double\");\n");
+        sb.append("        int start = textStart(raw);\n");
+        sb.append("        int end = textEnd(raw);\n");
+        sb.append("        int i = start;\n");
+        sb.append("        boolean negative = false;\n");
+        sb.append("        if (i < end && (raw.charAt(i) == '-' || raw.charAt(i) == '+')) {\n");
+        sb.append("            negative = raw.charAt(i) == '-';\n");
+        sb.append("            i++;\n");
+        sb.append("        }\n");
+        sb.append("        // Fast path: up to 15 significant digits divided by an exact power of ten is correctly rounded.\n");
+        sb.append("        long mantissa = 0;\n");
+        sb.append("        int significantDigits = 0;\n");
+        sb.append("        int scale = 0;\n");
+        sb.append("        boolean seenDigit = false;\n");
+        sb.append("        boolean seenDot = false;\n");
+        sb.append("        boolean simple = true;\n");
+        sb.append("        for (; i < end; i++) {\n");
+        sb.append("            char c = raw.charAt(i);\n");
+        sb.append("            if (c >= '0' && c <= '9') {\n");
+        sb.append("                if (significantDigits == 15) {\n");
+        sb.append("                    simple = false;\n");
+        sb.append("                    break;\n");
+        sb.append("                }\n");
+        sb.append("                mantissa = mantissa * 10 + (c - '0');\n");
+        sb.append("                if (mantissa != 0) {\n");
+        sb.append("                    significantDigits++;\n");
+        sb.append("                }\n");
+        sb.append("                if (seenDot) {\n");
+        sb.append("                    scale++;\n");
+        sb.append("                }\n");
+        sb.append("                seenDigit = true;\n");
+        sb.append("            } else if (c == '.' && !seenDot) {\n");
+        sb.append("                seenDot = true;\n");
+        sb.append("            } else {\n");
+        sb.append("                simple = false;\n");
+        sb.append("                break;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        if (simple && seenDigit && scale < EXACT_POWERS_OF_TEN.length) {\n");
+        sb.append("            double value = mantissa / EXACT_POWERS_OF_TEN[scale];\n");
+        sb.append("            return negative ? -value : value;\n");
+        sb.append("        }\n");
+        sb.append("        return Double.parseDouble(raw.substring(start, end));\n");
+        sb.append("    }\n");
+    }
+
+    private boolean isSharedSymbolScope(GrammarDecl grammar) {
+        String scope = GrammarSettings.blockEntry(grammar, "internSymbols", "scope")
+            .or(() -> GrammarSettings.stringValue(grammar, "internSymbols"))
+            .orElse("parse");
+        return switch (scope.toLowerCase()) {
+            case "parse", "true" -> false;
+            case "shared" -> true;
+            default -> throw new IllegalArgumentException(
+                "Unsupported @internSymbols scope: '" + scope + "' (expected parse or shared)");
+        };
+    }
+
+    /**
+     * {@code @nodeIndex} 有効時に生成する索引。
+     *
+     * <p>マッピング直後に AST を一度だけ先行順で走査して密な id を振り、親 id・深さ・スパンを
+     * プリミティブ配列に格納する。ノードから id への対応は恒等ハッシュで引くため親の参照は O(1)。
+     * スパンは入れ子（または互いに素）なので、区間を「最も深いノード」ごとの区分に平坦化し、
+     * オフセット検索は区分開始位置の二分探索（O(log n)）で行う。</p>
+     */
+    private void appendNodeIndex(StringBuilder sb, GrammarDecl grammar, String astClass,
+            Map<String, RuleDecl> mappingRules) {
+        sb.append("\n");
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Node Index\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    /** Node index built by the most recent {@code parse(...)} call, or {@code null}. */\n");
+        sb.append("    public static NodeIndex lastNodeIndex() {\n");
+        sb.append("        return lastNodeIndex;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Dense pre-order node ids with parent, depth and span columns, plus an interval index for offset lookup.\n");
+        sb.append("     */\n");
+        sb.append("    public static final class NodeIndex {\n\n");
+        sb.append("        public static final int NO_NODE = -1;\n\n");
+        sb.append("        private final java.util.IdentityHashMap<Object, Integer> ids = new java.util.IdentityHashMap<>();\n");
+        sb.append("        private ").append(astClass).append("[] nodes = new ").append(astClass).append("[64];\n");
+        sb.append("        private int[] parents = new int[64];\n");
+        sb.append("        private int[] depths = new int[64];\n");
+        sb.append("        private int[] spanStarts = new int[64];\n");
+        sb.append("        private int[] spanEnds = new int[64];\n");
+        sb.append("        private int size;\n");
+        sb.append("        private int[] segmentStarts = new int[0];\n");
+        sb.append("        private int[] segmentNodes = new int[0];\n");
+        sb.append("        private int segmentCount;\n\n");
+
+        sb.append("        private NodeIndex() {}\n\n");
+
+        sb.append("        /** Indexes {@code root} using the spans registered by this mapper. */\n");
+        sb.append("        public static NodeIndex build(").append(astClass).append(" root) {\n");
+        sb.append("            NodeIndex index = new NodeIndex();\n");
+        sb.append("            index.visit(root, NO_NODE, 0);\n");
+        sb.append("            index.buildIntervals();\n");
+        sb.append("            return index;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public int size() {\n");
+        sb.append("            return size;\n");
+        sb.append("        }\n\n");
+        sb.append("        public ").append(astClass).append(" node(int id) {\n");
+        sb.append("            return id < 0 ? null : nodes[id];\n");
+        sb.append("        }\n\n");
+        sb.append("        public int idOf(Object node) {\n");
+        sb.append("            Integer id = ids.get(node);\n");
+        sb.append("            return id == null ? NO_NODE : id;\n");
+        sb.append("        }\n\n");
+        sb.append("        public int parentId(int id) {\n");
+        sb.append("            return parents[id];\n");
+        sb.append("        }\n\n");
+        sb.append("        public int depth(int id) {\n");
+        sb.append("            return depths[id];\n");
+        sb.append("        }\n\n");
+        sb.append("        public int spanStart(int id) {\n");
+        sb.append("            return spanStarts[id];\n");
+        sb.append("        }\n\n");
+        sb.append("        public int spanEnd(int id) {\n");
+        sb.append("            return spanEnds[id];\n");
+        sb.append("        }\n\n");
+        sb.append("        public Optional<").append(astClass).append("> parentOf(Object node) {\n");
+        sb.append("            int id = idOf(node);\n");
+        sb.append("            return id < 0 ? Optional.empty() : Optional.ofNullable(node(parents[id]));\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Id of the deepest node whose span contains {@code offset}, or {@link #NO_NODE}. */\n");
+        sb.append("        public int nodeIdAt(int offset) {\n");
+        sb.append("            int low = 0;\n");
+        sb.append("            int high = segmentCount - 1;\n");
+        sb.append("            int found = -1;\n");
+        sb.append("            while (low <= high) {\n");
+        sb.append("                int mid = (low + high) >>> 1;\n");
+        sb.append("                if (segmentStarts[mid] <= offset) {\n");
+        sb.append("                    found = mid;\n");
+        sb.append("                    low = mid + 1;\n");
+        sb.append("                } else {\n");
+        sb.append("                    high = mid - 1;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return found < 0 ? NO_NODE : segmentNodes[found];\n");
+        sb.append("        }\n\n");
+        sb.append("        public Optional<").append(astClass).append("> nodeAt(int offset) {\n");
+        sb.append("            return Optional.ofNullable(node(nodeIdAt(offset)));\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void visit(Object value, int parent, int depth) {\n");
+        sb.append("            if (value instanceof ").append(astClass).append(" node) {\n");
+        sb.append("                add(node, parent, depth);\n");
+        sb.append("            } else if (value instanceof List<?> list) {\n");
+        sb.append("                for (Object element : list) {\n");
+        sb.append("                    visit(element, parent, depth);\n");
+        sb.append("                }\n");
+        sb.append("            } else if (value instanceof Optional<?> optional && optional.isPresent()) {\n");
+        sb.append("                visit(optional.get(), parent, depth);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void add(").append(astClass).append(" node, int parent, int depth) {\n");
+        sb.append("            if (ids.containsKey(node)) {\n");
+        sb.append("                // shared subtree (e.g. hash-consed): keep the first parent\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            if (size == nodes.length) {\n");
+        sb.append("                int capacity = size * 2;\n");
+        sb.append("                nodes = java.util.Arrays.copyOf(nodes, capacity);\n");
+        sb.append("                parents = java.util.Arrays.copyOf(parents, capacity);\n");
+        sb.append("                depths = java.util.Arrays.copyOf(depths, capacity);\n");
+        sb.append("                spanStarts = java.util.Arrays.copyOf(spanStarts, capacity);\n");
+        sb.append("                spanEnds = java.util.Arrays.copyOf(spanEnds, capacity);\n");
+        sb.append("            }\n");
+        sb.append("            int id = size++;\n");
+        sb.append("            int[] span = NODE_SOURCE_SPANS.get(node);\n");
+        sb.append("            nodes[id] = node;\n");
+        sb.append("            parents[id] = parent;\n");
+        sb.append("            depths[id] = depth;\n");
+        sb.append("            spanStarts[id] = span == null ? -1 : span[0];\n");
+        sb.append("            spanEnds[id] = span == null ? -1 : span[1];\n");
+        sb.append("            ids.put(node, id);\n");
+        sb.append("            switch (node) {\n");
+        for (Map.Entry<String, RuleDecl> entry : mappingRules.entrySet()) {
+            RuleDecl rule = entry.getValue();
+            List<String> childParams = new ArrayList<>();
+            for (String param : getMappingAnnotation(rule).orElseThrow().paramNames()) {
+                String type = inferType(grammar, rule, param);
+                if (!type.equals("String") && primitiveConverter(type).isEmpty()
+                    && !unwrapListType(type).flatMap(this::primitiveConverter).isPresent()
+                    && !unwrapOptionalType(type).flatMap(this::primitiveConverter).isPresent()) {
+                    childParams.add(param);
+                }
+            }
+            sb.append("                case ").append(astClass).append(".").append(entry.getKey()).append(" n -> {");
+            if (childParams.isEmpty()) {
+                sb.append("}\n");
+                continue;
+            }
+            sb.append("\n");
+            for (String param : childParams) {
+                sb.append("                    visit(n.").append(param).append("(), id, depth + 1);\n");
+            }
+            sb.append("                }\n");
+        }
+        sb.append("                default -> {}\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /**\n");
+        sb.append("         * Flattens nested spans into segments labelled with the deepest covering node.\n");
+        sb.append("         */\n");
+        sb.append("        private void buildIntervals() {\n");
+        sb.append("            Integer[] order = new Integer[size];\n");
+        sb.append("            int spanned = 0;\n");
+        sb.append("            for (int id = 0; id < size; id++) {\n");
+        sb.append("                if (spanStarts[id] >= 0 && spanEnds[id] > spanStarts[id]) {\n");
+        sb.append("                    order[spanned++] = id;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            // start ascending, outer spans first; the sort is stable so ancestors stay ahead on ties\n");
+        sb.append("            java.util.Arrays.sort(order, 0, spanned, (a, b) -> spanStarts[a] != spanStarts[b]\n");
+        sb.append("                ? Integer.compare(spanStarts[a], spanStarts[b])\n");
+        sb.append("                : Integer.compare(spanEnds[b], spanEnds[a]));\n");
+        sb.append("            segmentStarts = new int[spanned * 2 + 1];\n");
+        sb.append("            segmentNodes = new int[spanned * 2 + 1];\n");
+        sb.append("            int[] open = new int[spanned];\n");
+        sb.append("            int top = 0;\n");
+        sb.append("            int cursor = Integer.MIN_VALUE;\n");
+        sb.append("            for (int i = 0; i < spanned; i++) {\n");
+        sb.append("                int id = order[i];\n");
+        sb.append("                int start = spanStarts[id];\n");
+        sb.append("                while (top > 0 && spanEnds[open[top - 1]] <= start) {\n");
+        sb.append("                    int closing = open[--top];\n");
+        sb.append("                    if (cursor < spanEnds[closing]) {\n");
+        sb.append("                        addSegment(cursor, closing);\n");
+        sb.append("                        cursor = spanEnds[closing];\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                if (cursor < start) {\n");
+        sb.append("                    addSegment(cursor, top > 0 ? open[top - 1] : NO_NODE);\n");
+        sb.append("                    cursor = start;\n");
+        sb.append("                }\n");
+        sb.append("                open[top++] = id;\n");
+        sb.append("            }\n");
+        sb.append("            while (top > 0) {\n");
+        sb.append("                int closing = open[--top];\n");
+        sb.append("                if (cursor < spanEnds[closing]) {\n");
+        sb.append("                    addSegment(cursor, closing);\n");
+        sb.append("                    cursor = spanEnds[closing];\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            addSegment(cursor, NO_NODE);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private void addSegment(int start, int node) {\n");
+        sb.append("            if (segmentCount > 0 && segmentNodes[segmentCount - 1] == node) {\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+        sb.append("            segmentStarts[segmentCount] = start;\n");
+        sb.append("            segmentNodes[segmentCount] = node;\n");
+        sb.append("            segmentCount++;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * {@code @internSymbols} 有効時に生成するシンボルテーブル。
+     *
+     * <p>トークン文字列の範囲 [start, end) を直接ハッシュして照合するため、
+     * 既出の識別子・キーワードでは strip() や substring() の中間コピーを作らない。
+     * 表は parse() の間だけそのスレッドに束縛するので同期しない。</p>
+     *
+     * <p>{@code concurrent}（{@code @parallelMapping} か {@code @lazyAst} の併用）のときは、別スレッドで
+     * マッピングするリーフや遅延フィールドが同じ parse の ConcurrentHashMap を背後に持つ表を使い、
+     * 同じ識別子がスレッドをまたいでも同一インスタンスになる。</p>
+     */
+    private void appendSymbolTable(StringBuilder sb, boolean sharedSymbols, boolean concurrent, boolean lazyAst) {
+        sb.append("\n");
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Symbol Interning\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    static String internStripped(String raw) {\n");
+        sb.append("        int start = 0;\n");
+        sb.append("        int end = raw.length();\n");
+        sb.append("        while (start < end && Character.isWhitespace(raw.charAt(start))) {\n");
+        sb.append("            start++;\n");
+        sb.append("        }\n");
+        sb.append("        while (end > start && Character.isWhitespace(raw.charAt(end - 1))) {\n");
+        sb.append("            end--;\n");
+        sb.append("        }\n");
+        sb.append("        return intern(raw, start, end);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Interns {@code text[start, end)} in the table of the parse being mapped on this thread, if any. */\n");
+        sb.append("    static String intern(String text, int start, int end) {\n");
+        sb.append("        SymbolTable symbols = SYMBOLS.get();\n");
+        sb.append("        return symbols == null ? text.substring(start, end) : symbols.intern(text, start, end);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Number of distinct symbols interned by the most recent {@code parse(...)} to finish. */\n");
+        sb.append("    public static int internedSymbolCount() {\n");
+        sb.append("        return lastInternedSymbolCount;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static void restoreSymbols(SymbolTable previous) {\n");
+        sb.append("        if (previous == null) {\n");
+        sb.append("            SYMBOLS.remove();\n");
+        sb.append("        } else {\n");
+        sb.append("            SYMBOLS.set(previous);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        if (concurrent) {
+            sb.append("    /**\n");
+            sb.append("     * Binds a view of {@code symbols} (the table of the parse being mapped) to this thread and returns\n");
+            sb.append("     * the previous binding for {@link #restoreSymbols}.\n");
+            sb.append("     */\n");
+            sb.append("    static SymbolTable bindSymbols(SymbolTable symbols) {\n");
+            sb.append("        SymbolTable previous = SYMBOLS.get();\n");
+            sb.append("        if (symbols != null) {\n");
+            sb.append("            SYMBOLS.set(symbols.view());\n");
+            sb.append("        }\n");
+            sb.append("        return previous;\n");
+            sb.append("    }\n\n");
+        }
+        if (lazyAst) {
+            sb.append("    /** Makes a deferred field intern into the table of the parse that created it, on whichever thread. */\n");
+            sb.append("    static <V> java.util.function.Supplier<V> withParseSymbols(java.util.function.Supplier<V> mapping) {\n");
+            sb.append("        SymbolTable symbols = SYMBOLS.get();\n");
+            sb.append("        return () -> {\n");
+            sb.append("            SymbolTable previous = bindSymbols(symbols);\n");
+            sb.append("            try {\n");
+            sb.append("                return mapping.get();\n");
+            sb.append("            } finally {\n");
+            sb.append("                restoreSymbols(previous);\n");
+            sb.append("            }\n");
+            sb.append("        };\n");
+            sb.append("    }\n\n");
+        }
+
+        if (sharedSymbols) {
+            sb.append("    static String canonicalSymbol(String symbol) {\n");
+            sb.append("        synchronized (SHARED_SYMBOLS) {\n");
+            sb.append("            java.lang.ref.WeakReference<String> ref = SHARED_SYMBOLS.get(symbol);\n");
+            sb.append("            String existing = ref == null ? null : ref.get();\n");
+            sb.append("            if (existing != null) {\n");
+            sb.append("                return existing;\n");
+            sb.append("            }\n");
+            sb.append("            SHARED_SYMBOLS.put(symbol, new java.lang.ref.WeakReference<>(symbol));\n");
+            sb.append("            return symbol;\n");
+            sb.append("        }\n");
+            sb.append("    }\n\n");
+        }
+
+        if (concurrent) {
+            sb.append("    /**\n");
+            sb.append("     * Interned symbols of one parse as seen from one thread; not thread-safe. Other threads mapping the\n");
+            sb.append("     * same parse use a {@link #view()} over the same {@code parse} map, so each symbol has one instance.\n");
+            sb.append("     */\n");
+        } else {
+            sb.append("    /** Interned symbols of one parse on one thread; not thread-safe. */\n");
+        }
+        sb.append("    static final class SymbolTable {\n");
+        sb.append("        private static final int INITIAL_CAPACITY = 256;\n\n");
+        if (concurrent) {
+            sb.append("        private final java.util.concurrent.ConcurrentHashMap<String, String> parse;\n");
+        }
+        sb.append("        private String[] entries = new String[INITIAL_CAPACITY];\n");
+        sb.append("        private int size;\n\n");
+        if (concurrent) {
+            sb.append("        SymbolTable() {\n");
+            sb.append("            this(new java.util.concurrent.ConcurrentHashMap<>());\n");
+            sb.append("        }\n\n");
+            sb.append("        private SymbolTable(java.util.concurrent.ConcurrentHashMap<String, String> parse) {\n");
+            sb.append("            this.parse = parse;\n");
+            sb.append("        }\n\n");
+            sb.append("        /** An empty thread-local table over the same parse's symbols. */\n");
+            sb.append("        SymbolTable view() {\n");
+            sb.append("            return new SymbolTable(parse);\n");
+            sb.append("        }\n\n");
+        }
+        sb.append("        String intern(String text, int start, int end) {\n");
+        sb.append("            int length = end - start;\n");
+        sb.append("            int hash = 0;\n");
+        sb.append("            for (int i = start; i < end; i++) {\n");
+        sb.append("                hash = 31 * hash + text.charAt(i);\n");
+        sb.append("            }\n");
+        sb.append("            int mask = entries.length - 1;\n");
+        sb.append("            int slot = spread(hash) & mask;\n");
+        sb.append("            for (String entry = entries[slot]; entry != null; entry = entries[slot]) {\n");
+        sb.append("                if (entry.length() == length && entry.regionMatches(0, text, start, length)) {\n");
+        sb.append("                    return entry;\n");
+        sb.append("                }\n");
+        sb.append("                slot = (slot + 1) & mask;\n");
+        sb.append("            }\n");
+        sb.append("            String symbol = start == 0 && end == text.length() ? text : text.substring(start, end);\n");
+        if (sharedSymbols) {
+            sb.append("            symbol = canonicalSymbol(symbol);\n");
+        }
+        if (concurrent) {
+            sb.append("            String existing = parse.putIfAbsent(symbol, symbol);\n");
+            sb.append("            if (existing != null) {\n");
+            sb.append("                symbol = existing;\n");
+            sb.append("            }\n");
+        }
+        sb.append("            entries[slot] = symbol;\n");
+        sb.append("            if (++size * 2 > entries.length) {\n");
+        sb.append("                rehash();\n");
+        sb.append("            }\n");
+        sb.append("            return symbol;\n");
+        sb.append("        }\n\n");
+        if (concurrent) {
+            sb.append("        /** Distinct symbols of the whole parse, across every view. */\n");
+        }
+        sb.append("        int size() {\n");
+        sb.append("            return ").append(concurrent ? "parse.size()" : "size").append(";\n");
+        sb.append("        }\n\n");
+        sb.append("        private void rehash() {\n");
+        sb.append("            String[] old = entries;\n");
+        sb.append("            entries = new String[old.length * 2];\n");
+        sb.append("            int mask = entries.length - 1;\n");
+        sb.append("            for (String entry : old) {\n");
+        sb.append("                if (entry == null) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                // String.hashCode() uses the same polynomial as the range hash in intern()\n");
+        sb.append("                int slot = spread(entry.hashCode()) & mask;\n");
+        sb.append("                while (entries[slot] != null) {\n");
+        sb.append("                    slot = (slot + 1) & mask;\n");
+        sb.append("                }\n");
+        sb.append("                entries[slot] = entry;\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+        sb.append("        private static int spread(int hash) {\n");
+        sb.append("            return hash ^ (hash >>> 16);\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    /**
+     * {@code @parallelMapping} 有効時に生成する ForkJoin ベースの List マッピング支援コード。
+     *
+     * <p>各リーフタスクはスレッドローカルなスパンバッファに登録し、join 後に呼び出し元スレッドで
+     * マージするため、IdentityHashMap を並行に書き換えることはない。{@code @internSymbols} 併用時は
+     * 呼び出し元の parse の表をタスクへ渡し、各リーフはその表のビューへ intern する。</p>
+     */
+    private void appendParallelMappingSupport(StringBuilder sb, boolean internSymbols) {
+        sb.append("\n");
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Parallel Mapping\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    public static int getParallelMappingThreshold() {\n");
+        sb.append("        return parallelMappingThreshold;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public static void setParallelMappingThreshold(int threshold) {\n");
+        sb.append("        parallelMappingThreshold = Math.max(1, threshold);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    static java.util.Map<Object, int[]> currentSpanSink() {\n");
+        sb.append("        java.util.Map<Object, int[]> sink = SPAN_SINK.get();\n");
+        sb.append("        return sink == null ? NODE_SOURCE_SPANS : sink;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @SuppressWarnings(\"unchecked\")\n");
+        sb.append("    static <R> void mapAllInOrder(List<R> target, List<Token> tokens, java.util.function.Function<Token, R> mapper) {\n");
+        sb.append("        int size = tokens.size();\n");
+        sb.append("        if (size < parallelMappingThreshold) {\n");
+        sb.append("            for (Token t : tokens) {\n");
+        sb.append("                target.add(mapper.apply(t));\n");
+        sb.append("            }\n");
+        sb.append("            return;\n");
+        sb.append("        }\n");
+        sb.append("        Object[] results = new Object[size];\n");
+        sb.append("        int parallelism = Math.max(1, java.util.concurrent.ForkJoinPool.getCommonPoolParallelism());\n");
+        sb.append("        int leafSize = Math.max(64, size / (parallelism * 8));\n");
+        sb.append("        ParallelMappingTask task = new ParallelMappingTask(tokens, mapper, results, 0, size, leafSize")
+          .append(internSymbols ? ", SYMBOLS.get()" : "").append(");\n");
+        sb.append("        java.util.IdentityHashMap<Object, int[]> spans = java.util.concurrent.ForkJoinTask.inForkJoinPool()\n");
+        sb.append("            ? task.invoke()\n");
+        sb.append("            : java.util.concurrent.ForkJoinPool.commonPool().invoke(task);\n");
+        sb.append("        currentSpanSink().putAll(spans);\n");
+        sb.append("        if (target instanceof ArrayList<R> arrayList) {\n");
+        sb.append("            arrayList.ensureCapacity(arrayList.size() + size);\n");
+        sb.append("        }\n");
+        sb.append("        for (Object result : results) {\n");
+        sb.append("            target.add((R) result);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private static final class ParallelMappingTask\n");
+        sb.append("            extends java.util.concurrent.RecursiveTask<java.util.IdentityHashMap<Object, int[]>> {\n");
+        sb.append("        private static final long serialVersionUID = 1L;\n");
+        sb.append("        private final List<Token> tokens;\n");
+        sb.append("        private final java.util.function.Function<Token, ?> mapper;\n");
+        sb.append("        private final Object[] results;\n");
+        sb.append("        private final int from;\n");
+        sb.append("        private final int to;\n");
+        sb.append("        private final int leafSize;\n");
+        if (internSymbols) {
+            sb.append("        private final SymbolTable symbols;\n");
+        }
+        sb.append("\n");
+        sb.append("        private ParallelMappingTask(List<Token> tokens, java.util.function.Function<Token, ?> mapper,\n");
+        sb.append("                Object[] results, int from, int to, int leafSize")
+          .append(internSymbols ? ", SymbolTable symbols" : "").append(") {\n");
+        sb.append("            this.tokens = tokens;\n");
+        sb.append("            this.mapper = mapper;\n");
+        sb.append("            this.results = results;\n");
+        sb.append("            this.from = from;\n");
+        sb.append("            this.to = to;\n");
+        sb.append("            this.leafSize = leafSize;\n");
+        if (internSymbols) {
+            sb.append("            this.symbols = symbols;\n");
+        }
+        sb.append("        }\n\n");
+        sb.append("        @Override\n");
+        sb.append("        protected java.util.IdentityHashMap<Object, int[]> compute() {\n");
+        sb.append("            if (to - from <= leafSize) {\n");
+        sb.append("                java.util.IdentityHashMap<Object, int[]> sink = new java.util.IdentityHashMap<>();\n");
+        sb.append("                java.util.IdentityHashMap<Object, int[]> previous = SPAN_SINK.get();\n");
+        sb.append("                SPAN_SINK.set(sink);\n");
+        if (internSymbols) {
+            sb.append("                SymbolTable previousSymbols = bindSymbols(symbols);\n");
+        }
+        sb.append("                try {\n");
+        sb.append("                    for (int i = from; i < to; i++) {\n");
+        sb.append("                        results[i] = mapper.apply(tokens.get(i));\n");
+        sb.append("                    }\n");
+        sb.append("                } finally {\n");
+        if (internSymbols) {
+            sb.append("                    restoreSymbols(previousSymbols);\n");
+        }
+        sb.append("                    if (previous == null) {\n");
+        sb.append("                        SPAN_SINK.remove();\n");
+        sb.append("                    } else {\n");
+        sb.append("                        SPAN_SINK.set(previous);\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("                return sink;\n");
+        sb.append("            }\n");
+        sb.append("            int mid = (from + to) >>> 1;\n");
+        String symbolsArgument = internSymbols ? ", symbols" : "";
+        sb.append("            ParallelMappingTask left = new ParallelMappingTask(tokens, mapper, results, from, mid, leafSize")
+          .append(symbolsArgument).append(");\n");
+        sb.append("            ParallelMappingTask right = new ParallelMappingTask(tokens, mapper, results, mid, to, leafSize")
+          .append(symbolsArgument).append(");\n");
+        sb.append("            left.fork();\n");
+        sb.append("            java.util.IdentityHashMap<Object, int[]> rightSpans = right.compute();\n");
+        sb.append("            java.util.IdentityHashMap<Object, int[]> leftSpans = left.join();\n");
+        sb.append("            leftSpans.putAll(rightSpans);\n");
+        sb.append("            return leftSpans;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    boolean isLeftAssocRule(RuleDecl rule, MappingAnnotation mapping) {
         boolean hasLeftAssoc = rule.annotations().stream().anyMatch(a -> a instanceof LeftAssocAnnotation);
         if (!hasLeftAssoc) {
             return false;
@@ -674,7 +1545,7 @@ public class MapperGenerator implements CodeGenerator {
         return params.contains("left") && params.contains("op") && params.contains("right");
     }
 
-    private boolean isRightAssocRule(RuleDecl rule, MappingAnnotation mapping) {
+    boolean isRightAssocRule(RuleDecl rule, MappingAnnotation mapping) {
         boolean hasRightAssoc = rule.annotations().stream().anyMatch(a -> a instanceof RightAssocAnnotation);
         if (!hasRightAssoc) {
             return false;
@@ -683,7 +1554,7 @@ public class MapperGenerator implements CodeGenerator {
         return params.contains("left") && params.contains("op") && params.contains("right");
     }
 
-    private Optional<AssocShape> findAssocShape(RuleDecl rule, String leftCapture, String opCapture, String rightCapture) {
+    Optional<AssocShape> findAssocShape(RuleDecl rule, String leftCapture, String opCapture, String rightCapture) {
         SequenceBody sequence = firstSequence(rule.body()).orElse(null);
         if (sequence == null) {
             return Optional.empty();
@@ -744,7 +1615,7 @@ public class MapperGenerator implements CodeGenerator {
         };
     }
 
-    private List<AtomicElement> findCapturedElements(RuleBody body, String captureName) {
+    List<AtomicElement> findCapturedElements(RuleBody body, String captureName) {
         return switch (body) {
             case ChoiceBody choiceBody -> choiceBody.alternatives().stream()
                 .flatMap(alt -> findCapturedElements(alt, captureName).stream())
@@ -771,7 +1642,7 @@ public class MapperGenerator implements CodeGenerator {
         };
     }
 
-    private Optional<String> parserClassLiteral(AtomicElement element, String parsersClass,
+    Optional<String> parserClassLiteral(AtomicElement element, String parsersClass,
         Map<String, TokenDecl> tokenDeclByName, Map<String, RuleDecl> ruleByName) {
 
         return switch (element) {
@@ -820,10 +1691,14 @@ public class MapperGenerator implements CodeGenerator {
         return "stripQuotes(firstTokenText(" + tokenVar + "))";
     }
 
-    private String mapExpressionForTargetType(String targetType, AtomicElement element, String tokenVar,
+    String mapExpressionForTargetType(String targetType, AtomicElement element, String tokenVar,
         Map<String, String> mappedClassByRuleName,
         Map<String, TokenDecl> tokenDeclByName,
         Map<String, RuleDecl> ruleByName) {
+        Optional<String> converter = primitiveConverter(targetType);
+        if (converter.isPresent()) {
+            return converter.get() + "(" + tokenVar + ")";
+        }
         if (!"String".equals(targetType)) {
             return mapExpressionForElement(element, tokenVar, mappedClassByRuleName, tokenDeclByName, ruleByName);
         }
@@ -836,6 +1711,41 @@ public class MapperGenerator implements CodeGenerator {
         return "stripQuotes(firstTokenText(" + tokenVar + "))";
     }
 
+    /**
+     * キャプチャ要素が {@code @mapping} 付きルールへの参照で、その toXxx で変換されるかを返す。
+     * {@code @parallelMapping} ではこの要素だけを並列化対象にする。
+     */
+    boolean mapsToMappedClass(String targetType, AtomicElement element, Map<String, String> mappedClassByRuleName) {
+        return primitiveConverter(targetType).isEmpty()
+            && !"String".equals(targetType)
+            && element instanceof RuleRefElement ruleRefElement
+            && mappedClassByRuleName.containsKey(ruleRefElement.name());
+    }
+
+    /**
+     * 型ヒント付きキャプチャをトークン文字列から直接変換するヘルパー名を返す。
+     */
+    Optional<String> primitiveConverter(String type) {
+        return switch (type) {
+            case "long", "Long" -> Optional.of("longValueOf");
+            case "int", "Integer" -> Optional.of("intValueOf");
+            case "double", "Double" -> Optional.of("doubleValueOf");
+            case "boolean", "Boolean" -> Optional.of("booleanValueOf");
+            default -> Optional.empty();
+        };
+    }
+
+    /**
+     * キャプチャが IdentifierParser 系トークンから取られているか（変数名などの識別子か）を返す。
+     */
+    boolean isIdentifierCapture(GrammarDecl grammar, RuleDecl rule, String captureName) {
+        return findCapturedElements(rule.body(), captureName).stream()
+            .filter(element -> element instanceof RuleRefElement)
+            .map(element -> ((RuleRefElement) element).name())
+            .anyMatch(name -> grammar.tokens().stream()
+                .anyMatch(token -> token.name().equals(name) && isIdentifierToken(token)));
+    }
+
     private boolean isIdentifierToken(TokenDecl tokenDecl) {
         if (tokenDecl == null || tokenDecl.parserClass() == null) {
             return false;
@@ -843,21 +1753,31 @@ public class MapperGenerator implements CodeGenerator {
         return tokenDecl.parserClass().contains("IdentifierParser");
     }
 
-    private Optional<String> unwrapListType(String type) {
+    Optional<String> unwrapListType(String type) {
         if (type.startsWith("List<") && type.endsWith(">")) {
             return Optional.of(type.substring("List<".length(), type.length() - 1));
         }
         return Optional.empty();
     }
 
-    private Optional<String> unwrapOptionalType(String type) {
+    /**
+     * 型がマッピングクラス（文字列・プリミティブ以外）の List であれば true。兄弟ノードの並びを表す。
+     */
+    boolean isNodeListType(String type) {
+        return unwrapListType(type)
+            .filter(element -> !element.equals("String") && !element.equals("Object"))
+            .filter(element -> primitiveConverter(element).isEmpty())
+            .isPresent();
+    }
+
+    Optional<String> unwrapOptionalType(String type) {
         if (type.startsWith("Optional<") && type.endsWith(">")) {
             return Optional.of(type.substring("Optional<".length(), type.length() - 1));
         }
         return Optional.empty();
     }
 
-    private Optional<AtomicElement> normalizeCapturedElement(AtomicElement element) {
+    Optional<AtomicElement> normalizeCapturedElement(AtomicElement element) {
         return switch (element) {
             case GroupElement groupElement -> firstAtomicElement(groupElement.body());
             case OptionalElement optionalElement -> firstAtomicElement(optionalElement.body());
@@ -892,14 +1812,23 @@ public class MapperGenerator implements CodeGenerator {
         if ("String".equals(type)) {
             return "\"\"";
         }
-        return "null";
+        return switch (type) {
+            case "long" -> "0L";
+            case "int" -> "0";
+            case "double" -> "0.0d";
+            case "boolean" -> "false";
+            default -> "null";
+        };
     }
 
 
-    private boolean isTypeCompatible(String targetType, String candidateType) {
+    boolean isTypeCompatible(String targetType, String candidateType) {
         if ("Object".equals(targetType)) {
             return true;
         }
+        if (primitiveConverter(targetType).isPresent() && "String".equals(candidateType)) {
+            return true;
+        }
         return targetType.equals(candidateType);
     }
     private Optional<MappingAnnotation> getMappingAnnotation(RuleDecl rule) {
@@ -918,14 +1847,16 @@ public class MapperGenerator implements CodeGenerator {
     }
 
     // inferType logic is borrowed from ASTGenerator to keep generated constructor argument types compile-safe.
-    private String inferType(GrammarDecl grammar, RuleDecl rule, String fieldName) {
+    String inferType(GrammarDecl grammar, RuleDecl rule, String fieldName) {
         List<CaptureResult> captures = findCapturedTypes(rule.body(), fieldName);
         if (captures.isEmpty()) {
             return "Object";
         }
-        String innerType = mergeCapturedTypes(grammar, captures);
         boolean inOptional = captures.stream().anyMatch(CaptureResult::inOptional);
         boolean inRepeat = captures.stream().anyMatch(CaptureResult::inRepeat);
+        String innerType = ASTGenerator.typeHintFor(rule, fieldName)
+            .map(hint -> inRepeat || inOptional ? ASTGenerator.PRIMITIVE_TYPE_HINTS.get(hint) : hint)
+            .orElseGet(() -> mergeCapturedTypes(grammar, captures));
         if (inRepeat) {
             return "List<" + innerType + ">";
         }
@@ -949,7 +1880,7 @@ public class MapperGenerator implements CodeGenerator {
         return "Object";
     }
 
-    private String inferTypeFromElement(GrammarDecl grammar, AtomicElement element) {
+    String inferTypeFromElement(GrammarDecl grammar, AtomicElement element) {
         String astClassName = grammar.name() + "AST";
         return switch (element) {
             case TerminalElement ignored -> "String";
@@ -1033,6 +1964,6 @@ public class MapperGenerator implements CodeGenerator {
 
     private record CaptureResult(AtomicElement element, boolean inOptional, boolean inRepeat) {}
 
-    private record AssocShape(AtomicElement leftElement, AtomicElement opElement, AtomicElement rightElement,
-                              int repeatIndex) {}
+    record AssocShape(AtomicElement leftElement, AtomicElement opElement, AtomicElement rightElement,
+                      int repeatIndex) {}
 }
@@ -0,0 +1,419 @@
+package org.unlaxer.dsl.codegen;
+
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.MappingAnnotation;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.StringSettingValue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * GrammarDecl から XxxOptimizer.java（AST → AST の最適化パス）を生成する。
+ *
+ * <p>マッピング直後に一度だけ適用し、繰り返し評価する木を小さくする。{@code @leftAssoc} /
+ * {@code @rightAssoc} の left/op/right 形式のクラスでは、リテラル同士の演算を畳み込み、登録された
+ * 代数的恒等式で書き換え、演算子のない連鎖は被演算子そのものに置き換える。構造的に等しい部分木は
+ * 一つのインスタンスに共有する。共有はノードのハッシュが定数時間になる {@code @structuralHash} のときだけ
+ * 既定で有効にする。</p>
+ *
+ * <p>作り直したノードには元ノードのスパン（畳み込んだ場合は被演算子を覆うスパン）を
+ * {@code XxxMapper.registerSourceSpan} で登録するため、{@code sourceSpanOf} は元のテキストを指し続ける。</p>
+ */
+public class OptimizerGenerator implements CodeGenerator {
+
+    private final MapperGenerator mapperSupport = new MapperGenerator();
+    private final CompilerGenerator compilerSupport = new CompilerGenerator();
+
+    private enum FieldKind { SINGLE, LIST, OPTIONAL, VALUE }
+
+    /** レコード成分。子ノードなら elementType はノード型（List / Optional の場合は要素型）。 */
+    private record Field(String name, String type, String elementType, FieldKind kind) {}
+
+    @Override
+    public GeneratedSource generate(GrammarDecl grammar) {
+        String packageName = getPackageName(grammar);
+        String grammarName = grammar.name();
+        String astClass = grammarName + "AST";
+        String mapperClass = grammarName + "Mapper";
+        String optimizerClass = grammarName + "Optimizer";
+
+        Map<String, List<RuleDecl>> rulesByClass = compilerSupport.rulesByClass(grammar);
+        Map<String, CompilerGenerator.Fold> folds = compilerSupport.assocFolds(grammar, rulesByClass);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import java.util.ArrayList;\n");
+        sb.append("import java.util.Collections;\n");
+        sb.append("import java.util.HashMap;\n");
+        sb.append("import java.util.List;\n");
+        sb.append("import java.util.Optional;\n\n");
+        sb.append("/**\n");
+        sb.append(" * Rewrites ").append(astClass).append(" trees once after mapping so repeated evaluation works on a smaller tree.\n");
+        sb.append(" *\n");
+        if (!folds.isEmpty()) {
+            sb.append(" * <p>Operator chains fold literal operands through {@link #applyOperator} and apply identities registered\n");
+            sb.append(" * with {@link #registerIdentity}; structurally");
+        } else {
+            sb.append(" * <p>Structurally");
+        }
+        sb.append(" equal subtrees are shared. Rebuilt nodes get the source span\n");
+        sb.append(" * of the node they replace (or of the folded operands) via {@code ").append(mapperClass)
+          .append(".registerSourceSpan}.</p>\n");
+        sb.append(" *\n");
+        sb.append(" * @param <V> constant value type\n");
+        sb.append(" */\n");
+        sb.append("public abstract class ").append(optimizerClass).append("<V> {\n\n");
+
+        sb.append("    /** Rewrites {@code left op right}; return empty to leave the pair unchanged. */\n");
+        sb.append("    @FunctionalInterface\n");
+        sb.append("    public interface Identity {\n");
+        sb.append("        Optional<").append(astClass).append("> rewrite(String op, ").append(astClass).append(" left, ")
+          .append(astClass).append(" right);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private final List<Identity> identities = new ArrayList<>();\n");
+        boolean structuralHash = GrammarSettings.isEnabled(grammar, "structuralHash");
+        sb.append("    private boolean deduplicate = ").append(structuralHash).append(";\n");
+        sb.append("    private HashMap<").append(astClass).append(", ").append(astClass).append("> canonical;\n\n");
+
+        sb.append("    public ").append(optimizerClass).append("<V> registerIdentity(Identity identity) {\n");
+        sb.append("        identities.add(java.util.Objects.requireNonNull(identity));\n");
+        sb.append("        return this;\n");
+        sb.append("    }\n\n");
+        sb.append("    /**\n");
+        if (structuralHash) {
+            sb.append("     * Shares structurally equal subtrees (default {@code true}; nodes hash in constant time). A shared\n");
+            sb.append("     * node keeps the span of its first occurrence.\n");
+        } else {
+            sb.append("     * Shares structurally equal subtrees (default {@code false}: without {@code @structuralHash} every\n");
+            sb.append("     * lookup hashes and compares the whole subtree). A shared node keeps the span of its first occurrence.\n");
+        }
+        sb.append("     */\n");
+        sb.append("    public ").append(optimizerClass).append("<V> setDeduplicate(boolean deduplicate) {\n");
+        sb.append("        this.deduplicate = deduplicate;\n");
+        sb.append("        return this;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public ").append(astClass).append(" optimize(").append(astClass).append(" root) {\n");
+        sb.append("        canonical = new HashMap<>();\n");
+        sb.append("        try {\n");
+        sb.append("            return optimizeNode(root);\n");
+        sb.append("        } finally {\n");
+        sb.append("            canonical = null;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    protected ").append(astClass).append(" optimizeNode(").append(astClass).append(" node) {\n");
+        if (rulesByClass.isEmpty()) {
+            sb.append("        return node;\n");
+        } else {
+            sb.append("        if (node == null) {\n");
+            sb.append("            return null;\n");
+            sb.append("        }\n");
+            sb.append("        ").append(astClass).append(" optimized = switch (node) {\n");
+            for (String name : rulesByClass.keySet()) {
+                sb.append("            case ").append(astClass).append(".").append(name)
+                  .append(" n -> optimize").append(name).append("(n);\n");
+            }
+            sb.append("        };\n");
+            sb.append("        return share(optimized);\n");
+        }
+        sb.append("    }\n\n");
+
+        if (!folds.isEmpty()) {
+            sb.append("    /** Constant value of {@code node} if it is a literal. */\n");
+            sb.append("    protected abstract Optional<V> literalValue(").append(astClass).append(" node);\n\n");
+            sb.append("    /** Literal node for {@code value}. */\n");
+            sb.append("    protected abstract ").append(astClass).append(" literal(V value);\n\n");
+            sb.append("    /** Folds {@code left op right}; return empty when the result must not be folded (e.g. division by zero). */\n");
+            sb.append("    protected abstract Optional<V> applyOperator(String op, V left, V right);\n\n");
+            sb.append("    public boolean isLiteral(").append(astClass).append(" node, V value) {\n");
+            sb.append("        return literalValue(node).filter(value::equals).isPresent();\n");
+            sb.append("    }\n\n");
+        }
+
+        // クラスごとの最適化メソッド
+        for (Map.Entry<String, List<RuleDecl>> entry : rulesByClass.entrySet()) {
+            String name = entry.getKey();
+            RuleDecl rule = entry.getValue().get(0);
+            List<Field> fields = fields(grammar, rule, astClass);
+            CompilerGenerator.Fold fold = folds.get(name);
+            if (fold != null) {
+                appendFoldMethod(sb, astClass, name, fields, fold);
+            } else {
+                appendRebuildMethod(sb, astClass, name, fields);
+            }
+        }
+
+        appendSupport(sb, astClass, mapperClass, folds.values());
+
+        sb.append("}\n");
+        return new GeneratedSource(packageName, optimizerClass, sb.toString());
+    }
+
+    private void appendRebuildMethod(StringBuilder sb, String astClass, String name, List<Field> fields) {
+        String nodeType = astClass + "." + name;
+        sb.append("    protected ").append(astClass).append(" optimize").append(name).append("(")
+          .append(nodeType).append(" node) {\n");
+        List<Field> children = fields.stream().filter(f -> f.kind() != FieldKind.VALUE).toList();
+        if (children.isEmpty()) {
+            sb.append("        return node;\n");
+            sb.append("    }\n\n");
+            return;
+        }
+        for (Field field : children) {
+            sb.append("        ").append(field.type()).append(" ").append(field.name()).append(" = ");
+            String access = "node." + field.name() + "()";
+            String elementClass = field.elementType() + ".class";
+            switch (field.kind()) {
+                case SINGLE -> sb.append("child(").append(access).append(", ").append(elementClass).append(");\n");
+                case LIST -> sb.append("children(").append(access).append(", ").append(elementClass).append(");\n");
+                case OPTIONAL -> sb.append("optionalChild(").append(access).append(", ").append(elementClass).append(");\n");
+                case VALUE -> throw new IllegalStateException();
+            }
+        }
+        sb.append("        if (");
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) {
+                sb.append("\n            && ");
+            }
+            Field field = children.get(i);
+            sb.append(field.name()).append(" == node.").append(field.name()).append("()");
+        }
+        sb.append(") {\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+        sb.append("        return copySpan(node, new ").append(nodeType).append("(");
+        appendConstructorArgs(sb, fields, f -> f.kind() == FieldKind.VALUE ? "node." + f.name() + "()" : f.name());
+        sb.append("));\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendFoldMethod(StringBuilder sb, String astClass, String name, List<Field> fields,
+            CompilerGenerator.Fold fold) {
+        String nodeType = astClass + "." + name;
+        Field left = fields.stream().filter(f -> f.name().equals("left")).findFirst().orElseThrow();
+        Field right = fields.stream().filter(f -> f.name().equals("right")).findFirst().orElseThrow();
+        sb.append("    protected ").append(astClass).append(" optimize").append(name).append("(")
+          .append(nodeType).append(" node) {\n");
+        sb.append("        if (node.left() == null) {\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+        sb.append("        ArrayList<").append(astClass).append("> operands = new ArrayList<>(node.right().size() + 1);\n");
+        sb.append("        operands.add(optimizeNode(node.left()));\n");
+        sb.append("        for (").append(astClass).append(" operand : node.right()) {\n");
+        sb.append("            operands.add(optimizeNode(operand));\n");
+        sb.append("        }\n");
+        sb.append("        ArrayList<String> ops = new ArrayList<>(node.op());\n");
+        sb.append("        ").append(fold == CompilerGenerator.Fold.LEFT ? "reduceLeft" : "reduceRight")
+          .append("(operands, ops);\n");
+        sb.append("        if (ops.isEmpty()) {\n");
+        sb.append("            // a chain without operators is just its operand\n");
+        sb.append("            return operands.get(0);\n");
+        sb.append("        }\n");
+        sb.append("        if (!(operands.get(0) instanceof ").append(left.elementType()).append(" first)\n");
+        sb.append("            || !allInstances(operands.subList(1, operands.size()), ").append(right.elementType())
+          .append(".class)) {\n");
+        sb.append("            // the record's component types cannot hold the rewritten operands\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+        sb.append("        @SuppressWarnings(\"unchecked\")\n");
+        sb.append("        List<").append(right.elementType()).append("> rest = (List<").append(right.elementType())
+          .append(">) (List<?>) Collections.unmodifiableList(new ArrayList<>(operands.subList(1, operands.size())));\n");
+        sb.append("        if (first == node.left() && ops.size() == node.op().size() && sameElements(rest, node.right())) {\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+        sb.append("        return copySpan(node, new ").append(nodeType).append("(");
+        appendConstructorArgs(sb, fields, f -> switch (f.name()) {
+            case "left" -> "first";
+            case "op" -> "List.copyOf(ops)";
+            case "right" -> "rest";
+            default -> "node." + f.name() + "()";
+        });
+        sb.append("));\n");
+        sb.append("    }\n\n");
+    }
+
+    private void appendConstructorArgs(StringBuilder sb, List<Field> fields,
+            java.util.function.Function<Field, String> argument) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(argument.apply(fields.get(i)));
+        }
+    }
+
+    private void appendSupport(StringBuilder sb, String astClass, String mapperClass,
+            java.util.Collection<CompilerGenerator.Fold> folds) {
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Support\n");
+        sb.append("    // =========================================================================\n\n");
+
+        if (folds.contains(CompilerGenerator.Fold.LEFT)) {
+            sb.append("    /** Reduces the leading operands of a left-associative chain while they fold. */\n");
+            sb.append("    private void reduceLeft(List<").append(astClass).append("> operands, List<String> ops) {\n");
+            sb.append("        while (!ops.isEmpty()) {\n");
+            sb.append("            Optional<").append(astClass).append("> reduced = reduce(ops.get(0), operands.get(0), operands.get(1));\n");
+            sb.append("            if (reduced.isEmpty()) {\n");
+            sb.append("                return;\n");
+            sb.append("            }\n");
+            sb.append("            operands.set(0, reduced.get());\n");
+            sb.append("            operands.remove(1);\n");
+            sb.append("            ops.remove(0);\n");
+            sb.append("        }\n");
+            sb.append("    }\n\n");
+        }
+        if (folds.contains(CompilerGenerator.Fold.RIGHT)) {
+            sb.append("    /** Reduces the trailing operands of a right-associative chain while they fold. */\n");
+            sb.append("    private void reduceRight(List<").append(astClass).append("> operands, List<String> ops) {\n");
+            sb.append("        while (!ops.isEmpty()) {\n");
+            sb.append("            int last = ops.size() - 1;\n");
+            sb.append("            Optional<").append(astClass).append("> reduced = reduce(ops.get(last), operands.get(last), operands.get(last + 1));\n");
+            sb.append("            if (reduced.isEmpty()) {\n");
+            sb.append("                return;\n");
+            sb.append("            }\n");
+            sb.append("            operands.set(last, reduced.get());\n");
+            sb.append("            operands.remove(last + 1);\n");
+            sb.append("            ops.remove(last);\n");
+            sb.append("        }\n");
+            sb.append("    }\n\n");
+        }
+        if (!folds.isEmpty()) {
+            sb.append("    private Optional<").append(astClass).append("> reduce(String op, ").append(astClass)
+              .append(" left, ").append(astClass).append(" right) {\n");
+            sb.append("        Optional<V> leftValue = literalValue(left);\n");
+            sb.append("        Optional<V> rightValue = leftValue.isPresent() ? literalValue(right) : Optional.empty();\n");
+            sb.append("        if (rightValue.isPresent()) {\n");
+            sb.append("            Optional<V> folded = applyOperator(op, leftValue.get(), rightValue.get());\n");
+            sb.append("            if (folded.isPresent()) {\n");
+            sb.append("                return Optional.of(share(spanning(literal(folded.get()), left, right)));\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("        for (Identity identity : identities) {\n");
+            sb.append("            Optional<").append(astClass).append("> rewritten = identity.rewrite(op, left, right);\n");
+            sb.append("            if (rewritten.isPresent()) {\n");
+            sb.append("                ").append(astClass).append(" node = rewritten.get();\n");
+            sb.append("                if (node != left && node != right && ").append(mapperClass)
+              .append(".sourceSpanOf(node).isEmpty()) {\n");
+            sb.append("                    spanning(node, left, right);\n");
+            sb.append("                }\n");
+            sb.append("                return Optional.of(node);\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("        return Optional.empty();\n");
+            sb.append("    }\n\n");
+
+            sb.append("    /** Registers the span from the start of {@code from} to the end of {@code to} for {@code node}. */\n");
+            sb.append("    private <N> N spanning(N node, Object from, Object to) {\n");
+            sb.append("        Optional<int[]> start = ").append(mapperClass).append(".sourceSpanOf(from);\n");
+            sb.append("        Optional<int[]> end = ").append(mapperClass).append(".sourceSpanOf(to);\n");
+            sb.append("        if (start.isPresent() && end.isPresent()) {\n");
+            sb.append("            ").append(mapperClass).append(".registerSourceSpan(node, start.get()[0], end.get()[1]);\n");
+            sb.append("        }\n");
+            sb.append("        return node;\n");
+            sb.append("    }\n\n");
+
+            sb.append("    private static boolean allInstances(List<?> nodes, Class<?> type) {\n");
+            sb.append("        for (Object node : nodes) {\n");
+            sb.append("            if (!type.isInstance(node)) {\n");
+            sb.append("                return false;\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("        return true;\n");
+            sb.append("    }\n\n");
+
+            sb.append("    private static boolean sameElements(List<?> a, List<?> b) {\n");
+            sb.append("        for (int i = 0; i < a.size(); i++) {\n");
+            sb.append("            if (a.get(i) != b.get(i)) {\n");
+            sb.append("                return false;\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("        return true;\n");
+            sb.append("    }\n\n");
+        }
+
+        sb.append("    private ").append(astClass).append(" share(").append(astClass).append(" node) {\n");
+        sb.append("        if (!deduplicate || node == null || canonical == null) {\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+        sb.append("        ").append(astClass).append(" existing = canonical.putIfAbsent(node, node);\n");
+        sb.append("        return existing != null ? existing : node;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Optimized {@code node}, or {@code node} itself if the result does not fit the field's type. */\n");
+        sb.append("    private <N extends ").append(astClass).append("> N child(N node, Class<N> type) {\n");
+        sb.append("        ").append(astClass).append(" optimized = optimizeNode(node);\n");
+        sb.append("        return type.isInstance(optimized) ? type.cast(optimized) : node;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private <N extends ").append(astClass).append("> List<N> children(List<N> nodes, Class<N> type) {\n");
+        sb.append("        List<N> result = null;\n");
+        sb.append("        for (int i = 0; i < nodes.size(); i++) {\n");
+        sb.append("            N optimized = child(nodes.get(i), type);\n");
+        sb.append("            if (result == null && optimized != nodes.get(i)) {\n");
+        sb.append("                result = new ArrayList<>(nodes.subList(0, i));\n");
+        sb.append("            }\n");
+        sb.append("            if (result != null) {\n");
+        sb.append("                result.add(optimized);\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        return result == null ? nodes : Collections.unmodifiableList(result);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private <N extends ").append(astClass).append("> Optional<N> optionalChild(Optional<N> node, Class<N> type) {\n");
+        sb.append("        if (node.isEmpty()) {\n");
+        sb.append("            return node;\n");
+        sb.append("        }\n");
+        sb.append("        N optimized = child(node.get(), type);\n");
+        sb.append("        return optimized == node.get() ? node : Optional.of(optimized);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    private static <N> N copySpan(Object original, N rebuilt) {\n");
+        sb.append("        ").append(mapperClass).append(".sourceSpanOf(original)\n");
+        sb.append("            .ifPresent(span -> ").append(mapperClass).append(".registerSourceSpan(rebuilt, span[0], span[1]));\n");
+        sb.append("        return rebuilt;\n");
+        sb.append("    }\n");
+    }
+
+    private List<Field> fields(GrammarDecl grammar, RuleDecl rule, String astClass) {
+        MappingAnnotation mapping = getMappingAnnotation(rule).orElseThrow();
+        return mapping.paramNames().stream().map(param -> {
+            String type = mapperSupport.inferType(grammar, rule, param);
+            Optional<String> listElement = mapperSupport.unwrapListType(type);
+            Optional<String> optionalElement = mapperSupport.unwrapOptionalType(type);
+            if (listElement.filter(this::isNodeType).isPresent()) {
+                return new Field(param, type, listElement.get(), FieldKind.LIST);
+            }
+            if (optionalElement.filter(this::isNodeType).isPresent()) {
+                return new Field(param, type, optionalElement.get(), FieldKind.OPTIONAL);
+            }
+            if (listElement.isEmpty() && optionalElement.isEmpty() && isNodeType(type)) {
+                return new Field(param, type, type, FieldKind.SINGLE);
+            }
+            return new Field(param, type, type, FieldKind.VALUE);
+        }).toList();
+    }
+
+    private boolean isNodeType(String type) {
+        return !type.equals("String") && !type.equals("Object") && !type.contains("<")
+            && mapperSupport.primitiveConverter(type).isEmpty();
+    }
+
+    private Optional<MappingAnnotation> getMappingAnnotation(RuleDecl rule) {
+        return rule.annotations().stream()
+            .filter(a -> a instanceof MappingAnnotation)
+            .map(a -> (MappingAnnotation) a)
+            .findFirst();
+    }
+
+    private String getPackageName(GrammarDecl grammar) {
+        return grammar.settings().stream()
+            .filter(s -> "package".equals(s.key()))
+            .map(s -> s.value() instanceof StringSettingValue sv ? sv.value() : "")
+            .findFirst()
+            .orElse("generated");
+    }
+}
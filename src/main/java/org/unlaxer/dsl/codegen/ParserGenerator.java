@@ -29,6 +29,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -37,6 +38,9 @@ import java.util.stream.Collectors;
  *
  * <p>各ルールに対応するパーサークラスと、スペースデリミタを自動挿入する
  * 基底チェーンクラスを生成する。</p>
+ *
+ * <p>編集箇所だけを再パースする {@code IncrementalParser} も出力する。繰り返し要素の 1 項目と
+ * {@code @reparseBoundary} ルールを、単独で再パースしてよい境界として {@code REPARSE_BOUNDARIES} に列挙する。</p>
  */
 public class ParserGenerator implements CodeGenerator {
 
@@ -58,6 +62,7 @@ public class ParserGenerator implements CodeGenerator {
         final Map<String, int[]> helperCounters = new LinkedHashMap<>(); // rule -> [repeat,opt,group]
         boolean needsCPPComment = false;
         final List<String> delimitorClasses = new ArrayList<>();
+        final Map<String, String> repeatItemOwners = new LinkedHashMap<>(); // repeat item class -> owning rule
 
         GenContext(GrammarDecl grammar) {
             this.grammar = grammar;
@@ -127,7 +132,11 @@ public class ParserGenerator implements CodeGenerator {
 
         // インポート
         sb.append("import java.util.function.Supplier;\n");
+        sb.append("import org.unlaxer.Parsed;\n");
         sb.append("import org.unlaxer.RecursiveMode;\n");
+        sb.append("import org.unlaxer.StringSource;\n");
+        sb.append("import org.unlaxer.Token;\n");
+        sb.append("import org.unlaxer.context.ParseContext;\n");
         sb.append("import org.unlaxer.parser.Parser;\n");
         sb.append("import org.unlaxer.parser.Parsers;\n");
         sb.append("import org.unlaxer.parser.combinator.*;\n");
@@ -170,7 +179,9 @@ public class ParserGenerator implements CodeGenerator {
         String rootRuleName = findRootRuleName(grammar);
         sb.append("    public static Parser getRootParser() {\n");
         sb.append("        return Parser.get(").append(rootRuleName).append("Parser.class);\n");
-        sb.append("    }\n");
+        sb.append("    }\n\n");
+
+        sb.append(generateIncrementalParser(reparseBoundaries(ctx)));
 
         sb.append("}\n");
 
@@ -181,36 +192,64 @@ public class ParserGenerator implements CodeGenerator {
     // トークンクラスのインポート解決
     // =========================================================================
 
+    /** 生成コードが常に import するパーサーとそのパッケージ */
+    private static final Map<String, String> EXPLICIT_IMPORTS = Map.of(
+        "WordParser", "org.unlaxer.parser.elementary",
+        "SpaceParser", "org.unlaxer.parser.posix",
+        "CPPComment", "org.unlaxer.parser.clang");
+
+    private static final List<String> TOKEN_PACKAGES = List.of(
+        "org.unlaxer.parser.clang",
+        "org.unlaxer.parser.elementary",
+        "org.unlaxer.parser.posix");
+
     /**
      * grammar の token 宣言に含まれるパーサークラス名を既知パッケージで検索し、
      * import 文のリストを返す。見つからないクラスは無視する。
      */
     private List<String> resolveTokenImports(GrammarDecl grammar) {
-        Set<String> alreadyImported = Set.of("WordParser", "SpaceParser", "CPPComment");
-        String[] candidatePackages = {
-            "org.unlaxer.parser.clang",
-            "org.unlaxer.parser.elementary",
-            "org.unlaxer.parser.posix",
-        };
         List<String> imports = new ArrayList<>();
         for (TokenDecl token : grammar.tokens()) {
             String parserClass = token.parserClass();
-            if (alreadyImported.contains(parserClass) || parserClass.contains(".")) {
+            if (EXPLICIT_IMPORTS.containsKey(parserClass) || parserClass.contains(".")) {
                 continue;
             }
-            for (String pkg : candidatePackages) {
-                try {
-                    Class.forName(pkg + "." + parserClass);
-                    imports.add("import " + pkg + "." + parserClass + ";");
-                    break;
-                } catch (ClassNotFoundException ignored) {
-                    // 次のパッケージを試す
-                }
-            }
+            findTokenPackage(parserClass)
+                .ifPresent(pkg -> imports.add("import " + pkg + "." + parserClass + ";"));
         }
         return imports;
     }
 
+    /**
+     * token 宣言のパーサークラス名を完全修飾名にする。import 解決と同じ既知パッケージを探し、
+     * 見つからなければワイルドカード import している combinator パッケージのクラスとみなす。
+     */
+    String qualifiedTokenParserClass(String parserClass) {
+        if (parserClass.contains(".")) {
+            return parserClass;
+        }
+        String pkg = EXPLICIT_IMPORTS.getOrDefault(parserClass,
+            findTokenPackage(parserClass).orElse("org.unlaxer.parser.combinator"));
+        return pkg + "." + parserClass;
+    }
+
+    private Optional<String> findTokenPackage(String parserClass) {
+        for (String pkg : TOKEN_PACKAGES) {
+            try {
+                Class.forName(pkg + "." + parserClass);
+                return Optional.of(pkg);
+            } catch (ClassNotFoundException ignored) {
+                // 次のパッケージを試す
+            }
+        }
+        return Optional.empty();
+    }
+
+    /** 要素の前後で空白・コメントを読み飛ばす {@code {Name}SpaceDelimitor} を生成するか */
+    boolean hasDelimitedChain(GrammarDecl grammar) {
+        return createContext(grammar).hasDelimitedChain;
+    }
+
     // =========================================================================
     // コンテキスト初期化
     // =========================================================================
@@ -391,9 +430,15 @@ public class ParserGenerator implements CodeGenerator {
     private void collectHelpersInElement(GenContext ctx, String ruleName, AtomicElement element) {
         switch (element) {
             case RepeatElement rep -> {
-                if (!isSingleRuleRef(rep.body())) {
+                if (isSingleRuleRef(rep.body())) {
+                    String itemRule = ((RuleRefElement) getSingleAtomicElementFrom(rep.body())).name();
+                    if (ctx.ruleNames.contains(itemRule)) {
+                        ctx.repeatItemOwners.putIfAbsent(itemRule + "Parser", itemRule);
+                    }
+                } else {
                     int n = ctx.nextRepeat(ruleName);
                     String helperName = ruleName + "Repeat" + n + "Parser";
+                    ctx.repeatItemOwners.putIfAbsent(helperName, ruleName);
                     int[] before = ctx.snapshotCounters(ruleName);
                     collectHelpersInBody(ctx, ruleName, rep.body());
                     int[] after = ctx.snapshotCounters(ruleName);
@@ -651,6 +696,334 @@ public class ParserGenerator implements CodeGenerator {
         };
     }
 
+    // =========================================================================
+    // 差分再パース
+    // =========================================================================
+
+    /**
+     * 単独で再パースしてよいパーサークラスを返す。繰り返し要素の項目と {@code @reparseBoundary} ルールが候補で、
+     * {@code @backref} / {@code @scopeTree} ルールへ到達するものは前方の文脈に依存しうるので除く。
+     */
+    private List<String> reparseBoundaries(GenContext ctx) {
+        Map<String, String> owners = new LinkedHashMap<>(ctx.repeatItemOwners);
+        for (RuleDecl rule : ctx.grammar.rules()) {
+            if (GrammarValidator.isReparseBoundary(rule)) {
+                owners.putIfAbsent(rule.name() + "Parser", rule.name());
+            }
+        }
+        Set<String> contextSensitive = contextSensitiveRules(ctx.grammar);
+        return owners.entrySet().stream()
+            .filter(e -> !contextSensitive.contains(e.getValue()))
+            .map(Map.Entry::getKey)
+            .toList();
+    }
+
+    /** {@code @backref} / {@code @scopeTree} を持つルールと、そこへ参照で到達するルールの集合 */
+    private Set<String> contextSensitiveRules(GrammarDecl grammar) {
+        Map<String, Set<String>> refs = new LinkedHashMap<>();
+        Set<String> result = new LinkedHashSet<>();
+        for (RuleDecl rule : grammar.rules()) {
+            Set<String> names = new LinkedHashSet<>();
+            collectRuleRefs(rule.body(), names);
+            refs.put(rule.name(), names);
+            if (hasBackrefAnnotation(rule) || hasScopeTreeAnnotation(rule)) {
+                result.add(rule.name());
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Set<String>> entry : refs.entrySet()) {
+                if (!result.contains(entry.getKey())
+                    && entry.getValue().stream().anyMatch(result::contains)) {
+                    changed = result.add(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    private void collectRuleRefs(RuleBody body, Set<String> names) {
+        List<SequenceBody> sequences = switch (body) {
+            case ChoiceBody choice -> choice.alternatives();
+            case SequenceBody seq -> List.of(seq);
+        };
+        for (SequenceBody seq : sequences) {
+            for (AnnotatedElement ae : seq.elements()) {
+                switch (ae.element()) {
+                    case RuleRefElement r -> names.add(r.name());
+                    case RepeatElement rep -> collectRuleRefs(rep.body(), names);
+                    case OptionalElement opt -> collectRuleRefs(opt.body(), names);
+                    case GroupElement g -> collectRuleRefs(g.body(), names);
+                    default -> {}
+                }
+            }
+        }
+    }
+
+    private String generateIncrementalParser(List<String> boundaries) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("    // =========================================================================\n");
+        sb.append("    // Incremental reparsing\n");
+        sb.append("    // =========================================================================\n\n");
+
+        sb.append("    /** Parsers whose nodes can be reparsed on their own: repeat items and {@code @reparseBoundary} rules. */\n");
+        if (boundaries.isEmpty()) {
+            sb.append("    public static final java.util.Set<Class<? extends Parser>> REPARSE_BOUNDARIES = java.util.Set.of();\n\n");
+        } else {
+            sb.append("    public static final java.util.Set<Class<? extends Parser>> REPARSE_BOUNDARIES = java.util.Set.of(\n");
+            for (int i = 0; i < boundaries.size(); i++) {
+                sb.append("        ").append(boundaries.get(i)).append(".class")
+                  .append(i + 1 < boundaries.size() ? ",\n" : "\n");
+            }
+            sb.append("    );\n\n");
+        }
+
+        sb.append("    /**\n");
+        sb.append("     * Reparses only the edited part of a text. It keeps the syntax tree of the last successful parse and,\n");
+        sb.append("     * after an edit, reparses the smallest {@link #REPARSE_BOUNDARIES} node that encloses the changed range,\n");
+        sb.append("     * starting at that node's offset in the new text. The result replaces the node only if it ends exactly\n");
+        sb.append("     * where the old node ended, shifted by the edit; otherwise the next enclosing boundary is tried, and\n");
+        sb.append("     * finally the whole text. Nodes after the edit are shifted, not reparsed.\n");
+        sb.append("     *\n");
+        sb.append("     * <p>A boundary is assumed to parse the same wherever it starts, and the text before it is assumed not\n");
+        sb.append("     * to look past its first character. While the text does not parse, each call parses it in full, and the\n");
+        sb.append("     * tree of the last successful parse stays the base for the next edit.</p>\n");
+        sb.append("     */\n");
+        sb.append("    public static final class IncrementalParser {\n\n");
+        sb.append("        private static final int COMPARE_BLOCK = 256;\n\n");
+
+        sb.append("        /** Syntax tree node. {@code offset} is relative to the parent's start, so moving a subtree is O(1). */\n");
+        sb.append("        public record SyntaxNode(\n");
+        sb.append("            Class<? extends Parser> parser, int offset, int length, java.util.List<SyntaxNode> children\n");
+        sb.append("        ) {\n");
+        sb.append("            SyntaxNode withOffset(int newOffset) {\n");
+        sb.append("                return newOffset == offset ? this : new SyntaxNode(parser, newOffset, length, children);\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /**\n");
+        sb.append("         * Outcome of {@link #parse}. {@code root} is {@code null} when the text does not parse.\n");
+        sb.append("         * {@code reparsedStart} and {@code reparsedLength} give the span of the new text that was parsed.\n");
+        sb.append("         */\n");
+        sb.append("        public record Result(\n");
+        sb.append("            SyntaxNode root, boolean succeeded, int consumedLength, int textLength,\n");
+        sb.append("            int reparsedStart, int reparsedLength\n");
+        sb.append("        ) {}\n\n");
+
+        sb.append("        private record Step(SyntaxNode node, int start, int childIndex) {}\n\n");
+
+        sb.append("        private final Parser rootParser;\n");
+        sb.append("        private String text;\n");
+        sb.append("        private SyntaxNode root;\n");
+        sb.append("        private int consumedLength;\n\n");
+
+        sb.append("        public IncrementalParser() {\n");
+        sb.append("            this(getRootParser());\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public IncrementalParser(Parser rootParser) {\n");
+        sb.append("            this.rootParser = rootParser;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public synchronized Result parse(String newText) {\n");
+        sb.append("            if (root == null) {\n");
+        sb.append("                return parseFully(newText);\n");
+        sb.append("            }\n");
+        sb.append("            int oldLength = text.length();\n");
+        sb.append("            int newLength = newText.length();\n");
+        sb.append("            int start = commonPrefix(text, newText);\n");
+        sb.append("            if (start == oldLength && start == newLength) {\n");
+        sb.append("                return new Result(root, true, consumedLength, newLength, 0, 0);\n");
+        sb.append("            }\n");
+        sb.append("            int oldEnd = oldLength - commonSuffix(text, newText, Math.min(oldLength, newLength) - start);\n");
+        sb.append("            int delta = newLength - oldLength;\n");
+        sb.append("            java.util.List<Step> path = enclosingPath(start, oldEnd);\n");
+        sb.append("            for (int i = path.size() - 1; i > 0; i--) {\n");
+        sb.append("                Step step = path.get(i);\n");
+        sb.append("                SyntaxNode node = step.node();\n");
+        sb.append("                if (!REPARSE_BOUNDARIES.contains(node.parser())) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                int length = node.length() + delta;\n");
+        sb.append("                SyntaxNode replacement = reparse(node.parser(), newText, step.start(), length);\n");
+        sb.append("                if (replacement != null) {\n");
+        sb.append("                    root = splice(path, i, replacement.withOffset(node.offset()), delta);\n");
+        sb.append("                    text = newText;\n");
+        sb.append("                    consumedLength += delta;\n");
+        sb.append("                    return new Result(root, true, consumedLength, newLength, step.start(), length);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return parseFully(newText);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        public synchronized Result parseFully(String newText) {\n");
+        sb.append("            Parsed parsed = parse(rootParser, newText);\n");
+        sb.append("            if (!parsed.isSucceeded()) {\n");
+        sb.append("                return new Result(null, false, 0, newText.length(), 0, newText.length());\n");
+        sb.append("            }\n");
+        sb.append("            root = toNode(parsed.getRootToken(true), 0);\n");
+        sb.append("            text = newText;\n");
+        sb.append("            consumedLength = consumedLength(parsed);\n");
+        sb.append("            return new Result(root, true, consumedLength, newText.length(), 0, newText.length());\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Nodes from the root down to the deepest one whose span, past its first character, holds {@code [start, end)}. */\n");
+        sb.append("        private java.util.List<Step> enclosingPath(int start, int end) {\n");
+        sb.append("            java.util.List<Step> path = new java.util.ArrayList<>();\n");
+        sb.append("            Step step = new Step(root, 0, -1);\n");
+        sb.append("            while (step != null) {\n");
+        sb.append("                path.add(step);\n");
+        sb.append("                step = childContaining(step, start, end);\n");
+        sb.append("            }\n");
+        sb.append("            return path;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static Step childContaining(Step parent, int start, int end) {\n");
+        sb.append("            java.util.List<SyntaxNode> children = parent.node().children();\n");
+        sb.append("            int low = 0;\n");
+        sb.append("            int high = children.size() - 1;\n");
+        sb.append("            int found = -1;\n");
+        sb.append("            while (low <= high) {\n");
+        sb.append("                int mid = (low + high) >>> 1;\n");
+        sb.append("                if (parent.start() + children.get(mid).offset() < start) {\n");
+        sb.append("                    found = mid;\n");
+        sb.append("                    low = mid + 1;\n");
+        sb.append("                } else {\n");
+        sb.append("                    high = mid - 1;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            if (found < 0) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            SyntaxNode child = children.get(found);\n");
+        sb.append("            int childStart = parent.start() + child.offset();\n");
+        sb.append("            return end <= childStart + child.length() ? new Step(child, childStart, found) : null;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static SyntaxNode reparse(Class<? extends Parser> parserClass, String text, int start, int length) {\n");
+        sb.append("            Parsed parsed = parse(Parser.get(parserClass), text.substring(start));\n");
+        sb.append("            if (!parsed.isSucceeded() || consumedLength(parsed) != length) {\n");
+        sb.append("                return null;\n");
+        sb.append("            }\n");
+        sb.append("            return find(toNode(parsed.getRootToken(true), 0), 0, parserClass, length);\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static SyntaxNode find(SyntaxNode node, int start, Class<? extends Parser> parserClass, int length) {\n");
+        sb.append("            if (node.parser() == parserClass && start == 0 && node.length() == length) {\n");
+        sb.append("                return node;\n");
+        sb.append("            }\n");
+        sb.append("            for (SyntaxNode child : node.children()) {\n");
+        sb.append("                int childStart = start + child.offset();\n");
+        sb.append("                if (childStart > 0) {\n");
+        sb.append("                    break;\n");
+        sb.append("                }\n");
+        sb.append("                SyntaxNode found = find(child, childStart, parserClass, length);\n");
+        sb.append("                if (found != null) {\n");
+        sb.append("                    return found;\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return null;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        /** Rebuilds the path above {@code path[depth]} around {@code replacement}; later siblings move by {@code delta}. */\n");
+        sb.append("        private static SyntaxNode splice(java.util.List<Step> path, int depth, SyntaxNode replacement, int delta) {\n");
+        sb.append("            SyntaxNode updated = replacement;\n");
+        sb.append("            for (int i = depth; i > 0; i--) {\n");
+        sb.append("                SyntaxNode parent = path.get(i - 1).node();\n");
+        sb.append("                int index = path.get(i).childIndex();\n");
+        sb.append("                java.util.List<SyntaxNode> children = new java.util.ArrayList<>(parent.children());\n");
+        sb.append("                children.set(index, updated);\n");
+        sb.append("                for (int k = index + 1; k < children.size(); k++) {\n");
+        sb.append("                    SyntaxNode sibling = children.get(k);\n");
+        sb.append("                    children.set(k, sibling.withOffset(sibling.offset() + delta));\n");
+        sb.append("                }\n");
+        sb.append("                updated = new SyntaxNode(parent.parser(), parent.offset(), parent.length() + delta,\n");
+        sb.append("                    java.util.List.copyOf(children));\n");
+        sb.append("            }\n");
+        sb.append("            return updated;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static SyntaxNode toNode(Token token, int parentStart) {\n");
+        sb.append("            int start = token.source.offsetFromRoot().value();\n");
+        sb.append("            java.util.List<SyntaxNode> children = new java.util.ArrayList<>();\n");
+        sb.append("            if (token.filteredChildren != null) {\n");
+        sb.append("                for (Token child : token.filteredChildren) {\n");
+        sb.append("                    children.add(toNode(child, start));\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("            return new SyntaxNode(token.parser.getClass(), start - parentStart,\n");
+        sb.append("                token.source.sourceAsString().length(), java.util.List.copyOf(children));\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static Parsed parse(Parser parser, String text) {\n");
+        sb.append("            ParseContext context = new ParseContext(createRootSourceCompat(text));\n");
+        sb.append("            try {\n");
+        sb.append("                return parser.parse(context);\n");
+        sb.append("            } finally {\n");
+        sb.append("                context.close();\n");
+        sb.append("            }\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static int consumedLength(Parsed parsed) {\n");
+        sb.append("            return parsed.getConsumed().source.sourceAsString().length();\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static int commonPrefix(String a, String b) {\n");
+        sb.append("            int limit = Math.min(a.length(), b.length());\n");
+        sb.append("            int i = 0;\n");
+        sb.append("            while (i + COMPARE_BLOCK <= limit && a.regionMatches(i, b, i, COMPARE_BLOCK)) {\n");
+        sb.append("                i += COMPARE_BLOCK;\n");
+        sb.append("            }\n");
+        sb.append("            while (i < limit && a.charAt(i) == b.charAt(i)) {\n");
+        sb.append("                i++;\n");
+        sb.append("            }\n");
+        sb.append("            return i;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static int commonSuffix(String a, String b, int limit) {\n");
+        sb.append("            int aEnd = a.length();\n");
+        sb.append("            int bEnd = b.length();\n");
+        sb.append("            int i = 0;\n");
+        sb.append("            while (i + COMPARE_BLOCK <= limit\n");
+        sb.append("                    && a.regionMatches(aEnd - i - COMPARE_BLOCK, b, bEnd - i - COMPARE_BLOCK, COMPARE_BLOCK)) {\n");
+        sb.append("                i += COMPARE_BLOCK;\n");
+        sb.append("            }\n");
+        sb.append("            while (i < limit && a.charAt(aEnd - i - 1) == b.charAt(bEnd - i - 1)) {\n");
+        sb.append("                i++;\n");
+        sb.append("            }\n");
+        sb.append("            return i;\n");
+        sb.append("        }\n\n");
+
+        sb.append("        private static StringSource createRootSourceCompat(String source) {\n");
+        sb.append("            try {\n");
+        sb.append("                java.lang.reflect.Method m = StringSource.class.getMethod(\"createRootSource\", String.class);\n");
+        sb.append("                Object v = m.invoke(null, source);\n");
+        sb.append("                if (v instanceof StringSource s) {\n");
+        sb.append("                    return s;\n");
+        sb.append("                }\n");
+        sb.append("            } catch (Throwable ignored) {}\n");
+        sb.append("            try {\n");
+        sb.append("                for (java.lang.reflect.Constructor<?> c : StringSource.class.getDeclaredConstructors()) {\n");
+        sb.append("                    Class<?>[] types = c.getParameterTypes();\n");
+        sb.append("                    if (types.length == 0 || types[0] != String.class) {\n");
+        sb.append("                        continue;\n");
+        sb.append("                    }\n");
+        sb.append("                    Object[] args = new Object[types.length];\n");
+        sb.append("                    args[0] = source;\n");
+        sb.append("                    c.setAccessible(true);\n");
+        sb.append("                    Object v = c.newInstance(args);\n");
+        sb.append("                    if (v instanceof StringSource s) {\n");
+        sb.append("                        return s;\n");
+        sb.append("                    }\n");
+        sb.append("                }\n");
+        sb.append("            } catch (Throwable ignored) {}\n");
+        sb.append("            throw new IllegalStateException(\"No compatible StringSource initializer found\");\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+        return sb.toString();
+    }
+
     // =========================================================================
     // ユーティリティ
     // =========================================================================
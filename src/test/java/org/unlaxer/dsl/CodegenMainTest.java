@@ -519,7 +519,7 @@ public class CodegenMainTest {
         assertEquals("E-CLI-UNKNOWN-GENERATOR", JsonTestUtil.getString(event, "code"));
         assertEquals(null, event.get("detail"));
         List<Object> generators = JsonTestUtil.getArray(event, "availableGenerators");
-        assertEquals(List.of("AST", "DAP", "DAPLauncher", "Evaluator", "LSP", "Launcher", "Mapper", "Parser"), generators);
+        assertEquals(List.of("AST", "ASTCodec", "BytecodeCompiler", "ColumnarAST", "Compiler", "DAP", "DAPLauncher", "Evaluator", "LSP", "Launcher", "Mapper", "Optimizer", "Parser"), generators);
         assertTrue(result.err().isBlank());
     }
 
@@ -192,6 +192,19 @@ public class UBNFMapperTest {
         assertEquals(List.of("left", "op", "right"), mapping.paramNames());
     }
 
+    @Test
+    public void testRuleDecl_annotations_mapping_withTypes() {
+        UBNFFile file = UBNFMapper.parse(
+            "grammar G {\n"
+            + "  @mapping(Literal, params=[value, exact], types=[value:double, exact:boolean])\n"
+            + "  Lit ::= Term ;\n"
+            + "}");
+        MappingAnnotation mapping = (MappingAnnotation) file.grammars().get(0).rules().get(0).annotations().get(0);
+        assertEquals(List.of("value", "exact"), mapping.paramNames());
+        assertEquals("double", mapping.paramTypes().get("value"));
+        assertEquals("boolean", mapping.paramTypes().get("exact"));
+    }
+
     // =========================================================================
     // RuleBody — SequenceBody / ChoiceBody
     // =========================================================================
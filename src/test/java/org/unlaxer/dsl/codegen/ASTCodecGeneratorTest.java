@@ -0,0 +1,139 @@
+package org.unlaxer.dsl.codegen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFMapper;
+
+public class ASTCodecGeneratorTest {
+
+    private static final String TINYCALC_GRAMMAR =
+        "grammar TinyCalc {\n" +
+        "  @package: org.unlaxer.tinycalc.generated\n" +
+        "  @whitespace: javaStyle\n" +
+        "\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "\n" +
+        "  @root\n" +
+        "  @mapping(TinyCalcProgram, params=[declarations, expression])\n" +
+        "  TinyCalc ::=\n" +
+        "    { VariableDeclaration } @declarations\n" +
+        "    Expression @expression ;\n" +
+        "\n" +
+        "  @mapping(VarDecl, params=[keyword, name, init])\n" +
+        "  VariableDeclaration ::=\n" +
+        "    ( 'var' | 'variable' ) @keyword\n" +
+        "    IDENTIFIER @name\n" +
+        "    [ 'set' Expression @init ]\n" +
+        "    ';' ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Expression ::= Term @left { ( '+' @op | '-' @op ) Term @right } ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Term ::= Factor @left { ( '*' @op | '/' @op ) Factor @right } ;\n" +
+        "\n" +
+        "  Factor ::=\n" +
+        "      '(' Expression ')'\n" +
+        "    | NUMBER\n" +
+        "    | IDENTIFIER ;\n" +
+        "}";
+
+    private static final String TYPED_GRAMMAR =
+        "grammar Typed {\n" +
+        "  @package: org.example.typed\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "  @root\n" +
+        "  @mapping(Program, params=[items])\n" +
+        "  Program ::= { Item } @items ;\n" +
+        "  @mapping(Item, params=[name, value, weight], types=[value:long, weight:double])\n" +
+        "  Item ::= IDENTIFIER @name '=' NUMBER @value [ ':' NUMBER @weight ] ';' ;\n" +
+        "}";
+
+    @Test
+    public void testGeneratedPackageAndClassName() {
+        CodeGenerator.GeneratedSource result = new ASTCodecGenerator().generate(parseGrammar(TINYCALC_GRAMMAR));
+        assertEquals("org.unlaxer.tinycalc.generated", result.packageName());
+        assertEquals("TinyCalcASTCodec", result.className());
+    }
+
+    @Test
+    public void testHeaderCarriesFormatVersionAndSchemaHash() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should declare format version", source.contains("public static final int FORMAT_VERSION = 1;"));
+        assertTrue("should declare schema hash", source.contains("public static final long SCHEMA_HASH = 0x"));
+        assertTrue("reader should reject other schemas", source.contains("throw new IllegalArgumentException(\"AST schema mismatch\");"));
+    }
+
+    @Test
+    public void testSchemaHashChangesWithRecordShape() {
+        String original = schemaHashLine(generate(TINYCALC_GRAMMAR));
+        String changed = schemaHashLine(generate(TINYCALC_GRAMMAR.replace(
+            "params=[keyword, name, init]", "params=[keyword, name]")));
+        assertNotEquals(original, changed);
+        assertEquals(original, schemaHashLine(generate(TINYCALC_GRAMMAR)));
+    }
+
+    @Test
+    public void testWriterSwitchesOverSealedRecords() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should encode program", source.contains("case TinyCalcAST.TinyCalcProgram n -> {"));
+        assertTrue("should write kind as varint", source.contains("writeVarint(KIND_VAR_DECL);"));
+        assertTrue("should write span", source.contains("writeSpan(n);"));
+        assertTrue("strings should go through the table", source.contains("writeString(n.name());"));
+        assertTrue("list should write count", source.contains("list0 == null ? 0 : list0.size() + 1"));
+    }
+
+    @Test
+    public void testReaderConstructsRecordsWithoutReflection() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should read var decl", source.contains("private TinyCalcAST.VarDecl readVarDecl() {"));
+        assertTrue("should construct record", source.contains("return new TinyCalcAST.VarDecl(keywordValue, nameValue, initValue);"));
+        assertTrue("should read typed child", source.contains("readNode(TinyCalcAST.BinaryExpr.class)"));
+        assertFalse("should not use reflection", source.contains("getDeclaredConstructor"));
+        assertFalse("should not use java serialization", source.contains("ObjectOutputStream"));
+    }
+
+    @Test
+    public void testPrimitiveTypeHintsUseCompactEncodings() {
+        String source = generate(TYPED_GRAMMAR);
+        assertTrue("long should be zigzag varint", source.contains("writeSignedVarlong(n.value());"));
+        assertTrue("long should decode as varint", source.contains("long valueValue = readSignedVarlong();"));
+        assertTrue("boxed optional element should be tagged", source.contains("Double value1 = (Double) readValue();"));
+    }
+
+    @Test
+    public void testParseCacheKeyedByContentHash() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should contain cache", source.contains("public static final class ParseCache {"));
+        assertTrue("should hash source", source.contains("MessageDigest.getInstance(\"SHA-256\")"));
+        assertTrue("should parse on miss", source.contains("TinyCalcAST.TinyCalcProgram root = TinyCalcMapper.parse(source);"));
+        assertTrue("should replace entries atomically", source.contains("StandardCopyOption.ATOMIC_MOVE"));
+        assertTrue("decoded root should be typed",
+            source.contains("public record Decoded(TinyCalcAST.TinyCalcProgram root, Map<Object, int[]> spans) {"));
+    }
+
+    // =========================================================================
+    // ヘルパー
+    // =========================================================================
+
+    private String schemaHashLine(String source) {
+        return source.lines().filter(line -> line.contains("SCHEMA_HASH =")).findFirst().orElseThrow();
+    }
+
+    private String generate(String grammarSource) {
+        return new ASTCodecGenerator().generate(parseGrammar(grammarSource)).source();
+    }
+
+    private GrammarDecl parseGrammar(String source) {
+        return UBNFMapper.parse(source).grammars().get(0);
+    }
+}
@@ -2,6 +2,7 @@ package org.unlaxer.dsl.codegen;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
@@ -176,6 +177,106 @@ public class ASTGeneratorTest {
         assertTrue("should not generate malformed permits", !source.contains("permits {"));
     }
 
+    @Test
+    public void testLazyAstIsOptIn() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new ASTGenerator().generate(grammar).source();
+        assertTrue("default AST should stay record based",
+            source.contains("record TinyCalcProgram(") && !source.contains("class Lazy<T>"));
+    }
+
+    @Test
+    public void testLazyAstGeneratesLazyFieldsBehindSameAccessors() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @lazyAst: true\n"));
+        String source = new ASTGenerator().generate(grammar).source();
+        assertTrue("should keep sealed permits", source.contains("TinyCalcAST.TinyCalcProgram,"));
+        assertTrue("should generate final class node",
+            source.contains("final class TinyCalcProgram implements TinyCalcAST {"));
+        assertTrue("list field should be lazy",
+            source.contains("private final Lazy<List<TinyCalcAST.VarDecl>> declarations;"));
+        assertTrue("accessor should keep record signature",
+            source.contains("public List<TinyCalcAST.VarDecl> declarations() {"));
+        assertTrue("should expose lazy factory",
+            source.contains("public static BinaryExpr lazy(Lazy<TinyCalcAST.BinaryExpr> left,"));
+        assertTrue("string field should stay eager", source.contains("private final String name;"));
+        assertTrue("should generate one-time initializer", source.contains("synchronized (this) {"));
+    }
+
+    @Test
+    public void testMappingTypeHintsGeneratePrimitiveFields() {
+        String grammarSource =
+            "grammar Typed {\n" +
+            "  @package: org.example.typed\n" +
+            "  token NUMBER = NumberParser\n" +
+            "  @root\n" +
+            "  @mapping(Item, params=[value, weight, flags], types=[value:long, weight:double, flags:boolean])\n" +
+            "  Item ::= NUMBER @value [ ':' NUMBER @weight ] { 'true' @flags } ;\n" +
+            "}";
+        String source = new ASTGenerator().generate(parseGrammar(grammarSource)).source();
+        assertTrue("scalar hint should be primitive", source.contains("long value,"));
+        assertTrue("optional hint should be boxed", source.contains("Optional<Double> weight,"));
+        assertTrue("repeated hint should be boxed", source.contains("List<Boolean> flags"));
+    }
+
+    @Test
+    public void testStructuralHashPrecomputesHashAtConstruction() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @structuralHash: true\n"));
+        String source = new ASTGenerator().generate(grammar).source();
+        assertTrue("should generate final class node",
+            source.contains("final class VarDecl implements TinyCalcAST {"));
+        assertTrue("should store hash", source.contains("private final int structuralHash;"));
+        assertTrue("constructor should compute hash",
+            source.contains("this.structuralHash = structuralHash(keyword, name, init);"));
+        assertTrue("hashCode should return stored hash", source.contains("            return structuralHash;\n"));
+        assertTrue("equals should reject on hash mismatch",
+            source.contains("if (!(o instanceof VarDecl other) || structuralHash != other.structuralHash) {"));
+        assertTrue("accessor should keep record signature",
+            source.contains("public Optional<TinyCalcAST.BinaryExpr> init() {"));
+        assertTrue("hash-consing should be opt-in", !source.contains("final class HashCons"));
+    }
+
+    @Test
+    public void testStructuralHashWithHashConsGeneratesFactory() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @structuralHash: { hashCons: 'true' }\n"));
+        String source = new ASTGenerator().generate(grammar).source();
+        assertTrue("should generate factory", source.contains("final class HashCons {"));
+        assertTrue("should intern shallowly", source.contains("public <T extends TinyCalcAST> T intern(T node) {"));
+        assertTrue("should canonicalize bottom-up",
+            source.contains("TinyCalcAST.BinaryExpr left = canonicalizeValue(n.left());"));
+        assertTrue("should keep nodes whose children are shared",
+            source.contains("yield left == n.left() && op == n.op() && right == n.right()"));
+    }
+
+    @Test
+    public void testStructuralHashWithLazyAstCachesHashOnFirstUse() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @lazyAst: true\n  @structuralHash: true\n"));
+        String source = new ASTGenerator().generate(grammar).source();
+        assertTrue("lazy node should cache hash", source.contains("private boolean hashIsZero;"));
+        assertTrue("lazy node should hash through accessors",
+            source.contains("h = structuralHash(left(), op(), right());"));
+    }
+
+    @Test
+    public void testStructuralHashRejectsInvalidHashConsValue() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @structuralHash: { hashCons: 'yes' }\n"));
+        try {
+            new ASTGenerator().generate(grammar);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("@structuralHash.hashCons"));
+        }
+    }
+
     // =========================================================================
     // ヘルパー
     // =========================================================================
@@ -0,0 +1,103 @@
+package org.unlaxer.dsl.codegen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFMapper;
+
+public class BytecodeCompilerGeneratorTest {
+
+    private static final String TINYCALC_GRAMMAR =
+        "grammar TinyCalc {\n" +
+        "  @package: org.unlaxer.tinycalc.generated\n" +
+        "  @whitespace: javaStyle\n" +
+        "\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "\n" +
+        "  @root\n" +
+        "  @mapping(TinyCalcProgram, params=[declarations, expression])\n" +
+        "  TinyCalc ::=\n" +
+        "    { VariableDeclaration } @declarations\n" +
+        "    Expression @expression ;\n" +
+        "\n" +
+        "  @mapping(VarDecl, params=[keyword, name, init])\n" +
+        "  VariableDeclaration ::=\n" +
+        "    ( 'var' | 'variable' ) @keyword\n" +
+        "    IDENTIFIER @name\n" +
+        "    [ 'set' Expression @init ]\n" +
+        "    ';' ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Expression ::= Term @left { ( '+' @op | '-' @op ) Term @right } ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Term ::= Factor @left { ( '*' @op | '/' @op ) Factor @right } ;\n" +
+        "\n" +
+        "  Factor ::=\n" +
+        "      '(' Expression ')'\n" +
+        "    | NUMBER\n" +
+        "    | IDENTIFIER ;\n" +
+        "}";
+
+    @Test
+    public void testGeneratedPackageAndClassName() {
+        CodeGenerator.GeneratedSource result =
+            new BytecodeCompilerGenerator().generate(parseGrammar(TINYCALC_GRAMMAR));
+        assertEquals("org.unlaxer.tinycalc.generated", result.packageName());
+        assertEquals("TinyCalcBytecodeCompiler", result.className());
+    }
+
+    @Test
+    public void testWrapsClosureCompiler() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should wrap closure compiler",
+            source.contains("public TinyCalcBytecodeCompiler(TinyCalcCompiler<C, T> compiler) {"));
+        assertTrue("should only flatten operator chains",
+            source.contains("closure instanceof TinyCalcCompiler.Binary<C, T>"));
+    }
+
+    @Test
+    public void testDefinesHiddenClassWithClassData() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should define hidden class",
+            source.contains("lookup.defineHiddenClassWithClassData(bytes, builder.constants.toArray(), true)"));
+        assertTrue("hidden class should live in the generated package",
+            source.contains("\"org/unlaxer/tinycalc/generated/TinyCalcCompiledExpression\""));
+        assertTrue("hidden class should implement compiled expression",
+            source.contains("\"org/unlaxer/tinycalc/generated/TinyCalcCompiler$CompiledExpression\""));
+        assertTrue("constants should be loaded from class data",
+            source.contains("\"java/lang/invoke/MethodHandles\", \"classData\""));
+    }
+
+    @Test
+    public void testCachesByAstAndFallsBackToClosures() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should cache by AST node",
+            source.contains("private final Map<TinyCalcAST, TinyCalcCompiler.CompiledExpression<C, T>> cache"));
+        assertTrue("should default to JIT-able method size", source.contains("DEFAULT_MAX_CODE_SIZE = 8000;"));
+        assertTrue("should count fallbacks", source.contains("public int fallbackCount() {"));
+        assertTrue("should fall back to closure tree",
+            source.contains("            fallbacks.incrementAndGet();\n            return closure;\n"));
+        assertTrue("should rethrow errors such as VerifyError",
+            source.contains("        } catch (Error e) {\n            throw e;\n"));
+        assertTrue("should record the failure behind a fallback",
+            source.contains("            lastFailure = e;\n"));
+    }
+
+    // =========================================================================
+    // ヘルパー
+    // =========================================================================
+
+    private String generate(String grammarSource) {
+        return new BytecodeCompilerGenerator().generate(parseGrammar(grammarSource)).source();
+    }
+
+    private GrammarDecl parseGrammar(String source) {
+        return UBNFMapper.parse(source).grammars().get(0);
+    }
+}
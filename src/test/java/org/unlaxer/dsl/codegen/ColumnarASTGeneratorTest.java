@@ -0,0 +1,203 @@
+package org.unlaxer.dsl.codegen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFMapper;
+
+public class ColumnarASTGeneratorTest {
+
+    private static final String TINYCALC_GRAMMAR =
+        "grammar TinyCalc {\n" +
+        "  @package: org.unlaxer.tinycalc.generated\n" +
+        "  @whitespace: javaStyle\n" +
+        "\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "\n" +
+        "  @root\n" +
+        "  @mapping(TinyCalcProgram, params=[declarations, expression])\n" +
+        "  TinyCalc ::=\n" +
+        "    { VariableDeclaration } @declarations\n" +
+        "    Expression @expression ;\n" +
+        "\n" +
+        "  @mapping(VarDecl, params=[keyword, name, init])\n" +
+        "  VariableDeclaration ::=\n" +
+        "    ( 'var' | 'variable' ) @keyword\n" +
+        "    IDENTIFIER @name\n" +
+        "    [ 'set' Expression @init ]\n" +
+        "    ';' ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Expression ::= Term @left { ( '+' @op | '-' @op ) Term @right } ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Term ::= Factor @left { ( '*' @op | '/' @op ) Factor @right } ;\n" +
+        "\n" +
+        "  Factor ::=\n" +
+        "      '(' Expression ')'\n" +
+        "    | NUMBER\n" +
+        "    | IDENTIFIER ;\n" +
+        "}";
+
+    private static final String TYPED_GRAMMAR =
+        "grammar Typed {\n" +
+        "  @package: org.example.typed\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "  @root\n" +
+        "  @mapping(Program, params=[items])\n" +
+        "  Program ::= { Item } @items ;\n" +
+        "  @mapping(Item, params=[name, value, weight], types=[value:long, weight:double])\n" +
+        "  Item ::= IDENTIFIER @name '=' NUMBER @value [ ':' NUMBER @weight ] ';' ;\n" +
+        "}";
+
+    @Test
+    public void testGeneratedPackageAndClassName() {
+        CodeGenerator.GeneratedSource result = new ColumnarASTGenerator().generate(parseGrammar(TINYCALC_GRAMMAR));
+        assertEquals("org.unlaxer.tinycalc.generated", result.packageName());
+        assertEquals("TinyCalcColumnarAST", result.className());
+    }
+
+    @Test
+    public void testGeneratedSourceDeclaresColumns() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should declare kind column", source.contains("private final int[] kinds;"));
+        assertTrue("should declare span columns", source.contains("private final int[] spanStarts;"));
+        assertTrue("should declare span columns", source.contains("private final int[] spanEnds;"));
+        assertTrue("should declare shared list column", source.contains("private final int[] lists;"));
+        assertTrue("should declare string pool", source.contains("private final String[] strings;"));
+    }
+
+    @Test
+    public void testGeneratedSourceContainsKindConstantsPerMappingClass() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should contain program kind", source.contains("public static final int KIND_TINY_CALC_PROGRAM = 0;"));
+        assertTrue("should contain var decl kind", source.contains("public static final int KIND_VAR_DECL = 1;"));
+        assertTrue("should contain binary kind", source.contains("public static final int KIND_BINARY_EXPR = 2;"));
+        assertFalse("shared mapping class should get a single kind", source.contains("KIND_BINARY_EXPR = 3"));
+    }
+
+    @Test
+    public void testGeneratedSourceContainsFlyweightViews() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should declare sealed node interface", source.contains("public sealed interface Node permits"));
+        assertTrue("should contain program view",
+            source.contains("public record TinyCalcProgram(TinyCalcColumnarAST ast, int id) implements Node"));
+        assertTrue("should contain binary expr view",
+            source.contains("public record BinaryExpr(TinyCalcColumnarAST ast, int id) implements Node"));
+    }
+
+    @Test
+    public void testListFieldsExposeViewAndIndexedAccessors() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should expose list view", source.contains("public List<VarDecl> declarations() {"));
+        assertTrue("should expose count", source.contains("public int declarationsCount() {"));
+        assertTrue("should expose indexed access", source.contains("public VarDecl declarations(int index) {"));
+        assertTrue("list view should be backed by columns", source.contains("return new AbstractList<>() {"));
+    }
+
+    @Test
+    public void testOptionalAndStringFieldsMirrorRecordAccessors() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("optional child should be Optional", source.contains("public Optional<BinaryExpr> init() {"));
+        assertTrue("identifier should come from string pool", source.contains("public String name() {"));
+        assertTrue("strings should be interned", source.contains("string(identifierLikeText(paramToken_name_0))"));
+    }
+
+    @Test
+    public void testBuilderMapsTokensDirectlyIntoColumns() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should contain builder", source.contains("static final class Builder {"));
+        assertTrue("should contain per-kind mapping", source.contains("int mapBinaryExpr(Token token) {"));
+        assertTrue("should allocate nodes by kind", source.contains("int id = newNode(KIND_VAR_DECL, token);"));
+        assertTrue("should walk assoc repeat tokens",
+            source.contains("findDescendants(working, TinyCalcParsers.ExpressionRepeat0Parser.class)"));
+        assertFalse("should not build AST records", source.contains("new TinyCalcAST."));
+    }
+
+    @Test
+    public void testEntryPointsReuseMapperHelpers() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should contain parse", source.contains("public static TinyCalcColumnarAST parse(String source) {"));
+        assertTrue("should contain fromToken", source.contains("public static TinyCalcColumnarAST fromToken(Token rootToken) {"));
+        assertTrue("should map root rule", source.contains("int rootId = builder.mapTinyCalcProgram(mappingRoot);"));
+        assertTrue("should delegate token helpers",
+            source.contains("return TinyCalcMapper.findDescendants(token, parserClass);"));
+    }
+
+    @Test
+    public void testTypedCapturesUseWideColumn() {
+        String source = generate(TYPED_GRAMMAR);
+        assertTrue("long should be stored in wide column", source.contains("wide(longValueOf(paramToken_value_0))"));
+        assertTrue("double should be stored as raw bits",
+            source.contains("wide(Double.doubleToRawLongBits(doubleValueOf(paramToken_weight_0)))"));
+        assertTrue("long accessor should be primitive", source.contains("public long value() {"));
+        assertTrue("optional double should stay Optional", source.contains("public Optional<Double> weight() {"));
+        assertTrue("should delegate converter", source.contains("return TypedMapper.longValueOf(token);"));
+    }
+
+    @Test
+    public void testUntypedGrammarDoesNotDelegateConverters() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertFalse("untyped grammar should not reference converters", source.contains("longValueOf"));
+    }
+
+    @Test
+    public void testNodesRecordParentLinks() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should declare parent column", source.contains("private final int[] parents;"));
+        assertTrue("should expose parent id", source.contains("public int parent(int id) {"));
+        assertTrue("builder should record enclosing node", source.contains("parents[id] = currentParent;"));
+        assertTrue("mapping should enter node scope", source.contains("int enclosing = enter(id);"));
+    }
+
+    @Test
+    public void testOffHeapStoresColumnsInArena() {
+        String source = generate(TINYCALC_GRAMMAR.replace("@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @offHeapAst: true\n"));
+        assertTrue("should be closeable", source.contains("public final class TinyCalcColumnarAST implements AutoCloseable {"));
+        assertTrue("should default to shared arena", source.contains("this.arena = Arena.ofShared();"));
+        assertTrue("columns should be segments", source.contains("private final MemorySegment kinds;"));
+        assertTrue("should read through value layouts", source.contains("return kinds.getAtIndex(ValueLayout.JAVA_INT, id);"));
+        assertTrue("close should free arena", source.contains("        arena.close();\n"));
+        assertFalse("should not keep heap int columns", source.contains("private final int[] kinds;"));
+    }
+
+    @Test
+    public void testOffHeapConfinedArena() {
+        String source = generate(TINYCALC_GRAMMAR.replace("@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @offHeapAst: { arena: 'confined' }\n"));
+        assertTrue("should use confined arena", source.contains("this.arena = Arena.ofConfined();"));
+    }
+
+    @Test
+    public void testOffHeapRejectsUnknownArena() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace("@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @offHeapAst: { arena: 'global' }\n"));
+        try {
+            new ColumnarASTGenerator().generate(grammar);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("@offHeapAst arena"));
+        }
+    }
+
+    // =========================================================================
+    // ヘルパー
+    // =========================================================================
+
+    private String generate(String grammarSource) {
+        return new ColumnarASTGenerator().generate(parseGrammar(grammarSource)).source();
+    }
+
+    private GrammarDecl parseGrammar(String source) {
+        return UBNFMapper.parse(source).grammars().get(0);
+    }
+}
@@ -1,11 +1,17 @@
 package org.unlaxer.dsl.codegen;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -26,6 +32,9 @@ import org.unlaxer.dsl.bootstrap.UBNFMapper;
  * <p>unlaxer-common は --enable-preview でビルドされているため、
  * javax.tools.JavaCompiler を直接使い、--enable-preview --release 21 を
  * 明示的に渡してコンパイルする。</p>
+ *
+ * <p>実行時の挙動が要になるジェネレーター（ColumnarAST、ASTCodec、Optimizer など）は、
+ * 生成コードを呼ぶ probe クラスを一緒にコンパイル・ロードして結果を検証する。</p>
  */
 public class CompileVerificationTest {
 
@@ -64,6 +73,95 @@ public class CompileVerificationTest {
         "    | IDENTIFIER ;\n" +
         "}";
 
+    /** XxxMapper のレコードと XxxColumnarAST のビューを同じ書式で文字列化して比べる probe。 */
+    private static final String COLUMNAR_PROBE =
+        "package org.unlaxer.tinycalc.generated;\n" +
+        "public class ColumnarProbe {\n" +
+        "    public static Object run() {\n" +
+        "        String source = \"var a set 1 + 2;\\nvar b;\\n(a + 2) * 3 - b\";\n" +
+        "        String mapped = describe(TinyCalcMapper.parse(source));\n" +
+        "        TinyCalcColumnarAST columns = TinyCalcColumnarAST.parse(source);\n" +
+        "        String columnar = describe((TinyCalcColumnarAST.TinyCalcProgram) columns.root());\n" +
+        "        return mapped.equals(columnar) ? \"same:\" + columns.nodeCount() : mapped + \" != \" + columnar;\n" +
+        "    }\n" +
+        "    static String span(Object node) {\n" +
+        "        return TinyCalcMapper.sourceSpanOf(node).map(s -> s[0] + \"-\" + s[1]).orElse(\"?\");\n" +
+        "    }\n" +
+        "    static String describe(TinyCalcAST.TinyCalcProgram p) {\n" +
+        "        StringBuilder sb = new StringBuilder(\"P@\" + span(p) + \"[\");\n" +
+        "        for (TinyCalcAST.VarDecl d : p.declarations()) {\n" +
+        "            sb.append(\"D@\").append(span(d)).append('(').append(d.keyword()).append(',').append(d.name())\n" +
+        "              .append(',').append(d.init().map(ColumnarProbe::describe).orElse(\"-\")).append(')');\n" +
+        "        }\n" +
+        "        return sb.append('|').append(describe(p.expression())).append(']').toString();\n" +
+        "    }\n" +
+        "    static String describe(TinyCalcAST.BinaryExpr b) {\n" +
+        "        if (b == null) return \"null\";\n" +
+        "        StringBuilder sb = new StringBuilder(\"B@\" + span(b) + \"(\" + describe(b.left()) + \",\" + b.op());\n" +
+        "        for (TinyCalcAST.BinaryExpr r : b.right()) sb.append(',').append(describe(r));\n" +
+        "        return sb.append(')').toString();\n" +
+        "    }\n" +
+        "    static String span(TinyCalcColumnarAST.Node node) {\n" +
+        "        return node.spanStart() + \"-\" + node.spanEnd();\n" +
+        "    }\n" +
+        "    static String describe(TinyCalcColumnarAST.TinyCalcProgram p) {\n" +
+        "        StringBuilder sb = new StringBuilder(\"P@\" + span(p) + \"[\");\n" +
+        "        for (int i = 0; i < p.declarationsCount(); i++) {\n" +
+        "            TinyCalcColumnarAST.VarDecl d = p.declarations(i);\n" +
+        "            if (!p.equals(d.parent())) return \"wrong parent\";\n" +
+        "            sb.append(\"D@\").append(span(d)).append('(').append(d.keyword()).append(',').append(d.name())\n" +
+        "              .append(',').append(d.init().map(ColumnarProbe::describe).orElse(\"-\")).append(')');\n" +
+        "        }\n" +
+        "        return sb.append('|').append(describe(p.expression())).append(']').toString();\n" +
+        "    }\n" +
+        "    static String describe(TinyCalcColumnarAST.BinaryExpr b) {\n" +
+        "        if (b == null) return \"null\";\n" +
+        "        StringBuilder sb = new StringBuilder(\"B@\" + span(b) + \"(\" + describe(b.left()) + \",\" + b.op());\n" +
+        "        for (TinyCalcColumnarAST.BinaryExpr r : b.right()) sb.append(',').append(describe(r));\n" +
+        "        return sb.append(')').toString();\n" +
+        "    }\n" +
+        "}\n";
+
+    /**
+     * TinyCalcCompiler の最小サブクラス（変数は Map から読み、left が null の BinaryExpr を葉とする）と、
+     * {@code (x + 2) * 3 - 4 / x} の手組み AST。
+     */
+    private static final String CALC_COMPILER_PROBE_SUPPORT =
+        "    static final class Calc extends TinyCalcCompiler<Map<String, Double>, Double> {\n" +
+        "        protected CompiledExpression<Map<String, Double>, Double> compileTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) {\n" +
+        "            return compile(n.expression());\n" +
+        "        }\n" +
+        "        protected CompiledExpression<Map<String, Double>, Double> compileVarDecl(TinyCalcAST.VarDecl n) {\n" +
+        "            return context -> context.get(n.name());\n" +
+        "        }\n" +
+        "        @Override\n" +
+        "        protected CompiledExpression<Map<String, Double>, Double> compileBinaryExpr(TinyCalcAST.BinaryExpr n) {\n" +
+        "            if (n.left() != null) return super.compileBinaryExpr(n);\n" +
+        "            String text = n.op().get(0);\n" +
+        "            if (!Character.isDigit(text.charAt(0))) return context -> context.get(text);\n" +
+        "            double value = Double.parseDouble(text);\n" +
+        "            return context -> value;\n" +
+        "        }\n" +
+        "        protected BinaryOperator<Double> binaryOperator(String op) {\n" +
+        "            return switch (op) {\n" +
+        "                case \"+\" -> Double::sum;\n" +
+        "                case \"-\" -> (a, b) -> a - b;\n" +
+        "                case \"*\" -> (a, b) -> a * b;\n" +
+        "                default -> (a, b) -> a / b;\n" +
+        "            };\n" +
+        "        }\n" +
+        "    }\n" +
+        "    static TinyCalcAST.BinaryExpr leaf(String text) {\n" +
+        "        return new TinyCalcAST.BinaryExpr(null, List.of(text), List.of());\n" +
+        "    }\n" +
+        "    static TinyCalcAST.BinaryExpr binary(TinyCalcAST.BinaryExpr left, String op, TinyCalcAST.BinaryExpr right) {\n" +
+        "        return new TinyCalcAST.BinaryExpr(left, List.of(op), List.of(right));\n" +
+        "    }\n" +
+        "    static TinyCalcAST.BinaryExpr expression() {\n" +
+        "        return binary(binary(binary(leaf(\"x\"), \"+\", leaf(\"2\")), \"*\", leaf(\"3\")),\n" +
+        "            \"-\", binary(leaf(\"4\"), \"/\", leaf(\"x\")));\n" +
+        "    }\n";
+
     // =========================================================================
     // 各ジェネレーター個別コンパイル検証
     // =========================================================================
@@ -115,6 +213,599 @@ public class CompileVerificationTest {
         assertCompiles(astResult, parserResult, mapperResult, evalResult);
     }
 
+    // =========================================================================
+    // オプション付きバリアントのコンパイル検証
+    // =========================================================================
+
+    @Test
+    public void testParallelMappingMapperCompiles() {
+        GrammarDecl grammar = parseGrammar(withSettings("@parallelMapping: { threshold: '2' }"));
+        assertCompiles(
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar));
+    }
+
+    @Test
+    public void testInternSymbolsWithParallelMappingCompiles() {
+        GrammarDecl grammar = parseGrammar(withSettings(
+            "@internSymbols: { scope: 'shared' }", "@parallelMapping: true"));
+        assertCompiles(
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar));
+    }
+
+    @Test
+    public void testInternSymbolsSharesOneTablePerParseAcrossLeaves() {
+        GrammarDecl grammar = parseGrammar(withSettings(
+            "@internSymbols: true", "@parallelMapping: { threshold: '2' }"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.InternProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class InternProbe {\n" +
+            "    public static Object run() throws Exception {\n" +
+            "        StringBuilder source = new StringBuilder();\n" +
+            "        for (int i = 0; i < 4000; i++) {\n" +
+            "            source.append(\"var v\").append(i % 3).append(\" set \").append(i).append(\";\\n\");\n" +
+            "        }\n" +
+            "        source.append(\"v0\");\n" +
+            "        TinyCalcAST.TinyCalcProgram program = TinyCalcMapper.parse(source.toString());\n" +
+            "        Set<String> instances = Collections.newSetFromMap(new IdentityHashMap<>());\n" +
+            "        for (TinyCalcAST.VarDecl d : program.declarations()) instances.add(d.name());\n" +
+            "        java.lang.reflect.Field field = TinyCalcMapper.class.getDeclaredField(\"SYMBOLS\");\n" +
+            "        field.setAccessible(true);\n" +
+            "        Object bound = ((ThreadLocal<?>) field.get(null)).get();\n" +
+            "        return program.declarations().size() + \",\" + instances.size() + \",\" + (bound == null);\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar));
+        // one String instance per distinct name across all leaves, and no table left on the calling thread
+        assertEquals("4000,3,true", result);
+    }
+
+    @Test
+    public void testInternSymbolsLazyFieldsUseTheParseTable() {
+        GrammarDecl grammar = parseGrammar(withSettings("@internSymbols: true", "@lazyAst: true"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.LazyInternProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "import java.util.concurrent.*;\n" +
+            "public class LazyInternProbe {\n" +
+            "    public static Object run() throws Exception {\n" +
+            "        TinyCalcAST.TinyCalcProgram program = TinyCalcMapper.parse(\"var a set 1;\\nvar a set 2;\\na\");\n" +
+            "        ExecutorService executor = Executors.newSingleThreadExecutor();\n" +
+            "        try {\n" +
+            "            List<TinyCalcAST.VarDecl> declarations = executor.submit(program::declarations).get();\n" +
+            "            return declarations.get(0).name() == declarations.get(1).name();\n" +
+            "        } finally {\n" +
+            "            executor.shutdown();\n" +
+            "        }\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar));
+        assertEquals(Boolean.TRUE, result);
+    }
+
+    @Test
+    public void testLazyAstCompiles() {
+        GrammarDecl grammar = parseGrammar(withSettings("@lazyAst: true"));
+        assertCompiles(
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+    }
+
+    @Test
+    public void testStructuralHashTreesCompareByContent() {
+        GrammarDecl grammar = parseGrammar(withSettings("@structuralHash: { hashCons: 'true' }"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.HashProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "public class HashProbe {\n" +
+            "    public static Object run() {\n" +
+            "        TinyCalcAST.TinyCalcProgram a = TinyCalcMapper.parse(\"var a set 1;\\n(a + 2) * 3\");\n" +
+            "        TinyCalcAST.TinyCalcProgram b = TinyCalcMapper.parse(\"var a set 1;\\n(a + 2) * 3\");\n" +
+            "        TinyCalcAST.TinyCalcProgram c = TinyCalcMapper.parse(\"var a set 2;\\n(a + 2) * 3\");\n" +
+            "        if (a == b || !a.equals(b) || a.hashCode() != b.hashCode()) return \"equal trees differ\";\n" +
+            "        if (a.equals(c)) return \"different trees are equal\";\n" +
+            "        TinyCalcAST.HashCons cons = new TinyCalcAST.HashCons();\n" +
+            "        return cons.canonicalize(a) == cons.canonicalize(b) ? \"ok\" : \"not shared\";\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        assertEquals("ok", result);
+    }
+
+    @Test
+    public void testPureCacheReusesResultsAcrossThreads() {
+        GrammarDecl grammar = parseGrammar(withSettings("@structuralHash: true")
+            .replace("  @mapping(BinaryExpr", "  @pure\n  @mapping(BinaryExpr"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.PureProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "import java.util.concurrent.atomic.AtomicInteger;\n" +
+            "import java.util.stream.IntStream;\n" +
+            "public class PureProbe {\n" +
+            "    static final AtomicInteger HOOK_CALLS = new AtomicInteger();\n" +
+            "    static final class Calc extends TinyCalcEvaluator<Double> {\n" +
+            "        protected Double evalTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) { return eval(n.expression()); }\n" +
+            "        protected Double evalVarDecl(TinyCalcAST.VarDecl n) { return 0.0; }\n" +
+            "        protected Double evalBinaryExpr(TinyCalcAST.BinaryExpr n) {\n" +
+            "            HOOK_CALLS.incrementAndGet();\n" +
+            "            if (n.left() == null) return Double.parseDouble(n.op().get(0));\n" +
+            "            double value = eval(n.left());\n" +
+            "            for (int i = 0; i < n.right().size(); i++) {\n" +
+            "                double right = eval(n.right().get(i));\n" +
+            "                value = switch (n.op().get(i)) {\n" +
+            "                    case \"+\" -> value + right;\n" +
+            "                    case \"-\" -> value - right;\n" +
+            "                    case \"*\" -> value * right;\n" +
+            "                    default -> value / right;\n" +
+            "                };\n" +
+            "            }\n" +
+            "            return value;\n" +
+            "        }\n" +
+            "        protected Object variableValue(String name) { return null; }\n" +
+            "    }\n" +
+            "    static TinyCalcAST.BinaryExpr leaf(String text) {\n" +
+            "        return new TinyCalcAST.BinaryExpr(null, List.of(text), List.of());\n" +
+            "    }\n" +
+            "    static TinyCalcAST.BinaryExpr expression(int k) {\n" +
+            "        TinyCalcAST.BinaryExpr sum = new TinyCalcAST.BinaryExpr(leaf(String.valueOf(k)), List.of(\"+\"), List.of(leaf(\"2\")));\n" +
+            "        return new TinyCalcAST.BinaryExpr(sum, List.of(\"*\"), List.of(leaf(\"3\")));\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        Calc calc = new Calc();\n" +
+            "        double first = calc.eval(expression(1));\n" +
+            "        int calls = HOOK_CALLS.get();\n" +
+            "        double again = calc.eval(expression(1));\n" +
+            "        if (HOOK_CALLS.get() != calls) return \"equal tree was recomputed\";\n" +
+            "        Calc shared = new Calc();\n" +
+            "        shared.setPureCache(new TinyCalcEvaluator.PureCache<>(4));\n" +
+            "        boolean consistent = IntStream.range(0, 20_000).parallel()\n" +
+            "            .allMatch(i -> shared.eval(expression(i % 8)) == (i % 8 + 2) * 3);\n" +
+            "        TinyCalcEvaluator.PureCache<Double> cache = shared.pureCache();\n" +
+            "        return first + \",\" + again + \",\" + consistent + \",\" + (cache.size() <= 4)\n" +
+            "            + \",\" + (cache.hitCount() + cache.missCount() > 0);\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        assertEquals("9.0,9.0,true,true,true", result);
+    }
+
+    @Test
+    public void testPureCacheKeysOnIdentityWithoutStructuralHash() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR
+            .replace("  @mapping(BinaryExpr", "  @pure\n  @mapping(BinaryExpr"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.PureIdentityProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class PureIdentityProbe {\n" +
+            "    static int hookCalls;\n" +
+            "    static final class Calc extends TinyCalcEvaluator<Double> {\n" +
+            "        protected Double evalTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) { return eval(n.expression()); }\n" +
+            "        protected Double evalVarDecl(TinyCalcAST.VarDecl n) { return 0.0; }\n" +
+            "        protected Double evalBinaryExpr(TinyCalcAST.BinaryExpr n) {\n" +
+            "            hookCalls++;\n" +
+            "            return Double.parseDouble(n.op().get(0));\n" +
+            "        }\n" +
+            "        protected Object variableValue(String name) { return null; }\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        Calc calc = new Calc();\n" +
+            "        TinyCalcAST.BinaryExpr leaf = new TinyCalcAST.BinaryExpr(null, List.of(\"7\"), List.of());\n" +
+            "        calc.eval(leaf);\n" +
+            "        calc.eval(leaf);\n" +
+            "        int sameInstance = hookCalls;\n" +
+            "        calc.eval(new TinyCalcAST.BinaryExpr(null, List.of(\"7\"), List.of()));\n" +
+            "        return sameInstance + \",\" + hookCalls + \",\" + calc.pureCache().hitCount();\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        assertEquals("1,2,1", result);
+    }
+
+    @Test
+    public void testIncrementalEngineReplaysDefinitionsOfReusedNodes() {
+        GrammarDecl grammar = parseGrammar(withSettings("@incrementalEvaluator: true", "@structuralHash: true"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.IncrementalProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class IncrementalProbe {\n" +
+            "    static final class Calc extends TinyCalcEvaluator<Double> {\n" +
+            "        Map<String, Object> env = new HashMap<>();\n" +
+            "        protected Double evalTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) {\n" +
+            "            for (TinyCalcAST.VarDecl d : n.declarations()) eval(d);\n" +
+            "            return eval(n.expression());\n" +
+            "        }\n" +
+            "        protected Double evalVarDecl(TinyCalcAST.VarDecl n) {\n" +
+            "            double value = n.init().map(this::eval).orElse(0.0);\n" +
+            "            writeVariable(n.name(), value);\n" +
+            "            return value;\n" +
+            "        }\n" +
+            "        protected Double evalBinaryExpr(TinyCalcAST.BinaryExpr n) {\n" +
+            "            if (n.left() == null) {\n" +
+            "                String text = n.op().get(0);\n" +
+            "                return Character.isDigit(text.charAt(0)) ? Double.parseDouble(text) : (Double) readVariable(text);\n" +
+            "            }\n" +
+            "            return eval(n.left()) + eval(n.right().get(0));\n" +
+            "        }\n" +
+            "        protected Object variableValue(String name) { return env.get(name); }\n" +
+            "        protected void defineVariable(String name, Object value) { env.put(name, value); }\n" +
+            "    }\n" +
+            "    static TinyCalcAST.BinaryExpr leaf(String text) {\n" +
+            "        return new TinyCalcAST.BinaryExpr(null, List.of(text), List.of());\n" +
+            "    }\n" +
+            "    static TinyCalcAST.TinyCalcProgram program(String b) {\n" +
+            "        return new TinyCalcAST.TinyCalcProgram(List.of(\n" +
+            "            new TinyCalcAST.VarDecl(\"var\", \"a\", Optional.of(leaf(\"1\"))),\n" +
+            "            new TinyCalcAST.VarDecl(\"var\", \"b\", Optional.of(leaf(b)))),\n" +
+            "            new TinyCalcAST.BinaryExpr(leaf(\"a\"), List.of(\"+\"), List.of(leaf(\"b\"))));\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        Calc calc = new Calc();\n" +
+            "        TinyCalcEvaluator.IncrementalEngine<Double> engine = new TinyCalcEvaluator.IncrementalEngine<>(calc);\n" +
+            "        double first = engine.update(program(\"2\")).result();\n" +
+            "        calc.env = new HashMap<>();\n" +
+            "        TinyCalcEvaluator.Snapshot<Double> same = engine.update(program(\"2\"));\n" +
+            "        Map<String, Object> replayed = new TreeMap<>(calc.env);\n" +
+            "        calc.env = new HashMap<>();\n" +
+            "        TinyCalcAST.TinyCalcProgram edited = program(\"5\");\n" +
+            "        TinyCalcEvaluator.Snapshot<Double> changed = engine.update(edited);\n" +
+            "        return first + \",\" + same.result() + \",\" + same.recomputed() + \",\" + replayed\n" +
+            "            + \",\" + changed.result() + \",\" + changed.results().get(edited).definitions()\n" +
+            "            + \",\" + changed.results().get(edited).variables();\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        // first result, unchanged version (nothing recomputed, definitions replayed), edited version
+        assertEquals("3.0,3.0,0,{a=1.0, b=2.0},6.0,{a=1.0, b=5.0},{}", result);
+    }
+
+    @Test
+    public void testIncrementalEngineRecordsReadsOfPureCacheHits() {
+        GrammarDecl grammar = parseGrammar(withSettings("@incrementalEvaluator: true", "@structuralHash: true")
+            .replace("  @mapping(VarDecl", "  @pure\n  @mapping(VarDecl"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.IncrementalPureProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class IncrementalPureProbe {\n" +
+            "    static final class Calc extends TinyCalcEvaluator<Double> {\n" +
+            "        Map<String, Object> env = new HashMap<>();\n" +
+            "        protected Double evalTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) {\n" +
+            "            double sum = 0;\n" +
+            "            for (TinyCalcAST.VarDecl d : n.declarations()) sum += eval(d);\n" +
+            "            return sum;\n" +
+            "        }\n" +
+            "        // an uninitialized declaration evaluates to the variable's externally supplied value\n" +
+            "        protected Double evalVarDecl(TinyCalcAST.VarDecl n) { return (Double) readVariable(n.name()); }\n" +
+            "        protected Double evalBinaryExpr(TinyCalcAST.BinaryExpr n) { return 0.0; }\n" +
+            "        protected Object variableValue(String name) { return env.get(name); }\n" +
+            "        protected void defineVariable(String name, Object value) { env.put(name, value); }\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        TinyCalcAST.VarDecl decl = new TinyCalcAST.VarDecl(\"var\", \"a\", Optional.empty());\n" +
+            "        TinyCalcAST.TinyCalcProgram program = new TinyCalcAST.TinyCalcProgram(List.of(decl),\n" +
+            "            new TinyCalcAST.BinaryExpr(null, List.of(\"0\"), List.of()));\n" +
+            "        Calc calc = new Calc();\n" +
+            "        calc.env.put(\"a\", 1.0);\n" +
+            "        // fills the pure cache, so the engine's first evaluation of decl is a cache hit\n" +
+            "        calc.eval(program);\n" +
+            "        TinyCalcEvaluator.IncrementalEngine<Double> engine = new TinyCalcEvaluator.IncrementalEngine<>(calc);\n" +
+            "        TinyCalcEvaluator.Snapshot<Double> first = engine.update(program);\n" +
+            "        calc.env.put(\"a\", 5.0);\n" +
+            "        TinyCalcEvaluator.Snapshot<Double> changed = engine.update(program);\n" +
+            "        return first.result() + \",\" + first.results().get(decl).variables()\n" +
+            "            + \",\" + changed.result() + \",\" + changed.recomputed();\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        assertEquals("1.0,{a=1.0},5.0,2", result);
+    }
+
+    @Test
+    public void testOrderIndependentEvaluatesSiblingList() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR
+            .replace("  @mapping(TinyCalcProgram", "  @orderIndependent\n  @mapping(TinyCalcProgram"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.SiblingProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class SiblingProbe {\n" +
+            "    static final class Names extends TinyCalcEvaluator<String> {\n" +
+            "        protected String evalTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) {\n" +
+            "            return String.join(\",\", evalSiblingsOfDeclarations(n));\n" +
+            "        }\n" +
+            "        protected String evalVarDecl(TinyCalcAST.VarDecl n) { return n.name(); }\n" +
+            "        protected String evalBinaryExpr(TinyCalcAST.BinaryExpr n) { return \"\"; }\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        List<TinyCalcAST.VarDecl> declarations = new ArrayList<>();\n" +
+            "        for (String name : List.of(\"a\", \"b\", \"a\", \"c\")) {\n" +
+            "            declarations.add(new TinyCalcAST.VarDecl(\"var\", name, Optional.empty()));\n" +
+            "        }\n" +
+            "        Names names = new Names();\n" +
+            "        names.setSiblingParallelism(java.util.concurrent.ForkJoinPool.commonPool(), 1);\n" +
+            "        return names.eval(new TinyCalcAST.TinyCalcProgram(declarations,\n" +
+            "            new TinyCalcAST.BinaryExpr(null, List.of(\"0\"), List.of())));\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        assertEquals("a,b,a,c", result);
+    }
+
+    @Test
+    public void testPrimitiveEvaluatorIndexesFramesBySlot() {
+        GrammarDecl grammar = parseGrammar(withSettings("@primitiveEvaluator: { types: 'double' }"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.SlotProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class SlotProbe {\n" +
+            "    static final class Calc extends TinyCalcEvaluator.DoubleEvaluator {\n" +
+            "        protected double evalTinyCalcProgram(TinyCalcAST.TinyCalcProgram n) {\n" +
+            "            double sum = 0;\n" +
+            "            for (TinyCalcAST.VarDecl d : n.declarations()) sum += eval(d);\n" +
+            "            return sum;\n" +
+            "        }\n" +
+            "        protected double evalVarDecl(TinyCalcAST.VarDecl n) {\n" +
+            "            if (n.init().isPresent()) store(n, eval(n.init().get()));\n" +
+            "            return load(n);\n" +
+            "        }\n" +
+            "        protected double evalBinaryExpr(TinyCalcAST.BinaryExpr n) {\n" +
+            "            return Double.parseDouble(n.op().get(0));\n" +
+            "        }\n" +
+            "    }\n" +
+            "    static TinyCalcAST.VarDecl decl(String name, String init) {\n" +
+            "        return new TinyCalcAST.VarDecl(\"var\", name, Optional.ofNullable(init)\n" +
+            "            .map(text -> new TinyCalcAST.BinaryExpr(null, List.of(text), List.of())));\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        TinyCalcAST.VarDecl a = decl(\"a\", \"3\");\n" +
+            "        TinyCalcAST.VarDecl b = decl(\"b\", null);\n" +
+            "        TinyCalcAST.VarDecl again = decl(\"a\", \"10\");\n" +
+            "        TinyCalcAST.TinyCalcProgram program = new TinyCalcAST.TinyCalcProgram(List.of(a, b, again),\n" +
+            "            new TinyCalcAST.BinaryExpr(null, List.of(\"0\"), List.of()));\n" +
+            "        TinyCalcEvaluator.SlotResolver slots = TinyCalcEvaluator.SlotResolver.of(program);\n" +
+            "        double[] frame = slots.newDoubleFrame();\n" +
+            "        frame[slots.find(\"b\")] = 7;\n" +
+            "        double sum = new Calc().eval(program, slots, frame);\n" +
+            "        return slots.size() + \",\" + slots.slotOf(a) + \",\" + slots.slotOf(again) + \",\" + slots.slotOf(b)\n" +
+            "            + \",\" + slots.slotOf(program) + \",\" + sum + \",\" + Arrays.toString(frame);\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new EvaluatorGenerator().generate(grammar));
+        // slot count, slots of a / a again / b / program (no capture), sum of declarations, final frame
+        assertEquals("2,0,0,1,-1,20.0,[10.0, 7.0]", result);
+    }
+
+    // =========================================================================
+    // ColumnarAST
+    // =========================================================================
+
+    @Test
+    public void testColumnarASTCompiles() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        assertCompiles(
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new ColumnarASTGenerator().generate(grammar));
+    }
+
+    @Test
+    public void testColumnarASTAccessorsMatchMappedRecords() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        Object result = runProbe("org.unlaxer.tinycalc.generated.ColumnarProbe",
+            COLUMNAR_PROBE,
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new ColumnarASTGenerator().generate(grammar));
+        assertTrue("columnar view should match the mapped records: " + result,
+            String.valueOf(result).startsWith("same:"));
+    }
+
+    @Test
+    public void testOffHeapColumnarASTMatchesMappedRecords() {
+        GrammarDecl grammar = parseGrammar(withSettings("@offHeapAst: { arena: 'confined' }"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.ColumnarProbe",
+            COLUMNAR_PROBE,
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new ColumnarASTGenerator().generate(grammar));
+        assertTrue("off-heap columns should match the mapped records: " + result,
+            String.valueOf(result).startsWith("same:"));
+    }
+
+    // =========================================================================
+    // ASTCodec
+    // =========================================================================
+
+    @Test
+    public void testASTCodecCompilesForLazyAst() {
+        GrammarDecl grammar = parseGrammar(withSettings("@lazyAst: true"));
+        assertCompiles(
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new ASTCodecGenerator().generate(grammar));
+    }
+
+    @Test
+    public void testASTCodecRoundTripsMappedTree() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        Object result = runProbe("org.unlaxer.tinycalc.generated.CodecProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.nio.file.*;\n" +
+            "import java.util.Arrays;\n" +
+            "public class CodecProbe {\n" +
+            "    public static Object run() throws Exception {\n" +
+            "        String source = \"var a set 1 + 2;\\nvar b;\\n(a + 2) * 3 - b\";\n" +
+            "        TinyCalcAST.TinyCalcProgram root = TinyCalcMapper.parse(source);\n" +
+            "        byte[] bytes = TinyCalcASTCodec.encode(root);\n" +
+            "        TinyCalcASTCodec.Decoded decoded = TinyCalcASTCodec.decode(bytes);\n" +
+            "        if (!root.equals(decoded.root())) return \"root differs: \" + decoded.root();\n" +
+            "        for (int i = 0; i < root.declarations().size(); i++) {\n" +
+            "            int[] expected = TinyCalcMapper.sourceSpanOf(root.declarations().get(i)).orElseThrow();\n" +
+            "            int[] actual = decoded.sourceSpanOf(decoded.root().declarations().get(i)).orElseThrow();\n" +
+            "            if (!Arrays.equals(expected, actual)) return \"span differs at \" + i;\n" +
+            "        }\n" +
+            "        try {\n" +
+            "            TinyCalcASTCodec.decode(Arrays.copyOf(bytes, bytes.length - 1));\n" +
+            "            return \"truncated data accepted\";\n" +
+            "        } catch (IllegalArgumentException expected) {\n" +
+            "        }\n" +
+            "        Path dir = Files.createTempDirectory(\"codec-probe\");\n" +
+            "        TinyCalcASTCodec.ParseCache cache = new TinyCalcASTCodec.ParseCache(dir);\n" +
+            "        TinyCalcAST first = cache.parse(source).root();\n" +
+            "        if (!Files.exists(cache.entryFor(source))) return \"no cache entry\";\n" +
+            "        TinyCalcAST second = cache.parse(source).root();\n" +
+            "        return root.equals(first) && root.equals(second) ? \"ok\" : \"cache differs\";\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new ASTCodecGenerator().generate(grammar));
+        assertEquals("ok", result);
+    }
+
+    // =========================================================================
+    // Optimizer
+    // =========================================================================
+
+    @Test
+    public void testOptimizerFoldsRewritesAndSharesSubtrees() {
+        GrammarDecl grammar = parseGrammar(withSettings("@structuralHash: true"));
+        Object result = runProbe("org.unlaxer.tinycalc.generated.OptimizerProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "public class OptimizerProbe {\n" +
+            "    static final class Folder extends TinyCalcOptimizer<Double> {\n" +
+            "        Folder() {\n" +
+            "            registerIdentity((op, left, right) ->\n" +
+            "                op.equals(\"*\") && isLiteral(right, 1.0) ? Optional.of(left) : Optional.empty());\n" +
+            "        }\n" +
+            "        protected Optional<Double> literalValue(TinyCalcAST node) {\n" +
+            "            return node instanceof TinyCalcAST.BinaryExpr n && n.left() == null\n" +
+            "                && Character.isDigit(n.op().get(0).charAt(0))\n" +
+            "                ? Optional.of(Double.parseDouble(n.op().get(0))) : Optional.empty();\n" +
+            "        }\n" +
+            "        protected TinyCalcAST literal(Double value) {\n" +
+            "            return leaf(String.valueOf(value));\n" +
+            "        }\n" +
+            "        protected Optional<Double> applyOperator(String op, Double left, Double right) {\n" +
+            "            return switch (op) {\n" +
+            "                case \"+\" -> Optional.of(left + right);\n" +
+            "                case \"-\" -> Optional.of(left - right);\n" +
+            "                case \"*\" -> Optional.of(left * right);\n" +
+            "                default -> right == 0 ? Optional.empty() : Optional.of(left / right);\n" +
+            "            };\n" +
+            "        }\n" +
+            "    }\n" +
+            "    static TinyCalcAST.BinaryExpr leaf(String text) {\n" +
+            "        return new TinyCalcAST.BinaryExpr(null, List.of(text), List.of());\n" +
+            "    }\n" +
+            "    static TinyCalcAST.BinaryExpr binary(TinyCalcAST.BinaryExpr left, String op, TinyCalcAST.BinaryExpr right) {\n" +
+            "        return new TinyCalcAST.BinaryExpr(left, List.of(op), List.of(right));\n" +
+            "    }\n" +
+            "    static String render(TinyCalcAST node) {\n" +
+            "        TinyCalcAST.BinaryExpr n = (TinyCalcAST.BinaryExpr) node;\n" +
+            "        if (n.left() == null) return n.op().get(0);\n" +
+            "        StringBuilder text = new StringBuilder(\"(\").append(render(n.left()));\n" +
+            "        for (int i = 0; i < n.op().size(); i++) {\n" +
+            "            text.append(' ').append(n.op().get(i)).append(' ').append(render(n.right().get(i)));\n" +
+            "        }\n" +
+            "        return text.append(')').toString();\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        Folder folder = new Folder();\n" +
+            "        TinyCalcAST folded = folder.optimize(binary(binary(binary(leaf(\"1\"), \"+\", leaf(\"2\")), \"*\", leaf(\"x\")),\n" +
+            "            \"-\", binary(leaf(\"4\"), \"/\", leaf(\"2\"))));\n" +
+            "        TinyCalcAST identity = folder.optimize(binary(leaf(\"x\"), \"*\", leaf(\"1\")));\n" +
+            "        TinyCalcAST zero = folder.optimize(binary(leaf(\"x\"), \"/\", binary(leaf(\"1\"), \"-\", leaf(\"1\"))));\n" +
+            "        TinyCalcAST.BinaryExpr shared = (TinyCalcAST.BinaryExpr) folder.optimize(\n" +
+            "            binary(binary(leaf(\"x\"), \"+\", leaf(\"y\")), \"*\", binary(leaf(\"x\"), \"+\", leaf(\"y\"))));\n" +
+            "        return render(folded) + \"|\" + render(identity) + \"|\" + render(zero)\n" +
+            "            + \"|\" + (shared.left() == shared.right().get(0));\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new ParserGenerator().generate(grammar),
+            new MapperGenerator().generate(grammar),
+            new OptimizerGenerator().generate(grammar));
+        assertEquals("((3.0 * x) - 2.0)|x|(x / 0.0)|true", result);
+    }
+
+    // =========================================================================
+    // Compiler
+    // =========================================================================
+
+    @Test
+    public void testClosureCompilerEvaluatesWithManyContexts() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        Object result = runProbe("org.unlaxer.tinycalc.generated.CompilerProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "import java.util.function.BinaryOperator;\n" +
+            "public class CompilerProbe {\n" +
+            CALC_COMPILER_PROBE_SUPPORT +
+            "    public static Object run() {\n" +
+            "        TinyCalcCompiler.CompiledExpression<Map<String, Double>, Double> compiled = new Calc().compile(expression());\n" +
+            "        return compiled.evaluate(Map.of(\"x\", 2.0)) + \",\" + compiled.evaluate(Map.of(\"x\", 4.0));\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new CompilerGenerator().generate(grammar));
+        assertEquals("10.0,17.0", result);
+    }
+
+    // =========================================================================
+    // BytecodeCompiler
+    // =========================================================================
+
+    @Test
+    public void testBytecodeCompilerDefinesHiddenClass() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        Object result = runProbe("org.unlaxer.tinycalc.generated.BytecodeProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "import java.util.function.BinaryOperator;\n" +
+            "public class BytecodeProbe {\n" +
+            CALC_COMPILER_PROBE_SUPPORT +
+            "    public static Object run() {\n" +
+            "        TinyCalcBytecodeCompiler<Map<String, Double>, Double> bytecode = new TinyCalcBytecodeCompiler<>(new Calc());\n" +
+            "        TinyCalcCompiler.CompiledExpression<Map<String, Double>, Double> compiled = bytecode.compile(expression());\n" +
+            "        if (bytecode.compile(expression()) != compiled) return \"not cached\";\n" +
+            "        TinyCalcBytecodeCompiler<Map<String, Double>, Double> tiny = new TinyCalcBytecodeCompiler<>(new Calc(), 1, 16);\n" +
+            "        TinyCalcCompiler.CompiledExpression<Map<String, Double>, Double> closure = tiny.compile(expression());\n" +
+            "        return bytecode.definedClassCount() + \",\" + bytecode.fallbackCount() + \",\"\n" +
+            "            + compiled.getClass().isHidden() + \",\" + bytecode.lastFailure().isPresent() + \",\"\n" +
+            "            + compiled.evaluate(Map.of(\"x\", 2.0)) + \",\" + compiled.evaluate(Map.of(\"x\", 4.0))\n" +
+            "            + \"|\" + tiny.definedClassCount() + \",\" + tiny.fallbackCount() + \",\" + closure.evaluate(Map.of(\"x\", 2.0));\n" +
+            "    }\n" +
+            "}\n",
+            new ASTGenerator().generate(grammar),
+            new CompilerGenerator().generate(grammar),
+            new BytecodeCompilerGenerator().generate(grammar));
+        // definedClassCount, fallbackCount, hidden class, failure recorded, values | same with maxCodeSize = 1
+        assertEquals("1,0,true,false,10.0,17.0|0,1,10.0", result);
+    }
+
     // =========================================================================
     // ヘルパー
     // =========================================================================
@@ -123,26 +814,60 @@ public class CompileVerificationTest {
         return UBNFMapper.parse(source).grammars().get(0);
     }
 
+    /** TINYCALC_GRAMMAR の {@code @package} 行の後にグローバル設定を挿入する。 */
+    static String withSettings(String... settings) {
+        StringBuilder lines = new StringBuilder();
+        for (String setting : settings) {
+            lines.append("  ").append(setting).append("\n");
+        }
+        return TINYCALC_GRAMMAR.replace("  @whitespace: javaStyle\n", "  @whitespace: javaStyle\n" + lines);
+    }
+
+    private void assertCompiles(CodeGenerator.GeneratedSource... sources) {
+        compile(Arrays.asList(sources));
+    }
+
     /**
-     * 複数のソースを一度に渡してコンパイルする。
+     * 生成ソースと probe クラスをコンパイル・ロードし、probe の {@code static Object run()} の結果を返す。
+     * probe は生成コードを型付きで呼び出し、挙動をテスト側で検証できる値を返す。
+     */
+    static Object runProbe(String probeClassName, String probeSource, CodeGenerator.GeneratedSource... sources) {
+        int dot = probeClassName.lastIndexOf('.');
+        List<CodeGenerator.GeneratedSource> all = new ArrayList<>(Arrays.asList(sources));
+        all.add(new CodeGenerator.GeneratedSource(
+            probeClassName.substring(0, dot), probeClassName.substring(dot + 1), probeSource));
+        Path classes = compile(all);
+        try (URLClassLoader loader = URLClassLoader.newInstance(
+                new URL[]{classes.toUri().toURL()}, CompileVerificationTest.class.getClassLoader())) {
+            return loader.loadClass(probeClassName).getMethod("run").invoke(null);
+        } catch (InvocationTargetException e) {
+            throw new AssertionError("probe " + probeClassName + " failed", e.getCause());
+        } catch (ReflectiveOperationException | java.io.IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * 複数のソースを一度に渡してコンパイルし、クラスファイルの出力先を返す。
      * --enable-preview を明示して unlaxer-common（preview ビルド）を参照できるようにする。
      */
-    private void assertCompiles(CodeGenerator.GeneratedSource... sources) {
+    private static Path compile(List<CodeGenerator.GeneratedSource> sources) {
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
         StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
 
-        List<JavaFileObject> sourceObjects = Arrays.stream(sources)
+        List<JavaFileObject> sourceObjects = sources.stream()
             .map(CompileVerificationTest::toJavaFileObject)
             .toList();
 
         String classpath = System.getProperty("java.class.path");
-        String tmpDir;
+        Path tmpDir;
         try {
-            tmpDir = Files.createTempDirectory("compile-verify").toString();
+            tmpDir = Files.createTempDirectory("compile-verify");
         } catch (java.io.IOException e) {
             throw new RuntimeException(e);
         }
-        List<String> options = List.of("--enable-preview", "--release", "21", "-classpath", classpath, "-d", tmpDir);
+        List<String> options = List.of(
+            "--enable-preview", "--release", "21", "-classpath", classpath, "-d", tmpDir.toString());
 
         StringWriter diagnostics = new StringWriter();
         JavaCompiler.CompilationTask task = compiler.getTask(
@@ -150,7 +875,7 @@ public class CompileVerificationTest {
 
         boolean success = task.call();
 
-        String names = Arrays.stream(sources)
+        String names = sources.stream()
             .map(s -> s.packageName() + "." + s.className())
             .reduce((a, b) -> a + ", " + b)
             .orElse("");
@@ -159,6 +884,7 @@ public class CompileVerificationTest {
             "Compilation failed for [" + names + "]:\n" + diagnostics,
             success
         );
+        return tmpDir;
     }
 
     private static JavaFileObject toJavaFileObject(CodeGenerator.GeneratedSource source) {
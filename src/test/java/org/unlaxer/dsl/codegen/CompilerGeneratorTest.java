@@ -0,0 +1,136 @@
+package org.unlaxer.dsl.codegen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFMapper;
+
+public class CompilerGeneratorTest {
+
+    private static final String TINYCALC_GRAMMAR =
+        "grammar TinyCalc {\n" +
+        "  @package: org.unlaxer.tinycalc.generated\n" +
+        "  @whitespace: javaStyle\n" +
+        "\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "\n" +
+        "  @root\n" +
+        "  @mapping(TinyCalcProgram, params=[declarations, expression])\n" +
+        "  TinyCalc ::=\n" +
+        "    { VariableDeclaration } @declarations\n" +
+        "    Expression @expression ;\n" +
+        "\n" +
+        "  @mapping(VarDecl, params=[keyword, name, init])\n" +
+        "  VariableDeclaration ::=\n" +
+        "    ( 'var' | 'variable' ) @keyword\n" +
+        "    IDENTIFIER @name\n" +
+        "    [ 'set' Expression @init ]\n" +
+        "    ';' ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Expression ::= Term @left { ( '+' @op | '-' @op ) Term @right } ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Term ::= Factor @left { ( '*' @op | '/' @op ) Factor @right } ;\n" +
+        "\n" +
+        "  Factor ::=\n" +
+        "      '(' Expression ')'\n" +
+        "    | NUMBER\n" +
+        "    | IDENTIFIER ;\n" +
+        "}";
+
+    private static final String POW_GRAMMAR =
+        "grammar Pow {\n" +
+        "  @package: org.example.pow\n" +
+        "  token NUMBER = NumberParser\n" +
+        "  @root\n" +
+        "  @mapping(PowNode, params=[left, op, right])\n" +
+        "  @rightAssoc\n" +
+        "  Expr ::= Atom @left { '^' @op Expr @right } ;\n" +
+        "  @mapping(Num, params=[value])\n" +
+        "  Atom ::= NUMBER @value ;\n" +
+        "}";
+
+    @Test
+    public void testGeneratedPackageAndClassName() {
+        CodeGenerator.GeneratedSource result = new CompilerGenerator().generate(parseGrammar(TINYCALC_GRAMMAR));
+        assertEquals("org.unlaxer.tinycalc.generated", result.packageName());
+        assertEquals("TinyCalcCompiler", result.className());
+    }
+
+    @Test
+    public void testGeneratedSourceDeclaresCompiledExpression() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should be abstract class with context and result types",
+            source.contains("public abstract class TinyCalcCompiler<C, T> {"));
+        assertTrue("should declare compiled expression", source.contains("public interface CompiledExpression<C, T> {"));
+        assertTrue("compiled expression should take context", source.contains("T evaluate(C context);"));
+    }
+
+    @Test
+    public void testCompileDispatchesOncePerNode() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should dispatch in compile",
+            source.contains("public CompiledExpression<C, T> compile(TinyCalcAST node) {"));
+        assertTrue("should contain program case",
+            source.contains("case TinyCalcAST.TinyCalcProgram n -> compileTinyCalcProgram(n);"));
+        assertTrue("should contain abstract hook",
+            source.contains("protected abstract CompiledExpression<C, T> compileVarDecl(TinyCalcAST.VarDecl node);"));
+        assertTrue("should compile lists", source.contains("public List<CompiledExpression<C, T>> compileAll("));
+    }
+
+    @Test
+    public void testLeftAssocClassFoldsWithPreResolvedOperators() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("assoc class should have default compilation",
+            source.contains("return foldLeft(compile(node.left()), node.op(), compileAll(node.right()));"));
+        assertTrue("operators should be resolved by hook",
+            source.contains("protected abstract BinaryOperator<T> binaryOperator(String op);"));
+        assertFalse("assoc class should not be abstract",
+            source.contains("protected abstract CompiledExpression<C, T> compileBinaryExpr("));
+        assertTrue("operator node should only evaluate operands",
+            source.contains("return operator.apply(left.evaluate(context), right.evaluate(context));"));
+        assertTrue("operator node should be inspectable", source.contains("public record Binary<C, T>("));
+    }
+
+    @Test
+    public void testRightAssocClassFoldsFromRight() {
+        String source = generate(POW_GRAMMAR);
+        assertTrue("right assoc class should fold from right",
+            source.contains("return foldRight(compile(node.left()), node.op(), compileAll(node.right()));"));
+        assertTrue("leaf class should stay abstract",
+            source.contains("protected abstract CompiledExpression<C, T> compileNum(PowAST.Num node);"));
+    }
+
+    @Test
+    public void testGrammarWithoutAssocRulesOmitsOperatorHook() {
+        String source = generate(
+            "grammar Plain {\n" +
+            "  @package: org.example.plain\n" +
+            "  token NUMBER = NumberParser\n" +
+            "  @root\n" +
+            "  @mapping(Num, params=[value])\n" +
+            "  Atom ::= NUMBER @value ;\n" +
+            "}");
+        assertFalse("should not declare operator hook", source.contains("binaryOperator"));
+        assertTrue("operator node should still be available to hooks", source.contains("public record Binary<C, T>("));
+    }
+
+    // =========================================================================
+    // ヘルパー
+    // =========================================================================
+
+    private String generate(String grammarSource) {
+        return new CompilerGenerator().generate(parseGrammar(grammarSource)).source();
+    }
+
+    private GrammarDecl parseGrammar(String source) {
+        return UBNFMapper.parse(source).grammars().get(0);
+    }
+}
@@ -2,6 +2,7 @@ package org.unlaxer.dsl.codegen;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
@@ -114,6 +115,30 @@ public class EvaluatorGeneratorTest {
             source.contains("StepCounterStrategy"));
     }
 
+    @Test
+    public void testEvalSkipsDebugHooksWhenNotInstrumented() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("fast path should call evalInternal directly",
+            source.contains("if (!instrumented) {\n            return evalInternal(node);"));
+        assertTrue("should contain instrumented path",
+            source.contains("private T evalInstrumented(TinyCalcAST node) {"));
+        assertTrue("setDebugStrategy should switch paths",
+            source.contains("instrumented = strategy != DebugStrategy.NOOP;"));
+    }
+
+    @Test
+    public void testGeneratedSourceContainsProfilingStrategies() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain node type index",
+            source.contains("static int nodeTypeIndex(TinyCalcAST node) {"));
+        assertTrue("should contain NodeCountStrategy",
+            source.contains("public static class NodeCountStrategy implements DebugStrategy {"));
+        assertTrue("should contain SampledTimingStrategy",
+            source.contains("public static class SampledTimingStrategy implements DebugStrategy {"));
+    }
+
     @Test
     public void testGeneratedSourceContainsEvalTinyCalcProgram() {
         GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
@@ -197,6 +222,202 @@ public class EvaluatorGeneratorTest {
             source.contains("No mapping classes for evaluation"));
     }
 
+    @Test
+    public void testPrimitiveEvaluatorsAreOptIn() {
+        String source = new EvaluatorGenerator().generate(parseGrammar(TINYCALC_GRAMMAR)).source();
+        assertTrue("default evaluator should not contain primitive variants", !source.contains("DoubleEvaluator"));
+        assertTrue("default evaluator should not contain slot resolver", !source.contains("SlotResolver"));
+    }
+
+    @Test
+    public void testPrimitiveEvaluatorsReturnPrimitives() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @primitiveEvaluator: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain double variant", source.contains("public abstract static class DoubleEvaluator {"));
+        assertTrue("should contain long variant", source.contains("public abstract static class LongEvaluator {"));
+        assertTrue("should contain int variant", source.contains("public abstract static class IntEvaluator {"));
+        assertTrue("should return primitive",
+            source.contains("protected abstract double evalBinaryExpr(TinyCalcAST.BinaryExpr node);"));
+        assertTrue("should skip boxing debug hooks by default",
+            source.contains("if (!instrumented) {\n                return evalInternal(node);"));
+    }
+
+    @Test
+    public void testPrimitiveEvaluatorTypesCanBeSelected() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @primitiveEvaluator: { types: 'long' }\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain long variant", source.contains("public abstract static class LongEvaluator {"));
+        assertTrue("should not contain double variant", !source.contains("DoubleEvaluator"));
+        assertTrue("should allocate long frames", source.contains("public long[] newLongFrame() {"));
+    }
+
+    @Test
+    public void testPrimitiveEvaluatorRejectsUnknownType() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @primitiveEvaluator: { types: 'float' }\n"));
+        try {
+            new EvaluatorGenerator().generate(grammar);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("@primitiveEvaluator type"));
+        }
+    }
+
+    @Test
+    public void testSlotResolverAssignsIdentifierSlots() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @primitiveEvaluator: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain slot resolver", source.contains("public static final class SlotResolver {"));
+        assertTrue("identifier capture should get a slot per node", source.contains("record(n, n.name());"));
+        assertTrue("child nodes should be visited", source.contains("visit(n.declarations());"));
+        assertTrue("should allocate double frames", source.contains("public double[] newDoubleFrame() {"));
+        assertTrue("node slots should be identity-keyed",
+            source.contains("java.util.IdentityHashMap<Object, int[]> nodeSlots"));
+        assertTrue("primitive evaluator should index frames directly",
+            source.contains("return frame[slots.slotOf(node)];"));
+    }
+
+    @Test
+    public void testIterativeEvaluatorPassesChildValues() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @iterativeEvaluator: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain iterative variant",
+            source.contains("public abstract static class IterativeEvaluator<T> {"));
+        assertTrue("combine hook should receive child values",
+            source.contains("protected abstract T evalBinaryExpr(TinyCalcAST.BinaryExpr node, T left, java.util.List<T> right);"));
+        assertTrue("optional child should be passed as Optional",
+            source.contains("protected abstract T evalVarDecl(TinyCalcAST.VarDecl node, java.util.Optional<T> init);"));
+        assertTrue("children should be pushed instead of recursed into", source.contains("pushAll(n.right());"));
+    }
+
+    @Test
+    public void testIterativeEvaluatorIsOptIn() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should not contain iterative variant", !source.contains("IterativeEvaluator"));
+    }
+
+    @Test
+    public void testBatchEvaluatorReturnsColumns() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @batchEvaluator: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain batch variant", source.contains("public abstract static class BatchEvaluator {"));
+        assertTrue("should contain evalBatch",
+            source.contains("public double[] evalBatch(TinyCalcAST root, java.util.Map<String, double[]> columns) {"));
+        assertTrue("hooks should return columns",
+            source.contains("protected abstract double[] evalBinaryExpr(TinyCalcAST.BinaryExpr node, Rows rows);"));
+        assertTrue("large batches should run in parallel", source.contains("indexes = indexes.parallel();"));
+        assertTrue("should contain element-wise helpers",
+            source.contains("protected static double[] add(double[] left, double[] right) {"));
+    }
+
+    @Test
+    public void testPureClassesAreMemoized() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "  @mapping(BinaryExpr", "  @pure\n  @mapping(BinaryExpr"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("pure class should dispatch through the cache",
+            source.contains("case TinyCalcAST.BinaryExpr n -> evalPure(n);"));
+        assertTrue("non-pure class should dispatch directly",
+            source.contains("case TinyCalcAST.VarDecl n -> evalVarDecl(n);"));
+        assertTrue("should ask for variable values",
+            source.contains("protected abstract Object variableValue(String name);"));
+        assertTrue("should collect identifiers read by the subtree", source.contains("names.add(n.name());"));
+        assertTrue("should contain CLOCK cache", source.contains("public static final class PureCache<T> {"));
+        assertTrue("should expose hit counter", source.contains("public synchronized long hitCount() {"));
+        assertTrue("should compare values under the cache lock",
+            source.contains("synchronized Entry<T> lookup(TinyCalcAST node, Object[] values) {"));
+        assertTrue("entries should be immutable", source.contains("            final T result;\n"));
+        assertTrue("recomputed results should replace the entry",
+            source.contains("clock.set(existing.slot, replacement);"));
+        assertTrue("without @structuralHash the cache should key on node identity",
+            source.contains("entries = new java.util.IdentityHashMap<>();"));
+    }
+
+    @Test
+    public void testPureCacheKeysOnStructureWithStructuralHash() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR
+            .replace("  @mapping(BinaryExpr", "  @pure\n  @mapping(BinaryExpr")
+            .replace("@whitespace: javaStyle\n", "@whitespace: javaStyle\n  @structuralHash: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("with @structuralHash equal subtrees should share entries",
+            source.contains("entries = new java.util.HashMap<>();"));
+        assertTrue("should not key on identity", !source.contains("entries = new java.util.IdentityHashMap<>();"));
+    }
+
+    @Test
+    public void testNoPureCacheWithoutPureRules() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should not contain cache", !source.contains("PureCache"));
+        assertTrue("should not require variable values", !source.contains("variableValue"));
+    }
+
+    @Test
+    public void testOrderIndependentEmitsSiblingScheduler() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "  @mapping(TinyCalcProgram", "  @orderIndependent\n  @mapping(TinyCalcProgram"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain evalSiblings",
+            source.contains("protected java.util.List<T> evalSiblings(java.util.List<? extends TinyCalcAST> siblings) {"));
+        assertTrue("list captures should get a sibling helper",
+            source.contains("protected final java.util.List<T> evalSiblingsOfDeclarations(TinyCalcAST.TinyCalcProgram node) {\n"
+                + "        return evalSiblings(node.declarations());"));
+        assertTrue("direct identifier captures should be definitions", source.contains("defs.add(n.name());"));
+        assertTrue("nested identifiers should be uses", source.contains("count += collectVariables(n.init(), uses);"));
+        assertTrue("should run independent siblings in parallel",
+            source.contains("java.util.stream.IntStream.range(from, to).parallel()"));
+        assertTrue("should expose the sequential cutoff",
+            source.contains("public void setSiblingParallelism(java.util.concurrent.ForkJoinPool pool, int parallelThreshold) {"));
+    }
+
+    @Test
+    public void testIncrementalEvaluatorRecordsDependencies() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @incrementalEvaluator: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("should contain engine", source.contains("public static final class IncrementalEngine<T> {"));
+        assertTrue("attached engine should intercept eval", source.contains("return engine.evalTracked(node);"));
+        assertTrue("should publish versioned snapshots",
+            source.contains("public synchronized Snapshot<T> update(TinyCalcAST root, long version) {"));
+        assertTrue("variable reads should be recorded", source.contains("engine.recordRead(name, value);"));
+        assertTrue("variable writes should be recorded", source.contains("engine.recordWrite(name, value);"));
+        assertTrue("reused nodes should replay their definitions",
+            source.contains("evaluator.defineVariable(entry.definedNames[i], entry.definedValues[i]);"));
+        assertTrue("should declare variable hook", source.contains("protected abstract Object variableValue(String name);"));
+        assertTrue("unreachable results should be dropped",
+            source.contains("memo.values().removeIf(entry -> entry.version != version);"));
+    }
+
+    @Test
+    public void testIncrementalPureCacheRecordsReads() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR
+            .replace("  @mapping(VarDecl", "  @pure\n  @mapping(VarDecl")
+            .replace("@whitespace: javaStyle\n", "@whitespace: javaStyle\n  @incrementalEvaluator: true\n"));
+        String source = new EvaluatorGenerator().generate(grammar).source();
+        assertTrue("pure cache hits should record the variables they depend on",
+            source.contains("values[i] = readVariable(variables[i]);"));
+    }
+
+    @Test
+    public void testIncrementalEvaluatorIsOptIn() {
+        String source = new EvaluatorGenerator().generate(parseGrammar(TINYCALC_GRAMMAR)).source();
+        assertTrue("engine should be opt-in", !source.contains("IncrementalEngine"));
+        assertTrue("variable hook should be opt-in", !source.contains("readVariable"));
+    }
+
     // =========================================================================
     // ヘルパー
     // =========================================================================
@@ -464,6 +464,179 @@ public class GrammarValidatorTest {
         assertEquals("ANNOTATION", issues.get(0).category());
     }
 
+    @Test
+    public void testMappingTypeHintsPass() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @mapping(Root, params=[value], types=[value:long])\n"
+                + "  Start ::= '1' @value ;\n"
+                + "}"
+        );
+
+        GrammarValidator.validateOrThrow(grammar);
+    }
+
+    @Test
+    public void testUnsupportedMappingTypeHintFails() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @mapping(Root, params=[value], types=[value:float, other:int])\n"
+                + "  Start ::= '1' @value ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().anyMatch(i -> "E-MAPPING-TYPE-HINT-UNSUPPORTED".equals(i.code())));
+        assertTrue(issues.stream().anyMatch(i -> "E-MAPPING-TYPE-HINT-UNKNOWN-PARAM".equals(i.code())));
+        assertEquals("MAPPING", issues.get(0).category());
+    }
+
+    @Test
+    public void testPureWithoutMappingFails() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @pure\n"
+                + "  Start ::= 'ok' ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().anyMatch(i -> "E-ANNOTATION-PURE-WITHOUT-MAPPING".equals(i.code())));
+        assertEquals("ANNOTATION", issues.get(0).category());
+    }
+
+    @Test
+    public void testPureMustMatchAcrossRulesOfOneClass() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @pure\n"
+                + "  @mapping(Value, params=[text])\n"
+                + "  Start ::= 'a' @text ;\n"
+                + "  @mapping(Value, params=[text])\n"
+                + "  Other ::= 'b' @text ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().anyMatch(i -> "E-ANNOTATION-PURE-INCONSISTENT".equals(i.code())));
+    }
+
+    @Test
+    public void testPureWithoutStructuralHashWarns() {
+        String pureGrammar = "grammar G {\n"
+            + "  @package: org.example\n"
+            + "%s"
+            + "  @root\n"
+            + "  @pure\n"
+            + "  @mapping(Value, params=[text])\n"
+            + "  Start ::= 'a' @text ;\n"
+            + "}";
+
+        var issues = GrammarValidator.validate(parseGrammar(pureGrammar.formatted("")));
+        var warning = issues.stream()
+            .filter(i -> "W-ANNOTATION-PURE-WITHOUT-STRUCTURAL-HASH".equals(i.code()))
+            .findFirst()
+            .orElseThrow();
+        assertEquals("WARNING", warning.severity());
+        assertEquals("ANNOTATION", warning.category());
+
+        var hashed = GrammarValidator.validate(parseGrammar(pureGrammar.formatted("  @structuralHash: true\n")));
+        assertTrue(hashed.stream().noneMatch(i -> "W-ANNOTATION-PURE-WITHOUT-STRUCTURAL-HASH".equals(i.code())));
+    }
+
+    @Test
+    public void testIncrementalEvaluatorWithoutStructuralHashWarns() {
+        String incrementalGrammar = "grammar G {\n"
+            + "  @package: org.example\n"
+            + "  @incrementalEvaluator: true\n"
+            + "%s"
+            + "  @root\n"
+            + "  @mapping(Value, params=[text])\n"
+            + "  Start ::= 'a' @text ;\n"
+            + "}";
+
+        var issues = GrammarValidator.validate(parseGrammar(incrementalGrammar.formatted("")));
+        assertTrue(issues.stream().anyMatch(i -> "W-GENERAL-INCREMENTAL-WITHOUT-STRUCTURAL-HASH".equals(i.code())
+            && "WARNING".equals(i.severity())));
+
+        var hashed = GrammarValidator.validate(parseGrammar(incrementalGrammar.formatted("  @structuralHash: true\n")));
+        assertTrue(hashed.stream().noneMatch(i -> "W-GENERAL-INCREMENTAL-WITHOUT-STRUCTURAL-HASH".equals(i.code())));
+    }
+
+    @Test
+    public void testOrderIndependentWithoutMappingFails() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @orderIndependent\n"
+                + "  Start ::= 'ok' ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().anyMatch(i -> "E-ANNOTATION-ORDER-INDEPENDENT-WITHOUT-MAPPING".equals(i.code())));
+    }
+
+    @Test
+    public void testOrderIndependentWithoutSiblingListFails() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @orderIndependent\n"
+                + "  @mapping(Value, params=[text])\n"
+                + "  Start ::= 'a' @text ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().anyMatch(i -> "E-ANNOTATION-ORDER-INDEPENDENT-WITHOUT-SIBLINGS".equals(i.code())));
+    }
+
+    @Test
+    public void testOrderIndependentWithSiblingListPasses() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  @orderIndependent\n"
+                + "  @mapping(Block, params=[items])\n"
+                + "  Start ::= { Item } @items ;\n"
+                + "  @mapping(Value, params=[text])\n"
+                + "  Item ::= 'a' @text ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().noneMatch(i -> i.code().startsWith("E-ANNOTATION-ORDER-INDEPENDENT")));
+    }
+
+    @Test
+    public void testReparseBoundaryWithBackrefFails() {
+        GrammarDecl grammar = parseGrammar(
+            "grammar G {\n"
+                + "  @package: org.example\n"
+                + "  @root\n"
+                + "  Start ::= { Item } ;\n"
+                + "  @reparseBoundary\n"
+                + "  @backref(name=ident)\n"
+                + "  Item ::= 'x' ;\n"
+                + "}"
+        );
+
+        var issues = GrammarValidator.validate(grammar);
+        assertTrue(issues.stream().anyMatch(i -> "E-ANNOTATION-REPARSE-BOUNDARY-CONTEXT".equals(i.code())));
+    }
+
     private GrammarDecl parseGrammar(String source) {
         return UBNFMapper.parse(source).grammars().get(0);
     }
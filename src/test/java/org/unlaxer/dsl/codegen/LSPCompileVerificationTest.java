@@ -1,5 +1,6 @@
 package org.unlaxer.dsl.codegen;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.PrintWriter;
@@ -86,6 +87,62 @@ public class LSPCompileVerificationTest {
         assertCompiles(astResult, parserResult, lspServerResult, lspLauncherResult);
     }
 
+    @Test
+    public void testWorkspaceIndexServerCompiles() {
+        GrammarDecl indexed = UBNFMapper.parse(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n", "@whitespace: javaStyle\n  @workspaceIndex: true\n")).grammars().get(0);
+        assertCompiles(
+            new ASTGenerator().generate(indexed),
+            new ParserGenerator().generate(indexed),
+            new LSPGenerator().generate(indexed),
+            new LSPLauncherGenerator().generate(indexed));
+    }
+
+    @Test
+    public void testCompletionOverLargeDocumentReadsBoundedWindows() {
+        // 先頭から認識する時間が文書の長さに比例することを、5,000 文と 20,000 文（約 500KB）で比べて確かめる。
+        // 線形ならおよそ 4 倍、probe ごとに残り全体をコピーする二乗時間なら 16 倍に近づくため、10 倍未満を求める
+        Object result = CompileVerificationTest.runProbe("org.unlaxer.tinycalc.generated.CompletionProbe",
+            "package org.unlaxer.tinycalc.generated;\n" +
+            "import java.util.*;\n" +
+            "import java.util.concurrent.ConcurrentSkipListMap;\n" +
+            "public class CompletionProbe {\n" +
+            "    static String document(int statements) {\n" +
+            "        StringBuilder text = new StringBuilder();\n" +
+            "        for (int i = 0; i < statements; i++) {\n" +
+            "            text.append(\"var value\").append(i).append(\" set \").append(i).append(\" * (value\").append(i)\n" +
+            "                .append(\" + 1);\\n\");\n" +
+            "        }\n" +
+            "        return text.toString();\n" +
+            "    }\n" +
+            "    static TinyCalcLanguageServer.ExpectedSet recognize(String text) {\n" +
+            "        NavigableMap<Integer, List<TinyCalcLanguageServer.CompletionFrame>> checkpoints = new ConcurrentSkipListMap<>();\n" +
+            "        return new TinyCalcLanguageServer.CompletionRecognizer(text, 0, checkpoints)\n" +
+            "            .run(List.of(TinyCalcLanguageServer.CompletionFrame.ENTRY));\n" +
+            "    }\n" +
+            "    static long bestNanos(String text) {\n" +
+            "        long best = Long.MAX_VALUE;\n" +
+            "        for (int i = 0; i < 3; i++) {\n" +
+            "            long started = System.nanoTime();\n" +
+            "            recognize(text);\n" +
+            "            best = Math.min(best, System.nanoTime() - started);\n" +
+            "        }\n" +
+            "        return best;\n" +
+            "    }\n" +
+            "    public static Object run() {\n" +
+            "        String small = document(5_000);\n" +
+            "        String large = document(20_000);\n" +
+            "        double ratio = (double) bestNanos(large) / bestNanos(small);\n" +
+            "        if (ratio >= 10) throw new AssertionError(\"4x the text took \" + ratio + \"x the time\");\n" +
+            "        TinyCalcLanguageServer.ExpectedSet expected = recognize(large);\n" +
+            "        return (expected.offset() == large.length()) + \",\" + expected.terminals().contains(\"var\")\n" +
+            "            + \",\" + expected.terminals().contains(\"(\");\n" +
+            "    }\n" +
+            "}\n",
+            astResult, parserResult, lspServerResult);
+        assertEquals("true,true,true", result);
+    }
+
     private void assertCompiles(CodeGenerator.GeneratedSource... sources) {
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
         StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
@@ -1,6 +1,7 @@
 package org.unlaxer.dsl.codegen;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.BeforeClass;
@@ -134,12 +135,172 @@ public class LSPGeneratorTest {
     }
 
     @Test
-    public void testContainsAnnotationCompletionKeywords() {
-        assertTrue(result.source().contains("\"@interleave\""));
-        assertTrue(result.source().contains("\"@backref\""));
-        assertTrue(result.source().contains("\"@scopeTree\""));
-        assertTrue(result.source().contains("\"@leftAssoc\""));
-        assertTrue(result.source().contains("\"@rightAssoc\""));
-        assertTrue(result.source().contains("\"@precedence\""));
+    public void testCompletionOmitsUbnfAnnotationKeywords() {
+        assertFalse(result.source().contains("\"@interleave\""));
+        assertFalse(result.source().contains("\"@backref\""));
+        assertFalse(result.source().contains("\"@scopeTree\""));
+        assertFalse(result.source().contains("\"@precedence\""));
+    }
+
+    @Test
+    public void testCompletionTablesFollowGrammar() {
+        String source = result.source();
+        assertTrue(source.contains(
+            "COMPLETION_TERMINALS = {\"var\", \"variable\", \"set\", \";\", \"+\", \"-\", \"*\", \"/\", \"(\", \")\"};"));
+        assertTrue(source.contains(
+            "COMPLETION_DELIMITER = TinyCalcParsers.TinyCalcSpaceDelimitor.class;"));
+        assertTrue(source.contains("private static final int[][] COMPLETION_SEQUENCES = {"));
+        assertTrue(source.contains("private static final int[][] COMPLETION_CHOICES = {"));
+    }
+
+    @Test
+    public void testCompletionUsesExpectedSetAndCheckpoints() {
+        String source = result.source();
+        assertTrue(source.contains(
+            "() -> Either.forLeft(server.completionItems(uri, position)), server.parseExecutor);"));
+        assertTrue(source.contains("Parsed parsed = Parser.get(parserClass).parse(context);"));
+        assertTrue(source.contains("source = createRootSourceCompat(text.substring(start, end));"));
+        assertFalse(source.contains("IncrementalParser(Parser.get(parserClass))"));
+        assertTrue(source.contains("public ExpectedSet expectedAt(String uri, int offset)"));
+        assertTrue(source.contains("checkpoints.frames().floorEntry(end)"));
+        assertTrue(source.contains("server.warmCompletionCheckpoints(document.getUri(), text)"));
+        assertTrue(source.contains("server.carryCompletionCheckpoints(uri, previous, text, changedFrom);"));
+        assertTrue(source.contains("CHECKPOINT_SPACING"));
+    }
+
+    @Test
+    public void testCompletionWithoutWhitespaceHasNoDelimiter() {
+        String source = generateFrom(
+            "grammar Pow {\n" +
+            "  @package: org.example.pow\n" +
+            "  token NUMBER = NumberParser\n" +
+            "  @root\n" +
+            "  Pow ::= NUMBER { '^' NUMBER } ;\n" +
+            "}");
+        assertTrue(source.contains("COMPLETION_TERMINALS = {\"^\"};"));
+        assertTrue(source.contains("COMPLETION_TOKEN_NAMES = {\"NUMBER\"};"));
+        assertTrue(source.contains("COMPLETION_DELIMITER = null;"));
+    }
+
+    @Test
+    public void testAdvertisesIncrementalSync() {
+        assertTrue(result.source().contains("capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);"));
+    }
+
+    @Test
+    public void testDidChangeAppliesRangeEdits() {
+        assertTrue(result.source().contains(
+            "text.replace(text.offsetAt(range.getStart()), text.offsetAt(range.getEnd()), change.getText())"));
+        assertTrue(result.source().contains("? DocumentText.of(change.getText())"));
+    }
+
+    @Test
+    public void testDocumentTextConvertsPositionsWithoutScanning() {
+        assertTrue(result.source().contains("public static final class DocumentText {"));
+        assertTrue(result.source().contains("public Position positionAt(int offset) {"));
+        assertTrue(result.source().contains("public int lineStart(int line) {"));
+        assertTrue(result.source().contains("Position startPos = text.positionAt(errorStart);"));
+    }
+
+    @Test
+    public void testParsesOnExecutorWithDebounce() {
+        assertTrue(result.source().contains("Executors.newVirtualThreadPerTaskExecutor()"));
+        assertTrue(result.source().contains("server.updateDocument(uri, version != null ? version"));
+        assertTrue(result.source().contains("Thread.sleep(delayMillis);"));
+        assertTrue(result.source().contains("previous.cancel(true);"));
+    }
+
+    @Test
+    public void testDocumentsAreVersionedConcurrentStore() {
+        assertTrue(result.source().contains("documents = new ConcurrentHashMap<>();"));
+        assertTrue(result.source().contains("String uri, int version, DocumentText text, ParseResult parseResult, int parsedVersion"));
+        assertTrue(result.source().contains("state.version() == version"));
+        assertTrue(result.source().contains("new PublishDiagnosticsParams(uri, diagnostics, version)"));
+    }
+
+    @Test
+    public void testParsesThroughIncrementalParserPerDocument() {
+        assertTrue(result.source().contains(
+            "uri, key -> new TinyCalcParsers.IncrementalParser(TinyCalcParsers.getRootParser()));"));
+        assertTrue(result.source().contains("server.parsers.remove(uri);"));
+    }
+
+    @Test
+    public void testSemanticTokensClassifyTerminalsAndTokenDeclarations() {
+        assertTrue(result.source().contains(
+            "SEMANTIC_TOKEN_LEGEND = List.of(\"keyword\", \"operator\", \"number\", \"string\", \"comment\", \"variable\");"));
+        assertTrue(result.source().contains("case \"WordParser\" -> TERMINAL_TOKEN;"));
+        assertTrue(result.source().contains("case \"NumberParser\" -> TOKEN_NUMBER;"));
+        assertTrue(result.source().contains("case \"IdentifierParser\" -> TOKEN_VARIABLE;"));
+        assertFalse(result.source().contains("List.of(\"valid\", \"invalid\")"));
+    }
+
+    @Test
+    public void testSemanticTokensMarkMappingNameCaptureAsDeclaration() {
+        assertTrue(result.source().contains("case \"VariableDeclarationParser\" -> \"IdentifierParser\";"));
+        assertTrue(result.source().contains("MODIFIER_DECLARATION"));
+    }
+
+    @Test
+    public void testSemanticTokensAreCachedPerVersionWithDelta() {
+        assertTrue(result.source().contains("new SemanticTokensServerFull(true)"));
+        assertTrue(result.source().contains("public record SemanticTokensData(int version, String resultId, int[] data)"));
+        assertTrue(result.source().contains("semanticTokensFullDelta("));
+        assertTrue(result.source().contains("return Either.forRight(current.deltaFrom(previous));"));
+        assertTrue(result.source().contains("server.semanticTokens.remove(uri);"));
+    }
+
+    @Test
+    public void testWorkspaceIndexIsOptIn() {
+        assertFalse(result.source().contains("class SymbolIndex"));
+        assertFalse(result.source().contains("setDefinitionProvider"));
+    }
+
+    @Test
+    public void testWorkspaceIndexServesDefinitionReferencesAndSymbols() {
+        String source = generateFrom(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n", "@whitespace: javaStyle\n  @workspaceIndex: { extensions: '.tcalc' }\n"));
+        assertTrue(source.contains("INDEXED_EXTENSIONS = List.of(\"tcalc\");"));
+        assertTrue(source.contains("case \"IdentifierParser\" -> SYMBOL_DEFINABLE;"));
+        assertTrue(source.contains("capabilities.setDefinitionProvider(true);"));
+        assertTrue(source.contains("capabilities.setReferencesProvider(true);"));
+        assertTrue(source.contains("capabilities.setWorkspaceSymbolProvider(true);"));
+        assertTrue(source.contains("paths.parallelStream().forEach("));
+        assertTrue(source.contains("SymbolIndex.load(indexFile, SYMBOL_INDEX_FINGERPRINT)"));
+        assertTrue(source.contains("indexDocument(uri, text, parseResult);"));
+        assertTrue(source.contains("return new TinyCalcLanguageServerWorkspaceService(this);"));
+        assertTrue(source.contains("public synchronized boolean put(FileSymbols symbols, boolean onlyIfNotLive) {"));
+        assertTrue(source.contains("symbolIndex.put(symbols, true);"));
+        assertTrue(source.contains("server.symbolIndex.open(normalizeUri(document.getUri()));"));
+        assertTrue(source.contains("server.symbolIndex.remove(normalizeUri(uri), true);"));
+        assertFalse(source.contains("openDocuments"));
+    }
+
+    @Test
+    public void testWorkspaceIndexUsesScopeTreeAndBackrefRoles() {
+        String source = generateFrom(
+            "grammar Blk {\n" +
+            "  @package: org.example.blk\n" +
+            "  @workspaceIndex: true\n" +
+            "  token IDENTIFIER = IdentifierParser\n" +
+            "  @root\n" +
+            "  Program ::= { Statement } ;\n" +
+            "  Statement ::= Decl | Block | Ref ;\n" +
+            "  @mapping(DeclNode, params=[ident])\n" +
+            "  Decl ::= 'let' IDENTIFIER @ident ';' ;\n" +
+            "  @scopeTree(mode=lexical)\n" +
+            "  Block ::= '{' { Statement } '}' ;\n" +
+            "  @backref(name=ident)\n" +
+            "  Ref ::= IDENTIFIER ;\n" +
+            "}");
+        assertTrue(source.contains("INDEXED_EXTENSIONS = List.of(\"blk\");"));
+        assertTrue(source.contains("case \"BlockParser\" -> SYMBOL_SCOPE;"));
+        assertTrue(source.contains("case \"RefParser\" -> SYMBOL_REFERENCE;"));
+        assertTrue(source.contains("case \"DeclParser\" -> \"IdentifierParser\";"));
+    }
+
+    private static String generateFrom(String grammarSource) {
+        GrammarDecl grammar = UBNFMapper.parse(grammarSource).grammars().get(0);
+        return new LSPGenerator().generate(grammar).source();
     }
 }
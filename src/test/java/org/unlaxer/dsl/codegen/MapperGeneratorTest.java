@@ -1,15 +1,20 @@
 package org.unlaxer.dsl.codegen;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
 
 import org.junit.Test;
 import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFAST.RuleRefElement;
 import org.unlaxer.dsl.bootstrap.UBNFMapper;
 
 public class MapperGeneratorTest {
 
-    private static final String TINYCALC_GRAMMAR =
+    private static final String TINYCALC_GRAMMAR =
         "grammar TinyCalc {\n" +
         "  @package: org.unlaxer.tinycalc.generated\n" +
         "  @whitespace: javaStyle\n" +
@@ -41,20 +46,20 @@ public class MapperGeneratorTest {
         "  Factor ::=\n" +
         "      '(' Expression ')'\n" +
         "    | NUMBER\n" +
-        "    | IDENTIFIER ;\n" +
-        "}";
-
-    private static final String RIGHT_ASSOC_GRAMMAR =
-        "grammar Pow {\n" +
-        "  @package: org.example.pow\n" +
-        "  token NUMBER = NumberParser\n" +
-        "  @root\n" +
-        "  @mapping(PowNode, params=[left, op, right])\n" +
-        "  @rightAssoc\n" +
-        "  @precedence(level=30)\n" +
-        "  Expr ::= Atom @left { '^' @op Expr @right } ;\n" +
-        "  Atom ::= NUMBER ;\n" +
-        "}";
+        "    | IDENTIFIER ;\n" +
+        "}";
+
+    private static final String RIGHT_ASSOC_GRAMMAR =
+        "grammar Pow {\n" +
+        "  @package: org.example.pow\n" +
+        "  token NUMBER = NumberParser\n" +
+        "  @root\n" +
+        "  @mapping(PowNode, params=[left, op, right])\n" +
+        "  @rightAssoc\n" +
+        "  @precedence(level=30)\n" +
+        "  Expr ::= Atom @left { '^' @op Expr @right } ;\n" +
+        "  Atom ::= NUMBER ;\n" +
+        "}";
 
     @Test
     public void testGeneratedPackageName() {
@@ -164,33 +169,207 @@ public class MapperGeneratorTest {
     }
 
     @Test
-    public void testGeneratedSourceContainsParameterNames() {
+    public void testGeneratedSourceContainsParameterNames() {
         GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
         MapperGenerator gen = new MapperGenerator();
         String source = gen.generate(grammar).source();
         // VarDecl parameters
         assertTrue("should mention keyword param", source.contains("keyword"));
         assertTrue("should mention name param", source.contains("name"));
-        assertTrue("should mention init param", source.contains("init"));
-    }
-
-    @Test
-    public void testRightAssocMapperContainsFoldMethod() {
-        GrammarDecl grammar = parseGrammar(RIGHT_ASSOC_GRAMMAR);
-        MapperGenerator gen = new MapperGenerator();
-        String source = gen.generate(grammar).source();
-        assertTrue("should contain foldRightAssoc method",
-            source.contains("foldRightAssocPowNode"));
-    }
-
-    @Test
-    public void testRightAssocMapperUsesRightFoldInToMethod() {
-        GrammarDecl grammar = parseGrammar(RIGHT_ASSOC_GRAMMAR);
-        MapperGenerator gen = new MapperGenerator();
-        String source = gen.generate(grammar).source();
-        assertTrue("to method should call right fold",
-            source.contains("return foldRightAssocPowNode(left, ops, rights);"));
-    }
+        assertTrue("should mention init param", source.contains("init"));
+    }
+
+    @Test
+    public void testRightAssocMapperContainsFoldMethod() {
+        GrammarDecl grammar = parseGrammar(RIGHT_ASSOC_GRAMMAR);
+        MapperGenerator gen = new MapperGenerator();
+        String source = gen.generate(grammar).source();
+        assertTrue("should contain foldRightAssoc method",
+            source.contains("foldRightAssocPowNode"));
+    }
+
+    @Test
+    public void testRightAssocMapperUsesRightFoldInToMethod() {
+        GrammarDecl grammar = parseGrammar(RIGHT_ASSOC_GRAMMAR);
+        MapperGenerator gen = new MapperGenerator();
+        String source = gen.generate(grammar).source();
+        assertTrue("to method should call right fold",
+            source.contains("return foldRightAssocPowNode(left, ops, rights);"));
+    }
+
+    @Test
+    public void testParallelMappingIsOptIn() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("default mapper should stay sequential",
+            !source.contains("mapAllInOrder") && !source.contains("ForkJoin"));
+    }
+
+    @Test
+    public void testParallelMappingUsesForkJoinForMappedListCaptures() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @parallelMapping: { threshold: '2048' }\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("should carry configured threshold",
+            source.contains("private static volatile int parallelMappingThreshold = 2048;"));
+        assertTrue("declarations should be mapped through mapAllInOrder",
+            source.contains("mapAllInOrder(declarations, findDescendants(token, TinyCalcParsers.VariableDeclarationParser.class)"));
+        assertTrue("should contain ForkJoin task",
+            source.contains("extends java.util.concurrent.RecursiveTask"));
+        assertTrue("span registration should go through the per-task sink",
+            source.contains("currentSpanSink().put(node, new int[]{start, end});"));
+    }
+
+    @Test
+    public void testParallelMappingOnlyForMappedRuleReferences() {
+        MapperGenerator generator = new MapperGenerator();
+        Map<String, String> mapped = Map.of("VariableDeclaration", "VarDecl");
+        assertTrue(generator.mapsToMappedClass(
+            "TinyCalcAST.VarDecl", new RuleRefElement("VariableDeclaration"), mapped));
+        assertFalse("String capture of a mapped rule is read as text",
+            generator.mapsToMappedClass("String", new RuleRefElement("VariableDeclaration"), mapped));
+        assertFalse("token references are never parallelized",
+            generator.mapsToMappedClass("TinyCalcAST.VarDecl", new RuleRefElement("IDENTIFIER"), mapped));
+    }
+
+    @Test
+    public void testParallelMappingDefaultThreshold() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @parallelMapping: true\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("should fall back to default threshold",
+            source.contains("parallelMappingThreshold = " + MapperGenerator.DEFAULT_PARALLEL_MAPPING_THRESHOLD + ";"));
+    }
+
+    @Test
+    public void testLazyAstDefersChildMapping() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @lazyAst: true\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("list capture should be mapped lazily",
+            source.contains("TinyCalcAST.Lazy<List<TinyCalcAST.VarDecl>> lazy_declarations = TinyCalcAST.Lazy.of(() -> {"));
+        assertTrue("should construct through lazy factory",
+            source.contains("TinyCalcAST.TinyCalcProgram.lazy("));
+        assertTrue("assoc operands should be lazy",
+            source.contains("TinyCalcAST.BinaryExpr.lazy(lazy_left, lazy_op, lazy_right), mappingToken)"));
+        assertTrue("span registry should tolerate materialization on any thread",
+            source.contains("java.util.Collections.synchronizedMap(new java.util.IdentityHashMap<>())"));
+    }
+
+    @Test
+    public void testInternSymbolsIsOptIn() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("default mapper should not intern", !source.contains("SymbolTable"));
+    }
+
+    @Test
+    public void testInternSymbolsUsesPerParseSymbolTable() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @internSymbols: true\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("should declare a per-thread symbol table",
+            source.contains("private static final ThreadLocal<SymbolTable> SYMBOLS = new ThreadLocal<>();"));
+        assertTrue("should start a new table per parse", source.contains("SYMBOLS.set(symbols);"));
+        assertTrue("should unbind the table when the parse ends", source.contains("restoreSymbols(previousSymbols);"));
+        assertTrue("should intern stripped token text", source.contains("return internStripped(raw);"));
+        assertTrue("should intern identifier range", source.contains("return intern(text, start, end);"));
+        assertTrue("table is thread-confined", !source.contains("synchronized String intern("));
+        assertTrue("sequential mapping needs no concurrent map", !source.contains("ConcurrentHashMap"));
+        assertTrue("per-parse scope should not keep weak shared table", !source.contains("SHARED_SYMBOLS"));
+    }
+
+    @Test
+    public void testInternSymbolsWithParallelMappingSharesTheParseTable() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @internSymbols: true\n  @parallelMapping: true\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("task should receive the parse's table",
+            source.contains("new ParallelMappingTask(tokens, mapper, results, 0, size, leafSize, SYMBOLS.get());"));
+        assertTrue("leaf task should bind a view of the parse's table",
+            source.contains("SymbolTable previousSymbols = bindSymbols(symbols);"));
+        assertTrue("views should share one concurrent map",
+            source.contains("String existing = parse.putIfAbsent(symbol, symbol);"));
+        assertTrue("leaf task should restore the caller's table",
+            source.contains("restoreSymbols(previousSymbols);"));
+    }
+
+    @Test
+    public void testInternSymbolsSharedScopeUsesWeakCanonicalTable() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @internSymbols: { scope: 'shared' }\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("should keep weak shared table",
+            source.contains("java.util.WeakHashMap<String, java.lang.ref.WeakReference<String>> SHARED_SYMBOLS"));
+        assertTrue("should canonicalize on miss", source.contains("symbol = canonicalSymbol(symbol);"));
+    }
+
+    @Test
+    public void testInternSymbolsRejectsUnknownScope() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @internSymbols: { scope: 'global' }\n"));
+        try {
+            new MapperGenerator().generate(grammar);
+            fail("expected unsupported scope error");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("@internSymbols"));
+        }
+    }
+
+    @Test
+    public void testMappingTypeHintsConvertFromTokenChars() {
+        String grammarSource =
+            "grammar Typed {\n" +
+            "  @package: org.example.typed\n" +
+            "  token NUMBER = NumberParser\n" +
+            "  @root\n" +
+            "  @mapping(Item, params=[value, weight], types=[value:long, weight:double])\n" +
+            "  Item ::= NUMBER @value [ ':' NUMBER @weight ] ;\n" +
+            "}";
+        String source = new MapperGenerator().generate(parseGrammar(grammarSource)).source();
+        assertTrue("primitive default should be used", source.contains("long value = 0L;"));
+        assertTrue("long capture should be converted directly", source.contains("value = longValueOf(paramToken_value_0);"));
+        assertTrue("optional double capture should be converted directly",
+            source.contains("weight = Optional.ofNullable(doubleValueOf(paramToken_weight_0));"));
+        assertTrue("long conversion should avoid substring copies",
+            source.contains("Long.parseLong(raw, textStart(raw), textEnd(raw), 10)"));
+    }
+
+    @Test
+    public void testPrimitiveConvertersAreOnlyGeneratedWithTypeHints() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("untyped grammar should not include converters", !source.contains("longValueOf"));
+    }
+
+    @Test
+    public void testNodeIndexIsOptIn() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR);
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("default mapper should not build node index", !source.contains("NodeIndex"));
+    }
+
+    @Test
+    public void testNodeIndexIsBuiltAfterMapping() {
+        GrammarDecl grammar = parseGrammar(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n",
+            "@whitespace: javaStyle\n  @nodeIndex: true\n"));
+        String source = new MapperGenerator().generate(grammar).source();
+        assertTrue("should declare index class", source.contains("public static final class NodeIndex {"));
+        assertTrue("should build index from mapped root", source.contains("lastNodeIndex = NodeIndex.build(mapped);"));
+        assertTrue("should expose last index", source.contains("public static NodeIndex lastNodeIndex() {"));
+        assertTrue("should store parents in primitive column", source.contains("private int[] parents = new int[64];"));
+        assertTrue("should walk child fields", source.contains("visit(n.declarations(), id, depth + 1);"));
+        assertTrue("should not walk string fields", !source.contains("visit(n.name(), id, depth + 1);"));
+        assertTrue("should look up offsets by binary search", source.contains("public int nodeIdAt(int offset) {"));
+    }
 
     // =========================================================================
     // ヘルパー
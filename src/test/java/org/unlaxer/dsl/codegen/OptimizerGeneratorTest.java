@@ -0,0 +1,152 @@
+package org.unlaxer.dsl.codegen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.unlaxer.dsl.bootstrap.UBNFAST.GrammarDecl;
+import org.unlaxer.dsl.bootstrap.UBNFMapper;
+
+public class OptimizerGeneratorTest {
+
+    private static final String TINYCALC_GRAMMAR =
+        "grammar TinyCalc {\n" +
+        "  @package: org.unlaxer.tinycalc.generated\n" +
+        "  @whitespace: javaStyle\n" +
+        "\n" +
+        "  token NUMBER     = NumberParser\n" +
+        "  token IDENTIFIER = IdentifierParser\n" +
+        "\n" +
+        "  @root\n" +
+        "  @mapping(TinyCalcProgram, params=[declarations, expression])\n" +
+        "  TinyCalc ::=\n" +
+        "    { VariableDeclaration } @declarations\n" +
+        "    Expression @expression ;\n" +
+        "\n" +
+        "  @mapping(VarDecl, params=[keyword, name, init])\n" +
+        "  VariableDeclaration ::=\n" +
+        "    ( 'var' | 'variable' ) @keyword\n" +
+        "    IDENTIFIER @name\n" +
+        "    [ 'set' Expression @init ]\n" +
+        "    ';' ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Expression ::= Term @left { ( '+' @op | '-' @op ) Term @right } ;\n" +
+        "\n" +
+        "  @mapping(BinaryExpr, params=[left, op, right])\n" +
+        "  @leftAssoc\n" +
+        "  Term ::= Factor @left { ( '*' @op | '/' @op ) Factor @right } ;\n" +
+        "\n" +
+        "  Factor ::=\n" +
+        "      '(' Expression ')'\n" +
+        "    | NUMBER\n" +
+        "    | IDENTIFIER ;\n" +
+        "}";
+
+    private static final String POW_GRAMMAR =
+        "grammar Pow {\n" +
+        "  @package: org.example.pow\n" +
+        "  token NUMBER = NumberParser\n" +
+        "  @root\n" +
+        "  @mapping(PowNode, params=[left, op, right])\n" +
+        "  @rightAssoc\n" +
+        "  Expr ::= Atom @left { '^' @op Expr @right } ;\n" +
+        "  @mapping(Num, params=[value])\n" +
+        "  Atom ::= NUMBER @value ;\n" +
+        "}";
+
+
+    @Test
+    public void testGeneratedPackageAndClassName() {
+        CodeGenerator.GeneratedSource result = new OptimizerGenerator().generate(parseGrammar(TINYCALC_GRAMMAR));
+        assertEquals("org.unlaxer.tinycalc.generated", result.packageName());
+        assertEquals("TinyCalcOptimizer", result.className());
+    }
+
+    @Test
+    public void testOptimizeDispatchesAndSharesResults() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should be abstract class with value type",
+            source.contains("public abstract class TinyCalcOptimizer<V> {"));
+        assertTrue("should declare entry point", source.contains("public TinyCalcAST optimize(TinyCalcAST root) {"));
+        assertTrue("should contain program case",
+            source.contains("case TinyCalcAST.TinyCalcProgram n -> optimizeTinyCalcProgram(n);"));
+        assertTrue("dispatch result should be deduplicated", source.contains("return share(optimized);"));
+        assertTrue("deduplication should be switchable",
+            source.contains("public TinyCalcOptimizer<V> setDeduplicate(boolean deduplicate) {"));
+        assertTrue("sharing should be off without constant-time hashing",
+            source.contains("private boolean deduplicate = false;"));
+    }
+
+    @Test
+    public void testDeduplicateDefaultsOnWithStructuralHash() {
+        String source = generate(TINYCALC_GRAMMAR.replace(
+            "@whitespace: javaStyle\n", "@whitespace: javaStyle\n  @structuralHash: true\n"));
+        assertTrue("sharing should default on with structural hashing",
+            source.contains("private boolean deduplicate = true;"));
+    }
+
+    @Test
+    public void testNonAssocClassRebuildsOnlyChangedNodes() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("optional child should be optimized with its declared type",
+            source.contains("Optional<TinyCalcAST.BinaryExpr> init = optionalChild(node.init(), TinyCalcAST.BinaryExpr.class);"));
+        assertTrue("unchanged node should be kept", source.contains("if (init == node.init()) {"));
+        assertTrue("rebuilt node should keep original span",
+            source.contains("return copySpan(node, new TinyCalcAST.VarDecl(node.keyword(), node.name(), init));"));
+        assertTrue("span should be registered through mapper",
+            source.contains("TinyCalcMapper.registerSourceSpan(rebuilt, span[0], span[1])"));
+    }
+
+    @Test
+    public void testLeftAssocClassFoldsLiteralsAndIdentities() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("assoc class should reduce from the left", source.contains("reduceLeft(operands, ops);"));
+        assertFalse("right reduction should be omitted", source.contains("reduceRight("));
+        assertTrue("literals should be read by hook",
+            source.contains("protected abstract Optional<V> literalValue(TinyCalcAST node);"));
+        assertTrue("operators should be folded by hook",
+            source.contains("protected abstract Optional<V> applyOperator(String op, V left, V right);"));
+        assertTrue("identities should be registrable",
+            source.contains("public TinyCalcOptimizer<V> registerIdentity(Identity identity) {"));
+        assertTrue("folded literal should span its operands",
+            source.contains("return Optional.of(share(spanning(literal(folded.get()), left, right)));"));
+        assertTrue("chain without operators should collapse", source.contains("return operands.get(0);"));
+    }
+
+    @Test
+    public void testRightAssocClassFoldsFromRight() {
+        String source = generate(POW_GRAMMAR);
+        assertTrue("right assoc class should reduce from the right", source.contains("reduceRight(operands, ops);"));
+        assertTrue("leaf class should be kept",
+            source.contains("protected PowAST optimizeNum(PowAST.Num node) {\n        return node;\n    }"));
+    }
+
+    @Test
+    public void testGrammarWithoutAssocRulesOmitsFoldingHooks() {
+        String source = generate(
+            "grammar Plain {\n" +
+            "  @package: org.example.plain\n" +
+            "  token NUMBER = NumberParser\n" +
+            "  @root\n" +
+            "  @mapping(Num, params=[value])\n" +
+            "  Atom ::= NUMBER @value ;\n" +
+            "}");
+        assertFalse("should not declare folding hooks", source.contains("applyOperator"));
+        assertTrue("identities should still be declared", source.contains("public interface Identity {"));
+    }
+
+    // =========================================================================
+    // ヘルパー
+    // =========================================================================
+
+    private String generate(String grammarSource) {
+        return new OptimizerGenerator().generate(parseGrammar(grammarSource)).source();
+    }
+
+    private GrammarDecl parseGrammar(String source) {
+        return UBNFMapper.parse(source).grammars().get(0);
+    }
+}
@@ -545,6 +545,52 @@ public class ParserGeneratorTest {
             source.contains("RuleGroup2Parser"));
     }
 
+    // =========================================================================
+    // 差分再パース
+    // =========================================================================
+
+    @Test
+    public void testRepeatItemsAreReparseBoundaries() {
+        String source = generate(TINYCALC_GRAMMAR);
+        assertTrue("should emit IncrementalParser",
+            source.contains("public static final class IncrementalParser {"));
+        assertTrue("single rule repeat item should be a boundary",
+            source.contains("        VariableDeclarationParser.class,\n"));
+        assertTrue("repeat helper should be a boundary",
+            source.contains("        ExpressionRepeat0Parser.class,\n"));
+        assertFalse("non-repeated rule should not be a boundary",
+            source.contains("        FactorParser.class"));
+    }
+
+    @Test
+    public void testReparseBoundaryAnnotationAddsRule() {
+        String source = generate(
+            "grammar B {\n" +
+            "  @package: org.example.b\n" +
+            "  @root\n" +
+            "  Start ::= '{' Body '}' ;\n" +
+            "  @reparseBoundary\n" +
+            "  Body ::= 'x' ;\n" +
+            "}");
+        assertTrue("annotated rule should be a boundary",
+            source.contains("REPARSE_BOUNDARIES = java.util.Set.of(\n        BodyParser.class\n    );"));
+    }
+
+    @Test
+    public void testContextSensitiveRulesAreNotReparseBoundaries() {
+        String source = generate(
+            "grammar C {\n" +
+            "  @package: org.example.c\n" +
+            "  @root\n" +
+            "  Start ::= { Item } ;\n" +
+            "  Item ::= Ref ';' ;\n" +
+            "  @backref(name=ident)\n" +
+            "  Ref ::= 'r' ;\n" +
+            "}");
+        assertTrue("item reaching @backref should be skipped",
+            source.contains("REPARSE_BOUNDARIES = java.util.Set.of();"));
+    }
+
     // =========================================================================
     // ヘルパーメソッド
     // =========================================================================
@@ -174,6 +174,41 @@ public class TinyCalcIntegrationTest {
         assertTrue("should have VarDecl step", hasVarDecl);
     }
 
+    @Test
+    public void testNodeCountStrategy() {
+        TinyCalcEvaluator.NodeCountStrategy counts = new TinyCalcEvaluator.NodeCountStrategy();
+        calc.setDebugStrategy(counts);
+
+        calc.eval(TinyCalcMapper.parse("1 + 2 * 3"));
+
+        assertEquals(3L, counts.count(TinyCalcAST.NumberLiteral.class));
+        assertEquals(1L, counts.count(TinyCalcAST.TinyCalcProgram.class));
+        counts.reset();
+        assertEquals(0L, counts.count(TinyCalcAST.NumberLiteral.class));
+    }
+
+    @Test
+    public void testSampledTimingStrategy() {
+        TinyCalcEvaluator.SampledTimingStrategy timing = new TinyCalcEvaluator.SampledTimingStrategy(1);
+        calc.setDebugStrategy(timing);
+
+        calc.eval(TinyCalcMapper.parse("1 + 2"));
+
+        assertEquals(2L, timing.sampleCount(TinyCalcAST.NumberLiteral.class));
+        long total = 0;
+        for (long bucket : timing.histogram(TinyCalcAST.NumberLiteral.class)) {
+            total += bucket;
+        }
+        assertEquals(2L, total);
+    }
+
+    @Test
+    public void testResetToNoopAfterInstrumentation() {
+        calc.setDebugStrategy(new TinyCalcEvaluator.NodeCountStrategy());
+        calc.setDebugStrategy(TinyCalcEvaluator.DebugStrategy.NOOP);
+        assertEquals(7.0, eval("1 + 2 * 3"), 0.001);
+    }
+
     // =========================================================================
     // ヘルパー
     // =========================================================================
@@ -3,15 +3,25 @@ package org.unlaxer.tinycalc.generated;
 public abstract class TinyCalcEvaluator<T> {
 
     private DebugStrategy debugStrategy = DebugStrategy.NOOP;
+    private boolean instrumented;
 
     public void setDebugStrategy(DebugStrategy strategy) {
         this.debugStrategy = strategy;
+        this.instrumented = strategy != DebugStrategy.NOOP;
     }
 
     public T eval(TinyCalcAST node) {
-        debugStrategy.onEnter(node);
+        if (!instrumented) {
+            return evalInternal(node);
+        }
+        return evalInstrumented(node);
+    }
+
+    private T evalInstrumented(TinyCalcAST node) {
+        DebugStrategy strategy = debugStrategy;
+        strategy.onEnter(node);
         T result = evalInternal(node);
-        debugStrategy.onExit(node, result);
+        strategy.onExit(node, result);
         return result;
     }
 
@@ -63,4 +73,130 @@ public abstract class TinyCalcEvaluator<T> {
         @Override
         public void onExit(TinyCalcAST node, Object result) {}
     }
+
+    // =========================================================================
+    // Profiling strategies
+    // =========================================================================
+
+    /** Node types in {@link #nodeTypeIndex} order. */
+    private static final java.util.List<Class<? extends TinyCalcAST>> NODE_TYPES = java.util.List.of(
+        TinyCalcAST.TinyCalcProgram.class,
+        TinyCalcAST.VarDecl.class,
+        TinyCalcAST.BinaryExpr.class,
+        TinyCalcAST.NumberLiteral.class,
+        TinyCalcAST.VariableRef.class
+    );
+
+    private static final ClassValue<Integer> NODE_TYPE_INDEX = new ClassValue<>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return NODE_TYPES.indexOf(type);
+        }
+    };
+
+    static int nodeTypeIndex(TinyCalcAST node) {
+        return NODE_TYPE_INDEX.get(node.getClass());
+    }
+
+    /** Counts evaluations per node type. Not thread-safe; use one instance per evaluating thread. */
+    public static class NodeCountStrategy implements DebugStrategy {
+        private final long[] counts = new long[NODE_TYPES.size()];
+
+        @Override
+        public void onEnter(TinyCalcAST node) {
+            counts[nodeTypeIndex(node)]++;
+        }
+
+        @Override
+        public void onExit(TinyCalcAST node, Object result) {}
+
+        public long count(Class<? extends TinyCalcAST> nodeType) {
+            int index = NODE_TYPES.indexOf(nodeType);
+            return index < 0 ? 0 : counts[index];
+        }
+
+        /** Counts keyed by node type simple name, in declaration order. */
+        public java.util.Map<String, Long> snapshot() {
+            java.util.Map<String, Long> snapshot = new java.util.LinkedHashMap<>();
+            for (int i = 0; i < counts.length; i++) {
+                snapshot.put(NODE_TYPES.get(i).getSimpleName(), counts[i]);
+            }
+            return snapshot;
+        }
+
+        public void reset() {
+            java.util.Arrays.fill(counts, 0);
+        }
+    }
+
+    /**
+     * Times every {@code sampleInterval}-th node evaluation into per-node-type histograms.
+     * Bucket {@code b} counts durations in {@code [2^(b-1), 2^b)} nanoseconds; bucket 0 counts 0 ns.
+     * Not thread-safe; use one instance per evaluating thread, and {@link #reset()} after an
+     * evaluation that threw.
+     */
+    public static class SampledTimingStrategy implements DebugStrategy {
+        public static final int BUCKETS = 64;
+        private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+        private final int sampleInterval;
+        private final long[][] histograms = new long[NODE_TYPES.size()][BUCKETS];
+        private long[] startTimes = new long[64];
+        private int depth;
+        private int untilSample;
+
+        public SampledTimingStrategy(int sampleInterval) {
+            if (sampleInterval < 1) {
+                throw new IllegalArgumentException("sampleInterval must be positive: " + sampleInterval);
+            }
+            this.sampleInterval = sampleInterval;
+            this.untilSample = sampleInterval;
+        }
+
+        @Override
+        public void onEnter(TinyCalcAST node) {
+            if (depth == startTimes.length) {
+                startTimes = java.util.Arrays.copyOf(startTimes, depth * 2);
+            }
+            if (--untilSample == 0) {
+                untilSample = sampleInterval;
+                startTimes[depth++] = System.nanoTime();
+            } else {
+                startTimes[depth++] = NOT_SAMPLED;
+            }
+        }
+
+        @Override
+        public void onExit(TinyCalcAST node, Object result) {
+            if (depth == 0) {
+                return;
+            }
+            long start = startTimes[--depth];
+            if (start != NOT_SAMPLED) {
+                long elapsed = Math.max(0, System.nanoTime() - start);
+                histograms[nodeTypeIndex(node)][64 - Long.numberOfLeadingZeros(elapsed)]++;
+            }
+        }
+
+        public long[] histogram(Class<? extends TinyCalcAST> nodeType) {
+            int index = NODE_TYPES.indexOf(nodeType);
+            return index < 0 ? new long[BUCKETS] : histograms[index].clone();
+        }
+
+        public long sampleCount(Class<? extends TinyCalcAST> nodeType) {
+            long total = 0;
+            for (long count : histogram(nodeType)) {
+                total += count;
+            }
+            return total;
+        }
+
+        public void reset() {
+            for (long[] histogram : histograms) {
+                java.util.Arrays.fill(histogram, 0);
+            }
+            depth = 0;
+            untilSample = sampleInterval;
+        }
+    }
 }